@@ -91,12 +91,33 @@ public class HeaderData {
    
    private Map<PageResourceId, String> resources = new LinkedHashMap<PageResourceId, String>();
    
+   // fixed head section markup of a copy
+   private String                    headSectionMarkup  = null;
+   
    /**
     * default constructor
     */
    public HeaderData() {
    }
    
+   /**
+    * Creates a copy of the header data. The head section markup of the copy is the
+    * markup generated by the source at the time of copying. The copy is used to
+    * provide header data from a cache without invoking the portlet again.
+    * 
+    * @param source  the header data to copy
+    */
+   public HeaderData(HeaderData source) {
+      headSectionMarkup = source.getHeadSectionMarkup();
+      for (Cookie c : source.cookies) {
+         cookies.add((Cookie) c.clone());
+      }
+      for (Map.Entry<String, List<String>> e : source.httpHeaders.entrySet()) {
+         httpHeaders.put(e.getKey(), new ArrayList<String>(e.getValue()));
+      }
+      resources.putAll(source.resources);
+   }
+   
    /**
     * Lazy setup of document and buffers
     * @throws ParserConfigurationException
@@ -402,6 +423,10 @@ public class HeaderData {
    }
 
    public String getHeadSectionMarkup() {
+      
+      if (headSectionMarkup != null) {
+         return headSectionMarkup;
+      }
 
       // First add the markup that was generated by adding elements, then add markup written to the
       // output stream.
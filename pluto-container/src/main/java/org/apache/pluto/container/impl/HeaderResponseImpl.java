@@ -32,6 +32,8 @@ import org.apache.pluto.container.util.ArgumentUtility;
 @SuppressWarnings("unchecked")
 public class HeaderResponseImpl extends MimeResponseImpl implements HeaderResponse {
 
+   private String title;
+
    public HeaderResponseImpl(PortletHeaderResponseContext responseContext) {
       super(responseContext);
    }
@@ -99,9 +101,17 @@ public class HeaderResponseImpl extends MimeResponseImpl implements HeaderRespon
    }
 
    public void setTitle(String title) {
+      this.title = title;
       ((PortletHeaderResponseContext) responseContext).setTitle(title);
    }
 
+   /**
+    * @return the title set by the portlet, or <code>null</code> if no title was set.
+    */
+   public String getTitle() {
+      return title;
+   }
+
    @Override
    public void addDependency(String name, String scope, String version) {
       ((PortletHeaderResponseContext) responseContext).addDependency(name, scope, version);
@@ -510,7 +510,13 @@ public class HttpServletPortletRequestWrapper extends HttpServletRequestWrapper
    public Map<String, String[]> getParameterMap() {
       if (isClosed) return Collections.emptyMap();
       Map<String, String[]> pm = reqctx.getParameterMap();
-      return pm;
+      // copy the values, as the parameter map of the request context is shared
+      Map<String, String[]> copy = new HashMap<String, String[]>(pm.size() * 4 / 3 + 1);
+      for (Map.Entry<String, String[]> entry : pm.entrySet()) {
+         String[] vals = entry.getValue();
+         copy.put(entry.getKey(), (vals == null) ? null : vals.clone());
+      }
+      return Collections.unmodifiableMap(copy);
    }
 
    @Override
@@ -532,7 +538,8 @@ public class HttpServletPortletRequestWrapper extends HttpServletRequestWrapper
    public String[] getParameterValues(String name) {
       if (isClosed) return null;
       Map<String, String[]> pm = reqctx.getParameterMap();
-      return pm.get(name);
+      String[] vals = pm.get(name);
+      return (vals == null) ? null : vals.clone();
    }
 
    @Override
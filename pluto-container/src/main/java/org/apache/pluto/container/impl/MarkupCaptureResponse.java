@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that keeps a copy of the output of a portlet, so that the
+ * output can be stored in the markup cache. The output is passed on to the
+ * wrapped response as it is written. The portal driver uses the same wrapper
+ * to capture complete pages.
+ * <p>
+ * The markup written to the writer and the bytes written to the output stream
+ * are captured, together with the HTTP headers set by the portlet. A response
+ * that sets cookies, date headers or an error status is marked as not cacheable.
+ */
+public class MarkupCaptureResponse extends HttpServletResponseWrapper
+{
+    private final StringBuilder markup = new StringBuilder(1024);
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    private ByteArrayOutputStream bytes = null;
+    private PrintWriter writer = null;
+    private ServletOutputStream stream = null;
+    private boolean cacheable = true;
+
+    public MarkupCaptureResponse(HttpServletResponse response)
+    {
+        super(response);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        if (writer == null)
+        {
+            writer = new PrintWriter(new CaptureWriter(super.getWriter()));
+        }
+        return writer;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (stream == null)
+        {
+            ServletOutputStream out = super.getOutputStream();
+            bytes = new ByteArrayOutputStream(1024);
+            stream = new CaptureStream(out);
+        }
+        return stream;
+    }
+
+    @Override
+    public void reset()
+    {
+        super.reset();
+        headers.clear();
+        clear();
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+        super.resetBuffer();
+        clear();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie)
+    {
+        cacheable = false;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+        if (PortletMarkupCache.isCookieHeader(name))
+        {
+            cacheable = false;
+        }
+        List<String> values = new ArrayList<String>(2);
+        values.add(value);
+        headers.put(name, values);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+        if (PortletMarkupCache.isCookieHeader(name))
+        {
+            cacheable = false;
+        }
+        List<String> values = headers.get(name);
+        if (values == null)
+        {
+            values = new ArrayList<String>(2);
+            headers.put(name, values);
+        }
+        values.add(value);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value)
+    {
+        setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value)
+    {
+        addHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date)
+    {
+        cacheable = false;
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date)
+    {
+        cacheable = false;
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setStatus(int sc)
+    {
+        if (sc != SC_OK)
+        {
+            cacheable = false;
+        }
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException
+    {
+        cacheable = false;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException
+    {
+        cacheable = false;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException
+    {
+        cacheable = false;
+        super.sendRedirect(location);
+    }
+
+    /**
+     * @return <code>true</code> if the markup written through the writer is the
+     *         complete portlet output.
+     */
+    public boolean isCaptured()
+    {
+        return cacheable && stream == null;
+    }
+
+    /**
+     * @return <code>true</code> if the output and the headers have been captured
+     *         and the response may be cached.
+     */
+    public boolean isCacheable()
+    {
+        return cacheable && (writer == null || stream == null);
+    }
+
+    /**
+     * @return the markup written through the writer.
+     */
+    public String getMarkup()
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+        return markup.toString();
+    }
+
+    /**
+     * @return the bytes written to the output stream, or <code>null</code> if the
+     *         output stream was not used.
+     */
+    public byte[] getContent()
+    {
+        return (bytes == null) ? null : bytes.toByteArray();
+    }
+
+    /**
+     * @return the HTTP headers set by the portlet.
+     */
+    public Map<String, List<String>> getHeaders()
+    {
+        return headers;
+    }
+
+    private void clear()
+    {
+        markup.setLength(0);
+        if (bytes != null)
+        {
+            bytes.reset();
+        }
+    }
+
+    /**
+     * Writes to the wrapped writer and to the capture buffer.
+     */
+    private class CaptureWriter extends Writer
+    {
+        private final Writer out;
+
+        CaptureWriter(Writer out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            out.write(cbuf, off, len);
+            markup.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            out.write(str, off, len);
+            markup.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes to the wrapped output stream and to the capture buffer.
+     */
+    private class CaptureStream extends ServletOutputStream
+    {
+        private final ServletOutputStream out;
+
+        CaptureStream(ServletOutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+            out.setWriteListener(writeListener);
+        }
+    }
+}
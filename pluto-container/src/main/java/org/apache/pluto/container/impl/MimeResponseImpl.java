@@ -45,6 +45,7 @@ public class MimeResponseImpl extends PortletResponseImpl implements
    private boolean                    usingStream;
    private boolean                    committed;
    private String                     contentType;
+   private boolean                    portalURLCreated;
 
    protected PortletMimeResponseContext responseContext;
 
@@ -75,22 +76,39 @@ public class MimeResponseImpl extends PortletResponseImpl implements
 
    @SuppressWarnings("unchecked")
    public ActionURL createActionURL() {
+      portalURLCreated = true;
       return new ActionURLImpl(responseContext, PUBLIC);
    }
 
    @SuppressWarnings("unchecked")
    public RenderURL createRenderURL() {
+      portalURLCreated = true;
       return new RenderURLImpl(responseContext, PUBLIC);
    }
 
    public ActionURL createActionURL(Copy option) {
+      portalURLCreated = true;
       return new ActionURLImpl(responseContext, option);
    }
 
    public RenderURL createRenderURL(Copy option) {
+      portalURLCreated = true;
       return new RenderURLImpl(responseContext, option);
    }
 
+   /**
+    * Returns <code>true</code> if an action or render URL was created for the
+    * response. These URLs carry the CSRF token and the navigational state of the
+    * requesting user, so the output must not be shared with other users.
+    */
+   boolean isPortalURLCreated() {
+      return portalURLCreated;
+   }
+
+   void setPortalURLCreated() {
+      portalURLCreated = true;
+   }
+
    public ResourceURL createResourceURL() {
       return new ResourceURLImpl(responseContext);
    }
@@ -20,16 +20,20 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.List;
+import java.util.Map;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
+import javax.portlet.CacheControl;
 import javax.portlet.Event;
 import javax.portlet.EventRequest;
 import javax.portlet.EventResponse;
 import javax.portlet.HeaderRequest;
 import javax.portlet.HeaderResponse;
+import javax.portlet.MimeResponse;
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
+import javax.portlet.PortletResponse;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 import javax.portlet.ResourceRequest;
@@ -47,12 +51,15 @@ import org.apache.pluto.container.PortletEnvironmentService;
 import org.apache.pluto.container.PortletEventResponseContext;
 import org.apache.pluto.container.PortletHeaderResponseContext;
 import org.apache.pluto.container.PortletInvokerService;
+import org.apache.pluto.container.PortletMimeResponseContext;
 import org.apache.pluto.container.PortletRenderResponseContext;
 import org.apache.pluto.container.PortletRequestContext;
 import org.apache.pluto.container.PortletRequestContextService;
 import org.apache.pluto.container.PortletResourceRequestContext;
 import org.apache.pluto.container.PortletResourceResponseContext;
+import org.apache.pluto.container.PortletResponseContext;
 import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,6 +88,12 @@ public class PortletContainerImpl implements PortletContainer
     /** Flag indicating whether or not we've been initialized. */
     private boolean initialized = false;
 
+    /** The bulkheads and circuit breakers for portlet invocations, may be null. */
+    private PortletInvocationGuard invocationGuard = null;
+
+    /** The cache for the output of the header and render phases, may be null. */
+    private PortletMarkupCache markupCache = null;
+
 
     // Constructor -------------------------------------------------------------
 
@@ -116,6 +129,39 @@ public class PortletContainerImpl implements PortletContainer
         return initialized;
     }
 
+    /**
+     * Sets the guard that limits concurrent header, render and resource
+     * invocations and opens a circuit breaker for failing portlets.
+     * By default, portlet invocations are not guarded.
+     * @param invocationGuard  the invocation guard, or null.
+     */
+    public void setInvocationGuard(PortletInvocationGuard invocationGuard) {
+        this.invocationGuard = invocationGuard;
+    }
+
+    /**
+     * @return the invocation guard, or null if invocations are not guarded.
+     */
+    public PortletInvocationGuard getInvocationGuard() {
+        return invocationGuard;
+    }
+
+    /**
+     * Sets the cache for the output of the header and render phases.
+     * By default, portlet output is not cached.
+     * @param markupCache  the markup cache, or null.
+     */
+    public void setMarkupCache(PortletMarkupCache markupCache) {
+        this.markupCache = markupCache;
+    }
+
+    /**
+     * @return the markup cache, or null if portlet output is not cached.
+     */
+    public PortletMarkupCache getMarkupCache() {
+        return markupCache;
+    }
+
     /**
      * Destroy this container.
      */
@@ -155,25 +201,77 @@ public class PortletContainerImpl implements PortletContainer
         PortletRequestContext requestContext = rcService.getPortletHeaderRequestContext(this, request, response, portletWindow);
         PortletHeaderResponseContext responseContext = rcService.getPortletHeaderResponseContext(this, request, response, portletWindow, requestContext);
         responseContext.setPropsAllowed(true);
-        HeaderRequest portletRequest = envService.createHeaderRequest(requestContext, responseContext);
-        HeaderResponse portletResponse = envService.createHeaderResponse(responseContext);
-        HeaderData headerData = new HeaderData();
-
-        FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.HEADER_PHASE);
 
+        String cacheKey = null;
+        PortletMarkupCache.Lookup lookup = null;
+        // the lookup is released whatever happens after it, so that waiting requests are not blocked
         try
         {
-            invoker.header(requestContext, portletRequest, portletResponse, filterManager);
-            headerData = responseContext.getHeaderData();
-            responseContext.close();
+            if (markupCache != null)
+            {
+                cacheKey = PortletMarkupCache.createKey(PortletRequest.HEADER_PHASE, portletWindow,
+                        requestContext.getParameterMap(), request.getLocale(),
+                        PortletMarkupCache.getPageState(request));
+                lookup = markupCache.lookup(portletWindow.getId().getStringId(), cacheKey,
+                        PortletMarkupCache.getUser(request), isSharedCache(portletWindow));
+                if (lookup.getEntry() != null)
+                {
+                    debugWithName("Cached header data used for: " + portletWindow.getPortletDefinition().getPortletName());
+                    return replay(lookup.getEntry(), responseContext, request, response, false);
+                }
+            }
+
+            PortletInvocationGuard.Invocation invocation = null;
+            if (invocationGuard != null)
+            {
+                invocation = invocationGuard.begin(portletWindow);
+                if (invocation == null)
+                {
+                    debugWithName("Header request skipped for unavailable portlet: "
+                            + portletWindow.getPortletDefinition().getPortletName());
+                    responseContext.release();
+                    return new HeaderData();
+                }
+            }
+            HeaderData headerData = new HeaderData();
+
+            // everything after begin() is in the try block, so the permits are always returned
+            boolean success = false;
+            try
+            {
+                HeaderRequest portletRequest = envService.createHeaderRequest(requestContext, responseContext);
+                HeaderResponse portletResponse = envService.createHeaderResponse(responseContext);
+
+                FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.HEADER_PHASE);
+
+                invoker.header(requestContext, portletRequest, portletResponse, filterManager);
+                headerData = responseContext.getHeaderData();
+                if (cacheKey != null)
+                {
+                    cacheOutput(cacheKey, request, responseContext, portletResponse, null, headerData);
+                }
+                responseContext.close();
+                success = true;
+            }
+            finally
+            {
+                responseContext.release();
+                if (invocation != null)
+                {
+                    invocation.end(success);
+                }
+            }
+
+            debugWithName("Portlet header done for: " + portletWindow.getPortletDefinition().getPortletName());
+            return headerData;
         }
         finally
         {
-            responseContext.release();
+            if (lookup != null)
+            {
+                lookup.release();
+            }
         }
-
-        debugWithName("Portlet header done for: " + portletWindow.getPortletDefinition().getPortletName());
-        return headerData;
     }
 
 
@@ -205,10 +303,19 @@ public class PortletContainerImpl implements PortletContainer
         PortletEnvironmentService envService = getContainerServices().getPortletEnvironmentService();
         PortletInvokerService invoker = getContainerServices().getPortletInvokerService();
 
-        PortletRequestContext requestContext = rcService.getPortletRenderRequestContext(this, request, response, portletWindow);
-        PortletRenderResponseContext responseContext = rcService.getPortletRenderResponseContext(this, request, response, portletWindow, requestContext);
+        // keep a copy of the markup for the cache
+        boolean isRenderHeaders = PortletRequest.RENDER_HEADERS.equals(renderHeaders);
+        MarkupCaptureResponse capture = null;
+        if (markupCache != null && !isRenderHeaders)
+        {
+            capture = new MarkupCaptureResponse(response);
+        }
+        HttpServletResponse portletServletResponse = (capture != null) ? capture : response;
 
-        if (renderHeaders != null && renderHeaders.equals(PortletRequest.RENDER_HEADERS)) {
+        PortletRequestContext requestContext = rcService.getPortletRenderRequestContext(this, request, portletServletResponse, portletWindow);
+        PortletRenderResponseContext responseContext = rcService.getPortletRenderResponseContext(this, request, portletServletResponse, portletWindow, requestContext);
+
+        if (isRenderHeaders) {
            responseContext.setPropsAllowed(true);
         } else {
            responseContext.setPropsAllowed(false);
@@ -216,24 +323,96 @@ public class PortletContainerImpl implements PortletContainer
         requestContext.setRenderHeaders(renderHeaders);
         HeaderData headerData = new HeaderData();
 
-        RenderRequest portletRequest = envService.createRenderRequest(requestContext, responseContext);
-        RenderResponse portletResponse = envService.createRenderResponse(responseContext);
-
-        FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.RENDER_PHASE);
-
+        String cacheKey = null;
+        PortletMarkupCache.Lookup lookup = null;
+        PortletMarkupCache.Entry validationEntry = null;
+        // the lookup is released whatever happens after it, so that waiting requests are not blocked
         try
         {
-            invoker.render(requestContext, portletRequest, portletResponse, filterManager);
-            headerData = responseContext.getHeaderData();
-            responseContext.close();
+            if (markupCache != null)
+            {
+                cacheKey = PortletMarkupCache.createKey(isRenderHeaders ? PortletRequest.RENDER_HEADERS : PortletRequest.RENDER_PHASE,
+                        portletWindow, requestContext.getParameterMap(), request.getLocale(),
+                        PortletMarkupCache.getPageState(request));
+                lookup = markupCache.lookup(portletWindow.getId().getStringId(), cacheKey,
+                        PortletMarkupCache.getUser(request), isSharedCache(portletWindow));
+                if (lookup.getEntry() != null)
+                {
+                    debugWithName("Cached markup used for: " + portletWindow.getPortletDefinition().getPortletName());
+                    return replay(lookup.getEntry(), responseContext, request, response, !isRenderHeaders);
+                }
+                if (!isRenderHeaders)
+                {
+                    // pass the ETag of the stored markup to the portlet for validation
+                    validationEntry = markupCache.getForValidation(portletWindow.getId().getStringId(), cacheKey,
+                            PortletMarkupCache.getUser(request));
+                    if (validationEntry != null)
+                    {
+                        responseContext.getCacheControl().setETag(validationEntry.getETag());
+                    }
+                }
+            }
+
+            PortletInvocationGuard.Invocation invocation = null;
+            if (invocationGuard != null)
+            {
+                invocation = invocationGuard.begin(portletWindow);
+                if (invocation == null)
+                {
+                    debugWithName("Fallback markup rendered for unavailable portlet: "
+                            + portletWindow.getPortletDefinition().getPortletName());
+                    responseContext.release();
+                    if (!isRenderHeaders)
+                    {
+                        response.getWriter().print(invocationGuard.getFallbackMarkup(portletWindow));
+                    }
+                    return headerData;
+                }
+            }
+
+            // everything after begin() is in the try block, so the permits are always returned
+            boolean success = false;
+            try
+            {
+                RenderRequest portletRequest = envService.createRenderRequest(requestContext, responseContext);
+                RenderResponse portletResponse = envService.createRenderResponse(responseContext);
+
+                FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.RENDER_PHASE);
+
+                invoker.render(requestContext, portletRequest, portletResponse, filterManager);
+                headerData = responseContext.getHeaderData();
+                if (validationEntry != null && responseContext.getCacheControl().useCachedContent())
+                {
+                    debugWithName("Validated markup used for: " + portletWindow.getPortletDefinition().getPortletName());
+                    reuseMarkup(validationEntry, portletResponse, capture);
+                }
+                if (cacheKey != null)
+                {
+                    cacheOutput(cacheKey, request, responseContext, portletResponse, capture,
+                            isRenderHeaders ? headerData : null);
+                }
+                responseContext.close();
+                success = true;
+            }
+            finally
+            {
+                responseContext.release();
+                if (invocation != null)
+                {
+                    invocation.end(success);
+                }
+            }
+
+            debugWithName("Portlet render done for: " + portletWindow.getPortletDefinition().getPortletName());
+            return headerData;
         }
         finally
         {
-            responseContext.release();
+            if (lookup != null)
+            {
+                lookup.release();
+            }
         }
-
-        debugWithName("Portlet render done for: " + portletWindow.getPortletDefinition().getPortletName());
-        return headerData;
     }
 
     /**
@@ -261,31 +440,94 @@ public class PortletContainerImpl implements PortletContainer
         PortletEnvironmentService envService = getContainerServices().getPortletEnvironmentService();
         PortletInvokerService invoker = getContainerServices().getPortletInvokerService();
 
-        PortletResourceRequestContext requestContext = rcService.getPortletResourceRequestContext(this, request, response, portletWindow);
-        PortletResourceResponseContext responseContext = rcService.getPortletResourceResponseContext(this, request, response, portletWindow, requestContext);
+        // only the output of GET requests is cached
+        MarkupCaptureResponse capture = null;
+        if (markupCache != null && "GET".equals(request.getMethod()))
+        {
+            capture = new MarkupCaptureResponse(response);
+        }
+        HttpServletResponse portletServletResponse = (capture != null) ? capture : response;
+
+        PortletResourceRequestContext requestContext = rcService.getPortletResourceRequestContext(this, request, portletServletResponse, portletWindow);
+        PortletResourceResponseContext responseContext = rcService.getPortletResourceResponseContext(this, request, portletServletResponse, portletWindow, requestContext);
         responseContext.setPropsAllowed(true);
-        ResourceRequest portletRequest = envService.createResourceRequest(requestContext, responseContext);
-        ResourceResponse portletResponse = envService.createResourceResponse(responseContext, requestContext.getCacheability());
-        requestContext.setResponse(portletResponse);     // for async support
 
-        FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.RESOURCE_PHASE);
-        
+        String cacheKey = null;
+        PortletMarkupCache.Lookup lookup = null;
+        // the lookup is released whatever happens after it, so that waiting requests are not blocked
         try
         {
-           invoker.serveResource(requestContext, portletRequest, portletResponse, filterManager);
+            if (capture != null)
+            {
+                String phase = PortletRequest.RESOURCE_PHASE + ':' + requestContext.getResourceID()
+                        + ':' + requestContext.getCacheability();
+                cacheKey = PortletMarkupCache.createKey(phase, portletWindow,
+                        requestContext.getParameterMap(), request.getLocale(),
+                        PortletMarkupCache.getPageState(request));
+                lookup = markupCache.lookup(portletWindow.getId().getStringId(), cacheKey, null,
+                        isSharedCache(portletWindow));
+                if (lookup.getEntry() != null)
+                {
+                    debugWithName("Cached resource used for: " + portletWindow.getPortletDefinition().getPortletName());
+                    replay(lookup.getEntry(), responseContext, request, response, true);
+                    return;
+                }
+            }
+
+            PortletInvocationGuard.Invocation invocation = null;
+            if (invocationGuard != null)
+            {
+                invocation = invocationGuard.begin(portletWindow);
+                if (invocation == null)
+                {
+                    debugWithName("Resource request rejected for unavailable portlet: "
+                            + portletWindow.getPortletDefinition().getPortletName());
+                    responseContext.release();
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+            }
+            // everything after begin() is in the try block, so the permits are always returned
+            boolean success = false;
+            try
+            {
+               ResourceRequest portletRequest = envService.createResourceRequest(requestContext, responseContext);
+               ResourceResponse portletResponse = envService.createResourceResponse(responseContext, requestContext.getCacheability());
+               requestContext.setResponse(portletResponse);     // for async support
+
+               FilterManager filterManager = filterInitialisation(portletWindow,PortletRequest.RESOURCE_PHASE);
+
+               invoker.serveResource(requestContext, portletRequest, portletResponse, filterManager);
+               if (cacheKey != null && !(request.isAsyncSupported() && request.isAsyncStarted()))
+               {
+                   cacheResource(cacheKey, responseContext, portletResponse, capture);
+               }
+               success = true;
+            }
+            finally
+            {
+                if (invocation != null)
+                {
+                    invocation.end(success);
+                }
+                if (!request.isAsyncSupported() || !request.isAsyncStarted()) {
+                    // Mark portlet interaction is completed: backend implementation can flush response state now
+                    responseContext.close();
+                    responseContext.release();
+                } else {
+                   LOG.debug("Async started for resource request. responseContext not released.");
+                }
+            }
+
+            debugWithName("Portlet resource done for: " + portletWindow.getPortletDefinition().getPortletName());
         }
         finally
         {
-            if (!request.isAsyncSupported() || !request.isAsyncStarted()) {
-                // Mark portlet interaction is completed: backend implementation can flush response state now
-                responseContext.close();
-                responseContext.release();
-            } else {
-               LOG.debug("Async started for resource request. responseContext not released.");
+            if (lookup != null)
+            {
+                lookup.release();
             }
         }
-
-        debugWithName("Portlet resource done for: " + portletWindow.getPortletDefinition().getPortletName());
     }
 
     /**
@@ -380,6 +622,7 @@ public class PortletContainerImpl implements PortletContainer
             location = response.encodeRedirectURL(responseContext.getResponseURL());
    
             responseContext.release();
+            invalidateMarkupCache(portletWindow);
         }
         if (isRedirect) {
            redirect(request, response, location);
@@ -388,6 +631,176 @@ public class PortletContainerImpl implements PortletContainer
         debugWithName(logtxt + " done for: " + portletWindow.getPortletDefinition().getPortletName());
     }
 
+    /**
+     * Stores the output of a header or render request in the markup cache if the
+     * cache control of the response sets an expiration time or an ETag.
+     * @param cacheKey  the cache key.
+     * @param request  the servlet request.
+     * @param responseContext  the response context, before it is closed.
+     * @param portletResponse  the portlet response.
+     * @param capture  the captured markup, or null if no markup is cached.
+     * @param headerData  the header data, or null if no header data is cached.
+     */
+    private void cacheOutput(String cacheKey, HttpServletRequest request,
+            PortletMimeResponseContext responseContext, PortletResponse portletResponse,
+            MarkupCaptureResponse capture, HeaderData headerData)
+    {
+        CacheControl cacheControl = responseContext.getCacheControl();
+        if ((!PortletMarkupCache.isCacheable(cacheControl) && !PortletMarkupCache.isValidatable(cacheControl))
+                || (capture != null && !capture.isCaptured()))
+        {
+            return;
+        }
+        if (headerData != null && PortletMarkupCache.setsCookies(headerData))
+        {
+            // cookies are set for the current visitor only and must not be replayed
+            return;
+        }
+        if (cacheControl.isPublicScope() && isPortalURLCreated(portletResponse))
+        {
+            // the output contains the action and render URLs of the current user
+            cacheControl.setPublicScope(false);
+        }
+        String title = null;
+        if (portletResponse instanceof HeaderResponseImpl)
+        {
+            title = ((HeaderResponseImpl) portletResponse).getTitle();
+        }
+        else if (portletResponse instanceof RenderResponseImpl)
+        {
+            title = ((RenderResponseImpl) portletResponse).getTitle();
+        }
+        String markup = (capture == null) ? null : capture.getMarkup();
+        PortletWindow portletWindow = responseContext.getPortletWindow();
+        markupCache.put(portletWindow.getId().getStringId(), cacheKey, PortletMarkupCache.getUser(request),
+                new PortletMarkupCache.Entry(markup, title, headerData, cacheControl));
+    }
+
+    /**
+     * Writes the stored markup of a window after the portlet has validated it,
+     * so that it is also stored again with the new cache control.
+     * @param entry  the entry validated by the portlet.
+     * @param portletResponse  the render response.
+     * @param capture  the capture response of the render request.
+     */
+    private void reuseMarkup(PortletMarkupCache.Entry entry, RenderResponse portletResponse,
+            MarkupCaptureResponse capture)
+    throws IOException
+    {
+        if (entry.getTitle() != null && portletResponse instanceof RenderResponseImpl
+                && ((RenderResponseImpl) portletResponse).getTitle() == null)
+        {
+            portletResponse.setTitle(entry.getTitle());
+        }
+        if (entry.getMarkup() != null)
+        {
+            capture.getWriter().write(entry.getMarkup());
+        }
+    }
+
+    /**
+     * Stores the output of a resource request in the markup cache if the cache
+     * control of the response allows it and the output has public scope.
+     * @param cacheKey  the cache key.
+     * @param responseContext  the response context, before it is closed.
+     * @param portletResponse  the resource response.
+     * @param capture  the captured output.
+     */
+    private void cacheResource(String cacheKey, PortletMimeResponseContext responseContext,
+            PortletResponse portletResponse, MarkupCaptureResponse capture)
+    {
+        CacheControl cacheControl = responseContext.getCacheControl();
+        if (!PortletMarkupCache.isCacheable(cacheControl) || !cacheControl.isPublicScope()
+                || !capture.isCacheable() || isPortalURLCreated(portletResponse))
+        {
+            return;
+        }
+        byte[] content = capture.getContent();
+        String markup = (content == null) ? capture.getMarkup() : null;
+        PortletWindow portletWindow = responseContext.getPortletWindow();
+        markupCache.put(portletWindow.getId().getStringId(), cacheKey, null,
+                new PortletMarkupCache.Entry(markup, content, capture.getContentType(),
+                        capture.getCharacterEncoding(), capture.getHeaders(), cacheControl));
+    }
+
+    /**
+     * Returns true if the portlet created an action or render URL for the response.
+     * Such output contains the CSRF token and the navigational state of the
+     * current user and is not shared.
+     */
+    private static boolean isPortalURLCreated(PortletResponse portletResponse)
+    {
+        return portletResponse instanceof MimeResponseImpl
+                && ((MimeResponseImpl) portletResponse).isPortalURLCreated();
+    }
+
+    /**
+     * Returns true if the portlet declares public cache scope and an expiration
+     * cache, so that concurrent requests for its output may be coalesced.
+     */
+    private boolean isSharedCache(PortletWindow portletWindow)
+    {
+        PortletDefinition pd = portletWindow.getPortletDefinition();
+        return MimeResponse.PUBLIC_SCOPE.equals(pd.getCacheScope()) && pd.getExpirationCache() != 0;
+    }
+
+    /**
+     * Provides the cached output of a header, render or resource request without invoking the portlet.
+     * @param entry  the cache entry.
+     * @param responseContext  the response context.
+     * @param request  the servlet request.
+     * @param response  the servlet response.
+     * @param writeMarkup  true if the cached output is to be written to the response.
+     * @return the cached header data.
+     */
+    private HeaderData replay(PortletMarkupCache.Entry entry, PortletResponseContext responseContext,
+            HttpServletRequest request, HttpServletResponse response, boolean writeMarkup)
+    throws IOException
+    {
+        try
+        {
+            if (entry.getTitle() != null)
+            {
+                // the container stands in for the portlet servlet
+                responseContext.init(null, request, response);
+                if (responseContext instanceof PortletHeaderResponseContext)
+                {
+                    ((PortletHeaderResponseContext) responseContext).setTitle(entry.getTitle());
+                }
+                else if (responseContext instanceof PortletRenderResponseContext)
+                {
+                    ((PortletRenderResponseContext) responseContext).setTitle(entry.getTitle());
+                }
+            }
+            if (entry.getContentType() != null)
+            {
+                response.setContentType(entry.getContentType());
+                response.setCharacterEncoding(entry.getCharacterEncoding());
+            }
+            for (Map.Entry<String, List<String>> header : entry.getHeaders().entrySet())
+            {
+                for (String value : header.getValue())
+                {
+                    response.addHeader(header.getKey(), value);
+                }
+            }
+            if (writeMarkup && entry.getContent() != null)
+            {
+                response.getOutputStream().write(entry.getContent());
+            }
+            else if (writeMarkup && entry.getMarkup() != null)
+            {
+                response.getWriter().write(entry.getMarkup());
+            }
+            responseContext.close();
+        }
+        finally
+        {
+            responseContext.release();
+        }
+        return entry.getHeaderData();
+    }
+
     protected void redirect(HttpServletRequest request, HttpServletResponse response, String location) throws IOException
     {
         // Here we intentionally use the original response
@@ -559,6 +972,7 @@ public class PortletContainerImpl implements PortletContainer
         finally
         {
             responseContext.release();
+            invalidateMarkupCache(portletWindow);
         }
 
         if (events != null && !events.isEmpty())
@@ -571,6 +985,17 @@ public class PortletContainerImpl implements PortletContainer
 
     // Private Methods ---------------------------------------------------------
 
+    /**
+     * Removes the cached output of the window after an action or event.
+     */
+    private void invalidateMarkupCache(PortletWindow portletWindow)
+    {
+        if (markupCache != null)
+        {
+            markupCache.invalidate(portletWindow.getId().getStringId());
+        }
+    }
+
     /**
      * Ensures that the portlet container is initialized.
      * @throws IllegalStateException  if the container is not initialized.
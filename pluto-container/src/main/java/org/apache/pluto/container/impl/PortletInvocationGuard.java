@@ -0,0 +1,528 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Protects the portal from portlets that are slow or failing.
+ * <p>
+ * The guard limits the number of concurrent header, render and resource
+ * invocations of each portlet and of each portlet application (bulkheads),
+ * so that a hanging portlet cannot tie up all request threads. In addition,
+ * each portlet has a circuit breaker that opens after a configurable number of
+ * consecutive failures. A failure is an invocation that throws an exception,
+ * or that takes longer than the slow call threshold. While the breaker is open,
+ * the portlet is not invoked and the container serves the fallback markup
+ * instead. After the open duration has elapsed, a single trial invocation is
+ * let through; the breaker closes if it succeeds and opens again otherwise.
+ * <p>
+ * Portlets are identified by <code>application/portlet</code>, where
+ * <code>application</code> is the portlet application name. A limit of 0
+ * means that the number of concurrent invocations is not limited.
+ */
+public class PortletInvocationGuard
+{
+    /** Internal logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PortletInvocationGuard.class);
+
+    /** The markup written in place of the portlet if no fallback is configured. */
+    public static final String DEFAULT_FALLBACK_MARKUP =
+            "<p>This portlet is temporarily unavailable.</p>";
+
+    // Configuration -----------------------------------------------------------
+
+    private int defaultPortletLimit = 0;
+    private int defaultApplicationLimit = 0;
+    private Map<String, Integer> portletLimits = Collections.emptyMap();
+    private Map<String, Integer> applicationLimits = Collections.emptyMap();
+    private long acquireTimeout = 0;
+    private int failureThreshold = 5;
+    private long openDuration = 30000;
+    private long slowCallThreshold = 0;
+    private String fallbackMarkup = DEFAULT_FALLBACK_MARKUP;
+    private Map<String, String> fallbackMarkups = Collections.emptyMap();
+
+    // State -------------------------------------------------------------------
+
+    private final ConcurrentMap<String, Semaphore> portletBulkheads =
+            new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, Semaphore> applicationBulkheads =
+            new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, CircuitBreaker> breakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+
+    // Invocation --------------------------------------------------------------
+
+    /**
+     * Requests permission to invoke the portlet of the window. If permission is
+     * granted, the returned invocation must be ended by calling
+     * {@link Invocation#end(boolean)} once the portlet returns.
+     *
+     * @param portletWindow  the portlet window.
+     * @return the invocation, or <code>null</code> if the breaker of the portlet is
+     *         open or no bulkhead permit could be obtained.
+     */
+    public Invocation begin(PortletWindow portletWindow)
+    {
+        PortletDefinition pd = portletWindow.getPortletDefinition();
+        String appName = pd.getApplication().getName();
+        String portletKey = appName + "/" + pd.getPortletName();
+
+        CircuitBreaker breaker = getBreaker(portletKey);
+        Permission permission = breaker.allowRequest();
+        if (permission == Permission.DENIED)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Circuit breaker is open, portlet not invoked: " + portletKey);
+            }
+            return null;
+        }
+
+        Semaphore appPermits = getBulkhead(applicationBulkheads, appName,
+                getLimit(applicationLimits, appName, defaultApplicationLimit));
+        Semaphore portletPermits = getBulkhead(portletBulkheads, portletKey,
+                getLimit(portletLimits, portletKey, defaultPortletLimit));
+
+        if (!acquire(appPermits))
+        {
+            breaker.release(permission);
+            LOG.warn("Concurrent invocation limit reached for portlet application: " + appName);
+            return null;
+        }
+        if (!acquire(portletPermits))
+        {
+            release(appPermits);
+            breaker.release(permission);
+            LOG.warn("Concurrent invocation limit reached for portlet: " + portletKey);
+            return null;
+        }
+        return new Invocation(portletKey, breaker, permission, appPermits, portletPermits);
+    }
+
+    /**
+     * Returns the markup to be written in place of the portlet while it cannot be
+     * invoked. The fallback is looked up by <code>application/portlet</code>, then
+     * by application name, and defaults to the global fallback markup.
+     *
+     * @param portletWindow  the portlet window.
+     * @return the fallback markup.
+     */
+    public String getFallbackMarkup(PortletWindow portletWindow)
+    {
+        PortletDefinition pd = portletWindow.getPortletDefinition();
+        String appName = pd.getApplication().getName();
+        String markup = fallbackMarkups.get(appName + "/" + pd.getPortletName());
+        if (markup == null)
+        {
+            markup = fallbackMarkups.get(appName);
+        }
+        return (markup == null) ? fallbackMarkup : markup;
+    }
+
+    /**
+     * Returns <code>true</code> if the circuit breaker of the portlet is open.
+     *
+     * @param portletKey  the portlet, as <code>application/portlet</code>.
+     * @return <code>true</code> if the breaker is open.
+     */
+    public boolean isOpen(String portletKey)
+    {
+        CircuitBreaker breaker = breakers.get(portletKey);
+        return breaker != null && breaker.isOpen();
+    }
+
+    private CircuitBreaker getBreaker(String portletKey)
+    {
+        CircuitBreaker breaker = breakers.get(portletKey);
+        if (breaker == null)
+        {
+            breaker = new CircuitBreaker(portletKey);
+            CircuitBreaker existing = breakers.putIfAbsent(portletKey, breaker);
+            if (existing != null)
+            {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    private static int getLimit(Map<String, Integer> limits, String key, int defaultLimit)
+    {
+        Integer limit = limits.get(key);
+        return (limit == null) ? defaultLimit : limit.intValue();
+    }
+
+    private static Semaphore getBulkhead(ConcurrentMap<String, Semaphore> bulkheads,
+            String key, int limit)
+    {
+        if (limit <= 0)
+        {
+            return null;
+        }
+        Semaphore permits = bulkheads.get(key);
+        if (permits == null)
+        {
+            permits = new Semaphore(limit);
+            Semaphore existing = bulkheads.putIfAbsent(key, permits);
+            if (existing != null)
+            {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+
+    private boolean acquire(Semaphore permits)
+    {
+        if (permits == null)
+        {
+            return true;
+        }
+        if (acquireTimeout <= 0)
+        {
+            return permits.tryAcquire();
+        }
+        try
+        {
+            return permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void release(Semaphore permits)
+    {
+        if (permits != null)
+        {
+            permits.release();
+        }
+    }
+
+
+    // Configuration Properties ------------------------------------------------
+
+    /**
+     * @param defaultPortletLimit  the maximum number of concurrent invocations of
+     *        a portlet that has no limit of its own, 0 for no limit.
+     */
+    public void setDefaultPortletLimit(int defaultPortletLimit)
+    {
+        this.defaultPortletLimit = defaultPortletLimit;
+    }
+
+    public int getDefaultPortletLimit()
+    {
+        return defaultPortletLimit;
+    }
+
+    /**
+     * @param defaultApplicationLimit  the maximum number of concurrent invocations
+     *        of the portlets of an application that has no limit of its own,
+     *        0 for no limit.
+     */
+    public void setDefaultApplicationLimit(int defaultApplicationLimit)
+    {
+        this.defaultApplicationLimit = defaultApplicationLimit;
+    }
+
+    public int getDefaultApplicationLimit()
+    {
+        return defaultApplicationLimit;
+    }
+
+    /**
+     * @param portletLimits  the maximum number of concurrent invocations by
+     *        <code>application/portlet</code>.
+     */
+    public void setPortletLimits(Map<String, Integer> portletLimits)
+    {
+        this.portletLimits = new HashMap<String, Integer>(portletLimits);
+    }
+
+    public Map<String, Integer> getPortletLimits()
+    {
+        return Collections.unmodifiableMap(portletLimits);
+    }
+
+    /**
+     * @param applicationLimits  the maximum number of concurrent invocations by
+     *        portlet application name.
+     */
+    public void setApplicationLimits(Map<String, Integer> applicationLimits)
+    {
+        this.applicationLimits = new HashMap<String, Integer>(applicationLimits);
+    }
+
+    public Map<String, Integer> getApplicationLimits()
+    {
+        return Collections.unmodifiableMap(applicationLimits);
+    }
+
+    /**
+     * @param acquireTimeout  the time in milliseconds to wait for a bulkhead
+     *        permit, 0 to reject the invocation immediately.
+     */
+    public void setAcquireTimeout(long acquireTimeout)
+    {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public long getAcquireTimeout()
+    {
+        return acquireTimeout;
+    }
+
+    /**
+     * @param failureThreshold  the number of consecutive failures after which
+     *        the circuit breaker of a portlet opens, 0 to disable the breaker.
+     */
+    public void setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    /**
+     * @param openDuration  the time in milliseconds the breaker stays open
+     *        before a trial invocation is let through.
+     */
+    public void setOpenDuration(long openDuration)
+    {
+        this.openDuration = openDuration;
+    }
+
+    public long getOpenDuration()
+    {
+        return openDuration;
+    }
+
+    /**
+     * @param slowCallThreshold  the duration in milliseconds after which an
+     *        invocation counts as failed, 0 to count only exceptions.
+     */
+    public void setSlowCallThreshold(long slowCallThreshold)
+    {
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+    public long getSlowCallThreshold()
+    {
+        return slowCallThreshold;
+    }
+
+    /**
+     * @param fallbackMarkup  the markup written in place of a portlet that
+     *        cannot be invoked.
+     */
+    public void setFallbackMarkup(String fallbackMarkup)
+    {
+        this.fallbackMarkup = fallbackMarkup;
+    }
+
+    public String getFallbackMarkup()
+    {
+        return fallbackMarkup;
+    }
+
+    /**
+     * @param fallbackMarkups  the fallback markup by <code>application/portlet</code>
+     *        or by portlet application name.
+     */
+    public void setFallbackMarkups(Map<String, String> fallbackMarkups)
+    {
+        this.fallbackMarkups = new HashMap<String, String>(fallbackMarkups);
+    }
+
+    public Map<String, String> getFallbackMarkups()
+    {
+        return Collections.unmodifiableMap(fallbackMarkups);
+    }
+
+
+    // Nested Classes ----------------------------------------------------------
+
+    /**
+     * A permitted invocation of a portlet.
+     */
+    public final class Invocation
+    {
+        private final String portletKey;
+        private final CircuitBreaker breaker;
+        private final Permission permission;
+        private final Semaphore appPermits;
+        private final Semaphore portletPermits;
+        private final long start = System.currentTimeMillis();
+        private boolean ended = false;
+
+        private Invocation(String portletKey, CircuitBreaker breaker, Permission permission,
+                Semaphore appPermits, Semaphore portletPermits)
+        {
+            this.portletKey = portletKey;
+            this.breaker = breaker;
+            this.permission = permission;
+            this.appPermits = appPermits;
+            this.portletPermits = portletPermits;
+        }
+
+        /**
+         * Ends the invocation, releasing the bulkhead permits and recording the
+         * outcome with the circuit breaker. Calls after the first have no effect.
+         *
+         * @param success  <code>false</code> if the portlet threw an exception.
+         */
+        public void end(boolean success)
+        {
+            if (ended)
+            {
+                return;
+            }
+            ended = true;
+            release(portletPermits);
+            release(appPermits);
+
+            long elapsed = System.currentTimeMillis() - start;
+            if (success && slowCallThreshold > 0 && elapsed > slowCallThreshold)
+            {
+                LOG.warn("Portlet invocation took " + elapsed + " ms: " + portletKey);
+                success = false;
+            }
+            breaker.record(success, permission);
+        }
+    }
+
+    /**
+     * The permission granted by a circuit breaker.
+     */
+    private enum Permission
+    {
+        /** The breaker is open, the portlet may not be invoked. */
+        DENIED,
+        /** The breaker is closed. */
+        GRANTED,
+        /** The single trial invocation of an open breaker. */
+        TRIAL
+    }
+
+    /**
+     * The circuit breaker of a portlet.
+     */
+    private final class CircuitBreaker
+    {
+        private final String portletKey;
+        private int failures = 0;
+        private long openedAt = 0;
+        private boolean open = false;
+        private boolean trial = false;
+
+        CircuitBreaker(String portletKey)
+        {
+            this.portletKey = portletKey;
+        }
+
+        synchronized boolean isOpen()
+        {
+            return open;
+        }
+
+        /**
+         * Returns the permission to invoke the portlet. Once the open duration has
+         * elapsed, a single trial invocation is allowed.
+         */
+        synchronized Permission allowRequest()
+        {
+            if (!open)
+            {
+                return Permission.GRANTED;
+            }
+            if (!trial && System.currentTimeMillis() - openedAt >= openDuration)
+            {
+                trial = true;
+                return Permission.TRIAL;
+            }
+            return Permission.DENIED;
+        }
+
+        /**
+         * Gives up a permission obtained from {@link #allowRequest()} without
+         * invoking the portlet. Only the holder of the trial permission frees
+         * the trial.
+         */
+        synchronized void release(Permission permission)
+        {
+            if (permission == Permission.TRIAL)
+            {
+                trial = false;
+            }
+        }
+
+        /**
+         * Records the outcome of an invocation. While the breaker is open, only
+         * the outcome of the trial invocation counts. Invocations that were
+         * started before the breaker opened do not affect the trial.
+         */
+        synchronized void record(boolean success, Permission permission)
+        {
+            boolean isTrial = (permission == Permission.TRIAL);
+            if (open && !isTrial)
+            {
+                return;
+            }
+            if (success)
+            {
+                if (open)
+                {
+                    LOG.info("Circuit breaker closed for portlet: " + portletKey);
+                }
+                failures = 0;
+                open = false;
+                trial = false;
+            }
+            else if (failureThreshold > 0 && (isTrial || ++failures >= failureThreshold))
+            {
+                if (!open)
+                {
+                    LOG.warn("Circuit breaker opened after " + failures
+                            + " consecutive failures for portlet: " + portletKey);
+                }
+                open = true;
+                trial = false;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,757 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.CacheControl;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.pluto.container.HeaderData;
+import org.apache.pluto.container.PortletWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expiration based cache for the output of the header, render and resource phases.
+ * <p>
+ * The output of a portlet is cached if the portlet sets a non-zero expiration
+ * time on its <code>CacheControl</code>, or declares an expiration cache in the
+ * portlet deployment descriptor. An entry holds the markup, the title and the
+ * head section contributions of the portlet, and is valid for the expiration
+ * time; an expiration time of -1 means that the entry does not expire.
+ * <p>
+ * Entries are keyed by lifecycle phase, window ID, portlet mode, window state,
+ * render parameters, locale and a digest of the navigational state of the page.
+ * The page state is part of the key because the cached markup contains portal
+ * URLs, which encode the state of all windows on the page. Entries of portlets with private cache scope
+ * are additionally keyed by user, which is the remote user or, for anonymous
+ * requests, the session ID. The entries of a window are removed when an action
+ * or event is processed for the window.
+ * <p>
+ * Entries with public cache scope are shared by all users. Concurrent misses
+ * for the same public entry are coalesced: one request invokes the portlet
+ * while the others wait for its result. Once a public entry has expired, it may
+ * still be served for the stale-while-revalidate time while a single request
+ * invokes the portlet to refresh it. The number of entries is bounded; when the
+ * cache is full, the least recently used entries are evicted.
+ * <p>
+ * Render output with an ETag is kept after it has expired, so that it can be
+ * validated: the ETag is passed to the portlet on the next render, and the
+ * stored markup is reused if the portlet responds with
+ * <code>CacheControl.setUseCachedContent(true)</code>.
+ */
+public class PortletMarkupCache
+{
+    /** Internal logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PortletMarkupCache.class);
+
+    /**
+     * The request attribute holding the navigational state of the page, as set by
+     * the portal. The state is included in the cache keys of the request.
+     */
+    public static final String PAGE_STATE_ATTRIBUTE = PortletMarkupCache.class.getName() + ".pageState";
+
+    /** The entries by window ID and key. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> windows =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Entry>>();
+
+    /** The public entries being loaded or refreshed, by window ID and key. */
+    private final ConcurrentMap<String, CountDownLatch> loading =
+            new ConcurrentHashMap<String, CountDownLatch>();
+
+    /** The number of entries. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The maximum number of entries. */
+    private int maxEntries = 1000;
+
+    /** The time in milliseconds an expired public entry may be served while it is refreshed. */
+    private long staleWhileRevalidate = 0;
+
+    /** The time in milliseconds to wait for a concurrent request loading the same entry. */
+    private long coalesceTimeout = 5000;
+
+
+    /**
+     * Creates the cache key for the output of a window.
+     *
+     * @param phase  the lifecycle phase, or the render headers part of the render phase.
+     * @param portletWindow  the portlet window.
+     * @param parameters  the render parameters of the window.
+     * @param locale  the locale of the request.
+     * @param pageState  the navigational state of the page, or <code>null</code> if not known.
+     * @return the cache key.
+     */
+    public static String createKey(String phase, PortletWindow portletWindow,
+            Map<String, String[]> parameters, Locale locale, String pageState)
+    {
+        StringBuilder key = new StringBuilder(128);
+        key.append(phase).append('|').append(portletWindow.getPortletMode());
+        key.append('|').append(portletWindow.getWindowState());
+        key.append('|').append(locale);
+        key.append('|').append(digest(pageState));
+        for (Map.Entry<String, String[]> e : new TreeMap<String, String[]>(parameters).entrySet())
+        {
+            key.append('|').append(e.getKey()).append('=').append(Arrays.toString(e.getValue()));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the navigational state of the page set by the portal.
+     *
+     * @param request  the portal request.
+     * @return the page state, or <code>null</code> if not set.
+     */
+    public static String getPageState(HttpServletRequest request)
+    {
+        Object state = request.getAttribute(PAGE_STATE_ATTRIBUTE);
+        return (state == null) ? null : state.toString();
+    }
+
+    private static String digest(String pageState)
+    {
+        if (pageState == null)
+        {
+            return "";
+        }
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(pageState.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().withoutPadding().encodeToString(hash);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256
+            return pageState;
+        }
+    }
+
+    /**
+     * Returns the user for which private entries are cached.
+     *
+     * @param request  the portal request.
+     * @return the remote user or the session ID, or <code>null</code> if the
+     *         request is anonymous and has no session.
+     */
+    public static String getUser(HttpServletRequest request)
+    {
+        String user = request.getRemoteUser();
+        if (user != null)
+        {
+            return "u:" + user;
+        }
+        HttpSession session = request.getSession(false);
+        return (session == null) ? null : "s:" + session.getId();
+    }
+
+    /**
+     * Returns <code>true</code> if output with the given cache control may be cached.
+     *
+     * @param cacheControl  the cache control of the response.
+     * @return <code>true</code> if the expiration time is not 0.
+     */
+    public static boolean isCacheable(CacheControl cacheControl)
+    {
+        return cacheControl != null && cacheControl.getExpirationTime() != 0;
+    }
+
+    /**
+     * Returns <code>true</code> if the header name is that of a header setting cookies.
+     *
+     * @param name  the header name.
+     */
+    public static boolean isCookieHeader(String name)
+    {
+        return "Set-Cookie".equalsIgnoreCase(name) || "Set-Cookie2".equalsIgnoreCase(name);
+    }
+
+    /**
+     * Returns <code>true</code> if the header data sets cookies, either as cookies or
+     * as HTTP headers. Such header data belongs to a single response and is not cached.
+     *
+     * @param headerData  the header data.
+     */
+    public static boolean setsCookies(HeaderData headerData)
+    {
+        if (!headerData.getCookies().isEmpty())
+        {
+            return true;
+        }
+        for (String name : headerData.getHttpHeaders().keySet())
+        {
+            if (isCookieHeader(name))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if output with the given cache control may be
+     * stored for validation.
+     *
+     * @param cacheControl  the cache control of the response.
+     * @return <code>true</code> if the portlet has set an ETag.
+     */
+    public static boolean isValidatable(CacheControl cacheControl)
+    {
+        return cacheControl != null && cacheControl.getETag() != null;
+    }
+
+    /**
+     * Returns the valid entry for the key. An entry with private scope for the
+     * user takes precedence over an entry with public scope.
+     *
+     * @param windowId  the window ID.
+     * @param key  the cache key.
+     * @param user  the user, or <code>null</code> for anonymous requests without a session.
+     * @return the entry, or <code>null</code> if there is no valid entry.
+     */
+    public Entry get(String windowId, String key, String user)
+    {
+        ConcurrentMap<String, Entry> entries = windows.get(windowId);
+        if (entries == null)
+        {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = (user == null) ? null : getValid(entries, privateKey(key, user), now);
+        if (entry == null)
+        {
+            entry = getValid(entries, key, now);
+        }
+        if (entry != null && LOG.isDebugEnabled())
+        {
+            LOG.debug("Markup cache hit for window: " + windowId);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry that may be validated by the portlet, whether or not it
+     * has expired. An entry with private scope for the user takes precedence
+     * over an entry with public scope.
+     *
+     * @param windowId  the window ID.
+     * @param key  the cache key.
+     * @param user  the user, or <code>null</code> for anonymous requests without a session.
+     * @return the entry, or <code>null</code> if there is no entry with an ETag.
+     */
+    public Entry getForValidation(String windowId, String key, String user)
+    {
+        ConcurrentMap<String, Entry> entries = windows.get(windowId);
+        if (entries == null)
+        {
+            return null;
+        }
+        Entry entry = (user == null) ? null : entries.get(privateKey(key, user));
+        if (entry == null || entry.getETag() == null)
+        {
+            entry = entries.get(key);
+        }
+        if (entry == null || entry.getETag() == null)
+        {
+            return null;
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        return entry;
+    }
+
+    /**
+     * Looks up the entry for a request that is about to invoke the portlet.
+     * <p>
+     * If there is no valid entry, the request is expected to invoke the portlet
+     * and to end the lookup by calling {@link Lookup#release()} once the output
+     * has been stored. While a request loads a public entry, other requests for
+     * the entry wait for the result if <code>shared</code> is set. An expired
+     * public entry is returned during the stale-while-revalidate time, except to
+     * the single request that refreshes it.
+     *
+     * @param windowId  the window ID.
+     * @param key  the cache key.
+     * @param user  the user, or <code>null</code> for anonymous requests without a session.
+     * @param shared  <code>true</code> if the output is expected to have public scope.
+     * @return the lookup result.
+     */
+    public Lookup lookup(String windowId, String key, String user, boolean shared)
+    {
+        Entry entry = get(windowId, key, user);
+        if (entry != null)
+        {
+            return new Lookup(entry, null, null);
+        }
+
+        String loadKey = windowId + '|' + key;
+        Entry stale = getStale(windowId, key);
+        if (stale == null && !shared)
+        {
+            return new Lookup(null, null, null);
+        }
+
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch current = loading.putIfAbsent(loadKey, latch);
+        if (current == null)
+        {
+            // this request loads or refreshes the entry
+            return new Lookup(null, loadKey, latch);
+        }
+        if (stale != null)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Serving stale entry while it is refreshed for window: " + windowId);
+            }
+            return new Lookup(stale, null, null);
+        }
+
+        // wait for the concurrent request to load the entry
+        try
+        {
+            if (coalesceTimeout > 0 && current.await(coalesceTimeout, TimeUnit.MILLISECONDS))
+            {
+                entry = get(windowId, key, user);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return new Lookup(entry, null, null);
+    }
+
+    /**
+     * Stores the entry. Entries with private scope are only stored if there is a user.
+     * If the cache is full, the least recently used entries are evicted.
+     *
+     * @param windowId  the window ID.
+     * @param key  the cache key.
+     * @param user  the user, or <code>null</code> for anonymous requests without a session.
+     * @param entry  the entry.
+     */
+    public void put(String windowId, String key, String user, Entry entry)
+    {
+        if (!entry.isPublicScope())
+        {
+            if (user == null)
+            {
+                return;
+            }
+            key = privateKey(key, user);
+        }
+        if (size.get() >= maxEntries && purgeExpired() == 0)
+        {
+            evictLeastRecentlyUsed(Math.max(1, maxEntries / 8));
+        }
+        ConcurrentMap<String, Entry> entries = windows.get(windowId);
+        if (entries == null)
+        {
+            entries = new ConcurrentHashMap<String, Entry>();
+            ConcurrentMap<String, Entry> existing = windows.putIfAbsent(windowId, entries);
+            if (existing != null)
+            {
+                entries = existing;
+            }
+        }
+        if (entries.put(key, entry) == null)
+        {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all entries of the window.
+     *
+     * @param windowId  the window ID.
+     */
+    public void invalidate(String windowId)
+    {
+        ConcurrentMap<String, Entry> entries = windows.remove(windowId);
+        if (entries != null)
+        {
+            size.addAndGet(-entries.size());
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Markup cache invalidated for window: " + windowId);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        windows.clear();
+        size.set(0);
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @param maxEntries  the maximum number of entries.
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    /**
+     * @param staleWhileRevalidate  the time in milliseconds an expired public
+     *        entry may be served while a single request refreshes it, 0 to disable.
+     */
+    public void setStaleWhileRevalidate(long staleWhileRevalidate)
+    {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public long getStaleWhileRevalidate()
+    {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @param coalesceTimeout  the time in milliseconds a request waits for a
+     *        concurrent request loading the same public entry, 0 to disable.
+     */
+    public void setCoalesceTimeout(long coalesceTimeout)
+    {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
+    public long getCoalesceTimeout()
+    {
+        return coalesceTimeout;
+    }
+
+    private static String privateKey(String key, String user)
+    {
+        return key + '|' + user;
+    }
+
+    private Entry getValid(ConcurrentMap<String, Entry> entries, String key, long now)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (entry.isExpired(now))
+        {
+            if (isRemovable(entry, now) && entries.remove(key, entry))
+            {
+                size.decrementAndGet();
+            }
+            return null;
+        }
+        entry.lastAccess = now;
+        return entry;
+    }
+
+    /**
+     * Returns the expired public entry if it is within the stale-while-revalidate time.
+     */
+    private Entry getStale(String windowId, String key)
+    {
+        ConcurrentMap<String, Entry> entries = windows.get(windowId);
+        Entry entry = (entries == null) ? null : entries.get(key);
+        return (entry != null && isStale(entry, System.currentTimeMillis())) ? entry : null;
+    }
+
+    private boolean isStale(Entry entry, long now)
+    {
+        return entry.isExpired(now) && entry.isPublicScope()
+                && now - entry.expires < staleWhileRevalidate;
+    }
+
+    private boolean isRemovable(Entry entry, long now)
+    {
+        return entry.isExpired(now) && entry.getETag() == null && !isStale(entry, now);
+    }
+
+    /**
+     * Removes the expired entries.
+     * @return the number of entries removed.
+     */
+    private int purgeExpired()
+    {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (ConcurrentMap<String, Entry> entries : windows.values())
+        {
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry<String, Entry> e = it.next();
+                if (isRemovable(e.getValue(), now) && entries.remove(e.getKey(), e.getValue()))
+                {
+                    size.decrementAndGet();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the least recently used entries.
+     * @param count  the number of entries to remove.
+     */
+    private void evictLeastRecentlyUsed(int count)
+    {
+        List<Object[]> candidates = new ArrayList<Object[]>(size.get());
+        for (ConcurrentMap<String, Entry> entries : windows.values())
+        {
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                candidates.add(new Object[] {entries, e.getKey(), e.getValue()});
+            }
+        }
+        Collections.sort(candidates, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b)
+            {
+                long la = ((Entry) a[2]).lastAccess;
+                long lb = ((Entry) b[2]).lastAccess;
+                return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+            }
+        });
+        int removed = 0;
+        for (Object[] c : candidates)
+        {
+            if (removed >= count)
+            {
+                break;
+            }
+            @SuppressWarnings("unchecked")
+            ConcurrentMap<String, Entry> entries = (ConcurrentMap<String, Entry>) c[0];
+            if (entries.remove(c[1], c[2]))
+            {
+                size.decrementAndGet();
+                removed++;
+            }
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Markup cache full, evicted " + removed + " least recently used entries.");
+        }
+    }
+
+
+    /**
+     * The result of {@link PortletMarkupCache#lookup}.
+     */
+    public final class Lookup
+    {
+        private final Entry entry;
+        private final String loadKey;
+        private final CountDownLatch latch;
+
+        private Lookup(Entry entry, String loadKey, CountDownLatch latch)
+        {
+            this.entry = entry;
+            this.loadKey = loadKey;
+            this.latch = latch;
+        }
+
+        /**
+         * @return the entry to be served, or <code>null</code> if the portlet is to be invoked.
+         */
+        public Entry getEntry()
+        {
+            return entry;
+        }
+
+        /**
+         * Ends the lookup. If this request was loading a public entry, the
+         * requests waiting for the entry are released.
+         */
+        public void release()
+        {
+            if (latch != null)
+            {
+                loading.remove(loadKey, latch);
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * The cached output of a window.
+     */
+    public static class Entry
+    {
+        private final String markup;
+        private final byte[] content;
+        private final String contentType;
+        private final String characterEncoding;
+        private final Map<String, List<String>> headers;
+        private final String title;
+        private final HeaderData headerData;
+        private final boolean publicScope;
+        private final String eTag;
+        private final long expires;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        /**
+         * Creates the entry for the output of the header or render phase.
+         *
+         * @param markup  the markup, or <code>null</code> for the header phase.
+         * @param title  the portlet title, or <code>null</code> if no title was set.
+         * @param headerData  the header data, or <code>null</code> for the render phase.
+         * @param cacheControl  the cache control of the response.
+         */
+        public Entry(String markup, String title, HeaderData headerData, CacheControl cacheControl)
+        {
+            this(markup, null, null, null, null, title, headerData, cacheControl);
+        }
+
+        /**
+         * Creates the entry for the output of the resource phase.
+         *
+         * @param markup  the output written to the writer, or <code>null</code>.
+         * @param content  the output written to the output stream, or <code>null</code>.
+         * @param contentType  the content type.
+         * @param characterEncoding  the character encoding.
+         * @param headers  the HTTP headers set by the portlet.
+         * @param cacheControl  the cache control of the response.
+         */
+        public Entry(String markup, byte[] content, String contentType, String characterEncoding,
+                Map<String, List<String>> headers, CacheControl cacheControl)
+        {
+            this(markup, content, contentType, characterEncoding, headers, null, null, cacheControl);
+        }
+
+        private Entry(String markup, byte[] content, String contentType, String characterEncoding,
+                Map<String, List<String>> headers, String title, HeaderData headerData,
+                CacheControl cacheControl)
+        {
+            this.markup = markup;
+            this.content = content;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.headers = (headers == null) ? Collections.<String, List<String>>emptyMap()
+                    : Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(headers));
+            this.title = title;
+            this.publicScope = cacheControl.isPublicScope();
+            if (headerData == null)
+            {
+                this.headerData = null;
+            }
+            else
+            {
+                // HTTP headers may be specific to the response, so shared entries do not keep them
+                this.headerData = new HeaderData(headerData);
+                if (publicScope)
+                {
+                    this.headerData.getHttpHeaders().clear();
+                    this.headerData.getCookies().clear();
+                }
+            }
+            this.eTag = cacheControl.getETag();
+            int seconds = cacheControl.getExpirationTime();
+            this.expires = (seconds < 0) ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + seconds * 1000L;
+        }
+
+        public String getMarkup()
+        {
+            return markup;
+        }
+
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public String getCharacterEncoding()
+        {
+            return characterEncoding;
+        }
+
+        public Map<String, List<String>> getHeaders()
+        {
+            return headers;
+        }
+
+        public String getTitle()
+        {
+            return title;
+        }
+
+        /**
+         * @return a copy of the cached header data.
+         */
+        public HeaderData getHeaderData()
+        {
+            return (headerData == null) ? new HeaderData() : new HeaderData(headerData);
+        }
+
+        public boolean isPublicScope()
+        {
+            return publicScope;
+        }
+
+        /**
+         * @return the ETag set by the portlet, or <code>null</code>.
+         */
+        public String getETag()
+        {
+            return eTag;
+        }
+
+        public boolean isExpired(long now)
+        {
+            return now >= expires;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import org.apache.pluto.container.util.ArgumentUtility;
 @SuppressWarnings("unchecked")
 public class RenderResponseImpl extends MimeResponseImpl implements RenderResponse {
 
+   private String title;
+
    public RenderResponseImpl(PortletRenderResponseContext responseContext) {
       super(responseContext);
    }
@@ -99,6 +101,14 @@ public class RenderResponseImpl extends MimeResponseImpl implements RenderRespon
    }
 
    public void setTitle(String title) {
+      this.title = title;
       ((PortletRenderResponseContext) responseContext).setTitle(title);
    }
+
+   /**
+    * @return the title set by the portlet, or <code>null</code> if no title was set.
+    */
+   public String getTitle() {
+      return title;
+   }
 }
@@ -49,6 +49,7 @@ public class ResourceResponseImpl extends MimeResponseImpl implements ResourceRe
     @Override
     public ActionURL createActionURL(Copy option) {
        if (ResourceURL.PAGE.equals(requestCacheLevel)) {
+          setPortalURLCreated();
           return new ActionURLImpl(responseContext, option);
        } else {
           throw new IllegalStateException("Not allowed to create an ActionURL with current request cacheability level "+requestCacheLevel);
@@ -58,6 +59,7 @@ public class ResourceResponseImpl extends MimeResponseImpl implements ResourceRe
     @Override
     public RenderURL createRenderURL(Copy option) {
        if (ResourceURL.PAGE.equals(requestCacheLevel)) {
+          setPortalURLCreated();
           return new RenderURLImpl(responseContext, option);
        } else {
           throw new IllegalStateException("Not allowed to create a RenderURL with current request cacheability level "+requestCacheLevel);
@@ -70,6 +72,7 @@ public class ResourceResponseImpl extends MimeResponseImpl implements ResourceRe
     {
         if (ResourceURL.PAGE.equals(requestCacheLevel))
         {
+            setPortalURLCreated();
             return new ActionURLImpl(responseContext, PUBLIC);
         }
         throw new IllegalStateException("Not allowed to create an ActionURL with current request cacheability level "+requestCacheLevel);
@@ -81,6 +84,7 @@ public class ResourceResponseImpl extends MimeResponseImpl implements ResourceRe
     {
         if (ResourceURL.PAGE.equals(requestCacheLevel))
         {
+            setPortalURLCreated();
             return new RenderURLImpl(responseContext, PUBLIC);
         }
         throw new IllegalStateException("Not allowed to create a RenderURL with current request cacheability level "+requestCacheLevel);
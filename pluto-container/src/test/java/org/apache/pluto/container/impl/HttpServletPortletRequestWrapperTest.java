@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.PortletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.pluto.container.ContainerServices;
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletInvokerService;
+import org.apache.pluto.container.PortletRequestContext;
+import org.apache.pluto.container.PortletWindow;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests that the parameters returned by the servlet request wrapper cannot
+ * change the parameters of the portlet request context.
+ */
+public class HttpServletPortletRequestWrapperTest extends MockObjectTestCase {
+
+   private Map<String, String[]> params;
+   private HttpServletPortletRequestWrapper wrapper;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      params = new HashMap<String, String[]>();
+      params.put("p", new String[] {"1", "2"});
+
+      Mock services = mock(ContainerServices.class);
+      services.stubs().method("getNamespaceMapper").will(returnValue(null));
+      Mock container = mock(PortletContainer.class);
+      container.stubs().method("getContainerServices").will(returnValue(services.proxy()));
+      Mock window = mock(PortletWindow.class);
+      window.stubs().method("getId").will(returnValue(null));
+      Mock reqctx = mock(PortletRequestContext.class);
+      reqctx.stubs().method("getContainer").will(returnValue(container.proxy()));
+      reqctx.stubs().method("getPortletWindow").will(returnValue(window.proxy()));
+      reqctx.stubs().method("getParameterMap").will(returnValue(params));
+      reqctx.stubs().method("setAsyncServletRequest");
+      Mock preq = mock(PortletRequest.class);
+      preq.stubs().method("getAttribute").with(eq(PortletInvokerService.REQUEST_CONTEXT))
+            .will(returnValue(reqctx.proxy()));
+      preq.stubs().method("getAttribute").with(eq(PortletRequest.LIFECYCLE_PHASE))
+            .will(returnValue(PortletRequest.RENDER_PHASE));
+
+      HttpServletRequest hreq = (HttpServletRequest) mock(HttpServletRequest.class).proxy();
+      wrapper = new HttpServletPortletRequestWrapper(hreq, null, (PortletRequest) preq.proxy());
+      wrapper.startAsyncProcessing();
+   }
+
+   public void testParameterMapValuesAreCopies() {
+      Map<String, String[]> map = wrapper.getParameterMap();
+      assertEquals("1", map.get("p")[0]);
+      map.get("p")[0] = "x";
+      assertEquals("1", params.get("p")[0]);
+      assertEquals("1", wrapper.getParameterMap().get("p")[0]);
+   }
+
+   public void testParameterMapIsReadOnly() {
+      try {
+         wrapper.getParameterMap().put("q", new String[] {"3"});
+         fail("parameter map is writable");
+      } catch (UnsupportedOperationException e) {
+      }
+      assertFalse(params.containsKey("q"));
+   }
+
+   public void testParameterValuesAreCopies() {
+      wrapper.getParameterValues("p")[1] = "x";
+      assertEquals("2", params.get("p")[1]);
+      assertEquals("1", wrapper.getParameter("p"));
+   }
+}
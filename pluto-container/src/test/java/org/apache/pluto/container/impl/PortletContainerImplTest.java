@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.CacheControl;
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletMode;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.portlet.WindowState;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.ContainerServices;
+import org.apache.pluto.container.FilterManagerService;
+import org.apache.pluto.container.HeaderData;
+import org.apache.pluto.container.PortletEnvironmentService;
+import org.apache.pluto.container.PortletInvokerService;
+import org.apache.pluto.container.PortletRenderResponseContext;
+import org.apache.pluto.container.PortletRequestContext;
+import org.apache.pluto.container.PortletRequestContextService;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Tests the use of the markup cache by the render phase of the container.
+ */
+public class PortletContainerImplTest extends MockObjectTestCase
+{
+    private PortletMarkupCache cache;
+    private PortletContainerImpl container;
+    private Mock mockDefinition;
+    private PortletWindow window;
+    private TestPortlet portlet;
+    private final AtomicInteger invocations = new AtomicInteger();
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cache = new PortletMarkupCache();
+
+        mockDefinition = mock(PortletDefinition.class);
+        mockDefinition.stubs().method("getPortletName").will(returnValue("TestPortlet"));
+        mockDefinition.stubs().method("getCacheScope").will(returnValue(MimeResponse.PRIVATE_SCOPE));
+        mockDefinition.stubs().method("getExpirationCache").will(returnValue(0));
+        Mock mockId = mock(PortletWindowID.class);
+        mockId.stubs().method("getStringId").will(returnValue("window1"));
+        Mock mockWindow = mock(PortletWindow.class);
+        mockWindow.stubs().method("getPortletDefinition").will(returnValue(mockDefinition.proxy()));
+        mockWindow.stubs().method("getId").will(returnValue(mockId.proxy()));
+        mockWindow.stubs().method("getPortletMode").will(returnValue(PortletMode.VIEW));
+        mockWindow.stubs().method("getWindowState").will(returnValue(WindowState.NORMAL));
+        window = (PortletWindow) mockWindow.proxy();
+
+        Mock mockRequestContext = mock(PortletRequestContext.class);
+        mockRequestContext.stubs().method("setRenderHeaders");
+        mockRequestContext.stubs().method("getParameterMap").will(returnValue(new HashMap<String, String[]>()));
+        Mock mockRcService = mock(PortletRequestContextService.class);
+        mockRcService.stubs().method("getPortletRenderRequestContext").will(returnValue(mockRequestContext.proxy()));
+        mockRcService.stubs().method("getPortletRenderResponseContext").will(new CustomStub("creates the response context") {
+            public Object invoke(Invocation invocation) throws Throwable
+            {
+                return createResponseContext((HttpServletResponse) invocation.parameterValues.get(2));
+            }
+        });
+
+        Mock mockEnvService = mock(PortletEnvironmentService.class);
+        mockEnvService.stubs().method("createRenderRequest").will(returnValue(mock(RenderRequest.class).proxy()));
+        mockEnvService.stubs().method("createRenderResponse").will(new CustomStub("creates the render response") {
+            public Object invoke(Invocation invocation) throws Throwable
+            {
+                return createRenderResponse((PortletRenderResponseContext) invocation.parameterValues.get(0));
+            }
+        });
+
+        Mock mockInvoker = mock(PortletInvokerService.class);
+        mockInvoker.stubs().method("render").will(new CustomStub("invokes the portlet") {
+            public Object invoke(Invocation invocation) throws Throwable
+            {
+                invocations.incrementAndGet();
+                portlet.render((RenderResponse) invocation.parameterValues.get(2));
+                return null;
+            }
+        });
+
+        Mock mockFilterManagerService = mock(FilterManagerService.class);
+        mockFilterManagerService.stubs().method("getFilterManager").will(returnValue(null));
+
+        Mock mockServices = mock(ContainerServices.class);
+        mockServices.stubs().method("getPortletRequestContextService").will(returnValue(mockRcService.proxy()));
+        mockServices.stubs().method("getPortletEnvironmentService").will(returnValue(mockEnvService.proxy()));
+        mockServices.stubs().method("getPortletInvokerService").will(returnValue(mockInvoker.proxy()));
+        mockServices.stubs().method("getFilterManagerService").will(returnValue(mockFilterManagerService.proxy()));
+
+        container = new PortletContainerImpl("test", (ContainerServices) mockServices.proxy());
+        container.init();
+        container.setMarkupCache(cache);
+    }
+
+    public void testETagMiss() throws Exception
+    {
+        ValidatingPortlet validating = new ValidatingPortlet("v1", "<p>v1</p>");
+        portlet = validating;
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        // the stored markup is not offered for a different key
+        assertEquals("<p>v1</p>", render(Locale.GERMAN));
+        assertEquals(2, invocations.get());
+        assertNull(validating.receivedETags.get(0));
+        assertNull(validating.receivedETags.get(1));
+    }
+
+    public void testETagHit() throws Exception
+    {
+        ValidatingPortlet validating = new ValidatingPortlet("v1", "<p>v1</p>");
+        portlet = validating;
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        // the portlet validates the ETag and writes nothing, the stored markup is written instead
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        assertEquals(3, invocations.get());
+        assertNull(validating.receivedETags.get(0));
+        assertEquals("v1", validating.receivedETags.get(1));
+        assertEquals("v1", validating.receivedETags.get(2));
+    }
+
+    public void testRevalidationWithNewContent() throws Exception
+    {
+        ValidatingPortlet validating = new ValidatingPortlet("v1", "<p>v1</p>");
+        portlet = validating;
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        validating.eTag = "v2";
+        validating.content = "<p>v2</p>";
+        // the portlet rejects the stored markup and renders new content
+        assertEquals("<p>v2</p>", render(Locale.ENGLISH));
+        assertEquals("v1", validating.receivedETags.get(1));
+        // the new content replaces the stored markup
+        assertEquals("<p>v2</p>", render(Locale.ENGLISH));
+        assertEquals("v2", validating.receivedETags.get(2));
+        assertEquals(3, invocations.get());
+    }
+
+    public void testConcurrentMissesInvokePortletOnce() throws Exception
+    {
+        setSharedCache();
+        SharedPortlet shared = new SharedPortlet("<p>shared</p>", 60);
+        shared.gate = new CountDownLatch(1);
+        portlet = shared;
+
+        RenderThread loading = new RenderThread();
+        loading.start();
+        assertTrue(shared.entered.await(5, TimeUnit.SECONDS));
+        RenderThread[] waiting = new RenderThread[4];
+        for (int i = 0; i < waiting.length; i++)
+        {
+            waiting[i] = new RenderThread();
+            waiting[i].start();
+        }
+        Thread.sleep(200);
+        shared.gate.countDown();
+
+        assertEquals("<p>shared</p>", loading.getOutput());
+        for (RenderThread thread : waiting)
+        {
+            assertEquals("<p>shared</p>", thread.getOutput());
+        }
+        assertEquals(1, invocations.get());
+    }
+
+    public void testStaleEntryIsServedWhileRevalidating() throws Exception
+    {
+        cache.setStaleWhileRevalidate(60000);
+        setSharedCache();
+        SharedPortlet shared = new SharedPortlet("<p>v1</p>", 1);
+        portlet = shared;
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        Thread.sleep(1100);
+
+        shared.content = "<p>v2</p>";
+        shared.gate = new CountDownLatch(1);
+        RenderThread refreshing = new RenderThread();
+        refreshing.start();
+        assertTrue(shared.entered.await(5, TimeUnit.SECONDS));
+        // a concurrent request gets the stale markup without invoking the portlet
+        assertEquals("<p>v1</p>", render(Locale.ENGLISH));
+        assertEquals(2, invocations.get());
+
+        shared.gate.countDown();
+        assertEquals("<p>v2</p>", refreshing.getOutput());
+        // once refreshed, the stale markup is not served again
+        assertEquals("<p>v2</p>", render(Locale.ENGLISH));
+        assertEquals(2, invocations.get());
+    }
+
+    private void setSharedCache()
+    {
+        mockDefinition.stubs().method("getCacheScope").will(returnValue(MimeResponse.PUBLIC_SCOPE));
+        mockDefinition.stubs().method("getExpirationCache").will(returnValue(60));
+    }
+
+    private String render(Locale locale) throws Exception
+    {
+        StringWriter out = new StringWriter();
+        container.doRender(window, createRequest(locale), createResponse(out), null);
+        return out.toString();
+    }
+
+    private synchronized HttpServletRequest createRequest(Locale locale)
+    {
+        Mock mockRequest = mock(HttpServletRequest.class);
+        mockRequest.stubs().method("getLocale").will(returnValue(locale));
+        mockRequest.stubs().method("getAttribute").with(eq(PortletMarkupCache.PAGE_STATE_ATTRIBUTE))
+                .will(returnValue(null));
+        mockRequest.stubs().method("getRemoteUser").will(returnValue("user"));
+        return (HttpServletRequest) mockRequest.proxy();
+    }
+
+    private synchronized HttpServletResponse createResponse(StringWriter out)
+    {
+        Mock mockResponse = mock(HttpServletResponse.class);
+        mockResponse.stubs().method("getWriter").will(returnValue(new PrintWriter(out)));
+        return (HttpServletResponse) mockResponse.proxy();
+    }
+
+    private synchronized PortletRenderResponseContext createResponseContext(HttpServletResponse response)
+    {
+        Mock mockResponseContext = mock(PortletRenderResponseContext.class);
+        mockResponseContext.stubs().method("setPropsAllowed");
+        mockResponseContext.stubs().method("getCacheControl").will(returnValue(new TestCacheControl()));
+        mockResponseContext.stubs().method("getContainerResponse").will(returnValue(response));
+        mockResponseContext.stubs().method("getHeaderData").will(returnValue(new HeaderData()));
+        mockResponseContext.stubs().method("getPortletWindow").will(returnValue(window));
+        mockResponseContext.stubs().method("close");
+        mockResponseContext.stubs().method("release");
+        return (PortletRenderResponseContext) mockResponseContext.proxy();
+    }
+
+    private synchronized RenderResponse createRenderResponse(final PortletRenderResponseContext responseContext)
+    {
+        Mock mockResponse = mock(RenderResponse.class);
+        mockResponse.stubs().method("getCacheControl").will(returnValue(responseContext.getCacheControl()));
+        mockResponse.stubs().method("getWriter").will(new CustomStub("returns the container writer") {
+            public Object invoke(Invocation invocation) throws Throwable
+            {
+                return responseContext.getContainerResponse().getWriter();
+            }
+        });
+        return (RenderResponse) mockResponse.proxy();
+    }
+
+
+    /**
+     * The render method of the portlet under test.
+     */
+    private interface TestPortlet
+    {
+        void render(RenderResponse response) throws IOException;
+    }
+
+    /**
+     * A portlet that validates its markup by ETag.
+     */
+    private static class ValidatingPortlet implements TestPortlet
+    {
+        private final List<String> receivedETags = new ArrayList<String>();
+        private String eTag;
+        private String content;
+
+        ValidatingPortlet(String eTag, String content)
+        {
+            this.eTag = eTag;
+            this.content = content;
+        }
+
+        public void render(RenderResponse response) throws IOException
+        {
+            CacheControl cacheControl = response.getCacheControl();
+            receivedETags.add(cacheControl.getETag());
+            if (eTag.equals(cacheControl.getETag()))
+            {
+                cacheControl.setUseCachedContent(true);
+                return;
+            }
+            cacheControl.setETag(eTag);
+            response.getWriter().write(content);
+        }
+    }
+
+    /**
+     * Renders the window in a separate thread.
+     */
+    private class RenderThread extends Thread
+    {
+        private volatile String output;
+        private volatile Exception error;
+
+        public void run()
+        {
+            try
+            {
+                output = render(Locale.ENGLISH);
+            }
+            catch (Exception e)
+            {
+                error = e;
+            }
+        }
+
+        String getOutput() throws Exception
+        {
+            join(10000);
+            if (error != null)
+            {
+                throw error;
+            }
+            return output;
+        }
+    }
+
+    /**
+     * A portlet with public cache scope that may wait before it renders.
+     */
+    private static class SharedPortlet implements TestPortlet
+    {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final int expirationTime;
+        private volatile String content;
+        private volatile CountDownLatch gate;
+
+        SharedPortlet(String content, int expirationTime)
+        {
+            this.content = content;
+            this.expirationTime = expirationTime;
+        }
+
+        public void render(RenderResponse response) throws IOException
+        {
+            CountDownLatch current = gate;
+            if (current != null)
+            {
+                entered.countDown();
+                try
+                {
+                    current.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            CacheControl cacheControl = response.getCacheControl();
+            cacheControl.setPublicScope(true);
+            cacheControl.setExpirationTime(expirationTime);
+            response.getWriter().write(content);
+        }
+    }
+
+    /**
+     * The cache control of a response.
+     */
+    private static class TestCacheControl implements CacheControl
+    {
+        private int expirationTime;
+        private boolean publicScope;
+        private String eTag;
+        private boolean useCachedContent;
+
+        public int getExpirationTime()
+        {
+            return expirationTime;
+        }
+
+        public void setExpirationTime(int time)
+        {
+            this.expirationTime = time;
+        }
+
+        public boolean isPublicScope()
+        {
+            return publicScope;
+        }
+
+        public void setPublicScope(boolean publicScope)
+        {
+            this.publicScope = publicScope;
+        }
+
+        public String getETag()
+        {
+            return eTag;
+        }
+
+        public void setETag(String token)
+        {
+            this.eTag = token;
+        }
+
+        public boolean useCachedContent()
+        {
+            return useCachedContent;
+        }
+
+        public void setUseCachedContent(boolean useCachedContent)
+        {
+            this.useCachedContent = useCachedContent;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.util.Collections;
+
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the bulkheads and the circuit breaker of the portlet invocation guard.
+ */
+public class PortletInvocationGuardTest extends MockObjectTestCase
+{
+    private PortletInvocationGuard guard;
+    private PortletWindow window;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        guard = new PortletInvocationGuard();
+
+        Mock mockApplication = mock(PortletApplicationDefinition.class);
+        mockApplication.stubs().method("getName").will(returnValue("app"));
+        Mock mockDefinition = mock(PortletDefinition.class);
+        mockDefinition.stubs().method("getApplication").will(returnValue(mockApplication.proxy()));
+        mockDefinition.stubs().method("getPortletName").will(returnValue("portlet"));
+        Mock mockWindow = mock(PortletWindow.class);
+        mockWindow.stubs().method("getPortletDefinition").will(returnValue(mockDefinition.proxy()));
+        window = (PortletWindow) mockWindow.proxy();
+    }
+
+    public void testPortletLimit()
+    {
+        guard.setPortletLimits(Collections.singletonMap("app/portlet", 1));
+        PortletInvocationGuard.Invocation first = guard.begin(window);
+        assertNotNull(first);
+        assertNull(guard.begin(window));
+        first.end(true);
+        first.end(true);
+        PortletInvocationGuard.Invocation second = guard.begin(window);
+        assertNotNull(second);
+        assertNull(guard.begin(window));
+        second.end(true);
+    }
+
+    public void testApplicationLimit()
+    {
+        guard.setDefaultApplicationLimit(2);
+        PortletInvocationGuard.Invocation first = guard.begin(window);
+        PortletInvocationGuard.Invocation second = guard.begin(window);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(guard.begin(window));
+        second.end(true);
+        assertNotNull(guard.begin(window));
+    }
+
+    public void testBreakerOpensAfterConsecutiveFailures()
+    {
+        guard.setFailureThreshold(3);
+        guard.begin(window).end(false);
+        guard.begin(window).end(false);
+        guard.begin(window).end(true);
+        guard.begin(window).end(false);
+        guard.begin(window).end(false);
+        assertFalse(guard.isOpen("app/portlet"));
+        guard.begin(window).end(false);
+        assertTrue(guard.isOpen("app/portlet"));
+        assertNull(guard.begin(window));
+    }
+
+    public void testBreakerTrialInvocation() throws Exception
+    {
+        guard.setFailureThreshold(1);
+        guard.setOpenDuration(20);
+        guard.begin(window).end(false);
+        assertNull(guard.begin(window));
+        Thread.sleep(40);
+
+        // a single trial invocation is let through, a failure opens the breaker again
+        PortletInvocationGuard.Invocation trial = guard.begin(window);
+        assertNotNull(trial);
+        assertNull(guard.begin(window));
+        trial.end(false);
+        assertTrue(guard.isOpen("app/portlet"));
+        assertNull(guard.begin(window));
+        Thread.sleep(40);
+
+        guard.begin(window).end(true);
+        assertFalse(guard.isOpen("app/portlet"));
+        assertNotNull(guard.begin(window));
+    }
+
+    public void testEarlierInvocationDoesNotAffectTrial() throws Exception
+    {
+        guard.setFailureThreshold(1);
+        guard.setOpenDuration(20);
+        PortletInvocationGuard.Invocation earlier1 = guard.begin(window);
+        PortletInvocationGuard.Invocation earlier2 = guard.begin(window);
+        guard.begin(window).end(false);
+        Thread.sleep(40);
+
+        // the outcome of invocations started before the breaker opened is ignored
+        PortletInvocationGuard.Invocation trial = guard.begin(window);
+        assertNotNull(trial);
+        earlier1.end(false);
+        assertNull(guard.begin(window));
+        earlier2.end(true);
+        assertTrue(guard.isOpen("app/portlet"));
+        assertNull(guard.begin(window));
+
+        trial.end(true);
+        assertFalse(guard.isOpen("app/portlet"));
+    }
+
+    public void testRejectedTrialIsFreed() throws Exception
+    {
+        Mock mockDefinition = mock(PortletDefinition.class);
+        mockDefinition.stubs().method("getApplication").will(
+                returnValue(window.getPortletDefinition().getApplication()));
+        mockDefinition.stubs().method("getPortletName").will(returnValue("other"));
+        Mock mockWindow = mock(PortletWindow.class);
+        mockWindow.stubs().method("getPortletDefinition").will(returnValue(mockDefinition.proxy()));
+        PortletWindow other = (PortletWindow) mockWindow.proxy();
+
+        guard.setFailureThreshold(1);
+        guard.setOpenDuration(20);
+        guard.setDefaultApplicationLimit(1);
+        guard.begin(window).end(false);
+        Thread.sleep(40);
+
+        // the trial is rejected by the application bulkhead and can be taken again
+        PortletInvocationGuard.Invocation blocking = guard.begin(other);
+        assertNull(guard.begin(window));
+        blocking.end(true);
+        PortletInvocationGuard.Invocation trial = guard.begin(window);
+        assertNotNull(trial);
+        trial.end(true);
+        assertFalse(guard.isOpen("app/portlet"));
+    }
+
+    public void testSlowCallCountsAsFailure() throws Exception
+    {
+        guard.setFailureThreshold(1);
+        guard.setSlowCallThreshold(10);
+        PortletInvocationGuard.Invocation invocation = guard.begin(window);
+        Thread.sleep(30);
+        invocation.end(true);
+        assertTrue(guard.isOpen("app/portlet"));
+    }
+
+    public void testFallbackMarkup()
+    {
+        assertEquals(PortletInvocationGuard.DEFAULT_FALLBACK_MARKUP, guard.getFallbackMarkup(window));
+        guard.setFallbackMarkups(Collections.singletonMap("app", "<p>app</p>"));
+        assertEquals("<p>app</p>", guard.getFallbackMarkup(window));
+        guard.setFallbackMarkups(Collections.singletonMap("app/portlet", "<p>portlet</p>"));
+        assertEquals("<p>portlet</p>", guard.getFallbackMarkup(window));
+    }
+}
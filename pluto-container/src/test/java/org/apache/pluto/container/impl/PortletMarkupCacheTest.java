@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+import javax.servlet.http.Cookie;
+
+import org.apache.pluto.container.HeaderData;
+import org.apache.pluto.container.PortletWindow;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the keys, scopes, expiration, validation, eviction and request
+ * coalescing of the markup cache.
+ */
+public class PortletMarkupCacheTest extends MockObjectTestCase
+{
+    private static final String WINDOW = "window1";
+
+    private PortletMarkupCache cache;
+    private PortletWindow window;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        cache = new PortletMarkupCache();
+        Mock mockWindow = mock(PortletWindow.class);
+        mockWindow.stubs().method("getPortletMode").will(returnValue(PortletMode.VIEW));
+        mockWindow.stubs().method("getWindowState").will(returnValue(WindowState.NORMAL));
+        window = (PortletWindow) mockWindow.proxy();
+    }
+
+    private CacheControl cacheControl(int expirationTime, boolean publicScope)
+    {
+        return cacheControl(expirationTime, publicScope, null);
+    }
+
+    private CacheControl cacheControl(int expirationTime, boolean publicScope, String eTag)
+    {
+        Mock mockCacheControl = mock(CacheControl.class);
+        mockCacheControl.stubs().method("getExpirationTime").will(returnValue(expirationTime));
+        mockCacheControl.stubs().method("isPublicScope").will(returnValue(publicScope));
+        mockCacheControl.stubs().method("getETag").will(returnValue(eTag));
+        return (CacheControl) mockCacheControl.proxy();
+    }
+
+    public void testKeyIgnoresParameterOrder()
+    {
+        Map<String, String[]> p1 = new HashMap<String, String[]>();
+        p1.put("a", new String[] {"1"});
+        p1.put("b", new String[] {"2", "3"});
+        Map<String, String[]> p2 = new HashMap<String, String[]>();
+        p2.put("b", new String[] {"2", "3"});
+        p2.put("a", new String[] {"1"});
+        assertEquals(PortletMarkupCache.createKey("RENDER_PHASE", window, p1, Locale.GERMAN, null),
+                PortletMarkupCache.createKey("RENDER_PHASE", window, p2, Locale.GERMAN, null));
+        assertFalse(PortletMarkupCache.createKey("RENDER_PHASE", window, p1, Locale.GERMAN, null).equals(
+                PortletMarkupCache.createKey("RENDER_PHASE", window, p1, Locale.ENGLISH, null)));
+    }
+
+    public void testKeyCoversPageState()
+    {
+        Map<String, String[]> params = Collections.emptyMap();
+        String key = PortletMarkupCache.createKey("RENDER_PHASE", window, params, Locale.GERMAN, "/page/__rp1_a");
+        assertEquals(key, PortletMarkupCache.createKey("RENDER_PHASE", window, params, Locale.GERMAN, "/page/__rp1_a"));
+        assertFalse(key.equals(PortletMarkupCache.createKey("RENDER_PHASE", window, params, Locale.GERMAN,
+                "/page/__rp1_b")));
+        assertFalse(key.equals(PortletMarkupCache.createKey("RENDER_PHASE", window, params, Locale.GERMAN, null)));
+    }
+
+    public void testPrivateEntryIsKeyedByUser()
+    {
+        cache.put(WINDOW, "key", "u:alice", new PortletMarkupCache.Entry("alice", null, null, cacheControl(60, false)));
+        assertEquals("alice", cache.get(WINDOW, "key", "u:alice").getMarkup());
+        assertNull(cache.get(WINDOW, "key", "u:bob"));
+        assertNull(cache.get(WINDOW, "key", null));
+
+        // without a user, private output is not cached
+        cache.put(WINDOW, "other", null, new PortletMarkupCache.Entry("anon", null, null, cacheControl(60, false)));
+        assertNull(cache.get(WINDOW, "other", null));
+    }
+
+    public void testPublicEntryIsShared()
+    {
+        cache.put(WINDOW, "key", "u:alice", new PortletMarkupCache.Entry("shared", null, null, cacheControl(60, true)));
+        assertEquals("shared", cache.get(WINDOW, "key", "u:bob").getMarkup());
+        assertEquals("shared", cache.get(WINDOW, "key", null).getMarkup());
+    }
+
+    public void testSharedEntryKeepsNoHttpHeaders()
+    {
+        HeaderData headerData = new HeaderData();
+        headerData.addHttpHeader("X-Visitor", "alice");
+        cache.put(WINDOW, "key", "u:alice", new PortletMarkupCache.Entry("shared", null, headerData, cacheControl(60, true)));
+        assertTrue(cache.get(WINDOW, "key", "u:bob").getHeaderData().getHttpHeaders().isEmpty());
+
+        cache.put(WINDOW, "private", "u:alice", new PortletMarkupCache.Entry("own", null, headerData, cacheControl(60, false)));
+        assertEquals("alice", cache.get(WINDOW, "private", "u:alice").getHeaderData().getHttpHeaders().get("X-Visitor").get(0));
+    }
+
+    public void testSetsCookies()
+    {
+        HeaderData headerData = new HeaderData();
+        headerData.addHttpHeader("X-Other", "1");
+        assertFalse(PortletMarkupCache.setsCookies(headerData));
+        headerData.addHttpHeader("set-cookie", "id=1");
+        assertTrue(PortletMarkupCache.setsCookies(headerData));
+
+        headerData = new HeaderData();
+        headerData.addCookie(new Cookie("id", "1"));
+        assertTrue(PortletMarkupCache.setsCookies(headerData));
+    }
+
+    public void testExpiration() throws Exception
+    {
+        assertFalse(PortletMarkupCache.isCacheable(cacheControl(0, true)));
+        assertTrue(PortletMarkupCache.isCacheable(cacheControl(-1, true)));
+
+        PortletMarkupCache.Entry entry = new PortletMarkupCache.Entry("m", null, null, cacheControl(1, true));
+        assertFalse(entry.isExpired(System.currentTimeMillis()));
+        assertTrue(entry.isExpired(System.currentTimeMillis() + 1000));
+        assertFalse(new PortletMarkupCache.Entry("m", null, null, cacheControl(-1, true)).isExpired(Long.MAX_VALUE - 1));
+    }
+
+    public void testEntryWithETagIsKeptForValidation()
+    {
+        CacheControl validated = cacheControl(0, false, "v1");
+        assertFalse(PortletMarkupCache.isCacheable(validated));
+        assertTrue(PortletMarkupCache.isValidatable(validated));
+
+        cache.put(WINDOW, "key", "u:alice", new PortletMarkupCache.Entry("m", "t", null, validated));
+        assertNull(cache.get(WINDOW, "key", "u:alice"));
+        assertEquals("v1", cache.getForValidation(WINDOW, "key", "u:alice").getETag());
+        assertEquals("m", cache.getForValidation(WINDOW, "key", "u:alice").getMarkup());
+        assertNull(cache.getForValidation(WINDOW, "key", "u:bob"));
+
+        // expired entries without an ETag are not kept
+        cache.put(WINDOW, "other", null, new PortletMarkupCache.Entry("m", null, null, cacheControl(0, true)));
+        assertNull(cache.getForValidation(WINDOW, "other", null));
+        assertNull(cache.get(WINDOW, "other", null));
+        assertEquals(1, cache.size());
+    }
+
+    public void testInvalidateAndEviction() throws Exception
+    {
+        cache.setMaxEntries(2);
+        cache.put(WINDOW, "k1", null, new PortletMarkupCache.Entry("1", "t", null, cacheControl(60, true)));
+        Thread.sleep(5);
+        cache.put(WINDOW, "k2", null, new PortletMarkupCache.Entry("2", "t", null, cacheControl(60, true)));
+        Thread.sleep(5);
+        assertEquals("t", cache.get(WINDOW, "k1", null).getTitle());
+
+        // the least recently used entry is evicted
+        cache.put(WINDOW, "k3", null, new PortletMarkupCache.Entry("3", "t", null, cacheControl(60, true)));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(WINDOW, "k2", null));
+        assertNotNull(cache.get(WINDOW, "k1", null));
+        assertNotNull(cache.get(WINDOW, "k3", null));
+
+        cache.invalidate(WINDOW);
+        assertEquals(0, cache.size());
+        assertNull(cache.get(WINDOW, "k1", null));
+    }
+
+    public void testConcurrentMissesAreCoalesced() throws Exception
+    {
+        PortletMarkupCache.Lookup loader = cache.lookup(WINDOW, "key", null, true);
+        assertNull(loader.getEntry());
+
+        final PortletMarkupCache.Entry[] result = new PortletMarkupCache.Entry[1];
+        Thread waiter = new Thread() {
+            public void run()
+            {
+                PortletMarkupCache.Lookup lookup = cache.lookup(WINDOW, "key", null, true);
+                result[0] = lookup.getEntry();
+                lookup.release();
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        assertTrue(waiter.isAlive());
+
+        cache.put(WINDOW, "key", null, new PortletMarkupCache.Entry("loaded", null, null, cacheControl(60, true)));
+        loader.release();
+        waiter.join(5000);
+        assertEquals("loaded", result[0].getMarkup());
+    }
+
+    public void testStaleWhileRevalidate() throws Exception
+    {
+        cache.setStaleWhileRevalidate(60000);
+        cache.put(WINDOW, "key", null, new PortletMarkupCache.Entry("old", null, null, cacheControl(1, true)));
+        Thread.sleep(1100);
+        assertNull(cache.get(WINDOW, "key", null));
+
+        // the first request refreshes the entry, the others are served the stale entry
+        PortletMarkupCache.Lookup refresh = cache.lookup(WINDOW, "key", null, false);
+        assertNull(refresh.getEntry());
+        PortletMarkupCache.Lookup other = cache.lookup(WINDOW, "key", null, false);
+        assertEquals("old", other.getEntry().getMarkup());
+        other.release();
+
+        cache.put(WINDOW, "key", null, new PortletMarkupCache.Entry("new", null, null, cacheControl(60, true)));
+        refresh.release();
+        assertEquals("new", cache.lookup(WINDOW, "key", null, false).getEntry().getMarkup());
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.pluto.driver.config.impl;
 
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.portlet.PortletConfig;
 import javax.portlet.PortletMode;
@@ -25,9 +26,12 @@ import javax.portlet.WindowState;
 
 import org.apache.pluto.container.PortletContainerException;
 import org.apache.pluto.container.PortletPreferencesService;
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
 import org.apache.pluto.container.driver.PortletRegistryService;
 import org.apache.pluto.driver.config.DriverConfiguration;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PropertyConfigService;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterService;
 import org.apache.pluto.driver.services.portal.RenderConfigService;
@@ -54,6 +58,12 @@ public class DriverConfigurationImpl
 
     // Container Services
     private PortletPreferencesService portletPreferencesService;
+
+    // The compiled page plans by page name
+    private final ConcurrentHashMap<String, PagePlan> pagePlans = new ConcurrentHashMap<String, PagePlan>();
+
+    // Incremented on every registry event, guarded by the page plan map
+    private volatile long registryGeneration = 0;
     
     public DriverConfigurationImpl(PortalURLParser portalUrlParser,
                                    PropertyConfigService propertyService,
@@ -70,6 +80,26 @@ public class DriverConfigurationImpl
         this.supportedWindowStateService = supportedWindowStateService;
         this.publicRenderParameterService = publicRenderParameterService;
         this.portletRegistryService = portletRegistryService;
+
+        // Page plans refer to the portlet definitions, so they need to be 
+        // rebuilt when the portlet applications change.
+        if (portletRegistryService != null) {
+            portletRegistryService.addPortletRegistryListener(new PortletRegistryListener() {
+                public void portletApplicationRegistered(PortletRegistryEvent event) {
+                    clearPagePlans();
+                }
+                public void portletApplicationRemoved(PortletRegistryEvent event) {
+                    clearPagePlans();
+                }
+            });
+        }
+    }
+
+    private void clearPagePlans() {
+        synchronized (pagePlans) {
+            registryGeneration++;
+            pagePlans.clear();
+        }
     }
 
     /**
@@ -123,6 +153,30 @@ public class DriverConfigurationImpl
     public PageConfig getPageConfig(String pageId) {
         return renderService.getPage(pageId);
     }
+
+    /**
+     * Returns the page plan, building a new one if the page configuration 
+     * has changed since the cached plan was built. A plan built while a 
+     * portlet application was registered or removed may refer to stale 
+     * portlet definitions, so it is used for the current request only.
+     */
+    public PagePlan getPagePlan(String pageId) {
+        PageConfig pageConfig = renderService.getPage(pageId);
+        if (pageConfig == null) {
+            return null;
+        }
+        PagePlan plan = pagePlans.get(pageConfig.getName());
+        if (plan == null || !plan.isValidFor(pageConfig)) {
+            long generation = registryGeneration;
+            plan = new PagePlan(pageConfig, portletRegistryService, supportedModesService, supportedWindowStateService);
+            synchronized (pagePlans) {
+                if (generation == registryGeneration) {
+                    pagePlans.put(pageConfig.getName(), plan);
+                }
+            }
+        }
+        return plan;
+    }
     
     public boolean isPortletModeSupportedByPortal(String mode) {
         return supportedModesService.isPortletModeSupportedByPortal(mode);
@@ -56,6 +56,7 @@ import org.apache.pluto.driver.config.DriverConfiguration;
 import org.apache.pluto.driver.core.PortalRequestContext;
 import org.apache.pluto.driver.core.PortletWindowImpl;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 import org.apache.pluto.driver.url.PortalURL;
 import org.slf4j.Logger;
@@ -96,6 +97,9 @@ public class EventCoordinationServiceImpl implements EventCoordinationService {
 
       // ThreadGroup threadGroup = new ThreadGroup("FireEventThreads");
 
+      // The windows on the page are taken from the compiled page plan
+      PagePlan plan = driverConfig.getPagePlan(portalURL.getRenderPath());
+
       for (Event event : events) {
          List<String> portletNames = getAllPortletsRegisteredForEvent(event,
                driverConfig, containerServletContext, portalURL);
@@ -105,15 +109,18 @@ public class EventCoordinationServiceImpl implements EventCoordinationService {
          // getAllPortlets(driverConfig);
 
          // Limit event delivery to portlets that are on the current page
-         Collection<PortletWindowConfig> portlets = new ArrayList<PortletWindowConfig>();
-         for (String pid : portalURL.getPortletIds()) {
-            portlets.add(PortletWindowConfig.fromId(pid));
-         }
-
          // iterate all portlets in the portal
-         for (PortletWindowConfig config : portlets) {
-            PortletWindow window = new PortletWindowImpl(container, config,
-                  portalURL);
+         for (String pid : portalURL.getPortletIds()) {
+            PagePlan.Window win = (plan == null) ? null : plan.getWindow(pid);
+            PortletWindowConfig config;
+            PortletWindow window;
+            if (win != null) {
+               config = win.getConfig();
+               window = new PortletWindowImpl(container, win, portalURL);
+            } else {
+               config = PortletWindowConfig.fromId(pid);
+               window = new PortletWindowImpl(container, config, portalURL);
+            }
             if (portletNames != null) {
                for (String portlet : portletNames) {
                   if (portlet.equals(config.getId())) {
@@ -241,9 +248,11 @@ public class EventCoordinationServiceImpl implements EventCoordinationService {
       // Collection<PortletWindowConfig> portlets = getAllPortlets(driverConfig);
       
       // limit event processing to those portlets on the page
+      PagePlan plan = driverConfig.getPagePlan(portalURL.getRenderPath());
       Collection<PortletWindowConfig> portlets = new ArrayList<PortletWindowConfig>();
       for (String pid : portalURL.getPortletIds()) {
-         portlets.add(PortletWindowConfig.fromId(pid));
+         PagePlan.Window win = (plan == null) ? null : plan.getWindow(pid);
+         portlets.add((win == null) ? PortletWindowConfig.fromId(pid) : win.getConfig());
       }
 
       for (PortletWindowConfig portlet : portlets) {
@@ -265,30 +265,41 @@ public class PortletURLProviderImpl implements PortletURLProvider {
    }
 
    public void write(Writer out, boolean escapeXML) throws IOException {
-      String result = apply().toURL(false);
-      if (escapeXML) {
-         result = result.replaceAll("&", "&amp;");
-         result = result.replaceAll("<", "&lt;");
-         result = result.replaceAll(">", "&gt;");
-         result = result.replaceAll("\'", "&#039;");
-         result = result.replaceAll("\"", "&#034;");
-      }
-      out.write(result);
+      append(out, escapeXML);
    }
 
    public Appendable append(Appendable out, boolean escapeXML) throws IOException {
       String result = apply().toURL(false);
       if (escapeXML) {
-         result = result.replaceAll("&", "&amp;");
-         result = result.replaceAll("<", "&lt;");
-         result = result.replaceAll(">", "&gt;");
-         result = result.replaceAll("\'", "&#039;");
-         result = result.replaceAll("\"", "&#034;");
+         appendEscaped(out, result);
+      } else {
+         out.append(result);
       }
-      out.append(result);
       return out;
    }
 
+   /**
+    * Escapes the XML special characters in a single pass, writing directly
+    * to the output.
+    */
+   private static void appendEscaped(Appendable out, String str) throws IOException {
+      int start = 0;
+      for (int ii = 0; ii < str.length(); ii++) {
+         String esc;
+         switch (str.charAt(ii)) {
+         case '&':  esc = "&amp;"; break;
+         case '<':  esc = "&lt;"; break;
+         case '>':  esc = "&gt;"; break;
+         case '\'': esc = "&#039;"; break;
+         case '"':  esc = "&#034;"; break;
+         default:   continue;
+         }
+         out.append(str, start, ii).append(esc);
+         start = ii + 1;
+      }
+      out.append(str, start, str.length());
+   }
+
    public Map<String, List<String>> getProperties() {
       if (properties == null) {
          properties = new HashMap<String, List<String>>();
@@ -19,10 +19,16 @@
 
 package org.apache.pluto.driver.services.impl.resource;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
 import org.apache.pluto.container.driver.PortletRegistryService;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterQNameMapper;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterService;
@@ -30,6 +36,12 @@ import org.apache.pluto.driver.services.portal.RenderConfigService;
 
 /**
  * Provides public render parameter mappings for a specified page. 
+ * <p>
+ * The mapper for a page is built once and cached as a prototype. Each request
+ * receives a clone of the prototype that shares the immutable PRP topology and
+ * carries only its own parameter values. The cached mapper is rebuilt when the 
+ * portlets on the page change, and all cached mappers are discarded when a 
+ * portlet application is registered or removed.
  * 
  * @author msnicklous
  * @since  16/01/2015
@@ -41,22 +53,82 @@ public class PublicRenderParameterServiceImpl implements PublicRenderParameterSe
    private final RenderConfigService reco;
    private final PortletRegistryService pore;
    
+   // The prototype mappers by page name
+   private final ConcurrentHashMap<String, CachedMapper> mappers = new ConcurrentHashMap<String, CachedMapper>();
+   
+   // Incremented on every registry event, guarded by the mapper map
+   private volatile long registryGeneration = 0;
+   
    public PublicRenderParameterServiceImpl(RenderConfigService reco, PortletRegistryService pore) {
       String ok = ((reco != null) && (pore != null)) ? "initialized sucessfully." : "pore or reco is null.";
       LOGGER.fine("Constructor - " + ok);
       this.reco = reco;
       this.pore = pore;
+      if (pore != null) {
+         pore.addPortletRegistryListener(new PortletRegistryListener() {
+            public void portletApplicationRegistered(PortletRegistryEvent event) {
+               clearMappers();
+            }
+            public void portletApplicationRemoved(PortletRegistryEvent event) {
+               clearMappers();
+            }
+         });
+      }
+   }
+   
+   private void clearMappers() {
+      synchronized (mappers) {
+         registryGeneration++;
+         mappers.clear();
+      }
    }
 
 
-   /* (non-Javadoc)
+   /**
+    * Returns a mapper for the page. A mapper built while a portlet application
+    * was registered or removed is not cached, since it may have been built from
+    * stale portlet definitions.
+    * 
     * @see org.apache.pluto.driver.services.portal.PublicRenderParameterService#getPRPMapper(java.lang.String)
     */
    public PublicRenderParameterMapper getPRPMapper(String page) {
       LOGGER.fine("Getting PRP mapper for page = " + page);
       PageConfig paco = reco.getPage(page);
-      PublicRenderParameterMapper prpm = new PublicRenderParameterQNameMapper(paco, pore);
-      return prpm;
+      CachedMapper cm = mappers.get(paco.getName());
+      if (cm == null || !cm.isValidFor(paco)) {
+         LOGGER.fine("Building PRP mapper for page = " + paco.getName());
+         long generation = registryGeneration;
+         cm = new CachedMapper(paco, new PublicRenderParameterQNameMapper(paco, pore));
+         synchronized (mappers) {
+            if (generation == registryGeneration) {
+               mappers.put(paco.getName(), cm);
+            }
+         }
+      }
+      return cm.prototype.clone();
+   }
+
+   /**
+    * A prototype mapper together with the page configuration it was built for.
+    * The prototype is never handed out, so its parameter values remain unset.
+    */
+   private static class CachedMapper {
+      private final PageConfig paco;
+      private final List<String> portletIds;
+      private final PublicRenderParameterMapper prototype;
+      
+      CachedMapper(PageConfig paco, PublicRenderParameterMapper prototype) {
+         this.paco = paco;
+         this.portletIds = new ArrayList<String>(paco.getPortletIds());
+         this.prototype = prototype;
+      }
+      
+      /**
+       * The mapper remains valid as long as the page holds the same portlets.
+       */
+      boolean isValidFor(PageConfig pc) {
+         return PagePlan.isUnchanged(pc, paco, portletIds);
+      }
    }
 
 }
@@ -138,9 +138,13 @@ public class ResourceConfigReader {
             "pluto-portal-driver/render-config/page",
             PageConfig.class
         );
-        digester.addSetProperties("pluto-portal-driver/render-config/page");
+        digester.addSetProperties(
+            "pluto-portal-driver/render-config/page",
+            new String[] {"render-timeout"},
+            new String[] {"renderTimeout"}
+        );
         digester.addCallMethod(
-            "pluto-portal-driver/render-config/page/portlet", "addPortlet", 2
+            "pluto-portal-driver/render-config/page/portlet", "addPortlet", 4
         );
         digester.addCallParam(
             "pluto-portal-driver/render-config/page/portlet",
@@ -150,6 +154,14 @@ public class ResourceConfigReader {
             "pluto-portal-driver/render-config/page/portlet",
             1, "name"
         );
+        digester.addCallParam(
+            "pluto-portal-driver/render-config/page/portlet",
+            2, "parallel"
+        );
+        digester.addCallParam(
+            "pluto-portal-driver/render-config/page/portlet",
+            3, "deferred"
+        );
         
         // Process any page-level dependencies
         digester.addCallMethod(
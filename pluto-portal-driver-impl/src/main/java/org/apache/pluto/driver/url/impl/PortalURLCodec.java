@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Table-driven UTF-8 percent encoder and decoder for the portal URL path segments.
+ *
+ * The encoding is the one produced by <code>URLEncoder.encode(str, "UTF-8")</code>
+ * after the protected characters have been replaced: the characters
+ * <code>a-z A-Z 0-9 . - * _</code> are left as they are, the space is encoded as
+ * <code>+</code>, the slash is encoded as <code>0x3</code> so that it cannot be
+ * confused with the path delimiter, and all other characters are percent-encoded
+ * as UTF-8 bytes with upper case hex digits. Encoding is done in a single pass
+ * directly into the output buffer.
+ *
+ * The slash is the only protected character. The encoded form is chosen so that
+ * it consists of characters that the percent encoding leaves unchanged.
+ */
+final class PortalURLCodec {
+
+   private static final String SLASH_ENCODED = "0x3";
+
+   private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+   /** Characters that are not percent-encoded */
+   private static final boolean[] UNRESERVED = new boolean[128];
+   static {
+      for (char c = 'a'; c <= 'z'; c++) {
+         UNRESERVED[c] = true;
+      }
+      for (char c = 'A'; c <= 'Z'; c++) {
+         UNRESERVED[c] = true;
+      }
+      for (char c = '0'; c <= '9'; c++) {
+         UNRESERVED[c] = true;
+      }
+      UNRESERVED['.'] = true;
+      UNRESERVED['-'] = true;
+      UNRESERVED['*'] = true;
+      UNRESERVED['_'] = true;
+   }
+
+   private PortalURLCodec() {
+      // static methods only
+   }
+
+   /**
+    * Encodes the string and appends it to the buffer. A <code>null</code>
+    * string is appended as "null", as by {@link StringBuilder#append(String)}.
+    *
+    * @param out     the buffer
+    * @param str     the string to encode
+    * @return        the buffer
+    */
+   static StringBuilder encode(StringBuilder out, String str) {
+      try {
+         encode((Appendable) out, str);
+      } catch (IOException e) {
+         // cannot happen for a StringBuilder
+         throw new IllegalStateException(e);
+      }
+      return out;
+   }
+
+   /**
+    * Encodes the string and appends it to the output. A <code>null</code>
+    * string is appended as "null".
+    *
+    * @param out     the output
+    * @param str     the string to encode
+    * @return        the output
+    * @throws IOException if the output throws an IOException
+    */
+   static <A extends Appendable> A encode(A out, String str) throws IOException {
+      if (str == null) {
+         out.append("null");
+         return out;
+      }
+      int len = str.length();
+      for (int ii = 0; ii < len; ii++) {
+         char c = str.charAt(ii);
+         if (c < 128) {
+            if (UNRESERVED[c]) {
+               out.append(c);
+            } else if (c == ' ') {
+               out.append('+');
+            } else if (c == '/') {
+               out.append(SLASH_ENCODED);
+            } else {
+               appendByte(out, c);
+            }
+         } else if (c < 0x800) {
+            appendByte(out, 0xC0 | (c >> 6));
+            appendByte(out, 0x80 | (c & 0x3F));
+         } else if (Character.isHighSurrogate(c) && ii + 1 < len && Character.isLowSurrogate(str.charAt(ii + 1))) {
+            int cp = Character.toCodePoint(c, str.charAt(++ii));
+            appendByte(out, 0xF0 | (cp >> 18));
+            appendByte(out, 0x80 | ((cp >> 12) & 0x3F));
+            appendByte(out, 0x80 | ((cp >> 6) & 0x3F));
+            appendByte(out, 0x80 | (cp & 0x3F));
+         } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate - replaced by '?' as by the UTF-8 charset encoder
+            appendByte(out, '?');
+         } else {
+            appendByte(out, 0xE0 | (c >> 12));
+            appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+            appendByte(out, 0x80 | (c & 0x3F));
+         }
+      }
+      return out;
+   }
+
+   private static void appendByte(Appendable out, int b) throws IOException {
+      out.append('%').append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+   }
+
+   /**
+    * Encodes the path by replacing spaces with <code>%20</code>.
+    * The other characters are left as they are.
+    *
+    * @param out     the buffer
+    * @param path    the path
+    * @return        the buffer
+    */
+   static StringBuilder encodePath(StringBuilder out, String path) {
+      int start = 0;
+      for (int ii = path.indexOf(' '); ii >= 0; ii = path.indexOf(' ', start)) {
+         out.append(path, start, ii).append("%20");
+         start = ii + 1;
+      }
+      return out.append(path, start, path.length());
+   }
+
+   /**
+    * Decodes the complete string.
+    *
+    * @param str     the encoded string
+    * @return        the decoded string, or <code>null</code> if the string is <code>null</code>
+    */
+   static String decode(String str) {
+      return (str == null) ? null : decode(str, 0, str.length());
+   }
+
+   /**
+    * Decodes the given range of the string in a single pass. The protected
+    * characters are restored and percent-escaped UTF-8 sequences are decoded.
+    * If there is nothing to decode, the substring is returned directly.
+    *
+    * @param str     the string containing the encoded value
+    * @param begin   start index, inclusive
+    * @param end     end index, exclusive
+    * @return        the decoded value
+    * @throws IllegalArgumentException if a percent escape is malformed
+    */
+   static String decode(String str, int begin, int end) {
+
+      // fast path - most tokens contain no escaped characters
+      int ii = begin;
+      while (ii < end && !isEscape(str, ii, end)) {
+         ii++;
+      }
+      if (ii == end) {
+         return str.substring(begin, end);
+      }
+
+      StringBuilder out = new StringBuilder(end - begin);
+      out.append(str, begin, ii);
+      byte[] bytes = null;
+      while (ii < end) {
+         char c = str.charAt(ii);
+         if (c == '%') {
+            // decode a run of escaped bytes as UTF-8
+            if (bytes == null) {
+               bytes = new byte[(end - ii) / 3];
+            }
+            int n = 0;
+            while (ii + 2 < end && str.charAt(ii) == '%') {
+               int hi = Character.digit(str.charAt(ii + 1), 16);
+               int lo = Character.digit(str.charAt(ii + 2), 16);
+               if (hi < 0 || lo < 0) {
+                  break;
+               }
+               bytes[n++] = (byte) ((hi << 4) + lo);
+               ii += 3;
+            }
+            if (n == 0) {
+               throw new IllegalArgumentException("Bad escape sequence at: " + ii);
+            }
+            out.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+         } else if (c == '+') {
+            out.append(' ');
+            ii++;
+         } else if (isSlash(str, ii, end)) {
+            out.append('/');
+            ii += SLASH_ENCODED.length();
+         } else {
+            out.append(c);
+            ii++;
+         }
+      }
+      return out.toString();
+   }
+
+   /**
+    * Returns <code>true</code> if decoding is required at the given position.
+    */
+   private static boolean isEscape(String str, int pos, int end) {
+      char c = str.charAt(pos);
+      return (c == '%' || c == '+' || isSlash(str, pos, end));
+   }
+
+   /**
+    * Returns <code>true</code> if an encoded slash starts at the given position.
+    */
+   private static boolean isSlash(String str, int pos, int end) {
+      return str.charAt(pos) == '0' && end - pos >= SLASH_ENCODED.length()
+            && str.startsWith(SLASH_ENCODED, pos);
+   }
+}
@@ -16,12 +16,11 @@
  */
 package org.apache.pluto.driver.url.impl;
 
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.portlet.PortletMode;
 import javax.portlet.ResourceURL;
@@ -33,7 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
-import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.PortalURL.URLType;
@@ -67,20 +66,17 @@ public class PortalURLParserImpl implements PortalURLParser {
    private static final String WINDOW_STATE = "ws";
    private static final String PORTLET_MODE = "pm";
 
-   //This is a list of characters that need to be encoded to be protected
-   private static final String[][] ENCODINGS = new String[][] {
-       new String[] { "/",  "0x3" },
-   };
-
    // The delimiter & special chars for the value encoding are chosen
-   // from the URL reserved delimiter characters that ARE ENCODED by the URLEncoder
+   // from the URL reserved delimiter characters that ARE ENCODED by the PortalURLCodec
    // so that they will not appear encoded parameter names or values.
-   // See RFC 3986 & URLEncoder documentation.
+   // See RFC 3986 & PortalURLCodec documentation.
    private static final String VALUE_DELIM = ":";
    private static final String VALUE_NULL = ",";
    private static final String VALUE_ARRAY_EMPTY = "@";
    private static final String DELIM = ";";
    private static final String TOKEN_DELIM = "/";
+   private static final char VALUE_DELIM_CHAR = ':';
+   private static final char DELIM_CHAR = ';';
 
    private static final String ACTION = "ac";
    private static final String RESOURCE = "rs";
@@ -92,6 +88,13 @@ public class PortalURLParserImpl implements PortalURLParser {
    
    private static final String ACTION_PARAM = "av";      // new for portlet spec 3
    private static final String RESOURCE_PARAM = "rv";    // new for portlet spec 3
+   
+   private static final String STATE_TOKEN = "st";       // compact URL state token
+   private static final String STATE_KEY = "sk";         // key for server-side URL state
+
+
+   /** Optional server-side store for large URL states */
+   private volatile PortalURLStateStore stateStore = null;
 
 
    // Constructor -------------------------------------------------------------
@@ -114,12 +117,34 @@ public class PortalURLParserImpl implements PortalURLParser {
 
    // Public Methods ----------------------------------------------------------
 
+   /**
+    * Sets the store used to hold URL states that are too large to be encoded
+    * in the URL. If no store is set, the state is always encoded in the URL.
+    * 
+    * @param stateStore  the URL state store
+    */
+   public void setStateStore(PortalURLStateStore stateStore) {
+      this.stateStore = stateStore;
+   }
+
    /**
     * Parse a servlet request to a portal URL.
     * @param request  the servlet request to parse.
     * @return the portal URL.
     */
    public PortalURL parse(HttpServletRequest request) {
+      return parse(request, this);
+   }
+
+   /**
+    * Parse a servlet request to a portal URL. The URL state may be contained 
+    * in path segments or in a compact state token.
+    * 
+    * @param request    the servlet request to parse.
+    * @param urlParser  the parser used to convert the portal URL to a string.
+    * @return the portal URL.
+    */
+   RelativePortalURLImpl parse(HttpServletRequest request, PortalURLParser urlParser) {
 
       String reqURI = request.getRequestURI();
       String contextPath = request.getContextPath();
@@ -132,7 +157,7 @@ public class PortalURLParserImpl implements PortalURLParser {
 
       String urlBase = request.getScheme()+"://" + request.getServerName() + ":" + request.getServerPort();
       // Construct portal URL using info retrieved from servlet request.
-      RelativePortalURLImpl portalURL =  new RelativePortalURLImpl(urlBase, contextPath, servletName, this, request);
+      RelativePortalURLImpl portalURL =  new RelativePortalURLImpl(urlBase, contextPath, servletName, urlParser, request);
 
       // Support added for filter.  Should we separate into a different impl?
       String pathInfo = request.getPathInfo();
@@ -141,7 +166,7 @@ public class PortalURLParserImpl implements PortalURLParser {
             int idx = servletName.indexOf(".jsp")+".jsp".length();
             pathInfo = servletName.substring(idx);
             servletName = servletName.substring(0, idx);
-            portalURL = new RelativePortalURLImpl(urlBase, contextPath, servletName, this, request);
+            portalURL = new RelativePortalURLImpl(urlBase, contextPath, servletName, urlParser, request);
             if (isDebug) {
                LOG.debug("Constructed new URL due to JSP processing. pathInfo: " + pathInfo);
             }
@@ -172,7 +197,7 @@ public class PortalURLParserImpl implements PortalURLParser {
          pathInfo = "";
       } else {
          // parameters, etc. remain to be processed
-         renderPath.append(urlDecode(pathInfo.substring(0, ind)));
+         renderPath.append(urlDecode(pathInfo, 0, ind));
          pathInfo = pathInfo.substring(ind);
       }
 
@@ -181,6 +206,22 @@ public class PortalURLParserImpl implements PortalURLParser {
          LOG.debug("Parse: renderPath: " + renderPath.toString() + ",  pathInfo: " + pathInfo);
       }
 
+      // Replace a state key by the stored URL state. If the state is no longer
+      // available, the default page state is used.
+      if (pathInfo.startsWith(TOKEN_DELIM + PREFIX + STATE_KEY)) {
+         String key = pathInfo.substring((TOKEN_DELIM + PREFIX + STATE_KEY).length());
+         PortalURLStateStore store = stateStore;
+         String state = (store == null) ? null : store.get(request, key);
+         if (state == null) {
+            if (isDebug) {
+               LOG.debug("URL state not found, using default page state. Key: " + key);
+            }
+            pathInfo = "";
+         } else {
+            pathInfo = state;
+         }
+      }
+
       // Set up public render parameter mapper & portlet ID list
       
       ServletContext sc = request.getServletContext();
@@ -190,220 +231,227 @@ public class PortalURLParserImpl implements PortalURLParser {
       PublicRenderParameterMapper prpm = dc.getPublicRenderParameterService()
             .getPRPMapper(rp);
       portalURL.setPublicRenderParameterMapper(prpm);
-      Collection<String> pids = dc.getPageConfig(rp).getPortletIds();
+      PagePlan plan = dc.getPagePlan(rp);
+      Collection<String> pids = plan.getPortletIds();
       portalURL.setPortletIds(pids);
 
-      // Extract the version info for the portlets on the page and store in URL
+      // Store the version info for the portlets on the page in URL.
+      // The versions are taken from the compiled page plan.
       
       StringBuilder vstr = new StringBuilder();
       if (isTrace) {
          vstr.append("Portlet Versions: ");
       }
       for (String pid : pids) {
-         String appName = PortletWindowConfig.fromId(pid).getContextPath();
-         try {
-            String pv = dc.getPortletRegistryService().getPortletApplication(appName).getVersion();
+         PagePlan.Window win = plan.getWindow(pid);
+         String pv = win.getVersion();
+         if (pv != null) {
             portalURL.setVersion(pid, pv);
             if (isTrace) {
                vstr.append(pid).append(" = ").append(pv).append(", ");
             }
-         } catch (Exception e) {
-            LOG.error("Portlet application definition could not be retrieved for " + appName);
+         } else {
+            LOG.error("Portlet application definition could not be retrieved for " + win.getConfig().getContextPath());
          }
       }
       if (isTrace) {
          LOG.debug(vstr.toString());
       }
 
-      // Tokenize the rest and process the tokens
+      // Tokenize the rest and process the tokens. The tokens are scanned in place
+      // using index arithmetic so that no intermediate string arrays are created.
       ArrayList<String> portletIds = new ArrayList<String>();
-      if (pathInfo.length() > 2) {
-         String[] tokens = pathInfo.split(TOKEN_DELIM + PREFIX);
-         for (String t : tokens) {
-
-            // vals contains the component values of the token after the type
-            String type, val;
-            String[] vals;
-            if (t.length() < 3) {
-               // LOG.warn("Token >>" + t + "<< is too short!! ");
-               continue;
-            } else {
-               type = t.substring(0, 2);
-               val = t.substring(2);
-               vals = val.split(DELIM);
-            }
+      String tokenStart = TOKEN_DELIM + PREFIX;
+      int pos = pathInfo.indexOf(tokenStart);
+      while (pos >= 0) {
+
+         // The token runs from after the "/__" prefix to the start of the next token
+         int tstart = pos + tokenStart.length();
+         int tend = pathInfo.indexOf(tokenStart, tstart);
+         pos = tend;
+         if (tend < 0) {
+            tend = pathInfo.length();
+         }
 
-            // If the first value is numeric, attempt to dereference the index to obtain the portlet ID.
-            // The code assumes that the portlet ID table in the URL appears directly after the render path. 
-            int index = -1;
-            String pid = null;
-            if ((vals[0].length() > 0) && vals[0].matches("\\d+")) {
-               try {
-                  index = Integer.parseInt(vals[0]);
-                  if ((index >= 0) && (index < portletIds.size())) {
-                     pid = portletIds.get(index);
-                  }
-               } catch (Exception e) {
-                  LOG.error("error parsing URL pid reference token. Token: " + vals[0] + ", exception: " + e.toString());
-               }
-            }
+         if (tend - tstart < 3) {
+            // LOG.warn("Token >>" + t + "<< is too short!! ");
+            continue;
+         }
 
-            // Get the portlet IDs & reference numbers. The portlet IDs are URL encoded.
-            if (type.equals(PORTLET_ID)) {
-               portletIds.add(Integer.parseInt(vals[1]), urlDecode(vals[0]));
-               continue;
-            } 
+         // The token type is made up of the first two characters. The component
+         // values after the type are delimited by DELIM. Up to three components
+         // are used (for public render parameters).
+         int vstart = tstart + 2;
+         int d1 = indexOf(pathInfo, DELIM_CHAR, vstart, tend);
+         int d2 = (d1 < 0) ? -1 : indexOf(pathInfo, DELIM_CHAR, d1 + 1, tend);
+         int v0end = (d1 < 0) ? tend : d1;
+         int v1end = (d2 < 0) ? tend : d2;
+
+         // If the first value is numeric, attempt to dereference the index to obtain the portlet ID.
+         // The code assumes that the portlet ID table in the URL appears directly after the render path. 
+         String pid = null;
+         int index = parseIndex(pathInfo, vstart, v0end);
+         if ((index >= 0) && (index < portletIds.size())) {
+            pid = portletIds.get(index);
+         }
 
-            // Cacheability definition: portalURL.setCacheability().
-            if (type.equals(CACHE_LEVEL)) {
-               portalURL.setCacheability(urlDecode(vals[0]));
-               continue;
+         // Get the portlet IDs & reference numbers. The portlet IDs are URL encoded.
+         if (isType(pathInfo, tstart, PORTLET_ID)) {
+            int ref = (d1 < 0) ? -1 : parseIndex(pathInfo, d1 + 1, v1end);
+            if (ref < 0 || ref > portletIds.size()) {
+               LOG.error("error parsing URL pid reference token. Token: " + pathInfo.substring(tstart, tend));
+            } else {
+               portletIds.add(ref, urlDecode(pathInfo, vstart, v0end));
             }
+            continue;
+         } 
 
-            // ResourceID definition: portalURL.setResourceID().
-            if (type.equals(RESOURCE_ID)) {
-               portalURL.setResourceID(urlDecode(vals[0]));
-               continue;
-            }
+         // Compact state token: decoded by the state token parser
+         if (isType(pathInfo, tstart, STATE_TOKEN)) {
+            StateTokenPortalURLParserImpl.decodeState(portalURL, pathInfo.substring(vstart, tend));
+            continue;
+         }
 
-            // Authenticate definition: portalURL.setAuthenticated().
-            if (type.equals(AUTHENTICATE)) {
-               portalURL.setAuthenticated(Boolean.valueOf(urlDecode(vals[0])));
-               continue;
-            }
+         // Cacheability definition: portalURL.setCacheability().
+         if (isType(pathInfo, tstart, CACHE_LEVEL)) {
+            portalURL.setCacheability(urlDecode(pathInfo, vstart, v0end));
+            continue;
+         }
 
-            // Resource window definition: portalURL.setResourceWindow().
-            if (type.equals(RESOURCE)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Resource);
-               continue;
-            }
+         // ResourceID definition: portalURL.setResourceID().
+         if (isType(pathInfo, tstart, RESOURCE_ID)) {
+            portalURL.setResourceID(urlDecode(pathInfo, vstart, v0end));
+            continue;
+         }
 
-            // Render window definition: portalURL.setResourceWindow().
-            if (type.equals(RENDER)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Render);
-               continue;
-            }
+         // Authenticate definition: portalURL.setAuthenticated().
+         if (isType(pathInfo, tstart, AUTHENTICATE)) {
+            portalURL.setAuthenticated(Boolean.valueOf(urlDecode(pathInfo, vstart, v0end)));
+            continue;
+         }
 
-            // Action window definition: portalURL.setActionWindow().
-            if (type.equals(ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Action);
-               continue;
-            }
+         // Resource window definition: portalURL.setResourceWindow().
+         if (isType(pathInfo, tstart, RESOURCE)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Resource);
+            continue;
+         }
 
-            // Ajax Action window definition: portalURL.setActionWindow().
-            if (type.equals(AJAX_ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.AjaxAction);
-               continue;
-            }
+         // Render window definition: portalURL.setResourceWindow().
+         if (isType(pathInfo, tstart, RENDER)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Render);
+            continue;
+         }
 
-            // Partial Action window definition: portalURL.setActionWindow().
-            if (type.equals(PARTIAL_ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.PartialAction);
-               continue;
-            }
+         // Action window definition: portalURL.setActionWindow().
+         if (isType(pathInfo, tstart, ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Action);
+            continue;
+         }
 
-            // Window state definition: portalURL.setWindowState().
-            if (type.equals(WINDOW_STATE)) {
-               portalURL.setWindowState(pid, new WindowState(urlDecode(vals[1])));
-               continue;
-            }
+         // Ajax Action window definition: portalURL.setActionWindow().
+         if (isType(pathInfo, tstart, AJAX_ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.AjaxAction);
+            continue;
+         }
 
-            // Portlet mode definition: portalURL.setPortletMode().
-            if (type.equals(PORTLET_MODE)) {
-               portalURL.setPortletMode(pid, new PortletMode(urlDecode(vals[1])));
-               continue;
-            }
+         // Partial Action window definition: portalURL.setActionWindow().
+         if (isType(pathInfo, tstart, PARTIAL_ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.PartialAction);
+            continue;
+         }
 
-            // The remaining types deal with parameters, so extract the
-            // parameter name and values.
-            StringBuilder dbgstr = new StringBuilder();
-            if (isTrace) {
-               dbgstr.append("Decoding parameter: window ID=").append(pid)
-                     .append(", name/value=").append(vals[1]);
-            }
+         // The remaining types need the second component value
+         if (d1 < 0) {
+            LOG.warn("Bad token: " + pathInfo.substring(tstart, tend));
+            continue;
+         }
 
-            String values = vals[1];
-            if (type.equals(PUBLIC_RENDER_PARAM)) {
-               if (vals.length != 3) {
-                  LOG.warn("Bad PRP Token: " + val);  
-               } else {
-                  values = vals[2];
-               }
-            }
+         // Window state definition: portalURL.setWindowState().
+         if (isType(pathInfo, tstart, WINDOW_STATE)) {
+            portalURL.setWindowState(pid, new WindowState(urlDecode(pathInfo, d1 + 1, v1end)));
+            continue;
+         }
 
-            String[] pVals = values.split(VALUE_DELIM, -1);
-            String[] paramValues = new String[0];
-            String paramName = "";
-            boolean isEmptyArray = false;
-            if (pVals.length > 1) {
-               if (pVals.length == 2 && pVals[1].equals(VALUE_ARRAY_EMPTY)) {
-                  isEmptyArray = true;
-               }
-               for (int i = 0; i < pVals.length; i++){
-                  if (pVals[i].equals(VALUE_NULL)) {
-                     pVals[i] = null;
-                  } else {
-                     pVals[i] = urlDecode(pVals[i]);
-                  }
-               }
-            }
-            
-            if (pVals.length == 0 || pVals[0] == null) {
-               LOG.warn("Bad parameter token: " + values);
+         // Portlet mode definition: portalURL.setPortletMode().
+         if (isType(pathInfo, tstart, PORTLET_MODE)) {
+            portalURL.setPortletMode(pid, new PortletMode(urlDecode(pathInfo, d1 + 1, v1end)));
+            continue;
+         }
+
+         // The remaining types deal with parameters, so extract the
+         // parameter name and values.
+         int pstart = d1 + 1;
+         int pend = v1end;
+         boolean isPRP = isType(pathInfo, tstart, PUBLIC_RENDER_PARAM);
+         if (isPRP) {
+            if (d2 < 0 || indexOf(pathInfo, DELIM_CHAR, d2 + 1, tend) >= 0) {
+               LOG.warn("Bad PRP Token: " + pathInfo.substring(vstart, tend));  
             } else {
-               paramName = pVals[0];
-               if (isEmptyArray) {
-                  paramValues = new String[0];
-               } else {
-                  paramValues = Arrays.copyOfRange(pVals, 1, pVals.length);
-               }
-            }
-            
-            if (isTrace) {
-               dbgstr.append(", paramName=").append(paramName);
-               dbgstr.append(", Values length=").append(paramValues.length);
-               dbgstr.append(", paramValues=").append(Arrays.toString(paramValues));
-               LOG.debug(dbgstr.toString());
+               pstart = d2 + 1;
+               pend = tend;
             }
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(RENDER_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues));
-               continue;
-            }
+         // The name is followed by the VALUE_DELIM separated values
+         int nend = indexOf(pathInfo, VALUE_DELIM_CHAR, pstart, pend);
+         String paramName = "";
+         String[] paramValues = new String[0];
+         if (nend < 0) {
+            paramName = urlDecode(pathInfo, pstart, pend);
+         } else if (isValue(pathInfo, pstart, nend, VALUE_NULL)) {
+            LOG.warn("Bad parameter token: " + pathInfo.substring(pstart, pend));
+         } else {
+            paramName = urlDecode(pathInfo, pstart, nend);
+            paramValues = decodeMultiValues(pathInfo, nend + 1, pend);
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(ACTION_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues, 
-                     PortalURLParameter.PARAM_TYPE_ACTION));
-               continue;
-            }
+         if (isTrace) {
+            StringBuilder dbgstr = new StringBuilder();
+            dbgstr.append("Decoding parameter: window ID=").append(pid)
+                  .append(", name/value=").append(pathInfo, d1 + 1, v1end);
+            dbgstr.append(", paramName=").append(paramName);
+            dbgstr.append(", Values length=").append(paramValues.length);
+            dbgstr.append(", paramValues=").append(Arrays.toString(paramValues));
+            LOG.debug(dbgstr.toString());
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(RESOURCE_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues,
-                     PortalURLParameter.PARAM_TYPE_RESOURCE));
-               continue;
-            }
+         // Portal URL parameter: portalURL.addParameter().
+         if(isType(pathInfo, tstart, RENDER_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues));
+            continue;
+         }
 
-            //set public parameter in portalURL
-            if (type.equals(PUBLIC_RENDER_PARAM)){
-               PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
-               int prpGroup = mapper.getIndex(pid, paramName);
-               if (prpGroup >= 0) {
-                  mapper.setValues(prpGroup, paramValues);
-               } else {
-                  StringBuilder sb = new StringBuilder("Could not find public render parameter group for portlet ID=");
-                  sb.append(pid).append(", parameter name=").append(paramName);
-                  LOG.warn(sb.toString());
-               }
-               continue;
+         // Portal URL parameter: portalURL.addParameter().
+         if(isType(pathInfo, tstart, ACTION_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues, 
+                  PortalURLParameter.PARAM_TYPE_ACTION));
+            continue;
+         }
+
+         // Portal URL parameter: portalURL.addParameter().
+         if(isType(pathInfo, tstart, RESOURCE_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues,
+                  PortalURLParameter.PARAM_TYPE_RESOURCE));
+            continue;
+         }
+
+         //set public parameter in portalURL
+         if (isPRP){
+            PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+            int prpGroup = mapper.getIndex(pid, paramName);
+            if (prpGroup >= 0) {
+               mapper.setValues(prpGroup, paramValues);
+            } else {
+               StringBuilder sb = new StringBuilder("Could not find public render parameter group for portlet ID=");
+               sb.append(pid).append(", parameter name=").append(paramName);
+               LOG.warn(sb.toString());
             }
+            continue;
          }
       }
 
@@ -417,23 +465,24 @@ public class PortalURLParserImpl implements PortalURLParser {
          LOG.debug("Found " + portletIds.size() + " IDs: " + Arrays.toString(portletIds.toArray()));
       }
 
+      // Compile the URL template for the page. It is shared by all clones of the URL.
+      portalURL.setTemplate(compileTemplate(portalURL));
+
       // Return the portal URL.
       return portalURL;
    }
 
 
    /**
-    * Converts a portal URL to a URL string.
-    * @param portalURL  the portal URL to convert.
-    * @return a URL string representing the portal URL.
+    * Compiles the URL template for the page addressed by the portal URL. The 
+    * template contains the encoded servlet path, render path, portlet ID table,
+    * and the public render parameter group prefixes.
+    * 
+    * @param portalURL  the portal URL
+    * @return           the URL template
     */
-   public String toString(RelativePortalURLImpl portalURL) {
-
-      StringBuilder buffer = new StringBuilder();
-      String targetWindow = portalURL.getTargetWindow();
-      
-      // Make sure the servlet parameters have been processed
-      portalURL.handleServletRequestParams();
+   private PortalURLTemplate compileTemplate(RelativePortalURLImpl portalURL) {
+      StringBuilder buffer = new StringBuilder(256);
 
       // Append the server URI and the servlet path.
       buffer.append(portalURL.getServletPath().startsWith(TOKEN_DELIM)?"":TOKEN_DELIM)
@@ -441,69 +490,135 @@ public class PortalURLParserImpl implements PortalURLParser {
 
       // Start the pathInfo with the path to the render URL (page).
       if (portalURL.getRenderPath() != null) {
-         String p = portalURL.getRenderPath().replaceAll(" ", "%20");
-         buffer.append(p);
+         PortalURLCodec.encodePath(buffer, portalURL.getRenderPath());
       }
+      String pagePrefix = buffer.toString();
 
       // Add the portletIds with references
       ArrayList<String> pids = new ArrayList<String>();
       for (String pid : portalURL.getPortletIds()) {
-         pids.add(pid);
          buffer.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_ID);
-         try {
-            buffer.append(urlEncode(pid));
-         } catch(Exception e) {
-            LOG.warn("Could not encode pid=" + pid);
+         PortalURLCodec.encode(buffer, pid);
+         buffer.append(DELIM).append(String.valueOf(pids.size()));
+         pids.add(pid);
+      }
+
+      // The values for each PRP group need only appear in the URL once, 
+      // identified by the first PRP of the group.
+      PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+      int groups = (mapper == null) ? 0 : mapper.getNumberOfGroups();
+      String[] prpPrefixes = new String[groups];
+      for (int i = 0; i < groups; i++) {
+         prpPrefixes[i] = getPRPPrefix(mapper, pids, i);
+      }
+
+      return new PortalURLTemplate(portalURL.getServletPath(), portalURL.getRenderPath(), 
+            portalURL.getPortletIds(), pagePrefix, buffer.toString(), pids, prpPrefixes);
+   }
+
+   /**
+    * Encodes the prefix for a public render parameter group. The values for the 
+    * group need only appear in the URL once, identified by the first PRP of the group.
+    * 
+    * @param mapper  the public render parameter mapper
+    * @param pids    the portlet IDs in URL portlet ID table order
+    * @param group   the group index
+    * @return        the encoded prefix, or <code>null</code> if the group cannot be encoded
+    */
+   private String getPRPPrefix(PublicRenderParameterMapper mapper, List<String> pids, int group) {
+      String prefix = null;
+      List<PortalURLPublicParameter> prplist = mapper.getPublicParameterGroup(group);
+      if (prplist.size() > 0) {
+         PortalURLPublicParameter prp = prplist.get(0);
+         int index = pids.indexOf(prp.getWindowId());
+         if (index >= 0) {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append(TOKEN_DELIM).append(PREFIX).append(PUBLIC_RENDER_PARAM)
+              .append(String.valueOf(index)).append(DELIM)
+              .append(String.valueOf(group)).append(DELIM);
+            PortalURLCodec.encode(sb, prp.getName()).append(VALUE_DELIM);
+            prefix = sb.toString();
+         } else {
+            LOG.warn("window ID not on page for public render parameter: " + prp.toString());
          }
-         buffer.append(DELIM).append(String.valueOf(pids.indexOf(pid)));
       }
+      return prefix;
+   }
+
+   /**
+    * Returns the URL template for the portal URL, compiling a new one if the
+    * URL has no matching template.
+    */
+   PortalURLTemplate getTemplate(RelativePortalURLImpl portalURL) {
+      PortalURLTemplate template = portalURL.getTemplate();
+      if (template == null || !template.matches(portalURL)) {
+         template = compileTemplate(portalURL);
+         portalURL.setTemplate(template);
+      }
+      return template;
+   }
+
+   /**
+    * Converts a portal URL to a URL string.
+    * @param portalURL  the portal URL to convert.
+    * @return a URL string representing the portal URL.
+    */
+   public String toString(RelativePortalURLImpl portalURL) {
+
+      StringBuilder buffer = new StringBuilder(512);
+      String targetWindow = portalURL.getTargetWindow();
+      
+      // Make sure the servlet parameters have been processed
+      portalURL.handleServletRequestParams();
+
+      // Append the precompiled servlet path, render path, and portlet ID table
+      PortalURLTemplate template = getTemplate(portalURL);
+      buffer.append(template.getPrefix());
+      int targetIndex = (targetWindow == null) ? -1 : template.getIndex(targetWindow);
 
       //Append the resource window definition, if it exists.
       URLType portalURLType = portalURL.getType();
       if (portalURLType == URLType.Resource) {
-         int index = pids.indexOf(targetWindow);
-         if (index < 0) {
+         if (targetIndex < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Resource Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(Arrays.toString(template.getPortletIds().toArray()));
             LOG.warn(txt.toString());
          } else {
             buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RESOURCE).append(String.valueOf(index));
+            buffer.append(PREFIX).append(RESOURCE).append(String.valueOf(targetIndex));
          }
       }
 
       //Append the render window definition, if it exists.
       if (portalURLType == URLType.Render) {
-         int index = pids.indexOf(targetWindow);
-         if (index < 0) {
+         if (targetIndex < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Render Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(Arrays.toString(template.getPortletIds().toArray()));
             LOG.warn(txt.toString());
          } else {
             buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RENDER).append(String.valueOf(index));
+            buffer.append(PREFIX).append(RENDER).append(String.valueOf(targetIndex));
          }
       }
       
       // Append the action window definition, if it exists.
       if (portalURLType == URLType.Action) {
-         int index = pids.indexOf(targetWindow);
-         if (index < 0) {
+         if (targetIndex < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Action Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(Arrays.toString(template.getPortletIds().toArray()));
             LOG.warn(txt.toString());
          } else {
             buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(ACTION).append(String.valueOf(index));
+            buffer.append(PREFIX).append(ACTION).append(String.valueOf(targetIndex));
          }
       }
       
@@ -511,8 +626,7 @@ public class PortalURLParserImpl implements PortalURLParser {
       
       if (portalURL.getAuthenticated()) {
          buffer.append(TOKEN_DELIM);
-         buffer.append(PREFIX).append(AUTHENTICATE)
-               .append(urlEncode(String.valueOf(portalURL.getAuthenticated())));
+         buffer.append(PREFIX).append(AUTHENTICATE).append(portalURL.getAuthenticated());
       }
 
       String reswin = null;
@@ -520,13 +634,13 @@ public class PortalURLParserImpl implements PortalURLParser {
       if (portalURLType == URLType.Resource) {
          if (portalURL.getCacheability() != null) {
             buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(CACHE_LEVEL)
-                  .append(urlEncode(portalURL.getCacheability()));
+            buffer.append(PREFIX).append(CACHE_LEVEL);
+            PortalURLCodec.encode(buffer, portalURL.getCacheability());
          }
          if (portalURL.getResourceID() != null) {
             buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RESOURCE_ID)
-                  .append(urlEncode(portalURL.getResourceID()));
+            buffer.append(PREFIX).append(RESOURCE_ID);
+            PortalURLCodec.encode(buffer, portalURL.getResourceID());
          }
          
          // Set up cacheability processing. For PORTLET, set
@@ -541,46 +655,11 @@ public class PortalURLParserImpl implements PortalURLParser {
          }
       }
 
-      // Append portlet mode definitions.
-      for (String pid : portalURL.getPortletModes().keySet()) {
-         
-         // special handling for Cacheability = PORTLET or FULL
-         if (isCacheabilityFull || (reswin != null && !reswin.equals(pid))) {
-            continue;
-         }
-         
-         int index = pids.indexOf(pid);
-         PortletMode pm = portalURL.getPortletMode(pid);
-         if (index < 0) {
-            StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
-            txt.append(pid).append(", PM = ").append(pm.toString())
-               .append(", Portlet IDs in map: ").append(Arrays.toString(pids.toArray()));
-            LOG.warn(txt.toString());
-         } else {
-            buffer.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_MODE)
-            .append(String.valueOf(index)).append(DELIM).append(urlEncode(pm.toString()));
-         }
-      }
-
-      // Append window state definitions.
-      for (String pid : portalURL.getWindowStates().keySet()) {
-
-         // special handling for Cacheability = PORTLET or FULL
-         if (isCacheabilityFull || (reswin != null && !reswin.equals(pid))) {
-            continue;
-         }
-         
-         int index = pids.indexOf(pid);
-         WindowState ws = portalURL.getWindowState(pid);
-         if (index < 0) {
-            StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
-            txt.append(pid).append(", WS = ").append(ws.toString())
-               .append(", Portlet IDs in map: ").append(Arrays.toString(pids.toArray()));
-            LOG.warn(txt.toString());
-         } else {
-            buffer.append(TOKEN_DELIM).append(PREFIX).append(WINDOW_STATE)
-            .append(String.valueOf(index)).append(DELIM).append(urlEncode(ws.toString()));
-         }
+      // Append portlet mode and window state definitions. 
+      // special handling for Cacheability = PORTLET or FULL
+      if (!isCacheabilityFull) {
+         appendPortletModes(buffer, portalURL, template, reswin);
+         appendWindowStates(buffer, portalURL, template, reswin);
       }
 
       // Add the Spring Security CSRF token
@@ -588,7 +667,7 @@ public class PortalURLParserImpl implements PortalURLParser {
          buffer.append(TOKEN_DELIM);
          buffer.append(PREFIX);
          buffer.append(ACTION_PARAM);
-         buffer.append(String.valueOf(pids.indexOf(targetWindow)));
+         buffer.append(String.valueOf(targetIndex));
          buffer.append(DELIM);
          buffer.append(portalURL.getCsrfParameterName());
          buffer.append(VALUE_DELIM);
@@ -596,35 +675,14 @@ public class PortalURLParserImpl implements PortalURLParser {
       }
 
       // Append action and render parameters.
-      for (PortalURLParameter param : portalURL.getParameters()) {
+      for (Map.Entry<String, WindowParameters> entry : portalURL.getParameterSets().entrySet()) {
+         String windowId = entry.getKey();
 
          // special handling for Cacheability = PORTLET or FULL
-         if (reswin != null && !reswin.equals(param.getWindowId())) {
-            continue;
-         }
-
-         int index = pids.indexOf(param.getWindowId());
-         if (index < 0) {
-            LOG.warn("Window not found in portlet ID list. PID = " + param.getWindowId() + ", Param name = " + param.getName());
+         if (reswin != null && !reswin.equals(windowId)) {
             continue;
          }
-
-         // Encode render params as a part of the URL.
-         if (param.getName() != null && param.getValues() != null) {
-            String valueString = encodeMultiValues(param.getValues());
-            String ptype = RENDER_PARAM;
-            if (param.getType().equals(PortalURLParameter.PARAM_TYPE_ACTION)) {
-               ptype = ACTION_PARAM;
-            } else if (param.getType().equals(PortalURLParameter.PARAM_TYPE_RESOURCE)) {
-               ptype = RESOURCE_PARAM;
-            }
-            if (!isCacheabilityFull || ptype.equals(RESOURCE_PARAM)) {
-               buffer.append(TOKEN_DELIM).append(PREFIX).append(ptype)
-                     .append(String.valueOf(index))
-                     .append(DELIM).append(urlEncode(param.getName()))
-                     .append(VALUE_DELIM).append(valueString);
-            }
-         }
+         appendParameters(buffer, portalURL, template, windowId, entry.getValue(), isCacheabilityFull);
       }
 
       // Add the public render parameters, retaining the grouping information and 
@@ -642,28 +700,36 @@ public class PortalURLParserImpl implements PortalURLParser {
             }
          }
 
+         int groups = mapper.getNumberOfGroups();
          for (int i : activeIndexes) {
-            String[] values = mapper.getValues(i);
-            String valstr = encodeMultiValues(values);
-
-            // the values for the PRP group need only appear in the URL once
-            List<PortalURLPublicParameter> prplist = mapper.getPublicParameterGroup(i);
-            if (prplist.size() > 0) {
-               PortalURLPublicParameter prp = prplist.get(0);
-               int index = pids.indexOf(prp.getWindowId());
-               if (index >= 0) {
-                  buffer.append(TOKEN_DELIM).append(PREFIX).append(PUBLIC_RENDER_PARAM)
-                  .append(String.valueOf(index)).append(DELIM)
-                  .append(String.valueOf(i)).append(DELIM)
-                  .append(urlEncode(prp.getName())).append(VALUE_DELIM)
-                  .append(valstr);
-               } else {
-                  LOG.warn("window ID not on page for public render parameter: " + prp.toString());
-               }
+            String prefix = template.getPRPPrefix(i, groups);
+            if (prefix == null) {
+               prefix = getPRPPrefix(mapper, template.getPortletIds(), i);
+            }
+            if (prefix != null) {
+               buffer.append(prefix);
+               appendMultiValues(buffer, mapper.getValues(i));
             }
          }
       }
       
+      // Store the state server-side if it is too large
+      PortalURLStateStore store = stateStore;
+      int stateLength = buffer.length() - template.getPagePrefix().length();
+      String key = null;
+      if (store != null && stateLength > store.getThreshold()) {
+         // Action URL state contains the CSRF token and is only stored per session
+         boolean sensitive = (portalURLType == URLType.Action || portalURLType == URLType.PartialAction);
+         key = store.put(portalURL.servletRequest, buffer.substring(template.getPagePrefix().length()), sensitive);
+      }
+      if (key != null) {
+         buffer.setLength(template.getPagePrefix().length());
+         buffer.append(TOKEN_DELIM).append(PREFIX).append(STATE_KEY).append(key);
+         if (isTrace) {
+            LOG.debug("Stored URL state of length " + stateLength + " with key: " + key);
+         }
+      }
+
       // Add fragment identifier if present on render URL
       if (portalURLType == URLType.Render) {
          String frag = portalURL.getFragmentIdentifier();
@@ -679,56 +745,244 @@ public class PortalURLParserImpl implements PortalURLParser {
       return buffer.toString();
    }
 
-   // Private Encoding/Decoding Methods ---------------------------------------
+   /**
+    * Appends the portlet mode definitions. If the portlet modes are shared 
+    * with other URLs, the encoded segment is memoized in the template.
+    */
+   private void appendPortletModes(StringBuilder buffer, RelativePortalURLImpl portalURL,
+         PortalURLTemplate template, String reswin) {
+      Map<String, PortletMode> modes = portalURL.getPortletModeMap();
+      boolean memo = (reswin == null) && portalURL.isPortletModesShared();
+      String segment = memo ? template.getSegment(modes) : null;
+      if (segment == null) {
+         StringBuilder sb = new StringBuilder();
+         for (String pid : modes.keySet()) {
+            if (reswin != null && !reswin.equals(pid)) {
+               continue;
+            }
+            int index = template.getIndex(pid);
+            PortletMode pm = portalURL.getPortletMode(pid);
+            if (index < 0) {
+               StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
+               txt.append(pid).append(", PM = ").append(pm.toString())
+                  .append(", Portlet IDs in map: ").append(Arrays.toString(template.getPortletIds().toArray()));
+               LOG.warn(txt.toString());
+            } else {
+               sb.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_MODE)
+               .append(String.valueOf(index)).append(DELIM);
+               PortalURLCodec.encode(sb, pm.toString());
+            }
+         }
+         segment = sb.toString();
+         if (memo) {
+            template.putSegment(modes, segment);
+         }
+      }
+      buffer.append(segment);
+   }
 
    /**
-    * Wrapper for URLEncoder
-    * @param str
-    * @return
+    * Appends the window state definitions. If the window states are shared 
+    * with other URLs, the encoded segment is memoized in the template.
+    */
+   private void appendWindowStates(StringBuilder buffer, RelativePortalURLImpl portalURL,
+         PortalURLTemplate template, String reswin) {
+      Map<String, WindowState> states = portalURL.getWindowStateMap();
+      boolean memo = (reswin == null) && portalURL.isWindowStatesShared();
+      String segment = memo ? template.getSegment(states) : null;
+      if (segment == null) {
+         StringBuilder sb = new StringBuilder();
+         for (String pid : states.keySet()) {
+            if (reswin != null && !reswin.equals(pid)) {
+               continue;
+            }
+            int index = template.getIndex(pid);
+            WindowState ws = portalURL.getWindowState(pid);
+            if (index < 0) {
+               StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
+               txt.append(pid).append(", WS = ").append(ws.toString())
+                  .append(", Portlet IDs in map: ").append(Arrays.toString(template.getPortletIds().toArray()));
+               LOG.warn(txt.toString());
+            } else {
+               sb.append(TOKEN_DELIM).append(PREFIX).append(WINDOW_STATE)
+               .append(String.valueOf(index)).append(DELIM);
+               PortalURLCodec.encode(sb, ws.toString());
+            }
+         }
+         segment = sb.toString();
+         if (memo) {
+            template.putSegment(states, segment);
+         }
+      }
+      buffer.append(segment);
+   }
+
+   /**
+    * Appends the action, render, and resource parameters for a window. If the 
+    * window parameters are shared with other URLs, the encoded segment is memoized
+    * in the template.
     */
-   private String urlEncode(String str) {
-      String out = str;
-      if (str != null) {
-         try {
-            for (int i = 0; i < ENCODINGS.length; i++) {
-               out = out.replace(ENCODINGS[i][0], ENCODINGS[i][1]);
+   private void appendParameters(StringBuilder buffer, RelativePortalURLImpl portalURL,
+         PortalURLTemplate template, String windowId, WindowParameters params, 
+         boolean isCacheabilityFull) {
+      if (params.isEmpty()) {
+         return;
+      }
+
+      int index = template.getIndex(windowId);
+      if (index < 0) {
+         for (PortalURLParameter param : params) {
+            LOG.warn("Window not found in portlet ID list. PID = " + windowId + ", Param name = " + param.getName());
+         }
+         return;
+      }
+
+      boolean memo = !isCacheabilityFull && portalURL.isParameterSetShared(windowId);
+      String segment = memo ? template.getSegment(params) : null;
+      if (segment == null) {
+         StringBuilder sb = new StringBuilder();
+         for (PortalURLParameter param : params) {
+
+            // Encode render params as a part of the URL.
+            if (param.getName() != null && param.getValues() != null) {
+               String ptype = RENDER_PARAM;
+               if (param.getType().equals(PortalURLParameter.PARAM_TYPE_ACTION)) {
+                  ptype = ACTION_PARAM;
+               } else if (param.getType().equals(PortalURLParameter.PARAM_TYPE_RESOURCE)) {
+                  ptype = RESOURCE_PARAM;
+               }
+               if (!isCacheabilityFull || ptype.equals(RESOURCE_PARAM)) {
+                  sb.append(TOKEN_DELIM).append(PREFIX).append(ptype)
+                    .append(String.valueOf(index)).append(DELIM);
+                  PortalURLCodec.encode(sb, param.getName()).append(VALUE_DELIM);
+                  appendMultiValues(sb, param.getValues());
+               }
             }
-            out = URLEncoder.encode(out, "UTF-8");
-         } catch(Exception e) {
-            LOG.warn("Error URL encoding string: " + str);
+         }
+         segment = sb.toString();
+         if (memo) {
+            template.putSegment(params, segment);
          }
       }
-      return out;
+      buffer.append(segment);
    }
 
+   // Private Encoding/Decoding Methods ---------------------------------------
+
    /**
-    * Wrapper for URLDecoder
+    * Decodes the complete string
     * @param str
     * @return
     */
    private String urlDecode(String str) {
-      String out = str;
-      if (str != null) {
-         try {
-            for (int i = 0; i < ENCODINGS.length; i++) {
-               out = out.replace(ENCODINGS[i][1], ENCODINGS[i][0]);
-            }
-            out = URLDecoder.decode(out, "UTF-8");
-         } catch(Exception e) {
-            LOG.warn("Error URL decoding string: " + str);
+      return (str == null) ? null : urlDecode(str, 0, str.length());
+   }
+
+   /**
+    * Decodes the given range of the string. If the range cannot be decoded,
+    * it is returned as it is.
+    * 
+    * @param str     the string containing the encoded value
+    * @param begin   start index, inclusive
+    * @param end     end index, exclusive
+    * @return        the decoded value
+    */
+   private String urlDecode(String str, int begin, int end) {
+      try {
+         return PortalURLCodec.decode(str, begin, end);
+      } catch (IllegalArgumentException e) {
+         LOG.warn("Error URL decoding string: " + str.substring(begin, end));
+         return str.substring(begin, end);
+      }
+   }
+
+   /**
+    * Decodes the VALUE_DELIM separated parameter values contained in the
+    * given range of the string.
+    * 
+    * @param str     the string containing the encoded values
+    * @param begin   start index, inclusive
+    * @param end     end index, exclusive
+    * @return        the decoded values array
+    */
+   private String[] decodeMultiValues(String str, int begin, int end) {
+      int count = 1;
+      for (int ii = begin; ii < end; ii++) {
+         if (str.charAt(ii) == VALUE_DELIM_CHAR) {
+            count++;
+         }
+      }
+      if (count == 1 && isValue(str, begin, end, VALUE_ARRAY_EMPTY)) {
+         return new String[0];
+      }
+
+      String[] values = new String[count];
+      int vstart = begin;
+      for (int ii = 0; ii < count; ii++) {
+         int vend = indexOf(str, VALUE_DELIM_CHAR, vstart, end);
+         if (vend < 0) {
+            vend = end;
          }
+         values[ii] = isValue(str, vstart, vend, VALUE_NULL) ? null : urlDecode(str, vstart, vend);
+         vstart = vend + 1;
       }
-      return out;
+      return values;
+   }
+
+   /**
+    * Returns <code>true</code> if the given range of the string consists of the value.
+    */
+   private static boolean isValue(String str, int begin, int end, String value) {
+      return (end - begin == value.length()) && str.startsWith(value, begin);
    }
 
    /**
-    * Encode a string array containing multiple values into a single string.
+    * Returns <code>true</code> if the token starting at the given position is of the given type.
+    */
+   private static boolean isType(String str, int pos, String type) {
+      return str.regionMatches(pos, type, 0, type.length());
+   }
+
+   /**
+    * Like String#indexOf(int, int), but stops the search at the given end index.
+    */
+   private static int indexOf(String str, char c, int begin, int end) {
+      for (int ii = begin; ii < end; ii++) {
+         if (str.charAt(ii) == c) {
+            return ii;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Parses the non-negative decimal number contained in the given range of the string.
+    * Returns -1 if the range is empty, contains a non-digit, or is too long
+    * to be a valid index.
+    */
+   private static int parseIndex(String str, int begin, int end) {
+      if (begin >= end || end - begin > 9) {
+         return -1;
+      }
+      int val = 0;
+      for (int ii = begin; ii < end; ii++) {
+         char c = str.charAt(ii);
+         if (c < '0' || c > '9') {
+            return -1;
+         }
+         val = val * 10 + (c - '0');
+      }
+      return val;
+   }
+
+   /**
+    * Encode a string array containing multiple values into a single string
+    * and append it to the buffer.
     * This method is used to encode multiple render parameter values.
+    * @param buffer  the buffer to append to
     * @param values  the string array to encode.
-    * @return a single string containing all the values.
     */
-   private String encodeMultiValues(String[] values) {
-      StringBuilder buffer = new StringBuilder();
+   private void appendMultiValues(StringBuilder buffer, String[] values) {
       if (values.length == 0) {
          buffer.append(VALUE_ARRAY_EMPTY);
       } else {
@@ -736,14 +990,13 @@ public class PortalURLParserImpl implements PortalURLParser {
             if (values[i] == null) {
                buffer.append(VALUE_NULL);
             } else {
-               buffer.append(urlEncode(values[i]));
+               PortalURLCodec.encode(buffer, values[i]);
             }
             if (i + 1 < values.length) {
                buffer.append(VALUE_DELIM);
             }
          }
       }
-      return buffer.toString();
    }
 
    /**
@@ -0,0 +1,496 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-side store for the navigational state of portal URLs.
+ *
+ * When the encoded state of a portal URL exceeds the configured threshold, the
+ * {@link PortalURLParserImpl} stores the state here and emits a short key in its
+ * place. The key is a keyed hash of the state, so a given state always maps to
+ * the same key and repeated links on a page share a single entry. Keys cannot be
+ * derived without the secret generated at startup.
+ *
+ * The store is a bounded LRU map that is either global or held in the HTTP session.
+ * The session-scoped store never creates a session; without a session, the global
+ * store is used. For the global store, evicted entries can optionally be written
+ * to a local overflow directory. The size of the directory is bounded, and expired
+ * files are removed by a periodic sweep. Entries expire after the configured
+ * maximum age, counted from the time the state was last stored or read from the
+ * overflow directory. A URL whose key is no longer present resolves to the default
+ * page state.
+ *
+ * The state of action URLs contains the CSRF token of the session. It is only
+ * stored in the session-scoped store and is never written to the global store or
+ * the overflow directory.
+ */
+public class PortalURLStateStore {
+
+   /** Logger. */
+   private static final Logger LOG = LoggerFactory.getLogger(PortalURLStateStore.class);
+   private static final boolean isDebug = LOG.isDebugEnabled();
+
+   /** Session attribute holding the session-scoped store */
+   private static final String SESSION_ATTRIBUTE = PortalURLStateStore.class.getName();
+
+   private static final String MAC_ALGORITHM = "HmacSHA256";
+
+   /** Number of hash bytes used for the key. Encodes to 22 characters. */
+   private static final int KEY_BYTES = 16;
+
+   /** The form of a valid key. Keys come from the request path and are used as file names. */
+   private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-]{22}");
+
+   private int threshold = 1024;
+   private int maxEntries = 10000;
+   private long maxAge = 3600 * 1000L;
+   private boolean sessionScoped = false;
+   private File overflowDirectory = null;
+   private long maxOverflowSize = 64L * 1024 * 1024;
+
+   // The size of the overflow files and the time of the next sweep, guarded by overflowLock
+   private final Object overflowLock = new Object();
+   private long overflowSize = 0;
+   private long nextSweep = 0;
+
+   private final byte[] secret = new byte[32];
+   private StateMap globalStates;
+
+   public PortalURLStateStore() {
+      new SecureRandom().nextBytes(secret);
+      globalStates = new StateMap(maxEntries, this);
+   }
+
+   /**
+    * @return  the encoded state length above which the state is stored
+    */
+   public int getThreshold() {
+      return threshold;
+   }
+
+   /**
+    * @param threshold  the encoded state length above which the state is stored
+    */
+   public void setThreshold(int threshold) {
+      this.threshold = threshold;
+   }
+
+   /**
+    * @param maxEntries the maximum number of entries held in memory by the
+    *                   global store, or by the store for each session
+    */
+   public void setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+      globalStates = new StateMap(maxEntries, this);
+   }
+
+   /**
+    * @param maxAge  the time in seconds after which an entry expires
+    */
+   public void setMaxAge(long maxAge) {
+      this.maxAge = maxAge * 1000L;
+   }
+
+   /**
+    * @param sessionScoped <code>true</code> if the states are to be stored in
+    *                      the HTTP session rather than globally
+    */
+   public void setSessionScoped(boolean sessionScoped) {
+      this.sessionScoped = sessionScoped;
+   }
+
+   /**
+    * Sets the directory to which entries evicted from the global store are written.
+    * Not used for the session-scoped store. Files left by a previous run cannot be
+    * resolved, since the keys depend on the secret generated at startup, so they
+    * are removed.
+    *
+    * @param dir  the directory path
+    */
+   public void setOverflowDirectory(String dir) {
+      File file = new File(dir);
+      if (!file.isDirectory() && !file.mkdirs()) {
+         LOG.warn("Could not create URL state overflow directory: " + dir);
+      } else {
+         synchronized (overflowLock) {
+            overflowDirectory = file;
+            for (File old : getOverflowFiles()) {
+               old.delete();
+            }
+            overflowSize = 0;
+         }
+      }
+   }
+
+   /**
+    * @param maxOverflowSize  the maximum total size in bytes of the files in the
+    *                         overflow directory
+    */
+   public void setMaxOverflowSize(long maxOverflowSize) {
+      this.maxOverflowSize = maxOverflowSize;
+   }
+
+   /**
+    * Stores the encoded URL state.
+    *
+    * @param request the request for which the URL is generated, may be <code>null</code>
+    * @param state   the encoded URL state
+    * @return        the key for the state
+    */
+   public String put(HttpServletRequest request, String state) {
+      return put(request, state, false);
+   }
+
+   /**
+    * Stores the encoded URL state. A state that contains session-specific
+    * data, such as the CSRF token of an action URL, is stored only in the
+    * session-scoped store.
+    *
+    * @param request   the request for which the URL is generated, may be <code>null</code>
+    * @param state     the encoded URL state
+    * @param sensitive <code>true</code> if the state contains session-specific data
+    * @return          the key for the state, or <code>null</code> if the state was not stored
+    */
+   public String put(HttpServletRequest request, String state, boolean sensitive) {
+      StateMap states = getStates(request, true);
+      if (sensitive && states == globalStates) {
+         return null;
+      }
+      String key = getKey(state);
+      List<Map.Entry<String, Entry>> evicted;
+      synchronized (states) {
+         // Storing the state again renews the entry, so that it does not expire
+         // while pages with links to it are still being generated
+         states.put(key, new Entry(state, System.currentTimeMillis()));
+         evicted = states.takeEvicted();
+      }
+      writeOverflow(evicted);
+      return key;
+   }
+
+   /**
+    * Retrieves the encoded URL state.
+    *
+    * @param request the request being parsed
+    * @param key     the key
+    * @return        the encoded URL state, or <code>null</code> if the key is
+    *                malformed, unknown or the entry has expired
+    */
+   public String get(HttpServletRequest request, String key) {
+      if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+         if (isDebug) {
+            LOG.debug("Malformed URL state key rejected.");
+         }
+         return null;
+      }
+      StateMap states = getStates(request, false);
+      if (states != globalStates) {
+         String state = get(states, key);
+         if (state != null) {
+            return state;
+         }
+         // The state may have been stored before the session was created
+         states = globalStates;
+      }
+      String state = get(states, key);
+      if (state != null) {
+         return state;
+      }
+      if (overflowDirectory != null) {
+         state = readOverflow(key);
+         if (state != null) {
+            List<Map.Entry<String, Entry>> evicted;
+            synchronized (states) {
+               states.put(key, new Entry(state, System.currentTimeMillis()));
+               evicted = states.takeEvicted();
+            }
+            writeOverflow(evicted);
+            return state;
+         }
+      }
+      return null;
+   }
+
+   private String get(StateMap states, String key) {
+      synchronized (states) {
+         Entry entry = states.get(key);
+         if (entry != null) {
+            if (!isExpired(entry.time)) {
+               return entry.state;
+            }
+            states.remove(key);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns the store for the request. The session-scoped store is created in an
+    * existing session if requested. A session is never created, so that generating
+    * a URL does not create a session; without a session-scoped store, the global
+    * store is used.
+    */
+   private StateMap getStates(HttpServletRequest request, boolean create) {
+      if (!sessionScoped || request == null) {
+         return globalStates;
+      }
+      HttpSession session = request.getSession(false);
+      if (session == null) {
+         return globalStates;
+      }
+      StateMap states;
+      synchronized (session) {
+         states = (StateMap) session.getAttribute(SESSION_ATTRIBUTE);
+         if (states == null && create) {
+            states = new StateMap(maxEntries, null);
+            session.setAttribute(SESSION_ATTRIBUTE, states);
+         }
+      }
+      return (states == null) ? globalStates : states;
+   }
+
+   private boolean isExpired(long time) {
+      return System.currentTimeMillis() - time > maxAge;
+   }
+
+   /**
+    * The key is the URL-safe encoding of the leading bytes of the state HMAC.
+    */
+   private String getKey(String state) {
+      try {
+         Mac mac = Mac.getInstance(MAC_ALGORITHM);
+         mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+         byte[] hash = mac.doFinal(state.getBytes(StandardCharsets.UTF_8));
+         byte[] key = new byte[KEY_BYTES];
+         System.arraycopy(hash, 0, key, 0, KEY_BYTES);
+         return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException("Could not compute URL state key.", e);
+      }
+   }
+
+   /**
+    * Writes the entries evicted from the global store to the overflow directory.
+    * Called without holding the lock of the store, so that the file I/O does not
+    * block the requests that generate or parse URLs.
+    */
+   private void writeOverflow(List<Map.Entry<String, Entry>> evicted) {
+      for (Map.Entry<String, Entry> eldest : evicted) {
+         writeOverflow(eldest.getKey(), eldest.getValue());
+      }
+   }
+
+   /**
+    * Writes an evicted entry to the overflow directory. If the directory would
+    * exceed its maximum size, it is swept first. If it is still full, the entry
+    * is dropped.
+    */
+   private void writeOverflow(String key, Entry entry) {
+      byte[] data = entry.state.getBytes(StandardCharsets.UTF_8);
+      synchronized (overflowLock) {
+         long now = System.currentTimeMillis();
+         if (now >= nextSweep || overflowSize + data.length > maxOverflowSize) {
+            sweepOverflow(now);
+         }
+         if (overflowSize + data.length > maxOverflowSize) {
+            if (isDebug) {
+               LOG.debug("URL state overflow directory full, entry dropped. Key: " + key);
+            }
+            return;
+         }
+         File file = new File(overflowDirectory, key);
+         try {
+            if (file.isFile()) {
+               overflowSize -= file.length();
+            }
+            Files.write(file.toPath(), data);
+            file.setLastModified(entry.time);
+            overflowSize += data.length;
+         } catch (IOException e) {
+            LOG.warn("Could not write URL state overflow file: " + e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Removes the expired overflow files. If the remaining files take up more than
+    * three quarters of the maximum size, the oldest files are removed until half
+    * of the maximum size is free. Must be called holding the overflow lock.
+    */
+   private void sweepOverflow(long now) {
+      List<File> files = new ArrayList<File>();
+      long size = 0;
+      for (File file : getOverflowFiles()) {
+         if (isExpired(file.lastModified())) {
+            file.delete();
+         } else {
+            files.add(file);
+            size += file.length();
+         }
+      }
+      if (size > maxOverflowSize / 4 * 3) {
+         Collections.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+               return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+         });
+         for (int ii = 0; ii < files.size() && size > maxOverflowSize / 2; ii++) {
+            long length = files.get(ii).length();
+            if (files.get(ii).delete()) {
+               size -= length;
+            }
+         }
+      }
+      overflowSize = size;
+      nextSweep = now + Math.max(maxAge / 4, 1000L);
+      if (isDebug) {
+         LOG.debug("Swept URL state overflow directory. Size: " + size);
+      }
+   }
+
+   /**
+    * Returns the files in the overflow directory that are named like a key.
+    */
+   private List<File> getOverflowFiles() {
+      List<File> files = new ArrayList<File>();
+      File[] list = overflowDirectory.listFiles();
+      if (list != null) {
+         for (File file : list) {
+            if (file.isFile() && KEY_PATTERN.matcher(file.getName()).matches()) {
+               files.add(file);
+            }
+         }
+      }
+      return files;
+   }
+
+   /**
+    * Reads an overflow entry. The key must have been validated against the key pattern,
+    * so that the file is resolved within the overflow directory. The file is removed,
+    * since the entry is returned to the in-memory store.
+    */
+   private String readOverflow(String key) {
+      String state = null;
+      synchronized (overflowLock) {
+         File file = new File(overflowDirectory, key);
+         if (file.isFile()) {
+            long length = file.length();
+            if (!isExpired(file.lastModified())) {
+               try {
+                  state = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+               } catch (IOException e) {
+                  LOG.warn("Could not read URL state overflow file: " + e.getMessage());
+               }
+            }
+            if (file.delete()) {
+               overflowSize -= length;
+            }
+         }
+      }
+      if (isDebug) {
+         LOG.debug("URL state overflow lookup. Key: " + key + ", found: " + (state != null));
+      }
+      return state;
+   }
+
+   /**
+    * A stored state together with the time it was stored.
+    */
+   private static class Entry implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      private final String state;
+      private final long time;
+
+      Entry(String state, long time) {
+         this.state = state;
+         this.time = time;
+      }
+   }
+
+   /**
+    * LRU map of stored states. For the global store, the evicted entries are
+    * collected for writing to the overflow directory once the map lock has been
+    * released.
+    */
+   private static class StateMap extends LinkedHashMap<String, Entry> {
+      private static final long serialVersionUID = 1L;
+
+      private final int maxEntries;
+      private final transient PortalURLStateStore overflow;
+      private transient List<Map.Entry<String, Entry>> evicted;
+
+      StateMap(int maxEntries, PortalURLStateStore overflow) {
+         super(64, 0.75f, true);
+         this.maxEntries = maxEntries;
+         this.overflow = overflow;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+         if (size() <= maxEntries) {
+            return false;
+         }
+         if (overflow != null && overflow.overflowDirectory != null 
+               && !overflow.isExpired(eldest.getValue().time)) {
+            if (evicted == null) {
+               evicted = new ArrayList<Map.Entry<String, Entry>>();
+            }
+            evicted.add(new AbstractMap.SimpleImmutableEntry<String, Entry>(eldest));
+         }
+         return true;
+      }
+
+      /**
+       * Returns the entries to be written to the overflow directory and clears
+       * them. Must be called holding the map lock.
+       */
+      List<Map.Entry<String, Entry>> takeEvicted() {
+         if (evicted == null) {
+            return Collections.emptyList();
+         }
+         List<Map.Entry<String, Entry>> result = evicted;
+         evicted = null;
+         return result;
+      }
+   }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Precompiled URL template for the page addressed by a request.
+ *
+ * The template holds the encoded parts of the portal URL that are the same for
+ * all URLs generated on the page during the request - the servlet path, the render
+ * path, and the portlet ID table - together with an index table for the portlet IDs
+ * and the encoded prefixes for the public render parameter groups.
+ *
+ * It also memoizes encoded segments for URL state that is shared between portal URL
+ * clones. Shared state is copied on write, so it does not change once shared, and
+ * the segments can be looked up by identity.
+ *
+ * The template is created by the {@link PortalURLParserImpl} and is shared by
+ * all clones of the portal URL for the request.
+ */
+class PortalURLTemplate {
+
+   /** upper bound for the number of memoized segments */
+   private static final int MAX_SEGMENTS = 256;
+
+   private final String servletPath;
+   private final String renderPath;
+   private final Collection<String> portletIds;
+
+   private final String pagePrefix;
+   private final String prefix;
+   private final List<String> pids;
+   private final HashMap<String, Integer> indexes;
+   private final String[] prpPrefixes;
+
+   private final IdentityHashMap<Object, String> segments = new IdentityHashMap<Object, String>();
+
+   /**
+    * Creates the template.
+    *
+    * @param servletPath   the servlet path the template was compiled for
+    * @param renderPath    the render path the template was compiled for
+    * @param portletIds    the portlet ID collection the template was compiled for
+    * @param pagePrefix    the encoded servlet path and render path
+    * @param prefix        the encoded invariant URL prefix
+    * @param pids          the portlet IDs in the order of the URL portlet ID table
+    * @param prpPrefixes   the encoded prefixes for the PRP groups
+    */
+   PortalURLTemplate(String servletPath, String renderPath, Collection<String> portletIds,
+         String pagePrefix, String prefix, List<String> pids, String[] prpPrefixes) {
+      this.servletPath = servletPath;
+      this.renderPath = renderPath;
+      this.portletIds = portletIds;
+      this.pagePrefix = pagePrefix;
+      this.prefix = prefix;
+      this.pids = new ArrayList<String>(pids);
+      this.prpPrefixes = prpPrefixes;
+      indexes = new HashMap<String, Integer>();
+      for (int ii = 0; ii < pids.size(); ii++) {
+         indexes.put(pids.get(ii), ii);
+      }
+   }
+
+   /**
+    * Returns <code>true</code> if the template can be used for the given URL.
+    * This is the case if servlet path, render path and portlet IDs have not
+    * been changed since the template was compiled.
+    *
+    * @param url     the portal URL
+    * @return        <code>true</code> if the template matches
+    */
+   boolean matches(RelativePortalURLImpl url) {
+      return portletIds == url.getPortletIds()
+            && servletPath.equals(url.getServletPath())
+            && (renderPath == null ? url.getRenderPath() == null : renderPath.equals(url.getRenderPath()));
+   }
+
+   /**
+    * @return  the encoded URL prefix containing the servlet path and the render path
+    */
+   String getPagePrefix() {
+      return pagePrefix;
+   }
+
+   /**
+    * @return  the encoded URL prefix containing the servlet path, the render path
+    *          and the portlet ID table
+    */
+   String getPrefix() {
+      return prefix;
+   }
+
+   /**
+    * Returns the index of the portlet ID in the URL portlet ID table.
+    *
+    * @param pid     the portlet ID
+    * @return        the index, or -1 if the portlet ID is not on the page
+    */
+   int getIndex(String pid) {
+      Integer index = indexes.get(pid);
+      return (index == null) ? -1 : index;
+   }
+
+   /**
+    * @return  the portlet IDs in table order
+    */
+   List<String> getPortletIds() {
+      return pids;
+   }
+
+   /**
+    * Returns the encoded prefix for the public render parameter group.
+    *
+    * @param group   the PRP group index
+    * @param groups  the number of groups defined by the mapper in use
+    * @return        the encoded prefix, or <code>null</code> if it is not available
+    */
+   String getPRPPrefix(int group, int groups) {
+      return (groups == prpPrefixes.length) ? prpPrefixes[group] : null;
+   }
+
+   /**
+    * Returns the memoized encoded segment for the shared state object.
+    *
+    * @param state   the state object
+    * @return        the segment, or <code>null</code> if none is available
+    */
+   synchronized String getSegment(Object state) {
+      return segments.get(state);
+   }
+
+   /**
+    * Memoizes the encoded segment for the state object. The state object must
+    * not be modified after this call.
+    *
+    * @param state   the state object
+    * @param segment the encoded segment
+    */
+   synchronized void putSegment(Object state, String segment) {
+      if (segments.size() < MAX_SEGMENTS) {
+         segments.put(state, segment);
+      }
+   }
+}
@@ -19,14 +19,17 @@ package org.apache.pluto.driver.url.impl;
 import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_PUBLIC;
 import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
@@ -58,6 +61,8 @@ public class RelativePortalURLImpl implements PortalURL {
    private static final boolean  isDebug  = LOG.isDebugEnabled();
    private static final boolean  isTrace  = LOG.isTraceEnabled();
 
+   private static final WindowParameters NO_PARAMETERS = new WindowParameters();
+
    private String                      urlBase;
    private String                      servletPath;
    private String                      renderPath;
@@ -77,9 +82,15 @@ public class RelativePortalURLImpl implements PortalURL {
    // one another for the current page
    private PublicRenderParameterMapper prpMapper          = null;
 
+   // The page-level state is set up when the URL is parsed. It is shared with
+   // clones and copied only if a clone modifies it.
    private HashSet<String>             portletIds         = new HashSet<String>();
    private HashMap<String, String>     versionMap         = new HashMap<String, String>();
    private HashMap<String, Boolean>    v3Map              = new HashMap<String, Boolean>();
+   private volatile boolean            pageStateShared    = false;
+   
+   // The precompiled URL template for the page
+   private PortalURLTemplate           template           = null;
 
    /**
     * PortalURLParser used to construct the string representation of this portal
@@ -92,13 +103,31 @@ public class RelativePortalURLImpl implements PortalURL {
    // marks whether the servlet request parameters have been processed.
    boolean                             reqParamsProcessed = false;
 
+   // The window states, portlet modes, and parameters are shared with clones
+   // as well. They are copied when written, the parameters on a per-window basis.
+   // The shared flags are set on both instances by clone(). Since a URL may be
+   // cloned by one thread while another thread modifies it, clone() and the 
+   // methods that modify the state synchronize on the instance.
+
    /** The window states: key is the window ID, value is WindowState. */
    private Map<String, WindowState>    windowStates       = new HashMap<String, WindowState>();
+   private volatile boolean            windowStatesShared = false;
 
    private Map<String, PortletMode>    portletModes       = new HashMap<String, PortletMode>();
+   private volatile boolean            portletModesShared = false;
 
-   /** Parameters of the portlet windows. */
-   private HashSet<PortalURLParameter> parameters         = new HashSet<PortalURLParameter>();
+   /** Parameters of the portlet windows: key is the window ID. */
+   private HashMap<String, WindowParameters> parameters = new HashMap<String, WindowParameters>();
+   private volatile boolean            parametersShared   = false;
+   
+   /** The windows whose parameters belong to this instance & may be modified in place. */
+   private HashSet<String>             ownedWindows       = new HashSet<String>();
+   
+   /** Incremented whenever the parameters of this instance are modified */
+   private int                         parameterVersion   = 0;
+   
+   /** Read-only view of all parameters */
+   private final Collection<PortalURLParameter> parameterView = new ParameterView();
 
    // Target window & type of URL
    URLType                             type               = URLType.Portal;                             // initially
@@ -149,7 +178,7 @@ public class RelativePortalURLImpl implements PortalURL {
    // the parameters are read in order to allow a portlet to potentially set
    // the character encoding during processAction or serveResource.
 
-   protected void handleServletRequestParams() {
+   protected synchronized void handleServletRequestParams() {
       if (!reqParamsProcessed && servletRequest != null && targetWindow != null
             && type != URLType.Portal) {
          reqParamsProcessed = true;
@@ -166,6 +195,7 @@ public class RelativePortalURLImpl implements PortalURL {
 
          Map<String, String[]> parms = servletRequest.getParameterMap();
          if (!parms.isEmpty()) {
+            parameterVersion++;
 
             // choose the parameter type. Query or POST parameters always target
             // the
@@ -205,10 +235,7 @@ public class RelativePortalURLImpl implements PortalURL {
 
                PortalURLParameter pup = new PortalURLParameter(targetWindow,
                      parm, parms.get(parm), ptype);
-               if (parameters.contains(pup)) {
-                  parameters.remove(pup); // remove the old values
-               }
-               parameters.add(pup); // add the new values
+               getWritableParameters(targetWindow).put(pup); // replaces the old values
                if (isTrace) {
                   StringBuilder txt = new StringBuilder("Added private parameter: ");
                   txt.append(parm).append(", Values: ").append(Arrays.toString(parms.get(parm)));
@@ -241,7 +268,22 @@ public class RelativePortalURLImpl implements PortalURL {
 
    public Collection<PortalURLParameter> getParameters() {
       handleServletRequestParams();
-      return parameters;
+      return parameterView;
+   }
+
+   public Collection<PortalURLParameter> getParameters(String windowId, String type) {
+      handleServletRequestParams();
+      return getWindowParameters(windowId).getParameters(type);
+   }
+
+   public PortalURLParameter getParameter(String windowId, String name, String type) {
+      handleServletRequestParams();
+      return getWindowParameters(windowId).get(name, type);
+   }
+
+   public int getParameterVersion() {
+      handleServletRequestParams();
+      return parameterVersion;
    }
 
    public Map<String, PortletMode> getPortletModes() {
@@ -256,7 +298,11 @@ public class RelativePortalURLImpl implements PortalURL {
       return mode;
    }
 
-   public void setPortletMode(String windowId, PortletMode portletMode) {
+   public synchronized void setPortletMode(String windowId, PortletMode portletMode) {
+      if (portletModesShared) {
+         portletModes = new HashMap<String, PortletMode>(portletModes);
+         portletModesShared = false;
+      }
       portletModes.put(windowId, portletMode);
    }
 
@@ -287,7 +333,11 @@ public class RelativePortalURLImpl implements PortalURL {
     * @param windowState
     *           the window state.
     */
-   public void setWindowState(String windowId, WindowState windowState) {
+   public synchronized void setWindowState(String windowId, WindowState windowState) {
+      if (windowStatesShared) {
+         windowStates = new HashMap<String, WindowState>(windowStates);
+         windowStatesShared = false;
+      }
       this.windowStates.put(windowId, windowState);
    }
 
@@ -360,7 +410,9 @@ public class RelativePortalURLImpl implements PortalURL {
    }
 
    /**
-    * Clone a copy of itself.
+    * Clone a copy of itself. The page state, window states, portlet modes 
+    * and parameters are shared between the original and the copy until 
+    * one of them modifies them.
     * 
     * @return a copy of itself.
     */
@@ -377,20 +429,29 @@ public class RelativePortalURLImpl implements PortalURL {
       portalURL.csrfParameterValue = csrfParameterValue;
 
       portalURL.prpMapper = (prpMapper == null) ? null : prpMapper.clone();
-      portalURL.portletIds = new HashSet<String>(portletIds);
-      portalURL.versionMap = new HashMap<String, String>(versionMap);
-      portalURL.v3Map = new HashMap<String, Boolean>(v3Map);
+      
+      pageStateShared = true;
+      portalURL.pageStateShared = true;
+      portalURL.portletIds = portletIds;
+      portalURL.versionMap = versionMap;
+      portalURL.v3Map = v3Map;
+      portalURL.template = template;
 
       portalURL.urlParser = urlParser;
       portalURL.servletRequest = servletRequest;
       portalURL.reqParamsProcessed = reqParamsProcessed;
 
-      portalURL.windowStates = new HashMap<String, WindowState>(windowStates);
-      portalURL.portletModes = new HashMap<String, PortletMode>(portletModes);
+      windowStatesShared = true;
+      portalURL.windowStatesShared = true;
+      portalURL.windowStates = windowStates;
+      
+      portletModesShared = true;
+      portalURL.portletModesShared = true;
+      portalURL.portletModes = portletModes;
 
-      for (PortalURLParameter p : parameters) {
-         portalURL.parameters.add(p.clone());
-      }
+      parametersShared = true;
+      portalURL.parametersShared = true;
+      portalURL.parameters = parameters;
 
       portalURL.type = type;
       portalURL.targetWindow = targetWindow;
@@ -408,6 +469,137 @@ public class RelativePortalURLImpl implements PortalURL {
       return portalURL;
    }
 
+   /**
+    * Makes sure that the page-level state belongs to this instance before it is modified.
+    */
+   private void unsharePageState() {
+      if (pageStateShared) {
+         portletIds = new HashSet<String>(portletIds);
+         versionMap = new HashMap<String, String>(versionMap);
+         v3Map = new HashMap<String, Boolean>(v3Map);
+         pageStateShared = false;
+      }
+   }
+
+   /**
+    * Returns the parameters for the given window, copying them first if they are
+    * shared with another URL instance. Only the parameters for the given window are copied.
+    * The parameter objects themselves are not modified once they have been added, so
+    * they need not be copied.
+    * 
+    * @param windowId   the window ID
+    * @return           the parameters that may be modified
+    */
+   private WindowParameters getWritableParameters(String windowId) {
+      if (parametersShared) {
+         parameters = new HashMap<String, WindowParameters>(parameters);
+         ownedWindows = new HashSet<String>();
+         parametersShared = false;
+      }
+      WindowParameters wparms = parameters.get(windowId);
+      if (!ownedWindows.contains(windowId)) {
+         wparms = (wparms == null) ? new WindowParameters() : new WindowParameters(wparms);
+         parameters.put(windowId, wparms);
+         ownedWindows.add(windowId);
+      }
+      return wparms;
+   }
+
+   /**
+    * Returns the parameters for the given window for reading.
+    * 
+    * @param windowId   the window ID
+    * @return           the parameters, empty if there are none
+    */
+   private WindowParameters getWindowParameters(String windowId) {
+      WindowParameters wparms = parameters.get(windowId);
+      return (wparms == null) ? NO_PARAMETERS : wparms;
+   }
+
+   // Accessors for the URL parser. The shared flags indicate state that can no
+   // longer be modified in place, since it is shared by clones.
+
+   PortalURLTemplate getTemplate() {
+      return template;
+   }
+
+   void setTemplate(PortalURLTemplate template) {
+      this.template = template;
+   }
+
+   Map<String, WindowState> getWindowStateMap() {
+      return windowStates;
+   }
+
+   boolean isWindowStatesShared() {
+      return windowStatesShared;
+   }
+
+   Map<String, PortletMode> getPortletModeMap() {
+      return portletModes;
+   }
+
+   boolean isPortletModesShared() {
+      return portletModesShared;
+   }
+
+   Map<String, WindowParameters> getParameterSets() {
+      return parameters;
+   }
+
+   boolean isParameterSetShared(String windowId) {
+      return parametersShared || !ownedWindows.contains(windowId);
+   }
+
+   /**
+    * Read-only view of the parameters of all windows.
+    */
+   private class ParameterView extends AbstractCollection<PortalURLParameter> {
+
+      @Override
+      public Iterator<PortalURLParameter> iterator() {
+         final Iterator<WindowParameters> windows = parameters.values().iterator();
+         return new Iterator<PortalURLParameter>() {
+            private Iterator<PortalURLParameter> current = Collections.<PortalURLParameter>emptySet().iterator();
+
+            public boolean hasNext() {
+               while (!current.hasNext() && windows.hasNext()) {
+                  current = windows.next().iterator();
+               }
+               return current.hasNext();
+            }
+
+            public PortalURLParameter next() {
+               if (!hasNext()) {
+                  throw new NoSuchElementException();
+               }
+               return current.next();
+            }
+
+            public void remove() {
+               throw new UnsupportedOperationException();
+            }
+         };
+      }
+
+      @Override
+      public int size() {
+         int size = 0;
+         for (WindowParameters wparms : parameters.values()) {
+            size += wparms.size();
+         }
+         return size;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+         if (o instanceof PortalURLParameter) {
+            return getWindowParameters(((PortalURLParameter) o).getWindowId()).contains(o);
+         }
+         return false;
+      }
+   }
+
    public PageConfig getPageConfig(ServletContext servletContext) {
       String requestedPageId = getRenderPath();
       if (isTrace) {
@@ -421,12 +613,16 @@ public class RelativePortalURLImpl implements PortalURL {
          // Make sure we get a prp mapper for the default page
          prpMapper = dc.getPublicRenderParameterService().getPRPMapper(
                paco.getName());
+         template = null;
+         parameterVersion++;
       }
       return paco;
    }
 
-   public void setPortletIds(Collection<String> portletIds) {
+   public synchronized void setPortletIds(Collection<String> portletIds) {
+      unsharePageState();
       this.portletIds.addAll(portletIds);
+      template = null;
       if (isTrace) {
          LOG.debug("Stored " + this.portletIds.size() + " IDs: "
                + Arrays.toString(this.portletIds.toArray()));
@@ -437,7 +633,8 @@ public class RelativePortalURLImpl implements PortalURL {
       return this.portletIds;
    }
 
-   public void setVersion(String portletId, String version) {
+   public synchronized void setVersion(String portletId, String version) {
+      unsharePageState();
       versionMap.put(portletId, version);
       v3Map.put(portletId, (version.equals("3.0")));
    }
@@ -447,7 +644,9 @@ public class RelativePortalURLImpl implements PortalURL {
    }
 
    public boolean isVersion3(String portletId) {
-      return v3Map.get(portletId);
+      // no version is stored if the portlet definition could not be retrieved
+      Boolean v3 = v3Map.get(portletId);
+      return v3 != null && v3;
    }
 
    /*
@@ -457,7 +656,7 @@ public class RelativePortalURLImpl implements PortalURL {
     * org.apache.pluto.driver.url.PortalURL#setType(org.apache.pluto.driver.
     * url.PortalURL.URLType)
     */
-   public void setType(URLType type) {
+   public synchronized void setType(URLType type) {
       
       // Special handling for persistent parameters with resource URLs.
       // "promote" them to be resource parameters so that they can be deleted.
@@ -465,18 +664,26 @@ public class RelativePortalURLImpl implements PortalURL {
       
       List<PortalURLParameter> promotes = new ArrayList<PortalURLParameter>();
       if (type.equals(URLType.Resource)) {
-         for (PortalURLParameter pup : parameters) {
+         for (PortalURLParameter pup : parameterView) {
             if (pup.isPersistent()) {
                promotes.add(pup);
             }
          }
       }
       
-      // Note: need to do it like this due to the HashSet implementation of 'parameters'
-      for (PortalURLParameter pup : promotes) {
-         parameters.remove(pup);
+      // The parameters are indexed by type, so the promoted parameter is removed
+      // and added again. An existing resource parameter of the same name is retained.
+      // The parameter objects may be shared with other URLs, so a copy is promoted.
+      for (int ii = 0; ii < promotes.size(); ii++) {
+         PortalURLParameter pup = promotes.get(ii);
+         WindowParameters wparms = getWritableParameters(pup.getWindowId());
+         wparms.remove(pup);
+         pup = pup.clone();
          pup.setType(PARAM_TYPE_RESOURCE);
-         parameters.add(pup);
+         if (!wparms.contains(pup)) {
+            wparms.put(pup);
+         }
+         promotes.set(ii, pup);
       }
       
       if (isTrace) {
@@ -493,6 +700,7 @@ public class RelativePortalURLImpl implements PortalURL {
          LOG.debug(txt.toString());
       }
       this.type = type;
+      parameterVersion++;
    }
 
    /*
@@ -538,7 +746,8 @@ public class RelativePortalURLImpl implements PortalURL {
     * org.apache.pluto.driver.url.PortalURL#clearResourceParameters(java.lang
     * .String)
     */
-   public void clearParameters(String window, String paramType) {
+   public synchronized void clearParameters(String window, String paramType) {
+      parameterVersion++;
       int removed = 0;
       if (paramType.equals(PARAM_TYPE_PUBLIC)) {
          for (PortalURLPublicParameter prp : prpMapper.getPRPsForWindow(window, true)) {
@@ -546,15 +755,19 @@ public class RelativePortalURLImpl implements PortalURL {
             removed++;
          }
       } else  {
-         HashSet<PortalURLParameter> rem = new HashSet<PortalURLParameter>();
-         for (PortalURLParameter pup : parameters) {
-            if (pup.getType().equals(paramType)
-                  && pup.getWindowId().equals(window) && !pup.isPersistent()) {
+         List<PortalURLParameter> rem = new ArrayList<PortalURLParameter>();
+         for (PortalURLParameter pup : getWindowParameters(window).getParameters(paramType)) {
+            if (!pup.isPersistent()) {
                rem.add(pup);
             }
          }
          removed = rem.size();
-         parameters.removeAll(rem);
+         if (removed > 0) {
+            WindowParameters wparms = getWritableParameters(window);
+            for (PortalURLParameter pup : rem) {
+               wparms.remove(pup);
+            }
+         }
          
          if (isTrace) {
             StringBuilder txt = new StringBuilder(128);
@@ -574,7 +787,7 @@ public class RelativePortalURLImpl implements PortalURL {
    }
 
    // used by parser when parsing URL parameter strings
-   protected void addParameter(PortalURLParameter param) {
+   protected synchronized void addParameter(PortalURLParameter param) {
       if (isTrace) {
          StringBuilder txt = new StringBuilder(
                "Adding private parameter: ");
@@ -588,14 +801,12 @@ public class RelativePortalURLImpl implements PortalURL {
          LOG.debug(txt.toString());
       }
       
-      // If present, remove old value before adding new
-      if (parameters.contains(param)) {
-         parameters.remove(param);
-      }
-      parameters.add(param);
+      // If present, the old value is replaced
+      getWritableParameters(param.getWindowId()).put(param);
+      parameterVersion++;
    }
 
-   public void setParameter(PortalURLParameter param) {
+   public synchronized void setParameter(PortalURLParameter param) {
       handleServletRequestParams();
       if (isTrace) {
          StringBuilder txt = new StringBuilder(
@@ -610,11 +821,9 @@ public class RelativePortalURLImpl implements PortalURL {
          LOG.debug(txt.toString());
       }
       
-      // If present, remove old value before adding new
-      if (parameters.contains(param)) {
-         parameters.remove(param);
-      }
-      parameters.add(param);
+      // If present, the old value is replaced
+      getWritableParameters(param.getWindowId()).put(param);
+      parameterVersion++;
    }
 
    public PortletParameterFactory getPortletParameterFactory(PortletRequestContext reqctx) {
@@ -624,6 +833,8 @@ public class RelativePortalURLImpl implements PortalURL {
 
    public void setPublicRenderParameterMapper(PublicRenderParameterMapper prpm) {
       prpMapper = prpm;
+      template = null;
+      parameterVersion++;
    }
 
    public PublicRenderParameterMapper getPublicRenderParameterMapper() {
@@ -631,18 +842,21 @@ public class RelativePortalURLImpl implements PortalURL {
       return prpMapper;
    }
 
-   public void removeParameter(PortalURLParameter param) {
+   public synchronized void removeParameter(PortalURLParameter param) {
       handleServletRequestParams();
       if (isTrace) {
          StringBuilder txt = new StringBuilder();
          txt.append("Removing private render parameter: ");
          txt.append(param.toString());
-         if (!parameters.contains(param)) {
+         if (!parameterView.contains(param)) {
             txt.append(", Not in parameter set!");
          }
          LOG.debug(txt.toString());
       }
-      parameters.remove(param);
+      if (getWindowParameters(param.getWindowId()).contains(param)) {
+         getWritableParameters(param.getWindowId()).remove(param);
+         parameterVersion++;
+      }
    }
 
    public String getFragmentIdentifier() {
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary encoding used for the compact URL state token.
+ *
+ * The state is written as a sequence of unsigned varints. Strings are collected
+ * in a dictionary that precedes the state, so that each string appears only once
+ * and is referenced by its dictionary index. The resulting bytes are optionally
+ * deflated and are then encoded using the URL-safe Base64 alphabet without padding.
+ *
+ * The first byte of the decoded token holds the format version and the deflate flag.
+ */
+final class StateTokenCodec {
+
+   /** The current format version */
+   static final int VERSION = 1;
+
+   private static final int FLAG_DEFLATED = 0x01;
+
+   /** States smaller than this are not deflated */
+   private static final int DEFLATE_THRESHOLD = 64;
+
+   /** Upper bounds that protect against malformed or malicious tokens */
+   private static final int MAX_TOKEN_LENGTH = 64 * 1024;
+   private static final int MAX_STATE_LENGTH = 1024 * 1024;
+
+   private StateTokenCodec() {
+      // static methods only
+   }
+
+   /**
+    * Encodes the state into a URL-safe token.
+    *
+    * @param writer  the writer containing the state
+    * @return        the token
+    */
+   static String encode(StateWriter writer) {
+      byte[] state = writer.toByteArray();
+      int flags = 0;
+      if (state.length >= DEFLATE_THRESHOLD) {
+         byte[] deflated = deflate(state);
+         if (deflated.length < state.length) {
+            state = deflated;
+            flags |= FLAG_DEFLATED;
+         }
+      }
+      byte[] bytes = new byte[state.length + 1];
+      bytes[0] = (byte) ((VERSION << 1) | flags);
+      System.arraycopy(state, 0, bytes, 1, state.length);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+   }
+
+   /**
+    * Decodes the token.
+    *
+    * @param token   the token
+    * @return        a reader for the state contained in the token
+    * @throws IllegalArgumentException if the token is malformed
+    */
+   static StateReader decode(String token) {
+      if (token.length() > MAX_TOKEN_LENGTH) {
+         throw new IllegalArgumentException("State token too long: " + token.length());
+      }
+      byte[] bytes = Base64.getUrlDecoder().decode(token);
+      if (bytes.length == 0 || (bytes[0] >> 1) != VERSION) {
+         throw new IllegalArgumentException("Unsupported state token version.");
+      }
+      byte[] state;
+      if ((bytes[0] & FLAG_DEFLATED) != 0) {
+         state = inflate(bytes, 1, bytes.length - 1);
+      } else {
+         state = new byte[bytes.length - 1];
+         System.arraycopy(bytes, 1, state, 0, state.length);
+      }
+      return new StateReader(state);
+   }
+
+   private static byte[] deflate(byte[] data) {
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+      try {
+         deflater.setInput(data);
+         deflater.finish();
+         ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+         byte[] buf = new byte[512];
+         while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+         }
+         return out.toByteArray();
+      } finally {
+         deflater.end();
+      }
+   }
+
+   private static byte[] inflate(byte[] data, int off, int len) {
+      Inflater inflater = new Inflater(true);
+      try {
+         // the nowrap inflater may need an extra byte of input
+         byte[] input = new byte[len + 1];
+         System.arraycopy(data, off, input, 0, len);
+         inflater.setInput(input);
+         ByteArrayOutputStream out = new ByteArrayOutputStream(len * 4);
+         byte[] buf = new byte[1024];
+         while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new IllegalArgumentException("Truncated state token.");
+            }
+            out.write(buf, 0, n);
+            if (out.size() > MAX_STATE_LENGTH) {
+               throw new IllegalArgumentException("State token too large.");
+            }
+         }
+         return out.toByteArray();
+      } catch (DataFormatException e) {
+         throw new IllegalArgumentException("Malformed state token: " + e.getMessage());
+      } finally {
+         inflater.end();
+      }
+   }
+
+   /**
+    * Writes the state. Strings are added to the dictionary and written as
+    * references. A reference of 0 denotes <code>null</code>.
+    */
+   static class StateWriter {
+      private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+      private final ArrayList<String> strings = new ArrayList<String>();
+      private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+      void writeInt(int val) {
+         writeVarint(body, val);
+      }
+
+      void writeBoolean(boolean val) {
+         body.write(val ? 1 : 0);
+      }
+
+      void writeString(String str) {
+         if (str == null) {
+            writeVarint(body, 0);
+         } else {
+            Integer ref = index.get(str);
+            if (ref == null) {
+               strings.add(str);
+               ref = strings.size();
+               index.put(str, ref);
+            }
+            writeVarint(body, ref);
+         }
+      }
+
+      void writeStrings(String[] strs) {
+         writeVarint(body, strs.length);
+         for (String str : strs) {
+            writeString(str);
+         }
+      }
+
+      /**
+       * @return  the dictionary followed by the state
+       */
+      byte[] toByteArray() {
+         ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 16 * strings.size());
+         writeVarint(out, strings.size());
+         for (String str : strings) {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+         }
+         byte[] bytes = body.toByteArray();
+         out.write(bytes, 0, bytes.length);
+         return out.toByteArray();
+      }
+
+      private static void writeVarint(ByteArrayOutputStream out, int val) {
+         while ((val & ~0x7F) != 0) {
+            out.write((val & 0x7F) | 0x80);
+            val >>>= 7;
+         }
+         out.write(val);
+      }
+   }
+
+   /**
+    * Reads the state written by the {@link StateWriter}.
+    * All read methods throw an <code>IllegalArgumentException</code> if the
+    * state is malformed.
+    */
+   static class StateReader {
+      private final byte[] data;
+      private int pos = 0;
+      private final String[] strings;
+
+      StateReader(byte[] data) {
+         this.data = data;
+         int count = readCount();
+         strings = new String[count];
+         for (int ii = 0; ii < count; ii++) {
+            int len = readInt();
+            if (len > data.length - pos) {
+               throw new IllegalArgumentException("Bad string length: " + len);
+            }
+            strings[ii] = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+         }
+      }
+
+      int readInt() {
+         int val = 0;
+         for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= data.length) {
+               throw new IllegalArgumentException("Truncated state.");
+            }
+            int b = data[pos++];
+            val |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+               if (val < 0) {
+                  break;
+               }
+               return val;
+            }
+         }
+         throw new IllegalArgumentException("Bad varint at: " + pos);
+      }
+
+      /**
+       * Reads an element count. Each element takes up at least one byte, so the
+       * count cannot exceed the number of remaining bytes.
+       */
+      int readCount() {
+         int count = readInt();
+         if (count > data.length - pos) {
+            throw new IllegalArgumentException("Bad element count: " + count);
+         }
+         return count;
+      }
+
+      boolean readBoolean() {
+         return readInt() != 0;
+      }
+
+      String readString() {
+         int ref = readInt();
+         if (ref > strings.length) {
+            throw new IllegalArgumentException("Bad string reference: " + ref);
+         }
+         return (ref == 0) ? null : strings[ref - 1];
+      }
+
+      String[] readStrings() {
+         int count = readCount();
+         String[] strs = new String[count];
+         for (int ii = 0; ii < count; ii++) {
+            strs[ii] = readString();
+         }
+         return strs;
+      }
+
+      /**
+       * @return  <code>true</code> if all of the state has been read
+       */
+      boolean isComplete() {
+         return pos == data.length;
+      }
+   }
+}
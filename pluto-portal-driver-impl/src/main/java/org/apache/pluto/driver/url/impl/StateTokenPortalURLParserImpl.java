@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.portlet.PortletMode;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLParser;
+import org.apache.pluto.driver.url.PortalURLPublicParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Portal URL parser that encodes the URL state into a single compact token
+ * rather than into a sequence of path segments.
+ *
+ * The URL consists of the servlet path and render path followed by the
+ * <code>/__st</code> token. The token contains a window table that holds only
+ * the windows referenced by the URL state, a string dictionary, and the URL
+ * state itself. See {@link StateTokenCodec} for the binary format.
+ *
+ * The token carries the same information as the path segments generated by
+ * {@link PortalURLParserImpl}, so a URL parsed from either form has the same state.
+ * URLs in the path segment form continue to be parsed, so existing links and
+ * bookmarks remain valid. To use this parser, configure it as the
+ * <code>PortalURLParser</code> bean in the driver services configuration.
+ */
+public class StateTokenPortalURLParserImpl implements PortalURLParser {
+
+   /** Logger. */
+   private static final Logger LOG = LoggerFactory.getLogger(StateTokenPortalURLParserImpl.class);
+   private static final boolean isTrace = LOG.isTraceEnabled();
+
+   /** The singleton parser instance. */
+   private static final PortalURLParser PARSER = new StateTokenPortalURLParserImpl();
+
+   private static final String TOKEN_PREFIX = "/__st";
+
+   // URL type codes. Only the types that are encoded in the path segment form are used.
+   private static final int TYPE_NONE = 0;
+   private static final int TYPE_RESOURCE = 1;
+   private static final int TYPE_RENDER = 2;
+   private static final int TYPE_ACTION = 3;
+
+   // Parameter type codes
+   private static final String[] PARAM_TYPES = {
+      PortalURLParameter.PARAM_TYPE_RENDER,
+      PortalURLParameter.PARAM_TYPE_ACTION,
+      PortalURLParameter.PARAM_TYPE_RESOURCE,
+   };
+
+   /** The path segment parser provides the parsing and page setup */
+   private final PortalURLParserImpl pathParser;
+
+   /**
+    * Private constructor that prevents external instantiation.
+    */
+   private StateTokenPortalURLParserImpl() {
+      pathParser = (PortalURLParserImpl) PortalURLParserImpl.getParser();
+   }
+
+   /**
+    * Returns the singleton parser instance.
+    * @return the singleton parser instance.
+    */
+   public static PortalURLParser getParser() {
+      return PARSER;
+   }
+
+   /**
+    * Parse a servlet request to a portal URL.
+    * @param request  the servlet request to parse.
+    * @return the portal URL.
+    */
+   public PortalURL parse(HttpServletRequest request) {
+      return pathParser.parse(request, this);
+   }
+
+   /**
+    * This parser is married to the URL impl, just like the path segment parser.
+    */
+   public String toString(PortalURL portalURL) {
+      return toString((RelativePortalURLImpl) portalURL);
+   }
+
+   /**
+    * Converts a portal URL to a URL string.
+    * @param portalURL  the portal URL to convert.
+    * @return a URL string representing the portal URL.
+    */
+   public String toString(RelativePortalURLImpl portalURL) {
+
+      // Make sure the servlet parameters have been processed
+      portalURL.handleServletRequestParams();
+
+      PortalURLTemplate template = pathParser.getTemplate(portalURL);
+      StateTokenCodec.StateWriter out = new StateTokenCodec.StateWriter();
+      WindowTable windows = new WindowTable(template);
+
+      // The target window and URL type. As for the path segment form, the type
+      // is only encoded for resource, render, and action URLs with a target window on the page.
+      URLType type = portalURL.getType();
+      String targetWindow = portalURL.getTargetWindow();
+      int typeCode = TYPE_NONE;
+      if (type == URLType.Resource) {
+         typeCode = TYPE_RESOURCE;
+      } else if (type == URLType.Render) {
+         typeCode = TYPE_RENDER;
+      } else if (type == URLType.Action) {
+         typeCode = TYPE_ACTION;
+      }
+      int target = -1;
+      if (typeCode != TYPE_NONE) {
+         target = (targetWindow == null) ? -1 : windows.getIndex(targetWindow);
+         if (target < 0) {
+            LOG.warn("Target window not found in portlet ID list. PID = " + targetWindow);
+         }
+      }
+      out.writeInt(typeCode);
+      out.writeInt(target + 1);
+      out.writeBoolean(portalURL.getAuthenticated());
+
+      // Set up cacheability processing. For PORTLET, set the resource
+      // window so that the only the state for the target portlet is set.
+      String reswin = null;
+      boolean isCacheabilityFull = false;
+      if (type == URLType.Resource) {
+         out.writeString(portalURL.getCacheability());
+         out.writeString(portalURL.getResourceID());
+         if (ResourceURL.FULL.equals(portalURL.getCacheability())) {
+            isCacheabilityFull = true;
+            reswin = targetWindow;
+         } else if (ResourceURL.PORTLET.equals(portalURL.getCacheability())) {
+            reswin = targetWindow;
+         }
+      }
+
+      // portlet modes and window states
+      List<StateEntry> entries = new ArrayList<StateEntry>();
+      if (!isCacheabilityFull) {
+         for (Map.Entry<String, PortletMode> entry : portalURL.getPortletModeMap().entrySet()) {
+            addEntry(entries, windows, reswin, entry.getKey(), entry.getValue().toString());
+         }
+      }
+      writeEntries(out, entries);
+      entries.clear();
+      if (!isCacheabilityFull) {
+         for (Map.Entry<String, WindowState> entry : portalURL.getWindowStateMap().entrySet()) {
+            addEntry(entries, windows, reswin, entry.getKey(), entry.getValue().toString());
+         }
+      }
+      writeEntries(out, entries);
+      entries.clear();
+
+      // The action, render, and resource parameters. The CSRF token is carried as
+      // an action parameter for the target window, as in the path segment form.
+      if (type == URLType.Action || type == URLType.PartialAction) {
+         int index = (targetWindow == null) ? -1 : windows.getIndex(targetWindow);
+         if (index >= 0) {
+            entries.add(new StateEntry(index, 1, portalURL.getCsrfParameterName(),
+                  new String[] {portalURL.getCsrfParameterValue()}));
+         }
+      }
+      for (Map.Entry<String, WindowParameters> entry : portalURL.getParameterSets().entrySet()) {
+         String windowId = entry.getKey();
+         if (reswin != null && !reswin.equals(windowId)) {
+            continue;
+         }
+         for (PortalURLParameter param : entry.getValue()) {
+            if (param.getName() == null || param.getValues() == null) {
+               continue;
+            }
+            int ptype = 0;
+            if (param.getType().equals(PortalURLParameter.PARAM_TYPE_ACTION)) {
+               ptype = 1;
+            } else if (param.getType().equals(PortalURLParameter.PARAM_TYPE_RESOURCE)) {
+               ptype = 2;
+            }
+            if (isCacheabilityFull && ptype != 2) {
+               continue;
+            }
+            int index = windows.getIndex(windowId);
+            if (index < 0) {
+               LOG.warn("Window not found in portlet ID list. PID = " + windowId + ", Param name = " + param.getName());
+               continue;
+            }
+            entries.add(new StateEntry(index, ptype, param.getName(), param.getValues()));
+         }
+      }
+      out.writeInt(entries.size());
+      for (StateEntry entry : entries) {
+         out.writeInt(entry.index);
+         out.writeInt(entry.type);
+         out.writeString(entry.name);
+         out.writeStrings(entry.values);
+      }
+      entries.clear();
+
+      // The public render parameters. The values for a PRP group are written once,
+      // identified by the first PRP of the group.
+      if (!isCacheabilityFull) {
+         PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+         List<Integer> activeIndexes = mapper.getActiveIndexes();
+         if (reswin != null) {
+            activeIndexes = new ArrayList<Integer>();
+            for (PortalURLPublicParameter pup : mapper.getPRPsForWindow(reswin, true)) {
+               activeIndexes.add(mapper.getIndex(pup));
+            }
+         }
+         for (int i : activeIndexes) {
+            List<PortalURLPublicParameter> prplist = mapper.getPublicParameterGroup(i);
+            if (prplist.size() > 0) {
+               PortalURLPublicParameter prp = prplist.get(0);
+               int index = windows.getIndex(prp.getWindowId());
+               if (index >= 0) {
+                  entries.add(new StateEntry(index, 0, prp.getName(), mapper.getValues(i)));
+               } else {
+                  LOG.warn("window ID not on page for public render parameter: " + prp.toString());
+               }
+            }
+         }
+      }
+      out.writeInt(entries.size());
+      for (StateEntry entry : entries) {
+         out.writeInt(entry.index);
+         out.writeString(entry.name);
+         out.writeStrings(entry.values);
+      }
+
+      // The window table is written last, since it is filled while the state is written
+      windows.write(out);
+
+      StringBuilder buffer = new StringBuilder(128);
+      buffer.append(template.getPagePrefix());
+      buffer.append(TOKEN_PREFIX).append(StateTokenCodec.encode(out));
+
+      // Add fragment identifier if present on render URL
+      if (type == URLType.Render) {
+         String frag = portalURL.getFragmentIdentifier();
+         if (frag != null) {
+            buffer.append('#').append(frag);
+         }
+      }
+
+      if (isTrace) {
+         LOG.debug("State token URL: " + buffer.toString());
+      }
+      return buffer.toString();
+   }
+
+   /**
+    * Decodes the state token and sets the URL state accordingly. The state is
+    * applied in the same order as for the path segment form. A malformed token
+    * is logged and ignored.
+    *
+    * @param portalURL  the portal URL
+    * @param token      the encoded state token
+    */
+   static void decodeState(RelativePortalURLImpl portalURL, String token) {
+      try {
+         StateTokenCodec.StateReader in = StateTokenCodec.decode(token);
+
+         // The window table is at the end of the state, so read the state first
+         int typeCode = in.readInt();
+         int target = in.readInt() - 1;
+         boolean authenticated = in.readBoolean();
+         String cacheability = null, resourceId = null;
+         if (typeCode == TYPE_RESOURCE) {
+            cacheability = in.readString();
+            resourceId = in.readString();
+         }
+         int[] modeWindows = new int[in.readCount()];
+         String[] modes = readEntryValues(in, modeWindows);
+         int[] stateWindows = new int[in.readCount()];
+         String[] states = readEntryValues(in, stateWindows);
+         int count = in.readCount();
+         List<StateEntry> params = new ArrayList<StateEntry>();
+         for (int ii = 0; ii < count; ii++) {
+            int index = in.readInt();
+            int ptype = in.readInt();
+            if (ptype >= PARAM_TYPES.length) {
+               throw new IllegalArgumentException("Bad parameter type: " + ptype);
+            }
+            params.add(new StateEntry(index, ptype, in.readString(), in.readStrings()));
+         }
+         count = in.readCount();
+         List<StateEntry> prps = new ArrayList<StateEntry>();
+         for (int ii = 0; ii < count; ii++) {
+            prps.add(new StateEntry(in.readInt(), 0, in.readString(), in.readStrings()));
+         }
+         String[] pids = in.readStrings();
+         if (!in.isComplete()) {
+            throw new IllegalArgumentException("Unexpected data at end of state.");
+         }
+
+         // Resolve the window indexes before applying anything, so that a
+         // malformed token does not leave the URL partially updated
+         String targetWindow = (target >= 0) ? getPid(pids, target) : null;
+         String[] modePids = getPids(pids, modeWindows);
+         String[] statePids = getPids(pids, stateWindows);
+         for (StateEntry param : params) {
+            param.pid = getPid(pids, param.index);
+         }
+         for (StateEntry prp : prps) {
+            prp.pid = getPid(pids, prp.index);
+         }
+
+         // Now apply the state
+         if (typeCode != TYPE_NONE && targetWindow != null) {
+            portalURL.setTargetWindow(targetWindow);
+            portalURL.setType((typeCode == TYPE_RESOURCE) ? URLType.Resource
+                  : (typeCode == TYPE_RENDER) ? URLType.Render : URLType.Action);
+         }
+         if (authenticated) {
+            portalURL.setAuthenticated(true);
+         }
+         if (cacheability != null) {
+            portalURL.setCacheability(cacheability);
+         }
+         if (resourceId != null) {
+            portalURL.setResourceID(resourceId);
+         }
+         for (int ii = 0; ii < modes.length; ii++) {
+            portalURL.setPortletMode(modePids[ii], new PortletMode(modes[ii]));
+         }
+         for (int ii = 0; ii < states.length; ii++) {
+            portalURL.setWindowState(statePids[ii], new WindowState(states[ii]));
+         }
+         for (StateEntry param : params) {
+            portalURL.addParameter(new PortalURLParameter(param.pid, param.name, param.values, PARAM_TYPES[param.type]));
+         }
+         PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+         for (StateEntry prp : prps) {
+            int prpGroup = mapper.getIndex(prp.pid, prp.name);
+            if (prpGroup >= 0) {
+               mapper.setValues(prpGroup, prp.values);
+            } else {
+               StringBuilder sb = new StringBuilder("Could not find public render parameter group for portlet ID=");
+               sb.append(prp.pid).append(", parameter name=").append(prp.name);
+               LOG.warn(sb.toString());
+            }
+         }
+
+         if (isTrace) {
+            LOG.debug("Decoded state token. Windows: " + pids.length + ", parameters: " + params.size()
+                  + ", public render parameters: " + prps.size());
+         }
+      } catch (IllegalArgumentException e) {
+         LOG.warn("Bad state token: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Adds a window state or portlet mode entry
+    */
+   private static void addEntry(List<StateEntry> entries, WindowTable windows, String reswin, String pid, String value) {
+      if (reswin != null && !reswin.equals(pid)) {
+         return;
+      }
+      int index = windows.getIndex(pid);
+      if (index < 0) {
+         LOG.warn("Window not found in portlet ID list. PID = " + pid + ", value = " + value);
+      } else {
+         entries.add(new StateEntry(index, 0, value, null));
+      }
+   }
+
+   /**
+    * Writes window state or portlet mode entries
+    */
+   private static void writeEntries(StateTokenCodec.StateWriter out, List<StateEntry> entries) {
+      out.writeInt(entries.size());
+      for (StateEntry entry : entries) {
+         out.writeInt(entry.index);
+         out.writeString(entry.name);
+      }
+   }
+
+   /**
+    * Reads window state or portlet mode entries
+    */
+   private static String[] readEntryValues(StateTokenCodec.StateReader in, int[] indexes) {
+      String[] values = new String[indexes.length];
+      for (int ii = 0; ii < indexes.length; ii++) {
+         indexes[ii] = in.readInt();
+         values[ii] = in.readString();
+         if (values[ii] == null) {
+            throw new IllegalArgumentException("Missing value.");
+         }
+      }
+      return values;
+   }
+
+   private static String[] getPids(String[] pids, int[] indexes) {
+      String[] result = new String[indexes.length];
+      for (int ii = 0; ii < indexes.length; ii++) {
+         result[ii] = getPid(pids, indexes[ii]);
+      }
+      return result;
+   }
+
+   private static String getPid(String[] pids, int index) {
+      if (index >= pids.length || pids[index] == null) {
+         throw new IllegalArgumentException("Bad window index: " + index);
+      }
+      return pids[index];
+   }
+
+   /**
+    * An entry of the URL state that refers to a window by its index in the window
+    * table: a parameter, a public render parameter, or a portlet mode or window
+    * state, whose value is held as the name.
+    */
+   private static class StateEntry {
+      private final int index;
+      private final int type;
+      private final String name;
+      private final String[] values;
+
+      // The window ID, set when the entry is decoded and the window table is resolved
+      private String pid;
+
+      StateEntry(int index, int type, String name, String[] values) {
+         this.index = index;
+         this.type = type;
+         this.name = name;
+         this.values = values;
+      }
+   }
+
+   /**
+    * The table of the windows referenced by the URL state. Windows are added
+    * to the table as they are referenced, so that it contains only the windows
+    * actually needed.
+    */
+   private static class WindowTable {
+      private final PortalURLTemplate template;
+      private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+      private final ArrayList<String> pids = new ArrayList<String>();
+
+      WindowTable(PortalURLTemplate template) {
+         this.template = template;
+      }
+
+      /**
+       * Returns the table index for the window, or -1 if the window is not on the page.
+       */
+      int getIndex(String pid) {
+         Integer index = indexes.get(pid);
+         if (index == null) {
+            if (template.getIndex(pid) < 0) {
+               return -1;
+            }
+            index = pids.size();
+            pids.add(pid);
+            indexes.put(pid, index);
+         }
+         return index;
+      }
+
+      void write(StateTokenCodec.StateWriter out) {
+         out.writeStrings(pids.toArray(new String[pids.size()]));
+      }
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.pluto.driver.url.PortalURLParameter;
+
+/**
+ * The private parameters of a single portlet window, indexed by parameter type
+ * and parameter name.
+ *
+ * As for the parameter set it replaces, a parameter is identified by window ID,
+ * type, and name. Adding a parameter replaces the parameter with the same
+ * identity. The collection itself is read-only; it is modified through the
+ * {@link #put(PortalURLParameter)} and {@link #remove(Object)} methods only.
+ */
+class WindowParameters extends AbstractCollection<PortalURLParameter> {
+
+   /** key is the parameter type, value is the parameters of that type by name */
+   private final HashMap<String, LinkedHashMap<String, PortalURLParameter>> types;
+   private int size = 0;
+
+   WindowParameters() {
+      types = new HashMap<String, LinkedHashMap<String, PortalURLParameter>>(4);
+   }
+
+   /**
+    * Copy constructor. The parameter objects are not copied.
+    *
+    * @param wp   the window parameters to copy
+    */
+   WindowParameters(WindowParameters wp) {
+      types = new HashMap<String, LinkedHashMap<String, PortalURLParameter>>(4);
+      for (Map.Entry<String, LinkedHashMap<String, PortalURLParameter>> entry : wp.types.entrySet()) {
+         types.put(entry.getKey(), new LinkedHashMap<String, PortalURLParameter>(entry.getValue()));
+      }
+      size = wp.size;
+   }
+
+   /**
+    * Returns the parameter of the given type with the given name.
+    *
+    * @param name    the parameter name
+    * @param type    the parameter type
+    * @return        the parameter, or <code>null</code> if it is not present
+    */
+   PortalURLParameter get(String name, String type) {
+      Map<String, PortalURLParameter> params = types.get(type);
+      return (params == null) ? null : params.get(name);
+   }
+
+   /**
+    * Returns the parameters of the given type as a read-only collection.
+    *
+    * @param type    the parameter type
+    * @return        the parameters, or an empty collection if there are none
+    */
+   Collection<PortalURLParameter> getParameters(String type) {
+      Map<String, PortalURLParameter> params = types.get(type);
+      if (params == null) {
+         return Collections.emptySet();
+      }
+      return Collections.unmodifiableCollection(params.values());
+   }
+
+   /**
+    * Adds the parameter, replacing a parameter with the same type and name.
+    *
+    * @param pup     the parameter
+    */
+   void put(PortalURLParameter pup) {
+      LinkedHashMap<String, PortalURLParameter> params = types.get(pup.getType());
+      if (params == null) {
+         params = new LinkedHashMap<String, PortalURLParameter>();
+         types.put(pup.getType(), params);
+      }
+      if (params.put(pup.getName(), pup) == null) {
+         size++;
+      }
+   }
+
+   /**
+    * Removes the parameter with the same type and name as the given parameter.
+    *
+    * @param o       the parameter
+    * @return        <code>true</code> if a parameter was removed
+    */
+   @Override
+   public boolean remove(Object o) {
+      boolean removed = false;
+      if (o instanceof PortalURLParameter) {
+         PortalURLParameter pup = (PortalURLParameter) o;
+         Map<String, PortalURLParameter> params = types.get(pup.getType());
+         if (params != null && params.containsKey(pup.getName())) {
+            params.remove(pup.getName());
+            if (params.isEmpty()) {
+               types.remove(pup.getType());
+            }
+            size--;
+            removed = true;
+         }
+      }
+      return removed;
+   }
+
+   @Override
+   public boolean contains(Object o) {
+      if (o instanceof PortalURLParameter) {
+         PortalURLParameter pup = (PortalURLParameter) o;
+         Map<String, PortalURLParameter> params = types.get(pup.getType());
+         return (params != null) && params.containsKey(pup.getName());
+      }
+      return false;
+   }
+
+   @Override
+   public int size() {
+      return size;
+   }
+
+   @Override
+   public Iterator<PortalURLParameter> iterator() {
+      final Iterator<LinkedHashMap<String, PortalURLParameter>> typeIterator = types.values().iterator();
+      return new Iterator<PortalURLParameter>() {
+         private Iterator<PortalURLParameter> current = Collections.<PortalURLParameter>emptySet().iterator();
+
+         public boolean hasNext() {
+            while (!current.hasNext() && typeIterator.hasNext()) {
+               current = typeIterator.next().values().iterator();
+            }
+            return current.hasNext();
+         }
+
+         public PortalURLParameter next() {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+            return current.next();
+         }
+
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.config.impl;
+
+import org.apache.pluto.container.driver.PortletRegistryListener;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Tests for the caching of the page plans.
+ */
+public class DriverConfigurationImplTest extends MockObjectTestCase {
+
+   private static final String PAGE = "Test Page";
+
+   private PageConfig page;
+   private PortletRegistryListener listener;
+   private boolean registerDuringBuild;
+   private DriverConfigurationImpl config;
+
+   @Override
+   protected void setUp() throws Exception {
+      page = new PageConfig();
+      page.setName(PAGE);
+      page.addPortlet("/app", "Portlet");
+
+      // An application registered while a plan is built is simulated by
+      // sending the registry event from the registry lookup
+      Mock registry = mock(PortletRegistryService.class);
+      registry.stubs().method("addPortletRegistryListener").will(new CustomStub("keeps the listener") {
+         public Object invoke(Invocation invocation) {
+            listener = (PortletRegistryListener) invocation.parameterValues.get(0);
+            return null;
+         }
+      });
+      registry.stubs().method("getPortletApplication").will(new CustomStub("registers an application") {
+         public Object invoke(Invocation invocation) {
+            if (registerDuringBuild) {
+               registerDuringBuild = false;
+               listener.portletApplicationRegistered(null);
+            }
+            return null;
+         }
+      });
+      registry.stubs().method("getPortlet").will(returnValue(null));
+      Mock renderConfig = mock(RenderConfigService.class);
+      renderConfig.stubs().method("getPage").will(returnValue(null));
+      renderConfig.stubs().method("getPage").with(eq(PAGE)).will(returnValue(page));
+      config = new DriverConfigurationImpl(null, null, (RenderConfigService) renderConfig.proxy(), null, null, null,
+            (PortletRegistryService) registry.proxy());
+   }
+
+   public void testPlanIsReused() {
+      PagePlan plan = config.getPagePlan(PAGE);
+      assertSame(page, plan.getPageConfig());
+      assertEquals(page.getPortletIds(), plan.getPortletIds());
+      assertSame(plan, config.getPagePlan(PAGE));
+   }
+
+   public void testUnknownPage() {
+      assertNull(config.getPagePlan("unknown"));
+   }
+
+   public void testPageChangeInvalidatesPlan() {
+      PagePlan plan = config.getPagePlan(PAGE);
+      page.addPortlet("/app", "Portlet2");
+      PagePlan plan2 = config.getPagePlan(PAGE);
+      assertNotSame(plan, plan2);
+      assertEquals(2, plan2.getPortletIds().size());
+      assertSame(plan2, config.getPagePlan(PAGE));
+   }
+
+   public void testRegistryChangeInvalidatesPlan() {
+      PagePlan plan = config.getPagePlan(PAGE);
+      listener.portletApplicationRegistered(null);
+      PagePlan plan2 = config.getPagePlan(PAGE);
+      assertNotSame(plan, plan2);
+      listener.portletApplicationRemoved(null);
+      assertNotSame(plan2, config.getPagePlan(PAGE));
+   }
+
+   public void testPlanBuiltDuringRegistryChangeIsNotCached() {
+      registerDuringBuild = true;
+      PagePlan plan = config.getPagePlan(PAGE);
+      assertNotNull(plan);
+      PagePlan plan2 = config.getPagePlan(PAGE);
+      assertNotSame(plan, plan2);
+      assertSame(plan2, config.getPagePlan(PAGE));
+   }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.impl.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.driver.PortletRegistryListener;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.PublicRenderParameter;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Tests for the caching of the public render parameter mappers.
+ */
+public class PublicRenderParameterServiceImplTest extends MockObjectTestCase {
+
+   private static final String PAGE = "Test Page";
+   private static final String PID  = PortletWindowConfig.createPortletId("/app", "Portlet", "111");
+
+   private PageConfig page;
+   private PortletRegistryListener listener;
+   private int lookups;
+   private PublicRenderParameterServiceImpl service;
+
+   @Override
+   protected void setUp() throws Exception {
+      page = new PageConfig();
+      page.setName(PAGE);
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(PID)));
+
+      Mock prp = mock(PublicRenderParameter.class);
+      prp.stubs().method("getIdentifier").will(returnValue("color"));
+      prp.stubs().method("getQName").will(returnValue(new QName("urn:test", "color")));
+      Mock pad = mock(PortletApplicationDefinition.class);
+      pad.stubs().method("getName").will(returnValue("app"));
+      pad.stubs().method("getPublicRenderParameters").will(returnValue(Arrays.asList(prp.proxy())));
+      final Mock pd = mock(PortletDefinition.class);
+      pd.stubs().method("getPortletName").will(returnValue("Portlet"));
+      pd.stubs().method("getSupportedPublicRenderParameters").will(returnValue(Arrays.asList("color")));
+
+      Mock registry = mock(PortletRegistryService.class);
+      registry.stubs().method("addPortletRegistryListener").will(new CustomStub("keeps the listener") {
+         public Object invoke(Invocation invocation) {
+            listener = (PortletRegistryListener) invocation.parameterValues.get(0);
+            return null;
+         }
+      });
+      registry.stubs().method("getPortletApplication").will(returnValue(pad.proxy()));
+      registry.stubs().method("getPortlet").will(new CustomStub("counts the lookups") {
+         public Object invoke(Invocation invocation) {
+            lookups++;
+            return pd.proxy();
+         }
+      });
+      Mock renderConfig = mock(RenderConfigService.class);
+      renderConfig.stubs().method("getPage").with(eq(PAGE)).will(returnValue(page));
+      service = new PublicRenderParameterServiceImpl((RenderConfigService) renderConfig.proxy(),
+            (PortletRegistryService) registry.proxy());
+   }
+
+   public void testMapperIsReused() {
+      PublicRenderParameterMapper mapper = service.getPRPMapper(PAGE);
+      assertEquals(1, mapper.getNumberOfGroups());
+      assertEquals(0, mapper.getIndex(PID, "color"));
+      assertNotSame(mapper, service.getPRPMapper(PAGE));
+      assertEquals(1, lookups);
+   }
+
+   public void testClonesAreIsolated() {
+      PublicRenderParameterMapper mapper1 = service.getPRPMapper(PAGE);
+      mapper1.setValues(0, new String[] {"red"});
+      PublicRenderParameterMapper mapper2 = service.getPRPMapper(PAGE);
+      assertEquals(0, mapper2.getVersion());
+      mapper2.setValues(0, new String[] {"blue"});
+      assertEquals("red", mapper1.getValues(0)[0]);
+      assertEquals("blue", mapper2.getValues(0)[0]);
+      assertEquals(0, service.getPRPMapper(PAGE).getVersion());
+   }
+
+   public void testPageChangeInvalidatesMapper() {
+      service.getPRPMapper(PAGE);
+      page.removePortlet(PID);
+      assertEquals(0, service.getPRPMapper(PAGE).getNumberOfGroups());
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(PID)));
+      assertEquals(1, service.getPRPMapper(PAGE).getNumberOfGroups());
+      assertEquals(2, lookups);
+   }
+
+   public void testRegistryChangeInvalidatesMapper() {
+      service.getPRPMapper(PAGE);
+      listener.portletApplicationRegistered(null);
+      service.getPRPMapper(PAGE);
+      assertEquals(2, lookups);
+      listener.portletApplicationRemoved(null);
+      service.getPRPMapper(PAGE);
+      service.getPRPMapper(PAGE);
+      assertEquals(3, lookups);
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the portal URL codec with the <code>URLEncoder</code> based encoding
+ * it replaces, and checks that decoding restores the encoded strings.
+ */
+public class PortalURLCodecTest extends TestCase {
+
+   /** Characters of interest for the portal URL encoding */
+   private static final String SPECIAL = " /:;,@%+&=?#.-*_~!$'()[]<>\"\\0x3";
+
+   public void testKnownValues() {
+      assertEquals("a+b", encode("a b"));
+      assertEquals("p0x3q", encode("p/q"));
+      assertEquals("%3A%3B%2C%40", encode(":;,@"));
+      assertEquals("%C3%A9%E4%B8%AD%F0%9F%98%80", encode("é中😀"));
+      assertEquals("null", encode(null));
+      assertEquals("/my%20page/sub%20page", PortalURLCodec.encodePath(new StringBuilder(), "/my page/sub page").toString());
+   }
+
+   public void testDecode() {
+      assertEquals("p/q r", PortalURLCodec.decode("p0x3q+r"));
+      assertEquals("é中", PortalURLCodec.decode("%C3%A9%e4%b8%ad"));
+      assertEquals("x:y", PortalURLCodec.decode("a;x%3Ay;b", 2, 7));
+      assertNull(PortalURLCodec.decode(null));
+      try {
+         PortalURLCodec.decode("a%zz");
+         fail("Malformed escape accepted");
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+   }
+
+   public void testFuzzAgainstURLEncoder() throws Exception {
+      Random random = new Random(3986);
+      for (int ii = 0; ii < 20000; ii++) {
+         String str = randomString(random);
+         String expected = URLEncoder.encode(str.replace("/", "0x3"), "UTF-8");
+         String encoded = encode(str);
+         assertEquals(str, expected, encoded);
+         if (!hasUnpairedSurrogate(str)) {
+            assertEquals(str.replace("/", "0x3"), URLDecoder.decode(encoded, "UTF-8"));
+            if (!str.contains("0x3")) {
+               assertEquals(str, PortalURLCodec.decode(encoded));
+            }
+         }
+      }
+   }
+
+   public void testAppendable() throws Exception {
+      StringBuilder sb = new StringBuilder("x");
+      PortalURLCodec.encode((Appendable) sb, "a/b c");
+      assertEquals("xa0x3b+c", sb.toString());
+   }
+
+   private static String encode(String str) {
+      return PortalURLCodec.encode(new StringBuilder(), str).toString();
+   }
+
+   private static String randomString(Random random) {
+      int len = random.nextInt(12);
+      StringBuilder sb = new StringBuilder(len);
+      for (int ii = 0; ii < len; ii++) {
+         switch (random.nextInt(5)) {
+         case 0:
+            sb.append(SPECIAL.charAt(random.nextInt(SPECIAL.length())));
+            break;
+         case 1:
+            sb.append((char) ('a' + random.nextInt(26)));
+            break;
+         case 2:
+            sb.append((char) random.nextInt(0x800));
+            break;
+         case 3:
+            sb.appendCodePoint(0x10000 + random.nextInt(0x1000));
+            break;
+         default:
+            sb.append((char) random.nextInt(0x10000));
+         }
+      }
+      return sb.toString();
+   }
+
+   private static boolean hasUnpairedSurrogate(String str) {
+      for (int ii = 0; ii < str.length(); ii++) {
+         char c = str.charAt(ii);
+         if (Character.isHighSurrogate(c) && ii + 1 < str.length() && Character.isLowSurrogate(str.charAt(ii + 1))) {
+            ii++;
+         } else if (Character.isSurrogate(c)) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
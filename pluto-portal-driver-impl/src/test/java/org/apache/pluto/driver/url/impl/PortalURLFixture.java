@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.PublicRenderParameter;
+import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterQNameMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterService;
+import org.apache.pluto.driver.services.portal.SupportedModesService;
+import org.apache.pluto.driver.services.portal.SupportedWindowStateService;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLParser;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+import org.springframework.security.web.csrf.DefaultCsrfToken;
+
+/**
+ * Parses portal URLs for a test page without a servlet container or portlet
+ * registry.
+ * <p>
+ * The page holds three version 3 portlets. PortletA and PortletB in /app1
+ * share the public render parameter <code>{urn:test}color</code> under the
+ * identifiers <code>color</code> and <code>colour</code>. PortletC in /app2
+ * has the public render parameter <code>{urn:test}size</code>.
+ */
+class PortalURLFixture {
+
+   static final String CONTEXT    = "/pluto";
+   static final String SERVLET    = "/portal";
+   static final String PAGE       = "/Test Page";
+
+   static final String PID_A      = PortletWindowConfig.createPortletId("/app1", "PortletA", "111");
+   static final String PID_B      = PortletWindowConfig.createPortletId("/app1", "PortletB", "222");
+   static final String PID_C      = PortletWindowConfig.createPortletId("/app2", "PortletC", "333");
+
+   static final String CSRF_NAME  = "_csrf";
+   static final String CSRF_VALUE = "0123-abcd";
+
+   private static final QName COLOR = new QName("urn:test", "color");
+   private static final QName SIZE  = new QName("urn:test", "size");
+
+   private final MockObjectTestCase test;
+
+   // Answers the driver configuration for every attribute
+   private final ServletContext servletContext;
+
+   /**
+    * Creates the page configuration and the driver services for the page.
+    *
+    * @param test  the test case that creates and verifies the mocks
+    */
+   PortalURLFixture(MockObjectTestCase test) {
+      this.test = test;
+      final PageConfig page = new PageConfig();
+      page.setName(PAGE);
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(PID_A, PID_B, PID_C)));
+
+      Mock registry = test.mock(PortletRegistryService.class);
+      stubApplication(registry, "/app1", application("app1", prp("color", COLOR), prp("colour", COLOR)));
+      stubApplication(registry, "/app2", application("app2", prp("size", SIZE)));
+      stubPortlet(registry, "/app1", "PortletA", portlet("PortletA", "color"));
+      stubPortlet(registry, "/app1", "PortletB", portlet("PortletB", "colour"));
+      stubPortlet(registry, "/app2", "PortletC", portlet("PortletC", "size"));
+      PortletRegistryService registryService = (PortletRegistryService) registry.proxy();
+
+      Mock modes = test.mock(SupportedModesService.class);
+      modes.stubs().method("getSupportedPortletModes").will(test.returnValue(Collections.emptySet()));
+      Mock states = test.mock(SupportedWindowStateService.class);
+      states.stubs().method("getSupportedWindowStates").will(test.returnValue(Collections.emptySet()));
+      PagePlan plan = new PagePlan(page, registryService,
+            (SupportedModesService) modes.proxy(), (SupportedWindowStateService) states.proxy());
+
+      final PublicRenderParameterMapper prototype = new PublicRenderParameterQNameMapper(page, registryService);
+      Mock prps = test.mock(PublicRenderParameterService.class);
+      prps.stubs().method("getPRPMapper").will(new CustomStub("a copy of the page mapper") {
+         public Object invoke(Invocation invocation) {
+            return prototype.clone();
+         }
+      });
+
+      Mock config = test.mock(DriverConfiguration.class);
+      config.stubs().method("getPagePlan").will(test.returnValue(plan));
+      config.stubs().method("getPageConfig").will(test.returnValue(page));
+      config.stubs().method("getPublicRenderParameterService").will(test.returnValue(prps.proxy()));
+      Mock context = test.mock(ServletContext.class);
+      context.stubs().method("getAttribute").will(test.returnValue(config.proxy()));
+      servletContext = (ServletContext) context.proxy();
+   }
+
+   /**
+    * Parses the URL without servlet request parameters.
+    *
+    * @param parser  the parser to use
+    * @param url     the URL as generated by a parser, starting with the context path
+    */
+   RelativePortalURLImpl parse(PortalURLParser parser, String url) {
+      return parse(parser, url, Collections.<String, String[]>emptyMap());
+   }
+
+   /**
+    * Parses the URL with the given servlet request parameters.
+    *
+    * @param parser  the parser to use
+    * @param url     the URL as generated by a parser, starting with the context path
+    * @param params  the servlet request parameters
+    */
+   RelativePortalURLImpl parse(PortalURLParser parser, String url, Map<String, String[]> params) {
+      int frag = url.indexOf('#');
+      String uri = (frag < 0) ? url : url.substring(0, frag);
+      // The only request attribute read by the parser is the CSRF token
+      Mock request = test.mock(HttpServletRequest.class);
+      request.stubs().method("getRequestURI").will(test.returnValue(uri));
+      request.stubs().method("getContextPath").will(test.returnValue(CONTEXT));
+      request.stubs().method("getServletPath").will(test.returnValue(SERVLET));
+      request.stubs().method("getPathInfo").will(test.returnValue(uri.substring((CONTEXT + SERVLET).length())));
+      request.stubs().method("getScheme").will(test.returnValue("http"));
+      request.stubs().method("getServerName").will(test.returnValue("localhost"));
+      request.stubs().method("getServerPort").will(test.returnValue(8080));
+      request.stubs().method("getServletContext").will(test.returnValue(servletContext));
+      request.stubs().method("getAttribute")
+            .will(test.returnValue(new DefaultCsrfToken("X-CSRF-TOKEN", CSRF_NAME, CSRF_VALUE)));
+      request.stubs().method("getParameterMap").will(test.returnValue(params));
+      request.stubs().method("setCharacterEncoding");
+      HttpServletRequest servletRequest = (HttpServletRequest) request.proxy();
+      if (parser instanceof StateTokenPortalURLParserImpl) {
+         return (RelativePortalURLImpl) parser.parse(servletRequest);
+      }
+      return ((PortalURLParserImpl) parser).parse(servletRequest, parser);
+   }
+
+   /**
+    * Parses the URL of the page without state.
+    */
+   RelativePortalURLImpl parsePage(PortalURLParser parser) {
+      return parse(parser, CONTEXT + SERVLET + "/Test%20Page");
+   }
+
+   /**
+    * Returns the parameter of the given window, name and type, or <code>null</code>.
+    */
+   static PortalURLParameter getParameter(RelativePortalURLImpl url, String windowId, String name, String type) {
+      for (PortalURLParameter param : url.getParameters()) {
+         if (param.getWindowId().equals(windowId) && param.getName().equals(name) 
+               && param.getType().equals(type)) {
+            return param;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns the index of the portlet in the portlet ID table of the URL.
+    */
+   static int getIndex(RelativePortalURLImpl url, String pid) {
+      return new ArrayList<String>(url.getPortletIds()).indexOf(pid);
+   }
+
+   /**
+    * Returns a description of the URL state that does not depend on the
+    * encoding or on the order in which the state was set, so that the state
+    * of two URLs can be compared.
+    */
+   static String describe(RelativePortalURLImpl url) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("type=").append(url.getType());
+      sb.append(", target=").append(url.getTargetWindow());
+      sb.append(", authenticated=").append(url.getAuthenticated());
+      sb.append(", cacheability=").append(url.getCacheability());
+      sb.append(", resourceID=").append(url.getResourceID());
+      sb.append(", modes=").append(new TreeMap<String, Object>(url.getPortletModes()));
+      sb.append(", states=").append(new TreeMap<String, Object>(url.getWindowStates()));
+      List<String> params = new ArrayList<String>();
+      for (PortalURLParameter param : url.getParameters()) {
+         String values = (param.getValues() == null) ? "null" : Arrays.toString(param.getValues());
+         params.add(param.getWindowId() + "|" + param.getType() + "|" + param.getName() + "=" + values);
+      }
+      Collections.sort(params);
+      sb.append(", params=").append(params);
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      sb.append(", prps={");
+      for (int ii : mapper.getActiveIndexes()) {
+         sb.append(ii).append('=').append(Arrays.toString(mapper.getValues(ii))).append(' ');
+      }
+      sb.append('}');
+      return sb.toString();
+   }
+
+   private void stubApplication(Mock registry, String contextPath, PortletApplicationDefinition app) {
+      registry.stubs().method("getPortletApplication").with(test.eq(contextPath)).will(test.returnValue(app));
+   }
+
+   private void stubPortlet(Mock registry, String contextPath, String name, PortletDefinition portlet) {
+      registry.stubs().method("getPortlet").with(test.eq(contextPath), test.eq(name))
+            .will(test.returnValue(portlet));
+   }
+
+   private PortletApplicationDefinition application(String name, PublicRenderParameter... prps) {
+      Mock app = test.mock(PortletApplicationDefinition.class, name);
+      app.stubs().method("getName").will(test.returnValue(name));
+      app.stubs().method("getVersion").will(test.returnValue("3.0"));
+      app.stubs().method("getPublicRenderParameters").will(test.returnValue(Arrays.asList(prps)));
+      return (PortletApplicationDefinition) app.proxy();
+   }
+
+   private PortletDefinition portlet(String name, String prpId) {
+      Mock portlet = test.mock(PortletDefinition.class, name);
+      portlet.stubs().method("getPortletName").will(test.returnValue(name));
+      portlet.stubs().method("getSupportedPublicRenderParameters").will(test.returnValue(Arrays.asList(prpId)));
+      return (PortletDefinition) portlet.proxy();
+   }
+
+   private PublicRenderParameter prp(String id, QName qname) {
+      Mock prp = test.mock(PublicRenderParameter.class, id);
+      prp.stubs().method("getIdentifier").will(test.returnValue(id));
+      prp.stubs().method("getQName").will(test.returnValue(qname));
+      return (PublicRenderParameter) prp.proxy();
+   }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_ACTION;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_A;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_B;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_C;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.getIndex;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.getParameter;
+
+import java.util.Arrays;
+
+import javax.portlet.PortletMode;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLParser;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests parsing the path segment form of the portal URL.
+ */
+public class PortalURLParserImplTest extends MockObjectTestCase {
+
+   private PortalURLParser parser;
+   private PortalURLFixture fixture;
+
+   // The page URL containing the portlet ID table
+   private String page;
+
+   // The indexes of the portlets in the portlet ID table
+   private int a, b, c;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      parser = PortalURLParserImpl.getParser();
+      fixture = new PortalURLFixture(this);
+      RelativePortalURLImpl url = fixture.parsePage(parser);
+      page = url.toURL(false);
+      a = getIndex(url, PID_A);
+      b = getIndex(url, PID_B);
+      c = getIndex(url, PID_C);
+   }
+
+   private RelativePortalURLImpl parse(String state) {
+      return fixture.parse(parser, page + state);
+   }
+
+   private static void assertValues(PortalURLParameter param, String... values) {
+      assertNotNull(param);
+      assertEquals(Arrays.asList(values), Arrays.asList(param.getValues()));
+   }
+
+   public void testPage() {
+      assertTrue(page, page.startsWith("/pluto/portal/Test%20Page/__pd"));
+      RelativePortalURLImpl url = parse("");
+      assertEquals("/Test Page", url.getRenderPath());
+      assertEquals(URLType.Portal, url.getType());
+      assertNull(url.getTargetWindow());
+      assertEquals(3, url.getPortletIds().size());
+      assertEquals("3.0", url.getVersion(PID_B));
+      assertTrue(url.isVersion3(PID_B));
+      assertTrue(url.getParameters().isEmpty());
+   }
+
+   public void testTargetTokens() {
+      String[][] types = {{"re", "Render"}, {"ac", "Action"}, {"aa", "AjaxAction"},
+            {"pa", "PartialAction"}, {"rs", "Resource"}};
+      for (String[] type : types) {
+         RelativePortalURLImpl url = parse("/__" + type[0] + b);
+         assertEquals(type[0], URLType.valueOf(type[1]), url.getType());
+         assertEquals(type[0], PID_B, url.getTargetWindow());
+      }
+   }
+
+   public void testResourceTokens() {
+      RelativePortalURLImpl url = parse("/__rs" + c + "/__clcacheLevelPortlet/__rimy+resource/__autrue");
+      assertEquals(URLType.Resource, url.getType());
+      assertEquals(PID_C, url.getTargetWindow());
+      assertEquals(ResourceURL.PORTLET, url.getCacheability());
+      assertEquals("my resource", url.getResourceID());
+      assertTrue(url.getAuthenticated());
+   }
+
+   public void testModesAndStates() {
+      RelativePortalURLImpl url = parse("/__pm" + a + ";edit/__ws" + a + ";maximized/__ws" + c + ";minimized");
+      assertEquals(PortletMode.EDIT, url.getPortletMode(PID_A));
+      assertEquals(PortletMode.VIEW, url.getPortletMode(PID_B));
+      assertEquals(WindowState.MAXIMIZED, url.getWindowState(PID_A));
+      assertEquals(WindowState.MINIMIZED, url.getWindowState(PID_C));
+   }
+
+   public void testParameterTypes() {
+      RelativePortalURLImpl url = parse("/__rp" + a + ";r:1/__av" + b + ";a:2/__rv" + c + ";s:3");
+      assertValues(getParameter(url, PID_A, "r", PARAM_TYPE_RENDER), "1");
+      assertValues(getParameter(url, PID_B, "a", PARAM_TYPE_ACTION), "2");
+      assertValues(getParameter(url, PID_C, "s", PARAM_TYPE_RESOURCE), "3");
+      assertNull(getParameter(url, PID_A, "r", PARAM_TYPE_ACTION));
+      assertEquals(3, url.getParameters().size());
+   }
+
+   public void testMultipleValues() {
+      RelativePortalURLImpl url = parse("/__rp" + a + ";m:a:b+c:%3A%3B%2C%40:");
+      assertValues(getParameter(url, PID_A, "m", PARAM_TYPE_RENDER), "a", "b c", ":;,@", "");
+   }
+
+   public void testNullAndEmptyValues() {
+      RelativePortalURLImpl url = parse("/__rp" + a + ";n:,/__rp" + a + ";e:@/__rp" + a + ";m:,:x:,/__rp" + a + ";s:");
+      assertValues(getParameter(url, PID_A, "n", PARAM_TYPE_RENDER), (String) null);
+      assertValues(getParameter(url, PID_A, "e", PARAM_TYPE_RENDER));
+      assertValues(getParameter(url, PID_A, "m", PARAM_TYPE_RENDER), null, "x", null);
+      assertValues(getParameter(url, PID_A, "s", PARAM_TYPE_RENDER), "");
+   }
+
+   public void testEncodedNames() {
+      RelativePortalURLImpl url = parse("/__rp" + a + ";a%3Ab+c:v");
+      assertValues(getParameter(url, PID_A, "a:b c", PARAM_TYPE_RENDER), "v");
+
+      // A name without values is decoded as well. It has no values.
+      url = parse("/__rp" + b + ";na%3Ame");
+      assertValues(getParameter(url, PID_B, "na:me", PARAM_TYPE_RENDER));
+   }
+
+   public void testPublicRenderParameters() {
+      RelativePortalURLImpl url = parse("/__sp" + b + ";0;colour:red:blue/__sp" + c + ";1;size:@");
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      int color = mapper.getIndex(PID_A, "color");
+      assertEquals(color, mapper.getIndex(PID_B, "colour"));
+      assertEquals(Arrays.asList("red", "blue"), Arrays.asList(mapper.getValues(color)));
+      assertEquals(0, mapper.getValues(mapper.getIndex(PID_C, "size")).length);
+      assertEquals(2, mapper.getActiveIndexes().size());
+   }
+
+   public void testRoundTrip() {
+      RelativePortalURLImpl url = parse("");
+      url.setType(URLType.Render);
+      url.setTargetWindow(PID_C);
+      url.setPortletMode(PID_A, PortletMode.HELP);
+      url.setWindowState(PID_C, WindowState.MAXIMIZED);
+      url.setParameter(new PortalURLParameter(PID_A, "a:b;c,d@e/f", new String[] {"x:y", null, ",", "@", "p q"}));
+      url.setParameter(new PortalURLParameter(PID_B, "empty", new String[0]));
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      mapper.setValues(mapper.getIndex(PID_B, "colour"), new String[] {"green", null});
+
+      RelativePortalURLImpl parsed = fixture.parse(parser, url.toURL(false));
+      assertEquals(PortalURLFixture.describe(url), PortalURLFixture.describe(parsed));
+   }
+
+   public void testMalformedTokens() {
+      String[] malformed = {
+            "/__pdx", "/__pdx;", "/__pdx;9", "/__pdx;-1",  // bad portlet ID references
+            "/__ws0", "/__pm0", "/__ws0;", "/__rp0",        // missing component values
+            "/__rp0;,:x", "/__sp0;0", "/__sp0;0;a;b:c",       // bad parameter tokens
+            "/__rp0;a:%zz", "/__zz0;a:b", "/__", "/__r",     // bad encoding & unknown tokens
+            "/__re99", "/__skno-such-key",                   // bad references
+      };
+      for (String token : malformed) {
+         RelativePortalURLImpl url = parse(token + "/__rp" + a + ";ok:1");
+         assertValues(getParameter(url, PID_A, "ok", PARAM_TYPE_RENDER), "1");
+      }
+
+      // The malformed escape is taken literally
+      RelativePortalURLImpl url = parse("/__rp" + a + ";a:%zz");
+      assertValues(getParameter(url, PID_A, "a", PARAM_TYPE_RENDER), "%zz");
+   }
+}
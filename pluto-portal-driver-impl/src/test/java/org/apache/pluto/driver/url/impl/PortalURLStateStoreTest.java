@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the server-side URL state store.
+ */
+public class PortalURLStateStoreTest extends TestCase {
+
+   private static final String STATE = "/__pdapp1.PortletA%21111%7C0;0/__rp0;name:value";
+
+   public void testPutAndGet() {
+      PortalURLStateStore store = new PortalURLStateStore();
+      String key = store.put(null, STATE);
+      assertTrue(key, key.matches("[A-Za-z0-9_-]{22}"));
+      assertEquals(key, store.put(null, STATE));
+      assertFalse(key.equals(store.put(null, STATE + "x")));
+      assertEquals(STATE, store.get(null, key));
+      assertNull(store.get(null, "unknown"));
+   }
+
+   public void testMalformedKeysAreRejected() throws Exception {
+      File dir = File.createTempFile("urlstate", "");
+      assertTrue(dir.delete());
+      File sibling = new File(dir.getParentFile(), dir.getName() + "-sibling");
+      try {
+         PortalURLStateStore store = new PortalURLStateStore();
+         store.setMaxAge(-1);
+         store.setOverflowDirectory(dir.getPath());
+         assertTrue(sibling.createNewFile());
+         assertNull(store.get(null, "../" + sibling.getName()));
+         assertNull(store.get(null, "a/b"));
+         assertNull(store.get(null, ""));
+         assertNull(store.get(null, null));
+         assertTrue(sibling.exists());
+      } finally {
+         sibling.delete();
+         dir.delete();
+      }
+   }
+
+   public void testKeysDependOnStore() {
+      PortalURLStateStore store1 = new PortalURLStateStore();
+      PortalURLStateStore store2 = new PortalURLStateStore();
+      assertFalse(store1.put(null, STATE).equals(store2.put(null, STATE)));
+   }
+
+   public void testEviction() {
+      PortalURLStateStore store = new PortalURLStateStore();
+      store.setMaxEntries(2);
+      String key = store.put(null, STATE + 0);
+      store.put(null, STATE + 1);
+      store.put(null, STATE + 2);
+      assertNull(store.get(null, key));
+   }
+
+   public void testExpiry() {
+      PortalURLStateStore store = new PortalURLStateStore();
+      store.setMaxAge(-1);
+      String key = store.put(null, STATE);
+      assertNull(store.get(null, key));
+   }
+
+   public void testPutRenewsEntry() throws Exception {
+      PortalURLStateStore store = new PortalURLStateStore();
+      store.setMaxAge(1);
+      String key = store.put(null, STATE);
+      Thread.sleep(600);
+      assertEquals(key, store.put(null, STATE));
+      Thread.sleep(600);
+      assertEquals(STATE, store.get(null, key));
+   }
+
+   public void testSensitiveStateIsNotStoredGlobally() {
+      PortalURLStateStore store = new PortalURLStateStore();
+      store.setSessionScoped(true);
+      assertNull(store.put(null, STATE, true));
+      assertNotNull(store.put(null, STATE, false));
+   }
+
+   public void testOverflowIsBounded() throws Exception {
+      File dir = File.createTempFile("urlstate", "");
+      assertTrue(dir.delete());
+      try {
+         PortalURLStateStore store = new PortalURLStateStore();
+         store.setMaxEntries(1);
+         store.setMaxOverflowSize(4 * (STATE.length() + 1));
+         store.setOverflowDirectory(dir.getPath());
+         for (int ii = 0; ii < 20; ii++) {
+            store.put(null, STATE + ii);
+         }
+         long size = 0;
+         for (File file : dir.listFiles()) {
+            size += file.length();
+         }
+         assertTrue("Overflow size: " + size, size <= 4 * (STATE.length() + 1));
+      } finally {
+         for (File file : dir.listFiles()) {
+            file.delete();
+         }
+         dir.delete();
+      }
+   }
+
+   public void testOverflow() throws Exception {
+      File dir = File.createTempFile("urlstate", "");
+      assertTrue(dir.delete());
+      try {
+         PortalURLStateStore store = new PortalURLStateStore();
+         store.setMaxEntries(1);
+         store.setOverflowDirectory(dir.getPath());
+         String key = store.put(null, STATE + 0);
+         store.put(null, STATE + 1);
+         assertEquals(STATE + 0, store.get(null, key));
+      } finally {
+         for (File file : dir.listFiles()) {
+            file.delete();
+         }
+         dir.delete();
+      }
+   }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_A;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_B;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_C;
+
+import java.util.Arrays;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the URL template compiled for the page and the memoized segments.
+ */
+public class PortalURLTemplateTest extends MockObjectTestCase {
+
+   private PortalURLFixture fixture;
+   private RelativePortalURLImpl url;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      fixture = new PortalURLFixture(this);
+      url = fixture.parsePage(PortalURLParserImpl.getParser());
+   }
+
+   public void testPrefix() {
+      PortalURLTemplate template = url.getTemplate();
+      assertNotNull(template);
+      assertTrue(template.matches(url));
+      assertTrue(template.getPagePrefix(), template.getPagePrefix().endsWith("/Test%20Page"));
+      assertTrue(template.getPrefix().startsWith(template.getPagePrefix()));
+      assertEquals(url.toURL(false), template.getPrefix());
+   }
+
+   public void testIndexes() {
+      PortalURLTemplate template = url.getTemplate();
+      assertEquals(3, template.getPortletIds().size());
+      for (String pid : Arrays.asList(PID_A, PID_B, PID_C)) {
+         int index = template.getIndex(pid);
+         assertEquals(pid, template.getPortletIds().get(index));
+         assertTrue(template.getPrefix().contains(";" + index));
+      }
+      assertEquals(-1, template.getIndex("no such portlet"));
+   }
+
+   public void testPRPPrefixes() {
+      PortalURLTemplate template = url.getTemplate();
+      int groups = url.getPublicRenderParameterMapper().getNumberOfGroups();
+      assertEquals(2, groups);
+      for (int ii = 0; ii < groups; ii++) {
+         assertNotNull(template.getPRPPrefix(ii, groups));
+      }
+
+      // A mapper with a different number of groups is not covered by the template
+      assertNull(template.getPRPPrefix(0, groups + 1));
+   }
+
+   public void testSharedByClones() {
+      RelativePortalURLImpl clone = (RelativePortalURLImpl) url.clone();
+      assertSame(url.getTemplate(), clone.getTemplate());
+      clone.setPortletMode(PID_A, PortletMode.EDIT);
+      clone.toURL(false);
+      assertSame(url.getTemplate(), clone.getTemplate());
+   }
+
+   public void testRecompiledForOtherPage() {
+      PortalURLTemplate template = url.getTemplate();
+      url.setRenderPath("/Other Page");
+      assertFalse(template.matches(url));
+      assertTrue(url.toURL(false).contains("/Other%20Page/"));
+      assertNotSame(template, url.getTemplate());
+      assertTrue(url.getTemplate().matches(url));
+   }
+
+   public void testSharedSegmentsAreMemoized() {
+      url.setPortletMode(PID_A, PortletMode.EDIT);
+      url.setWindowState(PID_B, WindowState.MAXIMIZED);
+      RelativePortalURLImpl clone = (RelativePortalURLImpl) url.clone();
+      assertTrue(clone.isPortletModesShared());
+      String expected = url.toURL(false);
+      assertEquals(expected, clone.toURL(false));
+      PortalURLTemplate template = clone.getTemplate();
+      assertNotNull(template.getSegment(clone.getPortletModeMap()));
+      assertNotNull(template.getSegment(clone.getWindowStateMap()));
+      assertEquals(expected, clone.toURL(false));
+
+      // Writing to the shared state copies it, so the memoized segment is not used
+      clone.setPortletMode(PID_A, PortletMode.HELP);
+      assertFalse(clone.isPortletModesShared());
+      assertNull(template.getSegment(clone.getPortletModeMap()));
+      assertTrue(clone.toURL(false).contains(";help"));
+      assertFalse(clone.toURL(false).contains(";edit"));
+      assertEquals(expected, url.toURL(false));
+   }
+
+   public void testSegmentsAreBounded() {
+      PortalURLTemplate template = url.getTemplate();
+      Object first = new Object();
+      template.putSegment(first, "first");
+      Object last = null;
+      for (int ii = 0; ii < 1000; ii++) {
+         last = new Object();
+         template.putSegment(last, "segment");
+      }
+      assertEquals("first", template.getSegment(first));
+      assertNull(template.getSegment(last));
+   }
+}
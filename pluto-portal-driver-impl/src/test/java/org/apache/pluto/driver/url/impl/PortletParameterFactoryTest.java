@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_A;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_B;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.pluto.container.PortletRequestContext;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortletParameterFactory;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the memoized parameter maps of the parameter factory and their
+ * invalidation.
+ */
+public class PortletParameterFactoryTest extends MockObjectTestCase {
+
+   private RelativePortalURLImpl url;
+   private PortletRequestContext reqctx;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      url = new PortalURLFixture(this).parsePage(PortalURLParserImpl.getParser());
+      url.setParameter(new PortalURLParameter(PID_A, "p", new String[] {"1"}));
+      Mock context = mock(PortletRequestContext.class);
+      context.stubs().method("getQueryParams").will(returnValue(null));
+      reqctx = (PortletRequestContext) context.proxy();
+   }
+
+   private PortletParameterFactory factory() {
+      return url.getPortletParameterFactory(reqctx);
+   }
+
+   private static void assertValues(Map<String, String[]> map, String name, String... values) {
+      assertNotNull(name, map.get(name));
+      assertEquals(Arrays.asList(values), Arrays.asList(map.get(name)));
+   }
+
+   public void testMapsAreMemoized() {
+      PortletParameterFactory factory = factory();
+      Map<String, String[]> params = factory.getParameterMap(PID_A);
+      assertSame(params, factory.getParameterMap(PID_A));
+      assertSame(factory.getPrivateParameterMap(PID_A), factory.getPrivateParameterMap(PID_A));
+      assertSame(factory.getPublicParameterMap(PID_A), factory.getPublicParameterMap(PID_A));
+      assertNotSame(params, factory.getParameterMap(PID_B));
+      assertValues(params, "p", "1");
+      try {
+         params.put("x", new String[0]);
+         fail("memoized map is writable");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   public void testFactoryWritesInvalidate() {
+      PortletParameterFactory factory = factory();
+      Map<String, String[]> params = factory.getParameterMap(PID_A);
+      factory.setParameter(PID_A, "p", PARAM_TYPE_RENDER, new String[] {"2"});
+      assertValues(factory.getParameterMap(PID_A), "p", "2");
+      assertValues(params, "p", "1");
+
+      factory.setParameter(PID_A, "color", PARAM_TYPE_RENDER, new String[] {"red"});
+      assertValues(factory.getPublicParameterMap(PID_A), "color", "red");
+      factory.removeParameter(PID_A, "color", PARAM_TYPE_RENDER);
+      assertNull(factory.getPublicParameterMap(PID_A).get("color"));
+   }
+
+   public void testURLWritesInvalidate() {
+      PortletParameterFactory factory = factory();
+      factory.getParameterMap(PID_A);
+      url.setParameter(new PortalURLParameter(PID_A, "p", new String[] {"3"}));
+      assertValues(factory.getParameterMap(PID_A), "p", "3");
+      url.removeParameter(url.getParameter(PID_A, "p", PARAM_TYPE_RENDER));
+      assertNull(factory.getParameterMap(PID_A).get("p"));
+   }
+
+   public void testMapperWritesInvalidate() {
+      PortletParameterFactory factory = factory();
+      assertNull(factory.getParameterMap(PID_B).get("colour"));
+      assertNull(factory.getPublicParameterMap(PID_B).get("colour"));
+
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      int index = mapper.getIndex(PID_B, "colour");
+      mapper.setValues(index, new String[] {"red"});
+      assertValues(factory.getParameterMap(PID_B), "colour", "red");
+      assertValues(factory.getPublicParameterMap(PID_B), "colour", "red");
+      mapper.setRemoved(index, true);
+      assertNull(factory.getParameterMap(PID_B).get("colour"));
+
+      // A replaced mapper with the same version is detected as well
+      PublicRenderParameterMapper other = mapper.clone();
+      other.setValues(index, new String[] {"blue"});
+      mapper.setValues(index, new String[] {"green"});
+      assertEquals(mapper.getVersion(), other.getVersion());
+      assertValues(factory.getParameterMap(PID_B), "colour", "green");
+      url.setPublicRenderParameterMapper(other);
+      assertValues(factory.getParameterMap(PID_B), "colour", "blue");
+   }
+
+   public void testOtherFactoryWritesInvalidate() {
+      PortletParameterFactory factory = factory();
+      PortletParameterFactory other = factory();
+      factory.getParameterMap(PID_A);
+      factory.getPublicParameterMap(PID_B);
+
+      other.setParameter(PID_A, "p", PARAM_TYPE_RENDER, new String[] {"4"});
+      other.setParameter(PID_A, "color", PARAM_TYPE_RENDER, new String[] {"red"});
+      assertValues(factory.getParameterMap(PID_A), "p", "4");
+      assertValues(factory.getPublicParameterMap(PID_B), "colour", "red");
+   }
+
+   public void testClonesAreIndependent() {
+      PortletParameterFactory factory = factory();
+      Map<String, String[]> params = factory.getParameterMap(PID_A);
+      RelativePortalURLImpl clone = (RelativePortalURLImpl) url.clone();
+      PublicRenderParameterMapper mapper = clone.getPublicRenderParameterMapper();
+      mapper.setValues(mapper.getIndex(PID_A, "color"), new String[] {"red"});
+      clone.setParameter(new PortalURLParameter(PID_A, "p", new String[] {"5"}));
+      assertSame(params, factory.getParameterMap(PID_A));
+      assertValues(clone.getPortletParameterFactory(reqctx).getParameterMap(PID_A), "p", "5");
+   }
+}
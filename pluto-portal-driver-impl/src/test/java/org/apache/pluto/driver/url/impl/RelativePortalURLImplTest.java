@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_PUBLIC;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_A;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_B;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_C;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.describe;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.getParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests that the copy-on-write state of the portal URL is isolated between a
+ * URL and its clones.
+ */
+public class RelativePortalURLImplTest extends MockObjectTestCase {
+
+   private PortalURLFixture fixture;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      fixture = new PortalURLFixture(this);
+   }
+
+   private RelativePortalURLImpl createURL() {
+      RelativePortalURLImpl url = fixture.parsePage(PortalURLParserImpl.getParser());
+      url.setPortletMode(PID_A, PortletMode.EDIT);
+      url.setWindowState(PID_B, WindowState.MAXIMIZED);
+      url.setParameter(new PortalURLParameter(PID_A, "p", new String[] {"1"}));
+      url.setParameter(new PortalURLParameter(PID_B, "q", new String[] {"2"}));
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      mapper.setValues(mapper.getIndex(PID_A, "color"), new String[] {"red"});
+      return url;
+   }
+
+   /**
+    * Modifies every part of the URL state.
+    */
+   private static void modify(RelativePortalURLImpl url, String value) {
+      url.setPortletMode(PID_A, new PortletMode(value));
+      url.setPortletMode(PID_C, PortletMode.HELP);
+      url.setWindowState(PID_B, new WindowState(value));
+      url.setParameter(new PortalURLParameter(PID_A, "p", new String[] {value}));
+      url.setParameter(new PortalURLParameter(PID_C, "r", new String[] {value}));
+      PortalURLParameter q = getParameter(url, PID_B, "q", PARAM_TYPE_RENDER);
+      if (q != null) {
+         url.removeParameter(q);
+      }
+      url.clearParameters(PID_A, PARAM_TYPE_PUBLIC);
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      mapper.setValues(mapper.getIndex(PID_C, "size"), new String[] {value});
+      url.setType(URLType.Render);
+      url.setTargetWindow(PID_C);
+   }
+
+   public void testChildWritesLeaveParentUntouched() {
+      RelativePortalURLImpl parent = createURL();
+      String before = describe(parent);
+      String pathBefore = parent.toURL(false);
+      RelativePortalURLImpl child = (RelativePortalURLImpl) parent.clone();
+      assertEquals(before, describe(child));
+
+      modify(child, "child");
+      assertEquals(before, describe(parent));
+      assertEquals(pathBefore, parent.toURL(false));
+      assertEquals("child", child.getPortletMode(PID_A).toString());
+      assertNull(getParameter(child, PID_B, "q", PARAM_TYPE_RENDER));
+   }
+
+   public void testParentWritesLeaveClonesUntouched() {
+      RelativePortalURLImpl parent = createURL();
+      RelativePortalURLImpl child1 = (RelativePortalURLImpl) parent.clone();
+      RelativePortalURLImpl child2 = (RelativePortalURLImpl) child1.clone();
+      String before = describe(child1);
+      String pathBefore = child1.toURL(false);
+
+      modify(parent, "parent");
+      assertEquals(before, describe(child1));
+      assertEquals(before, describe(child2));
+      assertEquals(pathBefore, child1.toURL(false));
+      assertEquals("parent", parent.getWindowState(PID_B).toString());
+
+      // A clone taken after the modification sees the new state
+      assertEquals(describe(parent), describe((RelativePortalURLImpl) parent.clone()));
+   }
+
+   public void testSiblingsAreIsolated() {
+      RelativePortalURLImpl parent = createURL();
+      String before = describe(parent);
+      RelativePortalURLImpl child1 = (RelativePortalURLImpl) parent.clone();
+      RelativePortalURLImpl child2 = (RelativePortalURLImpl) parent.clone();
+      modify(child1, "one");
+      String after1 = describe(child1);
+      modify(child2, "two");
+      assertEquals(after1, describe(child1));
+      assertEquals(before, describe(parent));
+      assertFalse(after1.equals(describe(child2)));
+   }
+
+   public void testPromotedParametersAreCopied() {
+      RelativePortalURLImpl parent = createURL();
+      PortalURLParameter param = new PortalURLParameter(PID_A, "scope", new String[] {"1"});
+      param.setPersistent(true);
+      parent.setParameter(param);
+      RelativePortalURLImpl child = (RelativePortalURLImpl) parent.clone();
+      child.setType(URLType.Resource);
+      assertEquals(PortalURLParameter.PARAM_TYPE_RESOURCE,
+            getParameter(child, PID_A, "scope", PortalURLParameter.PARAM_TYPE_RESOURCE).getType());
+      assertEquals(PARAM_TYPE_RENDER, param.getType());
+      assertSame(param, getParameter(parent, PID_A, "scope", PARAM_TYPE_RENDER));
+   }
+
+   /**
+    * Clones a URL while other threads clone and modify it.
+    */
+   public void testConcurrentClones() throws Exception {
+      final RelativePortalURLImpl parent = createURL();
+      final String before = describe(parent);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<String>> results = new ArrayList<Future<String>>();
+         for (int ii = 0; ii < 200; ii++) {
+            final String value = "v" + ii;
+            results.add(executor.submit(new Callable<String>() {
+               public String call() {
+                  RelativePortalURLImpl child = (RelativePortalURLImpl) parent.clone();
+                  modify(child, value);
+                  RelativePortalURLImpl grandchild = (RelativePortalURLImpl) child.clone();
+                  String state = describe(child);
+                  modify(grandchild, value + "x");
+                  return state.equals(describe(child)) ? value : "changed: " + value;
+               }
+            }));
+         }
+         for (int ii = 0; ii < results.size(); ii++) {
+            assertEquals("v" + ii, results.get(ii).get());
+         }
+      } finally {
+         executor.shutdown();
+      }
+      assertEquals(before, describe(parent));
+   }
+}
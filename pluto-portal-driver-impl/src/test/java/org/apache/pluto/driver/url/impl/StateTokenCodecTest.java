@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trip and robustness tests for the state token encoding.
+ */
+public class StateTokenCodecTest extends TestCase {
+
+   private static final String[] NAMES = {
+      "a", "b c", "d/e", "f:g", "h;i", "j,k", "@", "l%m", "n+o", "é中", "", "r&s=t"
+   };
+
+   public void testRoundTrip() {
+      StateTokenCodec.StateWriter out = new StateTokenCodec.StateWriter();
+      out.writeInt(0);
+      out.writeInt(127);
+      out.writeInt(128);
+      out.writeInt(Integer.MAX_VALUE);
+      out.writeBoolean(true);
+      out.writeBoolean(false);
+      out.writeString(null);
+      out.writeString("window1");
+      out.writeStrings(NAMES);
+      out.writeStrings(new String[] {null, "window1", ""});
+
+      StateTokenCodec.StateReader in = StateTokenCodec.decode(StateTokenCodec.encode(out));
+      assertEquals(0, in.readInt());
+      assertEquals(127, in.readInt());
+      assertEquals(128, in.readInt());
+      assertEquals(Integer.MAX_VALUE, in.readInt());
+      assertTrue(in.readBoolean());
+      assertFalse(in.readBoolean());
+      assertNull(in.readString());
+      assertEquals("window1", in.readString());
+      assertEqualArrays(NAMES, in.readStrings());
+      assertEqualArrays(new String[] {null, "window1", ""}, in.readStrings());
+      assertTrue(in.isComplete());
+   }
+
+   public void testTokenIsUrlSafe() {
+      Random random = new Random(42);
+      for (int ii = 0; ii < 100; ii++) {
+         StateTokenCodec.StateWriter out = new StateTokenCodec.StateWriter();
+         int count = random.nextInt(50);
+         for (int jj = 0; jj < count; jj++) {
+            out.writeInt(random.nextInt(Integer.MAX_VALUE));
+            out.writeString(NAMES[random.nextInt(NAMES.length)] + random.nextInt(10));
+         }
+         String token = StateTokenCodec.encode(out);
+         assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+      }
+   }
+
+   public void testRepeatedStringsAreDeflated() {
+      StateTokenCodec.StateWriter small = new StateTokenCodec.StateWriter();
+      StateTokenCodec.StateWriter large = new StateTokenCodec.StateWriter();
+      for (int ii = 0; ii < 100; ii++) {
+         // distinct strings with a common prefix end up in the dictionary, which compresses well
+         large.writeString("org.apache.pluto.portlet.TestPortlet!" + ii);
+      }
+      small.writeString("org.apache.pluto.portlet.TestPortlet!0");
+      String token = StateTokenCodec.encode(large);
+      assertTrue(token.length() < 100 * 40);
+
+      StateTokenCodec.StateReader in = StateTokenCodec.decode(token);
+      for (int ii = 0; ii < 100; ii++) {
+         assertEquals("org.apache.pluto.portlet.TestPortlet!" + ii, in.readString());
+      }
+      assertTrue(in.isComplete());
+      assertTrue(StateTokenCodec.decode(StateTokenCodec.encode(small)).readString().endsWith("!0"));
+   }
+
+   public void testMalformedTokens() {
+      StateTokenCodec.StateWriter out = new StateTokenCodec.StateWriter();
+      for (int ii = 0; ii < 40; ii++) {
+         out.writeString("window" + ii);
+         out.writeStrings(NAMES);
+      }
+      String token = StateTokenCodec.encode(out);
+
+      assertMalformed("");
+      assertMalformed("!!!");
+      assertMalformed("_w");
+      assertMalformed(token.substring(0, token.length() / 2));
+
+      // Random corruption must either be detected or decode to some state,
+      // but must never fail with anything other than an IllegalArgumentException
+      Random random = new Random(7);
+      String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+      for (int ii = 0; ii < 1000; ii++) {
+         char[] chars = token.toCharArray();
+         chars[random.nextInt(chars.length)] = alphabet.charAt(random.nextInt(alphabet.length()));
+         try {
+            StateTokenCodec.StateReader in = StateTokenCodec.decode(new String(chars));
+            while (!in.isComplete()) {
+               in.readString();
+            }
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      }
+   }
+
+   private static void assertMalformed(String token) {
+      try {
+         StateTokenCodec.StateReader in = StateTokenCodec.decode(token);
+         in.readString();
+         in.readStrings();
+         fail("Malformed token accepted: " + token);
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+   }
+
+   private static void assertEqualArrays(String[] expected, String[] actual) {
+      assertEquals(expected.length, actual.length);
+      for (int ii = 0; ii < expected.length; ii++) {
+         assertEquals(expected[ii], actual[ii]);
+      }
+   }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_ACTION;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.CSRF_NAME;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.CSRF_VALUE;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_A;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_B;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.PID_C;
+import static org.apache.pluto.driver.url.impl.PortalURLFixture.describe;
+
+import java.util.Arrays;
+
+import javax.portlet.PortletMode;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLParser;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Checks that a URL generated by the state token parser parses to the same
+ * state as the path segment URL generated for the same portal URL.
+ */
+public class StateTokenPortalURLParserImplTest extends MockObjectTestCase {
+
+   private PortalURLParser pathParser;
+   private PortalURLParser tokenParser;
+   private PortalURLFixture fixture;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      pathParser = PortalURLParserImpl.getParser();
+      tokenParser = StateTokenPortalURLParserImpl.getParser();
+      fixture = new PortalURLFixture(this);
+   }
+
+   /**
+    * Generates both URL forms for the portal URL, parses them, and checks that
+    * the parsed states are equal.
+    *
+    * @return  the URL parsed from the state token form
+    */
+   private RelativePortalURLImpl roundTrip(RelativePortalURLImpl url) {
+      String path = pathParser.toString(url);
+      String token = tokenParser.toString(url);
+      assertTrue(token, token.startsWith("/pluto/portal/Test%20Page/__st"));
+      assertFalse(token, token.contains("/__pd"));
+
+      RelativePortalURLImpl fromPath = fixture.parse(pathParser, path);
+      RelativePortalURLImpl fromToken = fixture.parse(tokenParser, token);
+      assertEquals(describe(fromPath), describe(fromToken));
+      return fromToken;
+   }
+
+   /**
+    * Sets up a URL with state for every window of the page.
+    */
+   private RelativePortalURLImpl createURL() {
+      RelativePortalURLImpl url = fixture.parsePage(pathParser);
+      url.setPortletMode(PID_A, PortletMode.EDIT);
+      url.setPortletMode(PID_C, new PortletMode("config"));
+      url.setWindowState(PID_B, WindowState.MAXIMIZED);
+      url.setWindowState(PID_C, WindowState.MINIMIZED);
+      url.setParameter(new PortalURLParameter(PID_A, "tab", new String[] {"details"}));
+      url.setParameter(new PortalURLParameter(PID_A, "ids", new String[] {"1", "2", null, ""}));
+      url.setParameter(new PortalURLParameter(PID_B, "q", new String[] {"a:b;c/d e,@"}));
+      url.setParameter(new PortalURLParameter(PID_B, "none", new String[0]));
+      url.setParameter(new PortalURLParameter(PID_C, "r", new String[] {"1"}, PARAM_TYPE_RESOURCE));
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      mapper.setValues(mapper.getIndex(PID_A, "color"), new String[] {"red", "blue"});
+      mapper.setValues(mapper.getIndex(PID_C, "size"), new String[] {"XL"});
+      return url;
+   }
+
+   public void testPageWithoutState() {
+      RelativePortalURLImpl url = roundTrip(fixture.parsePage(pathParser));
+      assertEquals(URLType.Portal, url.getType());
+      assertTrue(url.getParameters().isEmpty());
+   }
+
+   public void testModesAndStates() {
+      RelativePortalURLImpl url = roundTrip(createURL());
+      assertEquals(PortletMode.EDIT, url.getPortletMode(PID_A));
+      assertEquals("config", url.getPortletMode(PID_C).toString());
+      assertEquals(WindowState.MAXIMIZED, url.getWindowState(PID_B));
+      assertEquals(WindowState.NORMAL, url.getWindowState(PID_A));
+   }
+
+   public void testParameterTypes() {
+      RelativePortalURLImpl url = createURL();
+      url.setType(URLType.Render);
+      url.setTargetWindow(PID_B);
+      url.setParameter(new PortalURLParameter(PID_B, "act", new String[] {"x"}, PARAM_TYPE_ACTION));
+      url.setFragmentIdentifier("top");
+      assertTrue(tokenParser.toString(url).endsWith("#top"));
+
+      url = roundTrip(url);
+      assertEquals(URLType.Render, url.getType());
+      assertEquals(PID_B, url.getTargetWindow());
+      assertEquals(Arrays.asList("1", "2", null, ""),
+            Arrays.asList(url.getParameter(PID_A, "ids", PARAM_TYPE_RENDER).getValues()));
+      assertEquals(0, url.getParameter(PID_B, "none", PARAM_TYPE_RENDER).getValues().length);
+      assertEquals("x", url.getParameter(PID_B, "act", PARAM_TYPE_ACTION).getValues()[0]);
+      assertEquals("1", url.getParameter(PID_C, "r", PARAM_TYPE_RESOURCE).getValues()[0]);
+   }
+
+   public void testPublicRenderParameters() {
+      RelativePortalURLImpl url = roundTrip(createURL());
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      assertEquals(Arrays.asList("red", "blue"), Arrays.asList(mapper.getValues(mapper.getIndex(PID_B, "colour"))));
+      assertEquals(Arrays.asList("XL"), Arrays.asList(mapper.getValues(mapper.getIndex(PID_C, "size"))));
+   }
+
+   public void testCacheability() {
+      String[] levels = {ResourceURL.PAGE, ResourceURL.PORTLET, ResourceURL.FULL};
+      for (String level : levels) {
+         RelativePortalURLImpl url = createURL();
+         url.setType(URLType.Resource);
+         url.setTargetWindow(PID_C);
+         url.setCacheability(level);
+         url.setResourceID("res/1");
+         url = roundTrip(url);
+         assertEquals(level, url.getCacheability());
+         assertEquals("res/1", url.getResourceID());
+         assertEquals(level, "1", url.getParameter(PID_C, "r", PARAM_TYPE_RESOURCE).getValues()[0]);
+
+         // PORTLET and FULL drop the state of the other windows, FULL also the target's state
+         boolean others = level.equals(ResourceURL.PAGE);
+         boolean target = !level.equals(ResourceURL.FULL);
+         assertEquals(level, others, url.getParameter(PID_A, "tab", PARAM_TYPE_RENDER) != null);
+         assertEquals(level, others, url.getWindowStates().containsKey(PID_B));
+         assertEquals(level, target, url.getPortletModes().containsKey(PID_C));
+         PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+         assertEquals(level, others, !mapper.getRemoved(mapper.getIndex(PID_A, "color")));
+         assertEquals(level, target, !mapper.getRemoved(mapper.getIndex(PID_C, "size")));
+      }
+   }
+
+   public void testCsrfToken() {
+      RelativePortalURLImpl url = createURL();
+      url.setType(URLType.Action);
+      url.setTargetWindow(PID_A);
+      url = roundTrip(url);
+      assertEquals(URLType.Action, url.getType());
+      assertEquals(CSRF_VALUE, url.getParameter(PID_A, CSRF_NAME, PARAM_TYPE_ACTION).getValues()[0]);
+   }
+
+   public void testAuthenticated() {
+      RelativePortalURLImpl url = createURL();
+      url.setAuthenticated(true);
+      assertTrue(roundTrip(url).getAuthenticated());
+   }
+
+   public void testMalformedTokenUsesPageState() {
+      String[] tokens = {"!!!!", "", "AAAA"};
+      for (String token : tokens) {
+         RelativePortalURLImpl url = fixture.parse(tokenParser, "/pluto/portal/Test%20Page/__st" + token);
+         assertEquals(token, describe(fixture.parsePage(pathParser)), describe(url));
+      }
+   }
+
+   /**
+    * Compares the lengths of the two URL forms for URLs generated from parsed
+    * URLs. The page prefix is the same for both forms.
+    */
+   public void testUrlSize() {
+      RelativePortalURLImpl page = fixture.parsePage(pathParser);
+      assertTrue(tokenParser.toString(page).length() < pathParser.toString(page).length());
+
+      RelativePortalURLImpl url = fixture.parse(pathParser, pathParser.toString(createURL()));
+      String path = pathParser.toString(url);
+      String token = tokenParser.toString(url);
+      assertTrue(token.length() + " >= " + path.length(), token.length() < path.length());
+
+      // A render URL for a single window only references that window
+      RelativePortalURLImpl single = fixture.parsePage(pathParser);
+      single.setType(URLType.Render);
+      single.setTargetWindow(PID_B);
+      single.setParameter(new PortalURLParameter(PID_B, "page", new String[] {"2"}));
+      url = fixture.parse(pathParser, pathParser.toString(single));
+      path = pathParser.toString(url);
+      token = tokenParser.toString(url);
+      assertTrue(token.length() + " >= " + path.length(), token.length() < path.length());
+   }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_ACTION;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.pluto.driver.url.PortalURLParameter;
+
+/**
+ * Tests the indexed parameter storage of a portlet window.
+ */
+public class WindowParametersTest extends TestCase {
+
+   private static final String WID = "window";
+
+   private static PortalURLParameter param(String name, String type, String... values) {
+      return new PortalURLParameter(WID, name, values, type);
+   }
+
+   private static List<String> names(Iterable<PortalURLParameter> params) {
+      List<String> names = new ArrayList<String>();
+      for (PortalURLParameter pup : params) {
+         names.add(pup.getName());
+      }
+      return names;
+   }
+
+   public void testPutAndGet() {
+      WindowParameters wp = new WindowParameters();
+      assertTrue(wp.isEmpty());
+      wp.put(param("a", PARAM_TYPE_RENDER, "1"));
+      wp.put(param("a", PARAM_TYPE_ACTION, "2"));
+      wp.put(param("b", PARAM_TYPE_RENDER, "3"));
+      assertEquals(3, wp.size());
+      assertEquals("1", wp.get("a", PARAM_TYPE_RENDER).getValues()[0]);
+      assertEquals("2", wp.get("a", PARAM_TYPE_ACTION).getValues()[0]);
+      assertNull(wp.get("a", PARAM_TYPE_RESOURCE));
+      assertNull(wp.get("c", PARAM_TYPE_RENDER));
+   }
+
+   public void testPutReplaces() {
+      WindowParameters wp = new WindowParameters();
+      wp.put(param("a", PARAM_TYPE_RENDER, "1"));
+      wp.put(param("a", PARAM_TYPE_RENDER, "2"));
+      assertEquals(1, wp.size());
+      assertEquals("2", wp.get("a", PARAM_TYPE_RENDER).getValues()[0]);
+   }
+
+   public void testParametersByType() {
+      WindowParameters wp = new WindowParameters();
+      wp.put(param("b", PARAM_TYPE_RENDER, "1"));
+      wp.put(param("x", PARAM_TYPE_ACTION, "2"));
+      wp.put(param("a", PARAM_TYPE_RENDER, "3"));
+      assertEquals(Arrays.asList("b", "a"), names(wp.getParameters(PARAM_TYPE_RENDER)));
+      assertEquals(Arrays.asList("x"), names(wp.getParameters(PARAM_TYPE_ACTION)));
+      assertTrue(wp.getParameters(PARAM_TYPE_RESOURCE).isEmpty());
+      try {
+         wp.getParameters(PARAM_TYPE_RENDER).clear();
+         fail("parameters by type are writable");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   public void testRemoveAndContains() {
+      WindowParameters wp = new WindowParameters();
+      wp.put(param("a", PARAM_TYPE_RENDER, "1"));
+      wp.put(param("a", PARAM_TYPE_ACTION, "2"));
+
+      // Parameters are identified by type and name, not by values
+      assertTrue(wp.contains(param("a", PARAM_TYPE_RENDER)));
+      assertFalse(wp.contains(param("a", PARAM_TYPE_RESOURCE)));
+      assertFalse(wp.contains("a"));
+      assertFalse(wp.remove(param("a", PARAM_TYPE_RESOURCE)));
+      assertTrue(wp.remove(param("a", PARAM_TYPE_RENDER, "other")));
+      assertFalse(wp.remove(param("a", PARAM_TYPE_RENDER)));
+      assertEquals(1, wp.size());
+      assertNull(wp.get("a", PARAM_TYPE_RENDER));
+      assertEquals(Arrays.asList("a"), names(wp));
+   }
+
+   public void testIteration() {
+      WindowParameters wp = new WindowParameters();
+      assertFalse(wp.iterator().hasNext());
+      wp.put(param("a", PARAM_TYPE_RENDER));
+      wp.put(param("b", PARAM_TYPE_ACTION));
+      wp.put(param("c", PARAM_TYPE_RESOURCE));
+      wp.remove(param("b", PARAM_TYPE_ACTION));
+      List<String> names = names(wp);
+      assertEquals(2, names.size());
+      assertTrue(names.containsAll(Arrays.asList("a", "c")));
+      try {
+         wp.iterator().remove();
+         fail("iterator is writable");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   public void testCopyIsIndependent() {
+      WindowParameters wp = new WindowParameters();
+      PortalURLParameter a = param("a", PARAM_TYPE_RENDER, "1");
+      wp.put(a);
+      WindowParameters copy = new WindowParameters(wp);
+      assertSame(a, copy.get("a", PARAM_TYPE_RENDER));
+
+      copy.put(param("b", PARAM_TYPE_RENDER, "2"));
+      copy.remove(a);
+      assertEquals(1, wp.size());
+      assertSame(a, wp.get("a", PARAM_TYPE_RENDER));
+      assertNull(wp.get("b", PARAM_TYPE_RENDER));
+
+      wp.put(param("c", PARAM_TYPE_ACTION, "3"));
+      assertEquals(Arrays.asList("b"), names(copy));
+   }
+}
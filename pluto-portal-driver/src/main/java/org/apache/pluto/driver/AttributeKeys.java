@@ -66,6 +66,12 @@ public class AttributeKeys {
      */
     public static final String DYNAMIC_PAGE_RESOURCES = "dynamicResources";
 
+    /**
+     * Attribute key used to bind the ID of the window rendered by a deferred
+     * render request to the servlet request.
+     */
+    public static final String DEFERRED_WINDOW = "org.apache.pluto.driver.DeferredWindow";
+
     // Constructor -------------------------------------------------------------
 
     /**
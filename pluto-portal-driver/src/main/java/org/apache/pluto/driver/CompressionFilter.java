@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import org.apache.pluto.driver.core.CompressingResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Filter compressing portal responses with gzip or deflate, depending on the
+ * encodings accepted by the browser.
+ * <p>
+ * If the browser accepts gzip and a precompressed variant of a requested static
+ * resource exists, for instance <code>/javascript/portlet.js.gz</code> for
+ * <code>/javascript/portlet.js</code>, the request is forwarded to the variant.
+ * Only requests for static resources with one of the precompressed extensions
+ * are looked up, that is requests without extra path information, so portal
+ * URLs never cause a lookup.
+ * Other responses are compressed on the fly if their content type is
+ * compressible and they are not shorter than the minimum size.
+ * <p>
+ * Portal pages are not compressed by default. A page contains the CSRF token
+ * next to render parameters reflected from the request, and compressing it
+ * allows the token to be guessed from the size of the compressed responses
+ * (BREACH). Add <code>text/html</code> to the compressible types only if the
+ * pages of the portal do not contain secrets.
+ * <p>
+ * The filter supports the following init parameters:
+ * <ul>
+ * <li><code>compressionLevel</code>: the compression level from 1 (fastest) to 9 (smallest), default 6</li>
+ * <li><code>bufferSize</code>: the size of the compressor buffer in bytes, default 8192</li>
+ * <li><code>minSize</code>: the minimum response size in bytes to compress, default 1024</li>
+ * <li><code>compressibleTypes</code>: comma-separated content types, or prefixes ending with '/',
+ * default {@link #DEFAULT_COMPRESSIBLE_TYPES}</li>
+ * <li><code>precompressed</code>: whether precompressed variants are served, default true</li>
+ * <li><code>precompressedExtensions</code>: comma-separated extensions of the resources that may have
+ * precompressed variants, default <code>js,css</code></li>
+ * </ul>
+ */
+public class CompressionFilter implements Filter {
+
+    /**
+     * Internal Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionFilter.class);
+
+    /**
+     * The content types compressed by default. Pages are not included, see above.
+     */
+    public static final String DEFAULT_COMPRESSIBLE_TYPES = "text/css,text/plain,text/xml,text/javascript,"
+            + "application/javascript,application/x-javascript,application/json,application/xml,image/svg+xml";
+
+    /**
+     * The extensions of the resources that may have precompressed variants by default.
+     */
+    public static final String DEFAULT_PRECOMPRESSED_EXTENSIONS = "js,css";
+
+    /**
+     * The maximum number of remembered variant lookups.
+     */
+    static final int MAX_VARIANTS = 1024;
+
+    private ServletContext servletContext;
+
+    private int level = 6;
+    private int bufferSize = 8192;
+    private int minSize = 1024;
+    private List<String> compressibleTypes;
+    private boolean precompressed = true;
+    private Set<String> precompressedExtensions;
+
+    /**
+     * Whether a precompressed variant exists, by resource path, in access order.
+     */
+    private final Map<String, Boolean> variants = Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_VARIANTS;
+                }
+            });
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+        servletContext = filterConfig.getServletContext();
+        level = getIntParameter(filterConfig, "compressionLevel", level);
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            LOG.warn("Invalid compression level " + level + ", using the default level.");
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        bufferSize = getIntParameter(filterConfig, "bufferSize", bufferSize);
+        minSize = getIntParameter(filterConfig, "minSize", minSize);
+
+        String types = filterConfig.getInitParameter("compressibleTypes");
+        if (types == null || types.trim().length() == 0) {
+            types = DEFAULT_COMPRESSIBLE_TYPES;
+        }
+        compressibleTypes = new ArrayList<String>();
+        for (String type : Arrays.asList(types.split(","))) {
+            if (type.trim().length() > 0) {
+                compressibleTypes.add(type.trim().toLowerCase());
+            }
+        }
+
+        String pc = filterConfig.getInitParameter("precompressed");
+        if (pc != null && pc.length() > 0) {
+            precompressed = Boolean.parseBoolean(pc.trim());
+        }
+
+        String exts = filterConfig.getInitParameter("precompressedExtensions");
+        if (exts == null || exts.trim().length() == 0) {
+            exts = DEFAULT_PRECOMPRESSED_EXTENSIONS;
+        }
+        precompressedExtensions = new HashSet<String>();
+        for (String ext : exts.split(",")) {
+            if (ext.trim().length() > 0) {
+                precompressedExtensions.add(ext.trim().toLowerCase());
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compression level: " + level + ", buffer size: " + bufferSize + ", minimum size: "
+                    + minSize + ", compressible types: " + compressibleTypes + ", precompressed: " + precompressed
+                    + ", precompressed extensions: " + precompressedExtensions);
+        }
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+
+        String encoding = negotiate(req.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(req.getMethod()) || resp.containsHeader("Content-Encoding")) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if (CompressingResponse.GZIP.equals(encoding) && forwardToVariant(req, resp)) {
+            return;
+        }
+
+        final CompressingResponse wrapper = new CompressingResponse(resp, encoding, level, bufferSize, minSize,
+                compressibleTypes);
+        chain.doFilter(request, wrapper);
+
+        if (request.isAsyncStarted()) {
+            request.getAsyncContext().addListener(new AsyncListener() {
+                public void onComplete(AsyncEvent event) throws IOException {
+                    wrapper.finish();
+                }
+
+                public void onTimeout(AsyncEvent event) {
+                }
+
+                public void onError(AsyncEvent event) {
+                }
+
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        } else {
+            wrapper.finish();
+        }
+    }
+
+    public void destroy() {
+        variants.clear();
+    }
+
+    /**
+     * Selects the content encoding.
+     * @param acceptEncoding  the Accept-Encoding header of the request.
+     * @return {@link CompressingResponse#GZIP}, {@link CompressingResponse#DEFLATE}, or <code>null</code>.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1, deflate = -1, any = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            float q = 1;
+            for (int ii = 1; ii < parts.length; ii++) {
+                String param = parts[ii].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (CompressingResponse.GZIP.equals(name) || "x-gzip".equals(name)) {
+                gzip = q;
+            } else if (CompressingResponse.DEFLATE.equals(name)) {
+                deflate = q;
+            } else if ("*".equals(name)) {
+                any = q;
+            }
+        }
+
+        // codings that are not listed are accepted with the quality of '*'
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return CompressingResponse.GZIP;
+        }
+        return (deflate > 0) ? CompressingResponse.DEFLATE : null;
+    }
+
+    /**
+     * Forwards the request to the precompressed variant of the requested
+     * resource, if there is one.
+     * @return <code>true</code> if the request was forwarded.
+     */
+    private boolean forwardToVariant(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (!precompressed || !"GET".equals(request.getMethod())) {
+            return false;
+        }
+        // static resources are served by the default servlet without path info
+        if (request.getPathInfo() != null) {
+            return false;
+        }
+        String path = request.getServletPath();
+        if (!isPrecompressible(path, precompressedExtensions)) {
+            return false;
+        }
+
+        Boolean exists = variants.get(path);
+        if (exists == null) {
+            try {
+                exists = Boolean.valueOf(servletContext.getResource(path + ".gz") != null);
+            } catch (MalformedURLException e) {
+                exists = Boolean.FALSE;
+            }
+            variants.put(path, exists);
+        }
+        if (!exists.booleanValue()) {
+            return false;
+        }
+
+        final String contentType = servletContext.getMimeType(path);
+        if (!CompressingResponse.isCompressible(contentType, compressibleTypes)) {
+            return false;
+        }
+        RequestDispatcher dispatcher = servletContext.getRequestDispatcher(path + ".gz");
+        if (dispatcher == null) {
+            return false;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving precompressed variant of " + path);
+        }
+        response.setHeader("Content-Encoding", CompressingResponse.GZIP);
+        response.addHeader("Vary", "Accept-Encoding");
+        response.setContentType(contentType);
+        dispatcher.forward(request, new HttpServletResponseWrapper(response) {
+            @Override
+            public void setContentType(String type) {
+                super.setContentType(contentType);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the resource path has one of the given extensions.
+     */
+    static boolean isPrecompressible(String path, Set<String> extensions) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return false;
+        }
+        return extensions.contains(path.substring(dot + 1).toLowerCase());
+    }
+
+    private static int getIntParameter(FilterConfig filterConfig, String name, int defaultValue) {
+        String val = filterConfig.getInitParameter(name);
+        if (val != null && val.length() > 0) {
+            try {
+                return Integer.parseInt(val.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid value for init parameter " + name + ": " + val);
+            }
+        }
+        return defaultValue;
+    }
+}
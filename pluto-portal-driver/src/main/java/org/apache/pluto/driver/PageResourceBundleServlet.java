@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.driver.services.portal.PageResourceBundles;
+import org.apache.pluto.driver.services.portal.PageResourceBundles.Bundle;
+
+/**
+ * Serves the combined page resources created by the portal driver servlet when
+ * its <code>resourceBundlePath</code> init parameter is set. The servlet is
+ * mapped to that path. Since bundle names contain a hash of the content, bundles
+ * are served with headers allowing them to be cached without revalidation.
+ *
+ * @see PageResourceBundles
+ */
+public class PageResourceBundleServlet extends HttpServlet {
+
+   private static final long   serialVersionUID = 1L;
+
+   /** The time in seconds for which browsers may cache a bundle */
+   private static final int    MAX_AGE          = 365 * 24 * 60 * 60;
+
+   private PageResourceBundles bundles          = null;
+
+   public String getServletInfo() {
+      return "Pluto Page Resource Bundle Servlet";
+   }
+
+   public void init() {
+      bundles = PageResourceBundles.getInstance(getServletContext());
+   }
+
+   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+         IOException {
+      String name = request.getPathInfo();
+      if (name != null && name.startsWith("/")) {
+         name = name.substring(1);
+      }
+      Bundle bundle = (name == null) ? null : bundles.getBundle(name);
+      if (bundle == null) {
+         response.sendError(HttpServletResponse.SC_NOT_FOUND);
+         return;
+      }
+
+      response.setHeader("ETag", bundle.getETag());
+      response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE + ", immutable");
+
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null && (ifNoneMatch.contains(bundle.getETag()) || ifNoneMatch.trim().equals("*"))) {
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+
+      response.setContentType(bundle.getContentType());
+      response.setContentLength(bundle.getContent().length);
+      response.getOutputStream().write(bundle.getContent());
+   }
+}
@@ -17,17 +17,23 @@
 package org.apache.pluto.driver;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -37,15 +43,23 @@ import org.apache.pluto.container.HeaderData;
 import org.apache.pluto.container.PageResourceId;
 import org.apache.pluto.container.PortletContainer;
 import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.impl.MarkupCaptureResponse;
+import org.apache.pluto.container.impl.PortletMarkupCache;
 import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
 import org.apache.pluto.container.om.portlet.Dependency;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.core.PageOutputCache;
+import org.apache.pluto.driver.core.ParallelPortletRenderer;
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderJob;
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderTask;
 import org.apache.pluto.driver.core.PortalRequestContext;
 import org.apache.pluto.driver.core.PortletWindowImpl;
+import org.apache.pluto.driver.core.StreamingAggregator;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PageResourceBundles;
 import org.apache.pluto.driver.services.portal.PageResources;
-import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.PortalURL.URLType;
 import org.apache.pluto.driver.util.PageState;
@@ -72,12 +86,56 @@ public class PortalDriverServlet extends HttpServlet {
 
    public static final String  DEFAULT_PAGE_URI = "/WEB-INF/themes/pluto-default-theme.jsp";
 
+   /** The JSP that renders a single deferred portlet window */
+   public static final String  DEFAULT_DEFERRED_URI = "/WEB-INF/themes/portlet-skin.jsp";
+
+   /**
+    * The request header marking a render request for a deferred portlet window.
+    * A header is used rather than a query parameter, since query parameters of a
+    * render request become render parameters of the target window.
+    */
+   public static final String  DEFERRED_HEADER  = "X-Pluto-Deferred";
+
+   /** The request parameter marking a render request for the page state of the portlet hub */
+   public static final String  PAGE_STATE_PARAM = "pluto.pageState";
+
+   /**
+    * The request header with which the portlet hub sends the version of its page state.
+    * If the version is current, the response to an Ajax action contains only the
+    * portlets whose render state was changed by the action.
+    */
+   public static final String  PAGE_STATE_VERSION_HEADER = "X-Pluto-Page-State-Version";
+
    /** The portlet container to which we will forward all portlet requests. */
    protected PortletContainer  container        = null;
 
    /** Character encoding and content type of the response */
    private String              contentType      = "";
 
+   /** Renders the portlets of pages that have parallel rendering enabled */
+   private ParallelPortletRenderer renderer     = null;
+
+   /** Default time in milliseconds a portlet may take when rendered in parallel */
+   private long                renderTimeout    = 5000;
+
+   /** Caches pages rendered for anonymous requests, if enabled */
+   private PageOutputCache     pageCache        = null;
+
+   /** The JSP that renders a single deferred portlet window */
+   private String              deferredUri      = DEFAULT_DEFERRED_URI;
+
+   /** Combines the page resources into bundles, if enabled */
+   private PageResourceBundles bundles          = null;
+
+   /** Whether the page resources are announced in Link preload headers */
+   private boolean             preloadLinks     = false;
+
+   /** Whether the preload headers are sent as 103 Early Hints, cleared if not supported */
+   private volatile boolean    earlyHints       = false;
+
+   /** The sendEarlyHints() method of the servlet container response, resolved on first use */
+   private volatile Method     earlyHintsMethod = null;
+
    // HttpServlet Impl --------------------------------------------------------
 
    public String getServletInfo() {
@@ -97,6 +155,66 @@ public class PortalDriverServlet extends HttpServlet {
          contentType = "text/html; charset=" + charset;
       }
 
+      // Parallel rendering is used only for pages that enable it, and only if
+      // a render thread pool has been configured
+      int renderThreads = getIntParameter("renderThreads", 0);
+      int renderQueueSize = getIntParameter("renderQueueSize", 64);
+      renderTimeout = getIntParameter("renderTimeout", (int) renderTimeout);
+      if (renderThreads > 0) {
+         renderer = new ParallelPortletRenderer(renderThreads, renderQueueSize);
+      }
+
+      String uri = getServletConfig().getInitParameter("deferredUri");
+      if (uri != null && uri.length() > 0) {
+         deferredUri = uri;
+      }
+
+      // The page cache is disabled by default
+      int pageCacheEntries = getIntParameter("pageCacheEntries", 0);
+      if (pageCacheEntries > 0) {
+         pageCache = new PageOutputCache(pageCacheEntries);
+      }
+
+      // Page resources are bundled if the path of the bundle servlet is configured
+      String bundlePath = getServletConfig().getInitParameter("resourceBundlePath");
+      if (bundlePath != null && bundlePath.length() > 0) {
+         bundles = PageResourceBundles.getInstance(servletContext);
+         bundles.setPath(bundlePath);
+         bundles.setMinify(Boolean.parseBoolean(getServletConfig().getInitParameter("minifyResources")));
+         bundles.setCheckInterval(getIntParameter("resourceCheckInterval",
+               (int) PageResourceBundles.DEFAULT_CHECK_INTERVAL));
+      }
+
+      String preload = getServletConfig().getInitParameter("preloadLinks");
+      if (preload != null && preload.length() > 0) {
+         preloadLinks = Boolean.parseBoolean(preload.trim());
+      }
+      earlyHints = preloadLinks && Boolean.parseBoolean(getServletConfig().getInitParameter("earlyHints"));
+
+   }
+
+   @Override
+   public void destroy() {
+      if (renderer != null) {
+         renderer.shutdown();
+         renderer = null;
+      }
+      if (pageCache != null) {
+         pageCache.clear();
+         pageCache = null;
+      }
+   }
+
+   private int getIntParameter(String name, int defaultValue) {
+      String val = getServletConfig().getInitParameter(name);
+      if (val != null && val.length() > 0) {
+         try {
+            return Integer.parseInt(val.trim());
+         } catch (NumberFormatException e) {
+            LOG.warn("Invalid value for init parameter " + name + ": " + val);
+         }
+      }
+      return defaultValue;
    }
 
    /**
@@ -134,14 +252,26 @@ public class PortalDriverServlet extends HttpServlet {
 
       String targetWindow = portalURL.getTargetWindow();
 
+      // Cached portlet output contains portal URLs that encode the state of the whole
+      // page, so the page state is part of the cache key
+      if (portalURL.getType() == URLType.Render || portalURL.getType() == URLType.Portal
+            || portalURL.getType() == URLType.Resource) {
+         request.setAttribute(PortletMarkupCache.PAGE_STATE_ATTRIBUTE, portalURL.toURL(false));
+      }
+
       // Handle Action, Ajax Action, Partial Action, & Resource requests.
       // Render requests handled subsequently.
 
       if (targetWindow != null && portalURL.getType() != URLType.Render && portalURL.getType() != URLType.Portal) {
 
          String reqType = portalURL.getType().toString();
-         PortletWindowConfig windowConfig = PortletWindowConfig.fromId(targetWindow);
-         PortletWindowImpl portletWindow = new PortletWindowImpl(container, windowConfig, portalURL);
+         DriverConfiguration dc = (DriverConfiguration) servletContext.getAttribute(AttributeKeys.DRIVER_CONFIG);
+         PortletWindowImpl portletWindow = getPortletWindow(dc.getPagePlan(portalURL.getRenderPath()), portalURL, targetWindow);
+         if (portletWindow == null) {
+            String msg = "Target window is not on the page " + portalURL.getRenderPath() + ": " + targetWindow;
+            LOG.warn(msg);
+            throw new ServletException(msg);
+         }
 
          if (LOG.isDebugEnabled()) {
             LOG.debug("Processing " + reqType + " request for window: " + portletWindow.getId().getStringId());
@@ -149,19 +279,21 @@ public class PortalDriverServlet extends HttpServlet {
 
          try {
             PageState ps;
-            String jsondata;
             switch (portalURL.getType()) {
             case Action:
                container.doAction(portletWindow, request, response, true);
                break;
             case AjaxAction:
+               // Take a snapshot of the render states the client holds, so that only the changes are returned
+               Map<String, String> snapshot = null;
+               String version = request.getHeader(PAGE_STATE_VERSION_HEADER);
+               if (version != null) {
+                  snapshot = new PageState(request).getStateSnapshot(version);
+               }
                container.doAction(portletWindow, request, response, false);
                response.setContentType("application/json");
                ps = new PageState(request);
-               Writer writer = response.getWriter();
-               jsondata = ps.toJSONString();
-               LOG.debug("Ajax Action: returning new page state to client: " + jsondata);
-               writer.write(jsondata);
+               writePageState(ps, snapshot, response);
                break;
             case PartialAction:
                container.doAction(portletWindow, request, response, false);
@@ -171,11 +303,8 @@ public class PortalDriverServlet extends HttpServlet {
                String pid = portletWindow.getId().getStringId();
                renderDataMap.put(pid, partialActionResponse.getRenderData());
                ps = new PageState(request, renderDataMap);
-               jsondata = ps.toJSONString();
-               LOG.debug("Ajax Action: returning new page state to client: " + jsondata);
                response.setContentType("application/json");
-               Writer responseWriter = response.getWriter();
-               responseWriter.write(jsondata);
+               writePageState(ps, null, response);
 
                break;
             case Resource:
@@ -212,6 +341,36 @@ public class PortalDriverServlet extends HttpServlet {
             throw new ServletException(msg);
          }
 
+         // A deferred portlet window is rendered on its own once the client requests it
+         if (targetWindow != null && request.getHeader(DEFERRED_HEADER) != null) {
+            doDeferredRender(request, response, pageConfig, targetWindow);
+            return;
+         }
+
+         // The portlet hub requests the full page state if it cannot apply a delta
+         if (request.getParameter(PAGE_STATE_PARAM) != null) {
+            response.setContentType("application/json");
+            response.setHeader("Cache-Control", "no-cache");
+            writePageState(new PageState(request), null, response);
+            return;
+         }
+
+         // Serve anonymous requests for pages of cacheable portlets from the page cache
+         String pageKey = null;
+         long maxAge = 0;
+         MarkupCaptureResponse capture = null;
+         if (pageCache != null && PageOutputCache.isCacheableRequest(request, portalURL)) {
+            maxAge = getPageMaxAge(portalURL);
+            if (maxAge != 0) {
+               pageKey = PageOutputCache.createKey(portalURL, request.getLocale());
+               if (pageCache.serve(pageKey, response)) {
+                  return;
+               }
+               capture = new MarkupCaptureResponse(response);
+               response = capture;
+            }
+         }
+
          request.setAttribute(AttributeKeys.CURRENT_PAGE, pageConfig);
          String uri = (pageConfig.getUri() != null) ? pageConfig.getUri() : DEFAULT_PAGE_URI;
 
@@ -222,15 +381,36 @@ public class PortalDriverServlet extends HttpServlet {
          }
 
          response.setContentType("text/html;charset=UTF-8");
-         doHeaders(request, response, portalURL);
+         StreamingAggregator aggregator = null;
+         try {
+            doHeaders(request, response, portalURL);
 
-         if (LOG.isDebugEnabled()) {
-            LOG.debug("Dispatching to: " + uri);
-         }
+            if (LOG.isDebugEnabled()) {
+               LOG.debug("Dispatching to: " + uri);
+            }
+
+            // Start rendering the portlets in parallel if enabled for the page
+            doParallelRender(request, response, portalURL);
+
+            // Stream the page to the client as the portlets complete if enabled for the page
+            StreamingAggregator.Mode mode = StreamingAggregator.Mode.fromConfig(pageConfig.getStreaming());
+            if (mode != null) {
+               aggregator = new StreamingAggregator(request, mode);
+            }
 
-         // Dispatch to the JSP that aggregates the page.
-         RequestDispatcher dispatcher = request.getRequestDispatcher(uri);
-         dispatcher.forward(request, response);
+            // Dispatch to the JSP that aggregates the page.
+            RequestDispatcher dispatcher = request.getRequestDispatcher(uri);
+            dispatcher.forward(request, response);
+            if (capture != null) {
+               pageCache.put(pageKey, request, capture, maxAge);
+            }
+         } finally {
+            if (aggregator != null) {
+               aggregator.cancelDeferred();
+            }
+            // parallel tasks must not outlive the request
+            ParallelPortletRenderer.cancelAll(request);
+         }
 
          if (LOG.isDebugEnabled()) {
             LOG.debug("Render request processed.\n");
@@ -254,100 +434,279 @@ public class PortalDriverServlet extends HttpServlet {
       doGet(request, response);
    }
 
-   private void doHeaders(HttpServletRequest req, HttpServletResponse resp, PortalURL purl) throws ServletException,
-         IOException {
+   /**
+    * Creates the portlet window from the page plan.
+    * 
+    * @return the portlet window, or <code>null</code> if the window is not on the page
+    */
+   private PortletWindowImpl getPortletWindow(PagePlan plan, PortalURL purl, String pid) {
+      PagePlan.Window win = (plan == null) ? null : plan.getWindow(pid);
+      return (win == null) ? null : new PortletWindowImpl(container, win, purl);
+   }
 
-      ServletContext sc = req.getServletContext();
-      DriverConfiguration dc = (DriverConfiguration) sc.getAttribute(AttributeKeys.DRIVER_CONFIG);
-      StringBuilder markup = new StringBuilder(128);
-      List<PageResourceId> portletdeps = new ArrayList<PageResourceId>();
-      List<PageResourceId> dynamicdeps = new ArrayList<PageResourceId>();
-      Map<PageResourceId, String> dynamicResources = new HashMap<PageResourceId, String>();
+   /**
+    * Writes the page state for the portlet hub to the response. The JSON text is
+    * streamed to the response writer rather than built as a string.
+    * 
+    * @param snapshot  the render states held by the client, or <code>null</code> for the full page state
+    */
+   private void writePageState(PageState ps, Map<String, String> snapshot, HttpServletResponse response)
+         throws IOException {
+      if (LOG.isDebugEnabled()) {
+         StringWriter json = new StringWriter();
+         ps.writeJSON(json, snapshot);
+         LOG.debug("Ajax Action: returning new page state to client: " + json);
+      }
+      Writer writer = response.getWriter();
+      ps.writeJSON(writer, snapshot);
+   }
 
-      for (String pid : purl.getPortletIds()) {
+   /**
+    * Renders a single window of the page whose rendering was deferred. The window
+    * is rendered by the deferred window JSP, which contains the portlet decoration
+    * of the theme. Windows of portlets that execute a header request are not
+    * deferred, so no header request is needed for the window.
+    */
+   void doDeferredRender(HttpServletRequest request, HttpServletResponse response,
+         PageConfig pageConfig, String windowId) throws ServletException, IOException {
+      if (!pageConfig.getPortletIds().contains(windowId)) {
+         response.sendError(HttpServletResponse.SC_NOT_FOUND);
+         return;
+      }
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Processing deferred render request for window: " + windowId);
+      }
+      response.setContentType("text/html;charset=UTF-8");
+      response.setHeader("Vary", DEFERRED_HEADER);
+      response.setHeader("Cache-Control", "no-cache");
+      request.setAttribute(AttributeKeys.CURRENT_PAGE, pageConfig);
+      request.setAttribute(AttributeKeys.DEFERRED_WINDOW, windowId);
+      request.setAttribute("portlet", windowId);
+      request.getRequestDispatcher(deferredUri).forward(request, response);
+   }
 
-         HeaderData hd = null;
-         PortletWindowConfig wcfg = null;
-         PortletWindowImpl pwin = null;
+   /**
+    * Returns the time for which the page may be cached, which is the shortest
+    * expiration cache among the portlets on the page.
+    * 
+    * @return the time in milliseconds, -1 if the page does not expire, or 0 if
+    *         the page may not be cached.
+    */
+   private long getPageMaxAge(PortalURL purl) {
+      DriverConfiguration dc = (DriverConfiguration) servletContext.getAttribute(AttributeKeys.DRIVER_CONFIG);
+      PagePlan plan = dc.getPagePlan(purl.getRenderPath());
+      List<PortletDefinition> portlets = new ArrayList<PortletDefinition>();
+      for (String pid : purl.getPortletIds()) {
          try {
-            wcfg = PortletWindowConfig.fromId(pid);
-            pwin = new PortletWindowImpl(container, wcfg, purl);
+            PortletWindowImpl window = getPortletWindow(plan, purl, pid);
+            if (window == null) {
+               return 0;
+            }
+            portlets.add(window.getPortletDefinition());
          } catch (Throwable e) {
-            LOG.warn("Could not retrieve configuration for portlet ID: " + pid);
-            continue;
+            return 0;
          }
-         
+      }
+      return PageOutputCache.getMaxAge(portlets);
+   }
 
+   /**
+    * Submits the portlets on the page for parallel rendering if parallel rendering
+    * is enabled for the page. Only windows that the portlet tag would render are
+    * submitted. The portlet tag renders the other windows itself.
+    */
+   private void doParallelRender(HttpServletRequest req, HttpServletResponse resp, PortalURL purl) {
+
+      DriverConfiguration dc = (DriverConfiguration) servletContext.getAttribute(AttributeKeys.DRIVER_CONFIG);
+      PagePlan plan = dc.getPagePlan(purl.getRenderPath());
+      if (!isParallel(plan)) {
+         return;
+      }
+      long timeout = getRenderTimeout(plan);
+      shareTitles(req);
+
+      for (String pid : purl.getPortletIds()) {
+         PagePlan.Window win = plan.getWindow(pid);
+         if (win == null || !win.isParallel() || win.isDeferred()
+               || ParallelPortletRenderer.isOtherWindowMaximized(purl, pid)) {
+            continue;
+         }
          try {
+            PortletWindowImpl pwin = new PortletWindowImpl(container, win, purl);
+            if (dc.isPortletModeSupported(pid, pwin.getPortletMode().toString())) {
+               String renderHeaders = ParallelPortletRenderer.getRenderHeaders(purl, pid, pwin.getPortletDefinition());
+               renderer.submit(container, pwin, req, resp, renderHeaders, timeout);
+            }
+         } catch (Throwable e) {
+            LOG.warn("Could not submit window for parallel rendering, portlet ID: " + pid);
+         }
+      }
+   }
 
-            String appName = wcfg.getContextPath();
-            String portletName = PortletWindowConfig.parsePortletName(pid);
-            PortletDefinition pd = dc.getPortletRegistryService().getPortletApplication(appName)
-                  .getPortlet(portletName);
+   /**
+    * Returns <code>true</code> if the portlets on the page are to be processed in parallel.
+    */
+   private boolean isParallel(PagePlan plan) {
+      return renderer != null && plan != null && plan.getPageConfig().isParallel();
+   }
 
-            if (purl.isVersion3(pid)) {
-               hd = container.doHeader(pwin, req, resp);
+   /**
+    * Returns the time in milliseconds a portlet on the page may take when processed in parallel.
+    */
+   private long getRenderTimeout(PagePlan plan) {
+      long timeout = plan.getPageConfig().getRenderTimeout();
+      return (timeout > 0) ? timeout : renderTimeout;
+   }
 
-               // collect the page dependencies
-               for (Dependency dep : pd.getDependencies()) {
-                  portletdeps.add(new PageResourceId(dep.getName(), dep.getScope(), dep.getVersion()));
-               }
+   /**
+    * Makes the map holding the dynamic portlet titles safe for use by the
+    * windows processed in parallel.
+    */
+   @SuppressWarnings("unchecked")
+   private void shareTitles(HttpServletRequest req) {
+      Map<String, String> titles = (Map<String, String>) req.getAttribute(AttributeKeys.PORTLET_TITLE);
+      titles = (titles == null) ? new HashMap<String, String>() : new HashMap<String, String>(titles);
+      req.setAttribute(AttributeKeys.PORTLET_TITLE, Collections.synchronizedMap(titles));
+   }
 
-               // Process any dependencies that were dynamically added during the header request
-               Map<PageResourceId, String> resources = hd.getDynamicResources();
-               for (PageResourceId id : resources.keySet()) {
-                  dynamicdeps.add(id);
-                  if (resources.get(id) != null) {
-                     dynamicResources.put(id, resources.get(id));
-                  }
-               }
+   /**
+    * Executes the header request for the window. Version 3 portlets execute the
+    * header phase. Version 2 portlets that have set the
+    * <code>javax.portlet.renderHeaders</code> container runtime option execute the
+    * render headers part of the render phase.
+    * 
+    * @return the header data, or <code>null</code> if the portlet does not provide headers.
+    */
+   private HeaderData doHeader(PortletWindowImpl pwin, HttpServletRequest req, HttpServletResponse resp,
+         PortalURL purl) throws PortletException, PortletContainerException, IOException {
+      String pid = pwin.getId().getStringId();
+      HeaderData hd = null;
+      if (purl.isVersion3(pid)) {
+         hd = container.doHeader(pwin, req, resp);
+      } else if (purl.getVersion(pid).equalsIgnoreCase("2.0")) {
+         ContainerRuntimeOption crt = pwin.getPortletDefinition().getContainerRuntimeOption("javax.portlet.renderHeaders");
+         if (crt != null) {
+            List<String> headers = crt.getValues();
+            if (headers.size() == 1 && headers.get(0).equalsIgnoreCase("true")) {
+               hd = container.doRender(pwin, req, resp, PortletRequest.RENDER_HEADERS);
+            }
+         }
+      }
+      return hd;
+   }
 
-            } else if (purl.getVersion(pid).equalsIgnoreCase("2.0")) {
-               ContainerRuntimeOption crt = pd.getContainerRuntimeOption("javax.portlet.renderHeaders");
-               if (crt != null) {
-                  List<String> headers = crt.getValues();
-                  if (headers.size() == 1 && headers.get(0).equalsIgnoreCase("true")) {
-                     hd = container.doRender(pwin, req, resp, PortletRequest.RENDER_HEADERS);
-                  }
-               }
+   /**
+    * Submits the header requests of the windows that may be processed in parallel.
+    * The header data is collected in page order by {@link #doHeaders}.
+    */
+   private Map<String, RenderJob<HeaderData>> doParallelHeaders(final HttpServletRequest req,
+         final HttpServletResponse resp, final PortalURL purl, PagePlan plan, List<PortletWindowImpl> windows) {
+
+      Map<String, RenderJob<HeaderData>> jobs = new HashMap<String, RenderJob<HeaderData>>();
+      if (!isParallel(plan) || windows.size() < 2) {
+         return jobs;
+      }
+      long timeout = getRenderTimeout(plan);
+      shareTitles(req);
+
+      for (final PortletWindowImpl pwin : windows) {
+         String pid = pwin.getId().getStringId();
+         PagePlan.Window win = plan.getWindow(pid);
+         if (win == null || !win.isParallel()) {
+            continue;
+         }
+         RenderJob<HeaderData> job = renderer.execute(req, resp, new RenderTask<HeaderData>() {
+            public HeaderData call(HttpServletRequest headerRequest, HttpServletResponse headerResponse)
+                  throws Exception {
+               return doHeader(pwin, headerRequest, headerResponse, purl);
             }
+         }, timeout);
+         if (job != null) {
+            jobs.put(pid, job);
+         }
+      }
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Submitted " + jobs.size() + " of " + windows.size() + " header requests for parallel execution.");
+      }
+      return jobs;
+   }
 
-            if (hd != null) {
+   private void doHeaders(HttpServletRequest req, HttpServletResponse resp, PortalURL purl) throws ServletException,
+         IOException {
 
-               // handle markup for document head section
-               markup.append(hd.getHeadSectionMarkup()).append("\n");
+      ServletContext sc = req.getServletContext();
+      DriverConfiguration dc = (DriverConfiguration) sc.getAttribute(AttributeKeys.DRIVER_CONFIG);
+      HeaderResults results = new HeaderResults();
 
-               // add the cookies & http headers to the response
-               
-               List<Cookie> cookies = hd.getCookies();
-               for (Cookie c : cookies) {
-                  resp.addCookie(c);
-               }
+      PagePlan plan = dc.getPagePlan(purl.getRenderPath());
+      List<PortletWindowImpl> windows = new ArrayList<PortletWindowImpl>();
+      for (String pid : purl.getPortletIds()) {
+         try {
+            PortletWindowImpl window = getPortletWindow(plan, purl, pid);
+            if (window != null) {
+               windows.add(window);
+            } else {
+               LOG.warn("Portlet ID is not on the page: " + pid);
+            }
+         } catch (Throwable e) {
+            LOG.warn("Could not retrieve configuration for portlet ID: " + pid);
+         }
+      }
 
-               // Add the HTTP headers to the response
-               Map<String, List<String>> headers = hd.getHttpHeaders();
-               for (String name : headers.keySet()) {
-                  for (String val : headers.get(name)) {
-                     resp.addHeader(name, val);
-                  }
+      // Header requests of independent portlets may be executed in parallel. The
+      // results are merged in page order, so the output is the same in both cases.
+      Map<String, RenderJob<HeaderData>> jobs = doParallelHeaders(req, resp, purl, plan, windows);
+
+      try {
+         for (PortletWindowImpl pwin : windows) {
+
+            String pid = pwin.getId().getStringId();
+            HeaderData hd = null;
+            RenderJob<HeaderData> job = jobs.remove(pid);
+            if (job != null) {
+               try {
+                  hd = job.get();
+               } catch (TimeoutException e) {
+                  LOG.warn("Header request timed out for portlet ID: " + pid);
+                  PageOutputCache.setUncacheable(req);
+               } catch (PortletContainerException e) {
+                  throw e;
+               } catch (PortletException e) {
+                  throw e;
+               } catch (IOException e) {
+                  throw e;
+               } catch (RuntimeException e) {
+                  throw e;
+               } catch (Exception e) {
+                  throw new ServletException(e);
                }
+            } else {
+               hd = doHeader(pwin, req, resp, purl);
             }
 
-         } catch (PortletContainerException ex) {
-            LOG.error(ex.getMessage(), ex);
-            throw new ServletException(ex);
-         } catch (PortletException ex) {
-            LOG.error(ex.getMessage(), ex);
-            throw new ServletException(ex);
+            results.add(pwin.getPortletDefinition(), purl.isVersion3(pid), hd, resp);
+         }
+
+      } catch (PortletContainerException ex) {
+         LOG.error(ex.getMessage(), ex);
+         throw new ServletException(ex);
+      } catch (PortletException ex) {
+         LOG.error(ex.getMessage(), ex);
+         throw new ServletException(ex);
+      } finally {
+         for (RenderJob<HeaderData> job : jobs.values()) {
+            job.cancel();
          }
       }
 
       // Set the header section markup provided by the portlets as an attribute
       // The main rendering JSP uses this when rendering the head section.
-      req.setAttribute(AttributeKeys.HEAD_SECTION_MARKUP, markup.toString());
+      req.setAttribute(AttributeKeys.HEAD_SECTION_MARKUP, results.markup.toString());
 
       // Now generate the markup for the configured page resources
-      markup.setLength(0);
+      List<PageResourceId> portletdeps = results.portletdeps;
+      List<PageResourceId> dynamicdeps = results.dynamicdeps;
+      Map<PageResourceId, String> dynamicResources = results.dynamicResources;
       PageResources pageres = dc.getRenderConfigService().getPageResources();
       if (!dynamicResources.isEmpty()) {
 
@@ -391,9 +750,115 @@ public class PortalDriverServlet extends HttpServlet {
 
       // Set the markup resulting from the specified page resources as an attribute
       // The main rendering JSP uses this when rendering the head section.
-      markup.append(pageres.getMarkup(deps, req.getContextPath()));
-      req.setAttribute(AttributeKeys.DYNAMIC_PAGE_RESOURCES, markup.toString());
+      String markup = pageres.getMarkup(deps, req.getContextPath(), bundles);
+      req.setAttribute(AttributeKeys.DYNAMIC_PAGE_RESOURCES, markup);
+
+      // Announce the style sheets and scripts, so that the browser can fetch them 
+      // while the portlets are being rendered
+      if (preloadLinks) {
+         sendPreloadLinks(resp, pageres.getPreloadLinks(deps, req.getContextPath(), bundles));
+      }
 
       return;
    }
+
+   /**
+    * The results of the header phase of the portlets on a page. The results are
+    * added in page order, whether the header requests were executed in parallel
+    * or not, so that the merged output is the same in both cases.
+    */
+   static class HeaderResults {
+      final StringBuilder markup = new StringBuilder(128);
+      final List<PageResourceId> portletdeps = new ArrayList<PageResourceId>();
+      final List<PageResourceId> dynamicdeps = new ArrayList<PageResourceId>();
+      final Map<PageResourceId, String> dynamicResources = new HashMap<PageResourceId, String>();
+
+      /**
+       * Adds the results of a portlet window. The dependencies declared by a version 3
+       * portlet are added even if no header data is available, for example because
+       * the header request timed out, so that the page still loads the resources
+       * needed by the render markup.
+       *
+       * @param pd         the portlet definition
+       * @param version3   <code>true</code> if the portlet is a version 3 portlet
+       * @param hd         the header data, or <code>null</code> if not available
+       * @param resp       the response to which the cookies and HTTP headers are added
+       */
+      void add(PortletDefinition pd, boolean version3, HeaderData hd, HttpServletResponse resp) {
+         if (version3) {
+
+            // collect the page dependencies
+            for (Dependency dep : pd.getDependencies()) {
+               portletdeps.add(new PageResourceId(dep.getName(), dep.getScope(), dep.getVersion()));
+            }
+
+            // Process any dependencies that were dynamically added during the header request
+            if (hd != null) {
+               Map<PageResourceId, String> resources = hd.getDynamicResources();
+               for (PageResourceId id : resources.keySet()) {
+                  dynamicdeps.add(id);
+                  if (resources.get(id) != null) {
+                     dynamicResources.put(id, resources.get(id));
+                  }
+               }
+            }
+         }
+
+         if (hd != null) {
+
+            // handle markup for document head section
+            markup.append(hd.getHeadSectionMarkup()).append("\n");
+
+            // add the cookies & http headers to the response
+            
+            List<Cookie> cookies = hd.getCookies();
+            for (Cookie c : cookies) {
+               resp.addCookie(c);
+            }
+
+            // Add the HTTP headers to the response
+            Map<String, List<String>> headers = hd.getHttpHeaders();
+            for (String name : headers.keySet()) {
+               for (String val : headers.get(name)) {
+                  resp.addHeader(name, val);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Adds the Link preload headers to the response, if enabled. If early hints are enabled, the
+    * headers are also sent in a 103 response, provided the servlet container response
+    * has a <code>sendEarlyHints()</code> method. The method is looked up once and
+    * then reused for the responses of the same container.
+    */
+   void sendPreloadLinks(HttpServletResponse resp, List<String> links) {
+      if (!preloadLinks || links.isEmpty() || resp.isCommitted()) {
+         return;
+      }
+      for (String link : links) {
+         resp.addHeader("Link", link);
+      }
+
+      if (earlyHints) {
+         ServletResponse containerResponse = resp;
+         while (containerResponse instanceof ServletResponseWrapper) {
+            containerResponse = ((ServletResponseWrapper) containerResponse).getResponse();
+         }
+         try {
+            Method method = earlyHintsMethod;
+            if (method == null || !method.getDeclaringClass().isInstance(containerResponse)) {
+               method = containerResponse.getClass().getMethod("sendEarlyHints");
+               earlyHintsMethod = method;
+            }
+            method.invoke(containerResponse);
+         } catch (NoSuchMethodException e) {
+            LOG.info("Early hints are not supported by the servlet container.");
+            earlyHints = false;
+         } catch (Exception e) {
+            LOG.warn("Could not send early hints: " + e.getMessage());
+         }
+      }
+   }
 }
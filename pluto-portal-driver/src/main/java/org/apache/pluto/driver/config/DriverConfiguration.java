@@ -27,6 +27,7 @@ import org.apache.pluto.container.PortletContainerException;
 import org.apache.pluto.container.PortletPreferencesService;
 import org.apache.pluto.container.driver.PortletRegistryService;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterService;
 import org.apache.pluto.driver.services.portal.RenderConfigService;
 import org.apache.pluto.driver.url.PortalURLParser;
@@ -80,6 +81,16 @@ public interface DriverConfiguration {
     Collection<PageConfig> getPages();
 
     PageConfig getPageConfig(String pageId);
+
+    /**
+     * Returns the compiled execution plan for the page. The plan is shared
+     * by all requests to the page and is rebuilt when the page configuration
+     * or the portlet registry changes.
+     *
+     * @param pageId  the page ID, or <code>null</code> for the default page
+     * @return  the page plan, or <code>null</code> if the page does not exist
+     */
+    PagePlan getPagePlan(String pageId);
     
     boolean isPortletModeSupportedByPortal(String mode);
     
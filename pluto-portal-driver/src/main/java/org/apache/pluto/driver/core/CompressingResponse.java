@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that compresses the response body with gzip or deflate.
+ * <p>
+ * The output is buffered until the minimum size is reached, the response is
+ * flushed, or the response is complete. The response is then compressed if its
+ * content type is compressible, it does not already have a content encoding,
+ * and it is not shorter than the minimum size. Flushing a compressed response
+ * flushes the compressor, so that streamed pages reach the browser early.
+ * <p>
+ * A compressed response has no content length, and its entity tag is made weak
+ * so that it still matches conditional requests for the uncompressed entity.
+ * <p>
+ * A response that uses non-blocking I/O is passed through uncompressed, and the
+ * write listener and readiness are delegated to the wrapped output stream.
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private final String encoding;
+    private final int level;
+    private final int bufferSize;
+    private final int minSize;
+    private final Collection<String> compressibleTypes;
+
+    private final ByteArrayOutputStream pending;
+    private OutputStream target = null;
+    private ServletOutputStream out = null;
+    private Deflater deflater = null;
+    private boolean compressing = false;
+    private boolean finished = false;
+    private boolean nonBlocking = false;
+
+    private ServletOutputStream stream = null;
+    private PrintWriter writer = null;
+
+    private long contentLength = -1;
+    private String eTag = null;
+    private boolean encoded = false;
+    private int status = SC_OK;
+
+    /**
+     * Creates the wrapper.
+     * @param response  the wrapped response.
+     * @param encoding  the content encoding, {@link #GZIP} or {@link #DEFLATE}.
+     * @param level  the compression level, 1 to 9, or -1 for the default level.
+     * @param bufferSize  the size of the compressor buffer.
+     * @param minSize  the minimum number of bytes for which the response is compressed.
+     * @param compressibleTypes  the compressible content types or content type prefixes ending with '/'.
+     */
+    public CompressingResponse(HttpServletResponse response, String encoding, int level, int bufferSize,
+            int minSize, Collection<String> compressibleTypes) {
+        super(response);
+        this.encoding = encoding;
+        this.level = level;
+        this.bufferSize = bufferSize;
+        this.minSize = minSize;
+        this.compressibleTypes = compressibleTypes;
+        this.pending = new ByteArrayOutputStream(Math.max(minSize, 32));
+    }
+
+    /**
+     * Returns <code>true</code> if responses of the content type may be compressed.
+     * @param contentType  the content type, possibly with parameters.
+     * @param compressibleTypes  the compressible content types or content type prefixes ending with '/'.
+     */
+    public static boolean isCompressible(String contentType, Collection<String> compressibleTypes) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = ((semicolon < 0) ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+        for (String compressible : compressibleTypes) {
+            if (compressible.endsWith("/") ? type.startsWith(compressible) : type.equals(compressible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if the response body is compressed.
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Writes the buffered output and finishes the compressed stream. Must be
+     * called when the response is complete.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        decide(false);
+        if (compressing && !finished) {
+            finished = true;
+            ((DeflaterOutputStream) target).finish();
+            deflater.end();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (stream == null) {
+            stream = new CompressingStream();
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            stream = new CompressingStream();
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            decide(true);
+            stream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        resetState();
+        contentLength = -1;
+        eTag = null;
+        encoded = false;
+        status = SC_OK;
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        resetState();
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        if (target == null) {
+            contentLength = len;
+        } else if (!compressing) {
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!intercept(name, value)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!intercept(name, value)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, Integer.toString(value));
+    }
+
+    /**
+     * Holds back the headers that depend on whether the response is compressed.
+     * @return <code>true</code> if the header is not to be passed on.
+     */
+    private boolean intercept(String name, String value) {
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+            encoded = true;
+            return false;
+        }
+        if (target != null) {
+            return compressing && "Content-Length".equalsIgnoreCase(name);
+        }
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            try {
+                contentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            return true;
+        }
+        if ("ETag".equalsIgnoreCase(name)) {
+            eTag = value;
+            return true;
+        }
+        return false;
+    }
+
+    private void resetState() {
+        if (target == null) {
+            pending.reset();
+        }
+    }
+
+    /**
+     * Decides whether the response is compressed and sets the headers
+     * accordingly. Called at the latest when the response is complete.
+     * @param streaming  <code>true</code> if output is written or flushed before the response is complete.
+     */
+    private void decide(boolean streaming) throws IOException {
+        if (target != null) {
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        boolean compressible = !encoded && !response.isCommitted() && status != SC_NO_CONTENT && status != SC_NOT_MODIFIED
+                && status != SC_PARTIAL_CONTENT && isCompressible(getContentType(), compressibleTypes);
+        compressing = compressible && !nonBlocking && (contentLength < 0 || contentLength >= minSize)
+                && (streaming || pending.size() >= minSize);
+
+        if (compressible) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        if (compressing) {
+            response.setHeader("Content-Encoding", encoding);
+            if (eTag != null) {
+                response.setHeader("ETag", eTag.startsWith("W/") ? eTag : "W/" + eTag);
+            }
+            out = response.getOutputStream();
+            deflater = new Deflater(level, GZIP.equals(encoding));
+            if (GZIP.equals(encoding)) {
+                target = new GzipStream(out, deflater, bufferSize);
+            } else {
+                target = new DeflaterOutputStream(out, deflater, bufferSize, true);
+            }
+        } else {
+            if (eTag != null) {
+                response.setHeader("ETag", eTag);
+            }
+            if (contentLength >= 0) {
+                response.setContentLengthLong(contentLength);
+            }
+            if (pending.size() > 0 || stream != null) {
+                out = response.getOutputStream();
+                target = out;
+            } else {
+                target = NULL_STREAM;
+            }
+        }
+        pending.writeTo(target);
+        pending.reset();
+    }
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+            throw new IllegalStateException();
+        }
+    };
+
+    /**
+     * Gzip stream using the given deflater, so that the compression level can
+     * be set. The deflater must produce raw deflate data without zlib wrapper.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out, Deflater deflater, int size) throws IOException {
+            super(out, size, true);
+            def.end();
+            def = deflater;
+        }
+    }
+
+    /**
+     * Buffers the output until the compression decision is made.
+     */
+    private class CompressingStream extends ServletOutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (target == null) {
+                pending.write(b);
+                if (pending.size() >= minSize) {
+                    decide(true);
+                }
+            } else {
+                target.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (target == null) {
+                pending.write(b, off, len);
+                if (pending.size() >= minSize) {
+                    decide(true);
+                }
+            } else {
+                target.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target == null && pending.size() > 0) {
+                decide(true);
+            }
+            if (target != null && target != NULL_STREAM) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out == null || out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            if (compressing) {
+                throw new IllegalStateException("Non-blocking I/O is not supported after compressed output was written");
+            }
+            nonBlocking = true;
+            try {
+                decide(true);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            out.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+/**
+ * Request wrapper through which a task on the render thread pool accesses the
+ * portal request. Every call first checks the fence of the task, so that the
+ * task cannot reach the portal request once the fence has been closed.
+ *
+ * @see ParallelPortletRenderer#cancelAll
+ */
+class FencedRequestWrapper extends HttpServletRequestWrapper {
+
+    private final ParallelPortletRenderer.Fence fence;
+
+    FencedRequestWrapper(HttpServletRequest request, ParallelPortletRenderer.Fence fence) {
+        super(request);
+        this.fence = fence;
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        fence.check();
+        return super.getRequest();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        fence.check();
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        fence.check();
+        return super.getAttributeNames();
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        fence.check();
+        return super.getCharacterEncoding();
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+        fence.check();
+        super.setCharacterEncoding(env);
+    }
+
+    @Override
+    public int getContentLength() {
+        fence.check();
+        return super.getContentLength();
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        fence.check();
+        return super.getContentLengthLong();
+    }
+
+    @Override
+    public String getContentType() {
+        fence.check();
+        return super.getContentType();
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        fence.check();
+        return super.getInputStream();
+    }
+
+    @Override
+    public String getParameter(String name) {
+        fence.check();
+        return super.getParameter(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        fence.check();
+        return super.getParameterMap();
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        fence.check();
+        return super.getParameterNames();
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        fence.check();
+        return super.getParameterValues(name);
+    }
+
+    @Override
+    public String getProtocol() {
+        fence.check();
+        return super.getProtocol();
+    }
+
+    @Override
+    public String getScheme() {
+        fence.check();
+        return super.getScheme();
+    }
+
+    @Override
+    public String getServerName() {
+        fence.check();
+        return super.getServerName();
+    }
+
+    @Override
+    public int getServerPort() {
+        fence.check();
+        return super.getServerPort();
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        fence.check();
+        return super.getReader();
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        fence.check();
+        return super.getRemoteAddr();
+    }
+
+    @Override
+    public String getRemoteHost() {
+        fence.check();
+        return super.getRemoteHost();
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+        fence.check();
+        super.setAttribute(name, o);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        fence.check();
+        super.removeAttribute(name);
+    }
+
+    @Override
+    public Locale getLocale() {
+        fence.check();
+        return super.getLocale();
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        fence.check();
+        return super.getLocales();
+    }
+
+    @Override
+    public boolean isSecure() {
+        fence.check();
+        return super.isSecure();
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path) {
+        fence.check();
+        return super.getRequestDispatcher(path);
+    }
+
+    @Override
+    @Deprecated
+    public String getRealPath(String path) {
+        fence.check();
+        return super.getRealPath(path);
+    }
+
+    @Override
+    public int getRemotePort() {
+        fence.check();
+        return super.getRemotePort();
+    }
+
+    @Override
+    public String getLocalName() {
+        fence.check();
+        return super.getLocalName();
+    }
+
+    @Override
+    public String getLocalAddr() {
+        fence.check();
+        return super.getLocalAddr();
+    }
+
+    @Override
+    public int getLocalPort() {
+        fence.check();
+        return super.getLocalPort();
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        fence.check();
+        return super.getServletContext();
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException {
+        fence.check();
+        return super.startAsync();
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException {
+        fence.check();
+        return super.startAsync(servletRequest, servletResponse);
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        fence.check();
+        return super.isAsyncStarted();
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        fence.check();
+        return super.isAsyncSupported();
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        fence.check();
+        return super.getAsyncContext();
+    }
+
+    @Override
+    public DispatcherType getDispatcherType() {
+        fence.check();
+        return super.getDispatcherType();
+    }
+
+    @Override
+    public String getAuthType() {
+        fence.check();
+        return super.getAuthType();
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        fence.check();
+        return super.getCookies();
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        fence.check();
+        return super.getDateHeader(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        fence.check();
+        return super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        fence.check();
+        return super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        fence.check();
+        return super.getHeaderNames();
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        fence.check();
+        return super.getIntHeader(name);
+    }
+
+    @Override
+    public String getMethod() {
+        fence.check();
+        return super.getMethod();
+    }
+
+    @Override
+    public String getPathInfo() {
+        fence.check();
+        return super.getPathInfo();
+    }
+
+    @Override
+    public String getPathTranslated() {
+        fence.check();
+        return super.getPathTranslated();
+    }
+
+    @Override
+    public String getContextPath() {
+        fence.check();
+        return super.getContextPath();
+    }
+
+    @Override
+    public String getQueryString() {
+        fence.check();
+        return super.getQueryString();
+    }
+
+    @Override
+    public String getRemoteUser() {
+        fence.check();
+        return super.getRemoteUser();
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        fence.check();
+        return super.isUserInRole(role);
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        fence.check();
+        return super.getUserPrincipal();
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        fence.check();
+        return super.getRequestedSessionId();
+    }
+
+    @Override
+    public String getRequestURI() {
+        fence.check();
+        return super.getRequestURI();
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        fence.check();
+        return super.getRequestURL();
+    }
+
+    @Override
+    public String getServletPath() {
+        fence.check();
+        return super.getServletPath();
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        fence.check();
+        return super.getSession(create);
+    }
+
+    @Override
+    public HttpSession getSession() {
+        fence.check();
+        return super.getSession();
+    }
+
+    @Override
+    public String changeSessionId() {
+        fence.check();
+        return super.changeSessionId();
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        fence.check();
+        return super.isRequestedSessionIdValid();
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+        fence.check();
+        return super.isRequestedSessionIdFromCookie();
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+        fence.check();
+        return super.isRequestedSessionIdFromURL();
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl() {
+        fence.check();
+        return super.isRequestedSessionIdFromUrl();
+    }
+
+    @Override
+    public boolean authenticate(HttpServletResponse response) throws IOException, ServletException {
+        fence.check();
+        return super.authenticate(response);
+    }
+
+    @Override
+    public void login(String username, String password) throws ServletException {
+        fence.check();
+        super.login(username, password);
+    }
+
+    @Override
+    public void logout() throws ServletException {
+        fence.check();
+        super.logout();
+    }
+
+    @Override
+    public Collection<Part> getParts() throws IOException, ServletException {
+        fence.check();
+        return super.getParts();
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException {
+        fence.check();
+        return super.getPart(name);
+    }
+
+    @Override
+    public <T extends HttpUpgradeHandler> T upgrade(Class<T> httpUpgradeHandlerClass) throws IOException, ServletException {
+        fence.check();
+        return super.upgrade(httpUpgradeHandlerClass);
+    }
+}
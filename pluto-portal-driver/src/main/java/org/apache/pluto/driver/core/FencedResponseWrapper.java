@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper through which a task on the render thread pool accesses the
+ * portal response. Every call first checks the fence of the task, so that the
+ * task cannot reach the portal response once the fence has been closed.
+ *
+ * @see ParallelPortletRenderer#cancelAll
+ */
+class FencedResponseWrapper extends HttpServletResponseWrapper {
+
+    private final ParallelPortletRenderer.Fence fence;
+
+    FencedResponseWrapper(HttpServletResponse response, ParallelPortletRenderer.Fence fence) {
+        super(response);
+        this.fence = fence;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        fence.check();
+        return super.getResponse();
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) {
+        fence.check();
+        super.setCharacterEncoding(env);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        fence.check();
+        return super.getCharacterEncoding();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        fence.check();
+        return super.getOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        fence.check();
+        return super.getWriter();
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        fence.check();
+        super.setContentLength(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        fence.check();
+        super.setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentType(String type) {
+        fence.check();
+        super.setContentType(type);
+    }
+
+    @Override
+    public String getContentType() {
+        fence.check();
+        return super.getContentType();
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        fence.check();
+        super.setBufferSize(size);
+    }
+
+    @Override
+    public int getBufferSize() {
+        fence.check();
+        return super.getBufferSize();
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        fence.check();
+        super.flushBuffer();
+    }
+
+    @Override
+    public boolean isCommitted() {
+        fence.check();
+        return super.isCommitted();
+    }
+
+    @Override
+    public void reset() {
+        fence.check();
+        super.reset();
+    }
+
+    @Override
+    public void resetBuffer() {
+        fence.check();
+        super.resetBuffer();
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        fence.check();
+        super.setLocale(loc);
+    }
+
+    @Override
+    public Locale getLocale() {
+        fence.check();
+        return super.getLocale();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        fence.check();
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        fence.check();
+        return super.containsHeader(name);
+    }
+
+    @Override
+    public String encodeURL(String url) {
+        fence.check();
+        return super.encodeURL(url);
+    }
+
+    @Override
+    public String encodeRedirectURL(String url) {
+        fence.check();
+        return super.encodeRedirectURL(url);
+    }
+
+    @Override
+    @Deprecated
+    public String encodeUrl(String url) {
+        fence.check();
+        return super.encodeUrl(url);
+    }
+
+    @Override
+    @Deprecated
+    public String encodeRedirectUrl(String url) {
+        fence.check();
+        return super.encodeRedirectUrl(url);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        fence.check();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        fence.check();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        fence.check();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        fence.check();
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        fence.check();
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        fence.check();
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        fence.check();
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        fence.check();
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        fence.check();
+        super.addIntHeader(name, value);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        fence.check();
+        super.setStatus(sc);
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int sc, String sm) {
+        fence.check();
+        super.setStatus(sc, sm);
+    }
+
+    @Override
+    public int getStatus() {
+        fence.check();
+        return super.getStatus();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        fence.check();
+        return super.getHeader(name);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        fence.check();
+        return super.getHeaders(name);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        fence.check();
+        return super.getHeaderNames();
+    }
+}
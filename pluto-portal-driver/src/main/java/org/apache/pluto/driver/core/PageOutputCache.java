@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.MimeResponse;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.impl.MarkupCaptureResponse;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.url.PortalURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache for complete portal pages rendered for anonymous requests.
+ * <p>
+ * A page is cached only if every portlet on the page declares public cache
+ * scope and an expiration cache in its deployment descriptor. The page expires
+ * with the shortest expiration time among its portlets. Entries are keyed by the
+ * portal URL and the locale of the request.
+ * <p>
+ * Only GET render requests without query string, remote user or session are
+ * served from the cache, so that serving a cached page does not create a
+ * session. A page is not stored if a session was created while it was rendered,
+ * if it sets cookies, either as cookies or as Set-Cookie headers, or an error
+ * status, or if a portlet on the page could not be rendered. The number of pages
+ * is bounded; when the cache is full, the least recently used page is evicted.
+ */
+public class PageOutputCache {
+
+    /** Internal Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PageOutputCache.class);
+
+    /** The request attribute marking a page that must not be cached */
+    private static final String UNCACHEABLE_KEY = PageOutputCache.class.getName() + ".uncacheable";
+
+    /** The cached pages by key, in access order */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Creates the cache.
+     * @param maxEntries  the maximum number of pages.
+     */
+    public PageOutputCache(final int maxEntries) {
+        entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Returns <code>true</code> if the request may be served from the cache.
+     * @param request  the portal request.
+     * @param portalURL  the requested portal URL.
+     */
+    public static boolean isCacheableRequest(HttpServletRequest request, PortalURL portalURL) {
+        return "GET".equals(request.getMethod())
+                && (portalURL.getType() == PortalURL.URLType.Render || portalURL.getType() == PortalURL.URLType.Portal)
+                && request.getQueryString() == null
+                && request.getRemoteUser() == null
+                && request.getUserPrincipal() == null
+                && request.getSession(false) == null;
+    }
+
+    /**
+     * Returns the time for which a page may be cached.
+     * @param portlets  the definitions of the portlets on the page.
+     * @return the time in milliseconds, -1 if the page does not expire, or 0 if
+     *         the page may not be cached.
+     */
+    public static long getMaxAge(Collection<PortletDefinition> portlets) {
+        long maxAge = -1;
+        for (PortletDefinition pd : portlets) {
+            int seconds = pd.getExpirationCache();
+            if (seconds == 0 || !MimeResponse.PUBLIC_SCOPE.equals(pd.getCacheScope())) {
+                return 0;
+            }
+            if (seconds > 0 && (maxAge < 0 || seconds * 1000L < maxAge)) {
+                maxAge = seconds * 1000L;
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Creates the cache key for the page.
+     * @param portalURL  the requested portal URL.
+     * @param locale  the locale of the request.
+     */
+    public static String createKey(PortalURL portalURL, Locale locale) {
+        return portalURL.toURL(false) + '|' + locale;
+    }
+
+    /**
+     * Marks the page of the request as not cacheable, for instance because a
+     * portlet could not be rendered.
+     * @param request  the portal request.
+     */
+    public static void setUncacheable(ServletRequest request) {
+        request.setAttribute(UNCACHEABLE_KEY, Boolean.TRUE);
+    }
+
+    /**
+     * Writes the cached page to the response.
+     * @param key  the cache key.
+     * @param response  the servlet response.
+     * @return <code>true</code> if the page was served from the cache.
+     */
+    public boolean serve(String key, HttpServletResponse response) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= entry.expires) {
+            entries.remove(key);
+            return false;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving cached page: " + key);
+        }
+        if (entry.contentType != null) {
+            response.setContentType(entry.contentType);
+        }
+        for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        response.getWriter().write(entry.markup);
+        return true;
+    }
+
+    /**
+     * Stores the page captured by the response if it may be cached.
+     * @param key  the cache key.
+     * @param request  the portal request.
+     * @param capture  the response that captured the page.
+     * @param maxAge  the time in milliseconds for which the page may be cached, -1 if it does not expire.
+     */
+    public void put(String key, HttpServletRequest request, MarkupCaptureResponse capture, long maxAge) {
+        if (maxAge == 0 || !capture.isCaptured() || request.getAttribute(UNCACHEABLE_KEY) != null
+                || request.getSession(false) != null) {
+            return;
+        }
+        long expires = (maxAge < 0) ? Long.MAX_VALUE : System.currentTimeMillis() + maxAge;
+        entries.put(key, new Entry(capture.getMarkup(), capture.getContentType(), capture.getHeaders(), expires));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Cached page: " + key + ", max age: " + maxAge + " ms");
+        }
+    }
+
+    /**
+     * @return the number of cached pages.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all pages.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * A cached page.
+     */
+    private static class Entry {
+        private final String markup;
+        private final String contentType;
+        private final Map<String, List<String>> headers;
+        private final long expires;
+
+        private Entry(String markup, String contentType, Map<String, List<String>> headers, long expires) {
+            this.markup = markup;
+            this.contentType = contentType;
+            this.headers = new LinkedHashMap<String, List<String>>(headers);
+            this.expires = expires;
+        }
+    }
+}
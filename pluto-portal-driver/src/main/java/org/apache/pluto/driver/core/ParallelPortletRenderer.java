@@ -0,0 +1,533 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.PortletRequest;
+import javax.portlet.WindowState;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.url.PortalURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders the portlets on a page in parallel.
+ * <p>
+ * Before the page is aggregated, the portal driver servlet submits the windows of
+ * a page that has parallel rendering enabled to a bounded thread pool. Each window
+ * renders into its own {@link PortalServletResponse} buffer through a request wrapper
+ * that keeps the request attributes set while rendering separate from those of the
+ * other windows. The portlet tag then waits for the result of its window, at most
+ * until the window deadline, and writes the buffered markup in layout order. A
+ * window that does not complete in time is cancelled and the portlet tag displays
+ * the fallback message instead.
+ * <p>
+ * The header requests of such a page are executed on the same thread pool. Their
+ * results are merged by the portal driver servlet in page order.
+ * <p>
+ * Parallel rendering requires that the portlets can safely share the portal request
+ * with each other. It is enabled per page and can be disabled for individual
+ * portlets in the portal driver configuration. The renderer itself is only
+ * created if the <code>renderThreads</code> init parameter of the portal driver
+ * servlet is set.
+ * <p>
+ * The tasks access the portal request and response only through a fence. When the
+ * portal request completes, {@link #cancelAll} cancels the tasks that are still
+ * running and waits a bounded time for them to finish. The fence is then closed, so
+ * that any further access by a task throws an <code>IllegalStateException</code>
+ * instead of reaching request and response objects that the servlet container may
+ * already have recycled. A task that overruns the wait is abandoned only after it
+ * has been isolated in this way.
+ */
+public class ParallelPortletRenderer {
+
+    /** Internal Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelPortletRenderer.class);
+
+    /** The request attribute holding the render jobs by window ID */
+    private static final String JOBS_KEY = ParallelPortletRenderer.class.getName() + ".jobs";
+
+    /** The request attribute holding all jobs started for the request */
+    private static final String ALL_JOBS_KEY = ParallelPortletRenderer.class.getName() + ".allJobs";
+
+    /** The maximum time in milliseconds to wait for cancelled tasks when the request completes */
+    static final long MAX_CANCEL_WAIT = 2000;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates the renderer.
+     * @param threads  the maximum number of portlets rendered at the same time.
+     * @param queueSize  the maximum number of portlets waiting to be rendered. Portlets
+     *                   that cannot be queued are rendered by the portlet tag.
+     */
+    public ParallelPortletRenderer(int threads, int queueSize) {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PortletRender-" + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setContextClassLoader(loader);
+                return t;
+            }
+        };
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits the window for rendering.
+     * @param container  the portlet container.
+     * @param window  the portlet window.
+     * @param request  the portal request.
+     * @param response  the portal response.
+     * @param renderHeaders  the render headers option, may be <code>null</code>.
+     * @param timeout  the time in milliseconds the window may take to render.
+     * @return <code>true</code> if the window was submitted, <code>false</code>
+     *         if it could not be queued.
+     */
+    public boolean submit(final PortletContainer container, final PortletWindow window,
+            HttpServletRequest request, HttpServletResponse response,
+            final String renderHeaders, long timeout) {
+
+        String windowId = window.getId().getStringId();
+
+        RenderJob<PortalServletResponse> job = execute(request, response, new RenderTask<PortalServletResponse>() {
+            public PortalServletResponse call(HttpServletRequest renderRequest, HttpServletResponse taskResponse)
+                    throws Exception {
+                PortalServletResponse renderResponse = new PortalServletResponse(taskResponse);
+                container.doRender(window, renderRequest, renderResponse, renderHeaders);
+                return renderResponse;
+            }
+        }, timeout);
+        if (job == null) {
+            LOG.warn("Render queue full, window will be rendered serially: " + windowId);
+            return false;
+        }
+
+        getJobs(request, true).put(windowId, job);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Submitted window for parallel rendering: " + windowId + ", timeout: " + timeout);
+        }
+        return true;
+    }
+
+    /**
+     * Executes the task on the render thread pool. The task is passed a request
+     * wrapper that holds the request attributes set by the task, and the response.
+     * Both access the portal request and response through the fence of the job.
+     * @param request  the portal request.
+     * @param response  the portal response.
+     * @param task  the task.
+     * @param timeout  the time in milliseconds the task may take.
+     * @return the job for the task, or <code>null</code> if the task could not be queued.
+     */
+    public <T> RenderJob<T> execute(HttpServletRequest request, HttpServletResponse response,
+            final RenderTask<T> task, long timeout) {
+        final Fence fence = new Fence();
+        final HttpServletRequest taskRequest = new RenderRequestWrapper(request, fence);
+        final HttpServletResponse taskResponse = new FencedResponseWrapper(response, fence);
+        RenderFuture<T> future = new RenderFuture<T>(new Callable<T>() {
+            public T call() throws Exception {
+                fence.started = true;
+                try {
+                    fence.check();
+                    return task.call(taskRequest, taskResponse);
+                } finally {
+                    fence.finished.countDown();
+                }
+            }
+        });
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        RenderJob<T> job = new RenderJob<T>(future, fence, timeout);
+        getAllJobs(request, true).add(job);
+        return job;
+    }
+
+    /**
+     * Returns the render job for the window.
+     * @param request  the portal request.
+     * @param windowId  the window ID.
+     * @return the render job, or <code>null</code> if the window was not submitted.
+     */
+    public static RenderJob<PortalServletResponse> getRenderJob(ServletRequest request, String windowId) {
+        Map<String, RenderJob<PortalServletResponse>> jobs = getJobs(request, false);
+        return (jobs == null) ? null : jobs.remove(windowId);
+    }
+
+    /**
+     * Makes the render job for the window available to the portlet tag again.
+     * Used when the output of a window is deferred.
+     * @param request  the portal request.
+     * @param windowId  the window ID.
+     * @param job  the render job.
+     */
+    public static void putRenderJob(ServletRequest request, String windowId, RenderJob<PortalServletResponse> job) {
+        getJobs(request, true).put(windowId, job);
+    }
+
+    /**
+     * Ends the jobs started for the request. Must be called before the request
+     * completes. The jobs that have not completed, whether unclaimed by a portlet tag
+     * or timed out, are cancelled. The method then waits until the running tasks have
+     * finished, at most {@link #MAX_CANCEL_WAIT} milliseconds in total, and closes
+     * the fences of all jobs, so that tasks still running can no longer access the
+     * request or response.
+     * @param request  the portal request.
+     */
+    public static void cancelAll(ServletRequest request) {
+        Map<String, RenderJob<PortalServletResponse>> jobs = getJobs(request, false);
+        if (jobs != null) {
+            if (LOG.isDebugEnabled() && !jobs.isEmpty()) {
+                LOG.debug("Cancelling unclaimed render jobs for windows: " + jobs.keySet());
+            }
+            jobs.clear();
+        }
+
+        List<RenderJob<?>> all = getAllJobs(request, false);
+        if (all == null) {
+            return;
+        }
+        request.removeAttribute(ALL_JOBS_KEY);
+        for (RenderJob<?> job : all) {
+            job.cancel();
+        }
+        long deadline = System.currentTimeMillis() + MAX_CANCEL_WAIT;
+        int abandoned = 0;
+        for (RenderJob<?> job : all) {
+            if (!job.awaitFinished(deadline - System.currentTimeMillis())) {
+                abandoned++;
+            }
+            job.fence.close();
+        }
+        if (abandoned > 0) {
+            LOG.warn(abandoned + " cancelled render task(s) did not finish in time and were isolated from the request.");
+        }
+    }
+
+    /**
+     * Shuts down the renderer. Running render jobs are interrupted.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns <code>true</code> if a window other than the given one is maximized.
+     * In this case, the window is not rendered.
+     * @param portalURL  the portal URL.
+     * @param windowId  the window ID.
+     * @return <code>true</code> if another window is maximized.
+     */
+    public static boolean isOtherWindowMaximized(PortalURL portalURL, String windowId) {
+        Map<String, WindowState> windowStates = portalURL.getWindowStates();
+        for (String id : windowStates.keySet()) {
+            if (WindowState.MAXIMIZED.equals(windowStates.get(id)) && !windowId.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the render headers option for the render request. Version 2 portlets
+     * that have set the <code>javax.portlet.renderHeaders</code> container runtime
+     * option are rendered in two parts.
+     * @param portalURL  the portal URL.
+     * @param windowId  the window ID.
+     * @param pd  the portlet definition.
+     * @return the render headers option, or <code>null</code>.
+     */
+    public static String getRenderHeaders(PortalURL portalURL, String windowId, PortletDefinition pd) {
+        if (portalURL.getVersion(windowId).equalsIgnoreCase("2.0")) {
+            ContainerRuntimeOption crt = pd.getContainerRuntimeOption("javax.portlet.renderHeaders");
+            if (crt != null) {
+                List<String> headers = crt.getValues();
+                if (headers.size() == 1 && headers.get(0).equalsIgnoreCase("true")) {
+                    return PortletRequest.RENDER_MARKUP;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<RenderJob<?>> getAllJobs(ServletRequest request, boolean create) {
+        List<RenderJob<?>> jobs = (List<RenderJob<?>>) request.getAttribute(ALL_JOBS_KEY);
+        if (jobs == null && create) {
+            jobs = new ArrayList<RenderJob<?>>();
+            request.setAttribute(ALL_JOBS_KEY, jobs);
+        }
+        return jobs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, RenderJob<PortalServletResponse>> getJobs(ServletRequest request, boolean create) {
+        Map<String, RenderJob<PortalServletResponse>> jobs = 
+                (Map<String, RenderJob<PortalServletResponse>>) request.getAttribute(JOBS_KEY);
+        if (jobs == null && create) {
+            jobs = new HashMap<String, RenderJob<PortalServletResponse>>();
+            request.setAttribute(JOBS_KEY, jobs);
+        }
+        return jobs;
+    }
+
+    /**
+     * A task executed on the render thread pool.
+     */
+    public interface RenderTask<T> {
+
+        /**
+         * Executes the task.
+         * @param request  the request wrapper to be used by the task.
+         * @param response  the response to be used by the task.
+         * @return the result.
+         * @throws Exception if the task fails.
+         */
+        T call(HttpServletRequest request, HttpServletResponse response) throws Exception;
+    }
+
+    /**
+     * The pending result of a task executed on the render thread pool.
+     */
+    public static class RenderJob<T> {
+        private final RenderFuture<T> future;
+        private final Fence fence;
+        private final long timeout;
+        private final long deadline;
+
+        RenderJob(RenderFuture<T> future, Fence fence, long timeout) {
+            this.future = future;
+            this.fence = fence;
+            this.timeout = timeout;
+            this.deadline = System.currentTimeMillis() + timeout;
+        }
+
+        /**
+         * @return the time in milliseconds the task was allowed to take.
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * @return the time in milliseconds since the epoch at which the task times out.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return <code>true</code> if the task has completed.
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Sets the listener that is called when the task completes. If the task
+         * has already completed, the listener is called immediately.
+         * @param listener  the listener.
+         */
+        public void setCompletionListener(Runnable listener) {
+            future.setListener(listener);
+        }
+
+        /**
+         * Waits for the task to complete, at most until the deadline.
+         * @return the result of the task.
+         * @throws TimeoutException if the task did not complete in time. The
+         *         task is cancelled.
+         * @throws Exception if the task failed.
+         */
+        public T get() throws Exception {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            try {
+                return future.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Cancels the task if it has not completed. A running task is interrupted,
+         * but may continue to run until {@link ParallelPortletRenderer#cancelAll}
+         * closes its fence.
+         */
+        public void cancel() {
+            future.cancel(true);
+        }
+
+        /**
+         * Waits until the task has finished running.
+         * @param millis  the maximum time to wait.
+         * @return <code>true</code> if the task is not running.
+         */
+        boolean awaitFinished(long millis) {
+            if (!fence.started) {
+                return true;
+            }
+            try {
+                return fence.finished.await(Math.max(0, millis), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return fence.finished.getCount() == 0;
+            }
+        }
+    }
+
+    /**
+     * Guards the access of a task to the portal request and response. Once the
+     * fence is closed, every call through the {@link FencedRequestWrapper} and
+     * {@link FencedResponseWrapper} of the task throws an
+     * <code>IllegalStateException</code>.
+     */
+    static class Fence {
+        private volatile boolean closed = false;
+        private volatile boolean started = false;
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        void close() {
+            closed = true;
+        }
+
+        void check() {
+            if (closed) {
+                throw new IllegalStateException("The portal request has completed.");
+            }
+        }
+    }
+
+    /**
+     * Future that notifies a listener when the task completes.
+     */
+    private static class RenderFuture<T> extends FutureTask<T> {
+        private Runnable listener;
+
+        RenderFuture(Callable<T> callable) {
+            super(callable);
+        }
+
+        synchronized void setListener(Runnable listener) {
+            if (isDone()) {
+                listener.run();
+            } else {
+                this.listener = listener;
+            }
+        }
+
+        @Override
+        protected void done() {
+            Runnable l;
+            synchronized (this) {
+                l = listener;
+            }
+            if (l != null) {
+                l.run();
+            }
+        }
+    }
+
+    /**
+     * Request wrapper for a window rendered in parallel. Attributes set or removed
+     * while rendering are held by the wrapper, so that the windows rendered at the
+     * same time do not see each other's attributes. Attributes not changed by the
+     * window are read from the portal request.
+     */
+    private static class RenderRequestWrapper extends FencedRequestWrapper {
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private final Set<String> removed = new HashSet<String>();
+
+        RenderRequestWrapper(HttpServletRequest request, Fence fence) {
+            super(request, fence);
+        }
+
+        @Override
+        public synchronized Object getAttribute(String name) {
+            if (removed.contains(name)) {
+                return null;
+            }
+            Object value = attributes.get(name);
+            return (value != null) ? value : super.getAttribute(name);
+        }
+
+        @Override
+        public synchronized Enumeration<String> getAttributeNames() {
+            Set<String> names = new HashSet<String>(attributes.keySet());
+            for (Enumeration<String> e = super.getAttributeNames(); e.hasMoreElements();) {
+                names.add(e.nextElement());
+            }
+            names.removeAll(removed);
+            return Collections.enumeration(names);
+        }
+
+        @Override
+        public synchronized void setAttribute(String name, Object value) {
+            if (value == null) {
+                removeAttribute(name);
+            } else {
+                attributes.put(name, value);
+                removed.remove(name);
+            }
+        }
+
+        @Override
+        public synchronized void removeAttribute(String name) {
+            attributes.remove(name);
+            removed.add(name);
+        }
+    }
+}
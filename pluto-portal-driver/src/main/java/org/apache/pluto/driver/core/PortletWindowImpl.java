@@ -27,6 +27,7 @@ import org.apache.pluto.container.PortletWindow;
 import org.apache.pluto.container.PortletWindowID;
 import org.apache.pluto.container.driver.PlutoServices;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 import org.apache.pluto.driver.url.PortalURL;
 
@@ -56,10 +57,28 @@ public class PortletWindowImpl implements PortletWindow {
     public PortletWindowImpl(PortletContainer container, PortletWindowConfig config, PortalURL portalURL) {
         this.config = config;
         this.portalURL = portalURL;
+        this.portlet = loadPortlet(config);
+    }
+
+    /**
+     * Constructs an instance from the window plan. The window configuration,
+     * ID, and portlet definition are taken from the plan. If the plan does not 
+     * contain the portlet definition, it is retrieved from the registry.
+     * @param plan  the window plan.
+     * @param portalURL  the portal URL.
+     */
+    public PortletWindowImpl(PortletContainer container, PagePlan.Window plan, PortalURL portalURL) {
+        this.config = plan.getConfig();
+        this.portalURL = portalURL;
+        this.objectIdImpl = (PortletWindowIDImpl) plan.getId();
+        this.portlet = (plan.getPortletDefinition() != null) ? plan.getPortletDefinition() : loadPortlet(config);
+    }
+
+    private static PortletDefinition loadPortlet(PortletWindowConfig config) {
         try
         {
             String applicationName = config.getContextPath();
-            this.portlet = PlutoServices.getServices().getPortletRegistryService().getPortlet(applicationName, config.getPortletName());
+            return PlutoServices.getServices().getPortletRegistryService().getPortlet(applicationName, config.getPortletName());
         }
         catch (PortletContainerException ex)
         {
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the state of the streaming page aggregation for a request.
+ * <p>
+ * In streaming mode, the portlet tag flushes the page output before each portlet,
+ * so that the head section and the page skeleton reach the client before the
+ * portlets have been rendered. In document order mode, the portlets are then
+ * written in layout order as they become available. This mode does not require
+ * scripting on the client.
+ * <p>
+ * In out-of-order mode, a portlet tag whose window is still being rendered in
+ * parallel writes an empty placeholder and defers the window. The streaming tag
+ * at the end of the page writes the deferred windows in the order in which they
+ * complete, each followed by a small inline script that moves the markup into
+ * its placeholder. Without scripting, the deferred windows remain at the end of
+ * the page.
+ */
+public class StreamingAggregator {
+
+    /** Internal Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingAggregator.class);
+
+    /** The request attribute holding the aggregator */
+    private static final String REQUEST_KEY = StreamingAggregator.class.getName();
+
+    /** Prefix of the placeholder element ID */
+    public static final String SLOT_PREFIX = "pluto-slot-";
+
+    /** Prefix of the ID of the element holding the deferred markup */
+    public static final String SOURCE_PREFIX = "pluto-src-";
+
+    /**
+     * The streaming modes.
+     */
+    public enum Mode {
+        /** Portlets are written in document order */
+        IN_ORDER,
+        /** Portlets are written as they complete and moved into place by script */
+        OUT_OF_ORDER;
+
+        /**
+         * Returns the mode for the configuration value.
+         * @param value  "in-order" or "out-of-order".
+         * @return the mode, or <code>null</code> if the value does not denote a mode.
+         */
+        public static Mode fromConfig(String value) {
+            if ("in-order".equalsIgnoreCase(value)) {
+                return IN_ORDER;
+            } else if ("out-of-order".equalsIgnoreCase(value)) {
+                return OUT_OF_ORDER;
+            }
+            return null;
+        }
+    }
+
+    private final Mode mode;
+
+    /** The deferred windows by window ID, with the placeholder number */
+    private final Map<String, Deferred> pending = new LinkedHashMap<String, Deferred>();
+
+    /** The IDs of the deferred windows that have completed */
+    private final BlockingQueue<String> completed = new LinkedBlockingQueue<String>();
+
+    /** The number of placeholders written */
+    private int slots = 0;
+
+    /** The placeholder number of the window being written */
+    private int current = 0;
+
+    /** Set once the deferred windows are being written */
+    private boolean writingDeferred = false;
+
+    /**
+     * Creates the aggregator and binds it to the request.
+     * @param request  the portal request.
+     * @param mode  the streaming mode.
+     */
+    public StreamingAggregator(ServletRequest request, Mode mode) {
+        this.mode = mode;
+        request.setAttribute(REQUEST_KEY, this);
+    }
+
+    /**
+     * Returns the aggregator for the request.
+     * @param request  the portal request.
+     * @return the aggregator, or <code>null</code> if the page is not streamed.
+     */
+    public static StreamingAggregator getAggregator(ServletRequest request) {
+        return (StreamingAggregator) request.getAttribute(REQUEST_KEY);
+    }
+
+    /**
+     * @return the streaming mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Defers the output of the window if the mode is out-of-order and the window
+     * is still being rendered. Windows are no longer deferred once the deferred
+     * windows are being written.
+     * @param windowId  the window ID.
+     * @param job  the render job for the window.
+     * @return the placeholder element ID, or <code>null</code> if the window is not deferred.
+     */
+    public String defer(final String windowId, RenderJob<PortalServletResponse> job) {
+        if (mode != Mode.OUT_OF_ORDER || writingDeferred || job.isDone()) {
+            return null;
+        }
+        Deferred deferred = new Deferred(++slots, job);
+        pending.put(windowId, deferred);
+        job.setCompletionListener(new Runnable() {
+            public void run() {
+                completed.add(windowId);
+            }
+        });
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Deferred output of window: " + windowId);
+        }
+        return SLOT_PREFIX + deferred.slot;
+    }
+
+    /**
+     * @return <code>true</code> if there are deferred windows that have not yet been written.
+     */
+    public boolean hasDeferred() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Waits for the next deferred window to complete or to reach its deadline.
+     * The render job of the window is made available to the portlet tag again.
+     * @param request  the portal request.
+     * @return the window ID, or <code>null</code> if there are no more deferred windows.
+     * @throws InterruptedException if the request thread is interrupted.
+     */
+    public String next(ServletRequest request) throws InterruptedException {
+        writingDeferred = true;
+        while (!pending.isEmpty()) {
+            String earliest = null;
+            long deadline = Long.MAX_VALUE;
+            for (Map.Entry<String, Deferred> e : pending.entrySet()) {
+                if (e.getValue().job.getDeadline() < deadline) {
+                    deadline = e.getValue().job.getDeadline();
+                    earliest = e.getKey();
+                }
+            }
+            long wait = Math.max(0, deadline - System.currentTimeMillis());
+            String windowId = completed.poll(wait, TimeUnit.MILLISECONDS);
+            if (windowId == null) {
+                windowId = earliest;
+            }
+            Deferred deferred = pending.remove(windowId);
+            if (deferred != null) {
+                current = deferred.slot;
+                ParallelPortletRenderer.putRenderJob(request, windowId, deferred.job);
+                return windowId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cancels the deferred windows that have not been written. This is the case if
+     * the page does not contain the streaming tag.
+     */
+    public void cancelDeferred() {
+        for (String windowId : pending.keySet()) {
+            LOG.warn("Deferred window was not written, the page may be missing the streaming tag: " + windowId);
+            pending.get(windowId).job.cancel();
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return the ID of the element holding the markup of the window returned
+     *         by the last call to {@link #next(ServletRequest)}.
+     */
+    public String getSourceId() {
+        return SOURCE_PREFIX + current;
+    }
+
+    /**
+     * @return the ID of the placeholder of the window returned by the last call
+     *         to {@link #next(ServletRequest)}.
+     */
+    public String getSlotId() {
+        return SLOT_PREFIX + current;
+    }
+
+    private static class Deferred {
+        private final int slot;
+        private final RenderJob<PortalServletResponse> job;
+
+        Deferred(int slot, RenderJob<PortalServletResponse> job) {
+            this.slot = slot;
+            this.job = job;
+        }
+    }
+}
@@ -18,7 +18,9 @@ package org.apache.pluto.driver.services.portal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.pluto.container.PageResourceId;
 import org.slf4j.Logger;
@@ -35,6 +37,11 @@ public class PageConfig {
    private Collection<String> portletIds;
    private int orderNumber;
    private List<PageResourceId> pageResources = new ArrayList<PageResourceId>();
+   private boolean parallel = false;
+   private long renderTimeout = 0;
+   private String streaming = null;
+   private Set<String> serialPortletIds = new HashSet<String>();
+   private Set<String> deferredPortletIds = new HashSet<String>();
 
    public PageConfig() {
       this.portletIds = new ArrayList<String>();
@@ -102,8 +109,108 @@ public class PageConfig {
       }
    }
 
+   /**
+    * Adds a portlet to the page.
+    * 
+    * @param contextPath   the portlet application context path
+    * @param portletName   the portlet name
+    * @param parallel      "false" if the portlet must not be rendered in parallel with
+    *                      the other portlets on the page. May be <code>null</code>.
+    */
+   public void addPortlet(String contextPath, String portletName, String parallel) {
+      addPortlet(contextPath, portletName, parallel, null);
+   }
+
+   /**
+    * Adds a portlet to the page.
+    * 
+    * @param contextPath   the portlet application context path
+    * @param portletName   the portlet name
+    * @param parallel      "false" if the portlet must not be rendered in parallel with
+    *                      the other portlets on the page. May be <code>null</code>.
+    * @param deferred      "true" if the portlet is to be rendered by the client once
+    *                      its placeholder becomes visible. Not applied to portlets that
+    *                      execute a header request. May be <code>null</code>.
+    */
+   public void addPortlet(String contextPath, String portletName, String parallel, String deferred) {
+      String pid = PortletWindowConfig.createPortletId(contextPath, portletName, createPlacementId());
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Add Portlet ID = " + pid + ", parallel = " + parallel + ", deferred = " + deferred);
+      }
+      synchronized(portletIds) {
+         portletIds.add(pid);
+      }
+      if ("false".equalsIgnoreCase(parallel)) {
+         serialPortletIds.add(pid);
+      }
+      if ("true".equalsIgnoreCase(deferred)) {
+         deferredPortletIds.add(pid);
+      }
+   }
+
    public void removePortlet(String portletId) {
       portletIds.remove(portletId);
+      serialPortletIds.remove(portletId);
+      deferredPortletIds.remove(portletId);
+   }
+
+   /**
+    * @return <code>true</code> if the portlets on the page are to be rendered in parallel
+    */
+   public boolean isParallel() {
+      return parallel;
+   }
+
+   public void setParallel(boolean parallel) {
+      this.parallel = parallel;
+   }
+
+   /**
+    * Returns <code>true</code> if the portlet may be rendered in parallel with the 
+    * other portlets on the page. This is the case if parallel rendering is enabled
+    * for the page and has not been disabled for the portlet.
+    * 
+    * @param portletId  the portlet ID
+    * @return <code>true</code> if the portlet may be rendered in parallel
+    */
+   public boolean isParallel(String portletId) {
+      return parallel && !serialPortletIds.contains(portletId);
+   }
+
+   /**
+    * Returns <code>true</code> if the portlet is rendered after the page has been
+    * loaded. The page contains a placeholder for the portlet, and the portlet hub
+    * fetches the portlet markup once the placeholder becomes visible.
+    * 
+    * @param portletId  the portlet ID
+    * @return <code>true</code> if the rendering of the portlet is deferred
+    */
+   public boolean isDeferred(String portletId) {
+      return deferredPortletIds.contains(portletId);
+   }
+
+   /**
+    * @return the time in milliseconds that a portlet rendered in parallel may take
+    *         before the fallback markup is displayed, or 0 if the default applies
+    */
+   public long getRenderTimeout() {
+      return renderTimeout;
+   }
+
+   public void setRenderTimeout(long renderTimeout) {
+      this.renderTimeout = renderTimeout;
+   }
+
+   /**
+    * @return the streaming aggregation mode for the page: "in-order", "out-of-order",
+    *         or <code>null</code> if the page is buffered before being sent
+    */
+   public String getStreaming() {
+      return streaming;
+   }
+
+   public void setStreaming(String streaming) {
+      this.streaming = streaming;
    }
 
    void setOrderNumber(int number) {
@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.core.PortletWindowIDImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compiled execution plan for a page.
+ * <p>
+ * The plan holds the facts about the portlet windows on a page that do not
+ * change from request to request: the parsed window configuration and ID, the
+ * portlet definition, the portlet application version, the supported portlet
+ * modes and window states, and whether the window may be rendered in parallel
+ * or is rendered by the client after the page has been loaded. Portlets that
+ * execute a header request are never deferred, as the client inserts only the
+ * render markup of a deferred window into the page, not its head section
+ * contributions.
+ * It is built from the page configuration and the portlet registry, and is
+ * immutable, so it can be shared by all requests to the page. A new plan is
+ * built when the page configuration or the portlet registry changes.
+ * <p>
+ * The plan also caches the parts of the portlet hub page state that are
+ * derived from these facts. They are computed by the page state when first
+ * needed, so a new plan gets a new page state version.
+ */
+public class PagePlan {
+   private static final Logger LOG = LoggerFactory.getLogger(PagePlan.class);
+   private static final boolean isDebug = LOG.isDebugEnabled();
+
+   /** The content type for which the supported window states are determined */
+   private static final String CONTENT_TYPE = "text/html";
+
+   private final PageConfig pageConfig;
+   private final List<String> portletIds;
+   private final Map<String, Window> windows;
+   private volatile String pageStateVersion;
+
+   /**
+    * Builds the plan for the page.
+    *
+    * @param pageConfig    the page configuration
+    * @param registry      the portlet registry
+    * @param modes         the supported portlet modes service
+    * @param states        the supported window states service
+    */
+   public PagePlan(PageConfig pageConfig, PortletRegistryService registry,
+         SupportedModesService modes, SupportedWindowStateService states) {
+      this.pageConfig = pageConfig;
+      ArrayList<String> pids = new ArrayList<String>(pageConfig.getPortletIds());
+      LinkedHashMap<String, Window> wins = new LinkedHashMap<String, Window>();
+      for (String pid : pids) {
+         wins.put(pid, new Window(pid, pageConfig.isParallel(pid), pageConfig.isDeferred(pid),
+               registry, modes, states));
+      }
+      portletIds = Collections.unmodifiableList(pids);
+      windows = Collections.unmodifiableMap(wins);
+      if (isDebug) {
+         LOG.debug("Built page plan for page " + pageConfig.getName() + " with " + pids.size() + " windows.");
+      }
+   }
+
+   /**
+    * @return  the page configuration the plan was built for
+    */
+   public PageConfig getPageConfig() {
+      return pageConfig;
+   }
+
+   /**
+    * @return  the portlet IDs on the page in page order
+    */
+   public List<String> getPortletIds() {
+      return portletIds;
+   }
+
+   /**
+    * @return  the window plans by portlet ID in page order
+    */
+   public Map<String, Window> getWindows() {
+      return windows;
+   }
+
+   /**
+    * Returns the plan for the given window.
+    *
+    * @param portletId  the portlet ID
+    * @return  the window plan, or <code>null</code> if the window is not on the page
+    */
+   public Window getWindow(String portletId) {
+      return windows.get(portletId);
+   }
+
+   /**
+    * @return  the cached page state version, or <code>null</code> if it has not been computed
+    */
+   public String getPageStateVersion() {
+      return pageStateVersion;
+   }
+
+   /**
+    * @param pageStateVersion  the page state version computed for the plan
+    */
+   public void setPageStateVersion(String pageStateVersion) {
+      this.pageStateVersion = pageStateVersion;
+   }
+
+   /**
+    * Returns <code>true</code> if the plan is still valid for the page
+    * configuration. This is the case if it is the configuration the plan was
+    * built for, and if that configuration still holds the same portlets.
+    *
+    * @param pc   the current page configuration
+    * @return     <code>true</code> if the plan is valid
+    */
+   public boolean isValidFor(PageConfig pc) {
+      return isUnchanged(pc, pageConfig, portletIds);
+   }
+
+   /**
+    * Returns <code>true</code> if data derived from a page configuration is still
+    * valid for the current page configuration. This is the case if the current
+    * configuration is the one the data was derived from, and if it still holds
+    * the same portlets in the same order. Used for the page plan and for the
+    * public render parameter mapper cached for the page.
+    *
+    * @param pc           the current page configuration
+    * @param builtFor     the page configuration the data was derived from
+    * @param portletIds   the portlet IDs the data was derived from, in page order
+    * @return     <code>true</code> if the data is valid
+    */
+   public static boolean isUnchanged(PageConfig pc, PageConfig builtFor, List<String> portletIds) {
+      Collection<String> pids = pc.getPortletIds();
+      if (pc != builtFor || pids.size() != portletIds.size()) {
+         return false;
+      }
+      Iterator<String> it = portletIds.iterator();
+      for (String pid : pids) {
+         if (!pid.equals(it.next())) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * The static facts about a portlet window on the page. Values that cannot
+    * be determined from the registry are <code>null</code>.
+    */
+   public static class Window {
+      private final PortletWindowConfig config;
+      private final PortletWindowID id;
+      private final PortletDefinition portletDefinition;
+      private final String version;
+      private final boolean version3;
+      private final Set<PortletMode> supportedModes;
+      private final Set<WindowState> supportedStates;
+      private final boolean parallel;
+      private final boolean deferred;
+      private volatile String pageStateMembers;
+
+      private Window(String pid, boolean parallel, boolean deferred, PortletRegistryService registry,
+            SupportedModesService modes, SupportedWindowStateService states) {
+         this.parallel = parallel;
+         config = PortletWindowConfig.fromId(pid);
+         id = PortletWindowIDImpl.createFromString(pid);
+
+         PortletDefinition pd = null;
+         String ver = null;
+         try {
+            PortletApplicationDefinition pad = registry.getPortletApplication(config.getContextPath());
+            ver = pad.getVersion();
+            pd = registry.getPortlet(config.getContextPath(), config.getPortletName());
+         } catch (Exception e) {
+            LOG.error("Portlet application definition could not be retrieved for " + config.getContextPath());
+         }
+         portletDefinition = pd;
+         version = ver;
+         version3 = "3.0".equals(ver);
+         if (deferred && hasHeaderRequest(pd, ver)) {
+            LOG.warn("Portlet " + pid + " executes a header request and is rendered with the page.");
+            deferred = false;
+         }
+         this.deferred = deferred;
+
+         Set<PortletMode> pms = null;
+         Set<WindowState> wss = null;
+         if (pd != null) {
+            try {
+               pms = Collections.unmodifiableSet(modes.getSupportedPortletModes(pid));
+               wss = Collections.unmodifiableSet(states.getSupportedWindowStates(pid, CONTENT_TYPE));
+            } catch (Exception e) {
+               LOG.warn("Supported modes or states could not be determined for " + pid);
+            }
+         }
+         supportedModes = pms;
+         supportedStates = wss;
+      }
+
+      /**
+       * Returns <code>true</code> if a header request is executed for the portlet.
+       * Version 3 portlets execute the header phase. Version 2 portlets execute the
+       * render headers part of the render phase if they set the
+       * <code>javax.portlet.renderHeaders</code> container runtime option.
+       */
+      private static boolean hasHeaderRequest(PortletDefinition pd, String version) {
+         if ("3.0".equals(version)) {
+            return true;
+         }
+         if (pd != null && "2.0".equalsIgnoreCase(version)) {
+            ContainerRuntimeOption crt = pd.getContainerRuntimeOption("javax.portlet.renderHeaders");
+            if (crt != null) {
+               List<String> values = crt.getValues();
+               return values.size() == 1 && values.get(0).equalsIgnoreCase("true");
+            }
+         }
+         return false;
+      }
+
+      /**
+       * @return  the parsed window configuration
+       */
+      public PortletWindowConfig getConfig() {
+         return config;
+      }
+
+      /**
+       * @return  the portlet window ID
+       */
+      public PortletWindowID getId() {
+         return id;
+      }
+
+      /**
+       * @return  the portlet definition
+       */
+      public PortletDefinition getPortletDefinition() {
+         return portletDefinition;
+      }
+
+      /**
+       * @return  the portlet application version
+       */
+      public String getVersion() {
+         return version;
+      }
+
+      /**
+       * @return  <code>true</code> if the portlet application is version 3
+       */
+      public boolean isVersion3() {
+         return version3;
+      }
+
+      /**
+       * @return  the portlet modes supported by the portlet
+       */
+      public Set<PortletMode> getSupportedPortletModes() {
+         return supportedModes;
+      }
+
+      /**
+       * @return  the window states supported by the portlet for HTML markup
+       */
+      public Set<WindowState> getSupportedWindowStates() {
+         return supportedStates;
+      }
+
+      /**
+       * @return  <code>true</code> if the window may be rendered in parallel
+       */
+      public boolean isParallel() {
+         return parallel;
+      }
+
+      /**
+       * @return  <code>true</code> if the window is rendered after the page has been loaded
+       */
+      public boolean isDeferred() {
+         return deferred;
+      }
+
+      /**
+       * @return  the cached page state members holding the allowed portlet modes and
+       *          window states, or <code>null</code> if they have not been computed
+       */
+      public String getPageStateMembers() {
+         return pageStateMembers;
+      }
+
+      /**
+       * @param pageStateMembers  the page state members computed for the window
+       */
+      public void setPageStateMembers(String pageStateMembers) {
+         this.pageStateMembers = pageStateMembers;
+      }
+   }
+}
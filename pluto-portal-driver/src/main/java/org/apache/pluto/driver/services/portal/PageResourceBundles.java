@@ -0,0 +1,537 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.pluto.driver.services.portal.PageResources.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines the style sheets and scripts of a page into bundles that are served
+ * from memory by the bundle servlet.
+ * <p>
+ * A bundle is the concatenation of a run of consecutive style sheets or scripts
+ * located in the portal web application. The bundle name is derived from a hash
+ * of its content, so that browsers can cache bundles without revalidation.
+ * Relative URLs in style sheets are resolved against the context root, and
+ * <code>@charset</code> rules are removed. Style sheets containing
+ * <code>@import</code> rules and resources that cannot be read are not bundled.
+ * <p>
+ * A bundle is built by the first request that needs it, without blocking the
+ * requests for other bundles. Bundles are kept until one of their sources is
+ * modified, which is detected from the last modified time of the source files.
+ * The sources are checked at most once per check interval, and a modified
+ * bundle is built again with a new name. When the maximum number of bundles is
+ * reached, further resources are referenced individually.
+ *
+ * @see PageResources#getMarkup(List, String, PageResourceBundles)
+ */
+public class PageResourceBundles {
+   private static final Logger LOG = LoggerFactory.getLogger(PageResourceBundles.class);
+
+   /** The path to which the bundle servlet is mapped by default */
+   public static final String DEFAULT_PATH = "/bundle";
+
+   /** The default maximum number of bundles */
+   public static final int DEFAULT_MAX_BUNDLES = 256;
+
+   /** The default time in milliseconds between checks of the sources for modifications */
+   public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+   // The servlet context attribute holding the bundles
+
+   private static final String ATTRIBUTE_KEY = PageResourceBundles.class.getName();
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final Pattern CSS_URL = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+   private static final Pattern CSS_CHARSET = Pattern.compile("@charset\\s+[^;]*;");
+
+   /**
+    * A combined style sheet or script.
+    */
+   public static class Bundle {
+      private final String name;
+      private final String contentType;
+      private final byte[] content;
+      private final String eTag;
+      private final List<String> sources;
+      private final long lastModified;
+
+      private Bundle(String hash, Type type, byte[] content, List<String> sources, long lastModified) {
+         this.name = hash + ((type == Type.CSS) ? ".css" : ".js");
+         this.contentType = (type == Type.CSS) ? "text/css; charset=UTF-8" : "application/javascript; charset=UTF-8";
+         this.content = content;
+         this.eTag = '"' + hash + '"';
+         this.sources = sources;
+         this.lastModified = lastModified;
+      }
+
+      /**
+       * @return the bundle name, consisting of the content hash and the file extension
+       */
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * @return the content type
+       */
+      public String getContentType() {
+         return contentType;
+      }
+
+      /**
+       * @return the combined content
+       */
+      public byte[] getContent() {
+         return content;
+      }
+
+      /**
+       * @return the entity tag
+       */
+      public String getETag() {
+         return eTag;
+      }
+   }
+
+   private final ServletContext context;
+
+   // The bundles by type, context path and sources. A bundle is built by the task of
+   // the first request. A null result marks sources that cannot be bundled.
+
+   private final ConcurrentMap<List<String>, Future<Bundle>> bundlesBySources =
+         new ConcurrentHashMap<List<String>, Future<Bundle>>();
+
+   // The bundles by name
+
+   private final ConcurrentMap<String, Bundle> bundlesByName = new ConcurrentHashMap<String, Bundle>();
+
+   // Incremented whenever bundles are removed because their sources have been modified
+
+   private final AtomicInteger generation = new AtomicInteger();
+
+   private final AtomicLong nextCheck = new AtomicLong();
+   private final AtomicBoolean full = new AtomicBoolean();
+
+   private volatile String path = DEFAULT_PATH;
+   private volatile boolean minify = false;
+   private volatile int maxBundles = DEFAULT_MAX_BUNDLES;
+   private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+   /**
+    * Creates the bundles for the resources of the servlet context.
+    * @param context    the servlet context from which the resources are read
+    */
+   public PageResourceBundles(ServletContext context) {
+      this.context = context;
+   }
+
+   /**
+    * Returns the bundles of the portal web application, creating them if necessary.
+    *
+    * @param context    the servlet context of the portal
+    * @return           the bundles
+    */
+   public static PageResourceBundles getInstance(ServletContext context) {
+      synchronized (PageResourceBundles.class) {
+         PageResourceBundles bundles = (PageResourceBundles) context.getAttribute(ATTRIBUTE_KEY);
+         if (bundles == null) {
+            bundles = new PageResourceBundles(context);
+            context.setAttribute(ATTRIBUTE_KEY, bundles);
+         }
+         return bundles;
+      }
+   }
+
+   /**
+    * @param path    the path relative to the context root to which the bundle servlet is mapped
+    */
+   public void setPath(String path) {
+      this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+   }
+
+   /**
+    * @param minify  <code>true</code> if comments and indentation are to be removed from style sheets
+    */
+   public void setMinify(boolean minify) {
+      this.minify = minify;
+   }
+
+   /**
+    * @param maxBundles    the maximum number of bundles
+    */
+   public void setMaxBundles(int maxBundles) {
+      this.maxBundles = maxBundles;
+   }
+
+   /**
+    * @param checkInterval    the time in milliseconds between checks of the sources
+    *                         for modifications, or a negative value to disable the checks
+    */
+   public void setCheckInterval(long checkInterval) {
+      this.checkInterval = checkInterval;
+   }
+
+   /**
+    * Returns the URL of the bundle combining the given resources, creating the
+    * bundle if necessary. Concurrent requests for the same bundle wait for the
+    * request creating it, while the requests for other bundles proceed.
+    *
+    * @param type          the type of the resources
+    * @param sources       the paths of the resources relative to the context root
+    * @param contextPath   the context path
+    * @return              the bundle URL, or <code>null</code> if the resources cannot be bundled
+    */
+   public String getUrl(final Type type, List<String> sources, final String contextPath) {
+      if (type == Type.MARKUP || sources.isEmpty()) {
+         return null;
+      }
+
+      List<String> key = new ArrayList<String>(sources.size() + 2);
+      key.add(type.name());
+      key.add(contextPath);
+      key.addAll(sources);
+
+      Future<Bundle> future = bundlesBySources.get(key);
+      if (future == null) {
+         if (bundlesBySources.size() >= maxBundles) {
+            if (full.compareAndSet(false, true)) {
+               LOG.warn("Maximum number of page resource bundles reached: " + maxBundles);
+            }
+            return null;
+         }
+         final List<String> paths = new ArrayList<String>(sources);
+         FutureTask<Bundle> task = new FutureTask<Bundle>(new Callable<Bundle>() {
+            public Bundle call() {
+               return createBundle(type, paths, contextPath);
+            }
+         });
+         future = bundlesBySources.putIfAbsent(key, task);
+         if (future == null) {
+            future = task;
+            task.run();
+         }
+      }
+
+      Bundle bundle = getResult(future);
+      return (bundle == null) ? null : contextPath + path + '/' + bundle.getName();
+   }
+
+   /**
+    * @param name    the bundle name
+    * @return        the bundle, or <code>null</code> if there is no bundle with the given name
+    */
+   public Bundle getBundle(String name) {
+      return bundlesByName.get(name);
+   }
+
+   /**
+    * @return  the number of bundles
+    */
+   public int size() {
+      return bundlesByName.size();
+   }
+
+   /**
+    * Removes the bundles whose sources have been modified since the bundles were
+    * created, so that they are built again. The sources are checked at most once
+    * per check interval; between checks, the method returns immediately.
+    *
+    * @return  the generation of the bundles, which changes whenever bundles are removed
+    */
+   public int checkModified() {
+      long now = System.currentTimeMillis();
+      long next = nextCheck.get();
+      if (checkInterval < 0 || now < next || !nextCheck.compareAndSet(next, now + checkInterval)) {
+         return generation.get();
+      }
+      for (Map.Entry<List<String>, Future<Bundle>> entry : bundlesBySources.entrySet()) {
+         Future<Bundle> future = entry.getValue();
+         Bundle bundle = future.isDone() ? getResult(future) : null;
+         if (bundle != null && bundle.lastModified != lastModified(bundle.sources)
+               && bundlesBySources.remove(entry.getKey(), future)) {
+            bundlesByName.remove(bundle.getName(), bundle);
+            generation.incrementAndGet();
+            if (LOG.isDebugEnabled()) {
+               LOG.debug("Removed page resource bundle with modified sources: " + bundle.getName());
+            }
+         }
+      }
+      return generation.get();
+   }
+
+   private static Bundle getResult(Future<Bundle> future) {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException e) {
+         LOG.warn("Could not create page resource bundle: " + e.getCause(), e.getCause());
+         return null;
+      }
+   }
+
+   /**
+    * Combines the last modified times of the sources. Sources that are not
+    * available as files, for example in a packed web application, count as unmodified.
+    */
+   private long lastModified(List<String> sources) {
+      long result = 0;
+      for (String source : sources) {
+         String file = isLocal(source) ? context.getRealPath(source) : null;
+         result = 31 * result + ((file == null) ? 0 : new File(file).lastModified());
+      }
+      return result;
+   }
+
+   private Bundle createBundle(Type type, List<String> sources, String contextPath) {
+      long lastModified = lastModified(sources);
+      StringBuilder content = new StringBuilder(8192);
+      for (String source : sources) {
+         String text = read(source);
+         if (text == null) {
+            return null;
+         }
+         if (type == Type.CSS) {
+            if (text.contains("@import")) {
+               if (LOG.isDebugEnabled()) {
+                  LOG.debug("Style sheet with @import rule is not bundled: " + source);
+               }
+               return null;
+            }
+            text = processStyleSheet(text, source, contextPath);
+         }
+         content.append(text);
+         content.append((type == Type.SCRIPT) ? "\n;\n" : "\n");
+      }
+
+      byte[] bytes = content.toString().getBytes(UTF8);
+      Bundle bundle = new Bundle(hash(bytes), type, bytes, sources, lastModified);
+      bundlesByName.put(bundle.getName(), bundle);
+
+      if (LOG.isDebugEnabled()) {
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Created page resource bundle: ").append(bundle.getName());
+         txt.append(", size: ").append(bytes.length);
+         txt.append(", sources: ").append(sources);
+         LOG.debug(txt.toString());
+      }
+      return bundle;
+   }
+
+   private static boolean isLocal(String source) {
+      return source.startsWith("/") && !source.startsWith("//");
+   }
+
+   private String read(String source) {
+      if (!isLocal(source)) {
+         return null;
+      }
+      try (InputStream in = context.getResourceAsStream(source)) {
+         return (in == null) ? null : IOUtils.toString(in, UTF8);
+      } catch (IOException e) {
+         LOG.warn("Could not read page resource: " + source, e);
+         return null;
+      }
+   }
+
+   /**
+    * Removes <code>@charset</code> rules and resolves relative URLs against the
+    * location of the style sheet, since the bundle is served from another path.
+    */
+   String processStyleSheet(String text, String source, String contextPath) {
+      text = CSS_CHARSET.matcher(text).replaceAll("");
+      if (minify) {
+         text = minifyStyleSheet(text);
+      }
+
+      Matcher matcher = CSS_URL.matcher(text);
+      StringBuffer result = new StringBuffer(text.length() + 256);
+      while (matcher.find()) {
+         String url = matcher.group(2).trim();
+         if (!url.startsWith("/") && !url.startsWith("#") && !url.contains(":")) {
+            try {
+               url = contextPath + URI.create(source).resolve(url).toString();
+            } catch (IllegalArgumentException e) {
+               LOG.debug("Could not resolve URL in style sheet " + source + ": " + url);
+            }
+         }
+         matcher.appendReplacement(result, Matcher.quoteReplacement("url('" + url + "')"));
+      }
+      matcher.appendTail(result);
+      return result.toString();
+   }
+
+   /**
+    * Removes comments, indentation and empty lines from a style sheet. The style
+    * sheet is scanned token by token, so that strings and unquoted
+    * <code>url()</code> values are copied unchanged, even if they contain comment
+    * delimiters or whitespace.
+    */
+   static String minifyStyleSheet(String text) {
+      StringBuilder out = new StringBuilder(text.length());
+      int len = text.length();
+      boolean lineStart = true;
+      int ii = 0;
+      while (ii < len) {
+         char c = text.charAt(ii);
+         if (c == '/' && ii + 1 < len && text.charAt(ii + 1) == '*') {
+            int end = text.indexOf("*/", ii + 2);
+            ii = (end < 0) ? len : end + 2;
+         } else if (c == '"' || c == '\'') {
+            int end = skipString(text, ii);
+            out.append(text, ii, end);
+            lineStart = false;
+            ii = end;
+         } else if (isUnquotedUrl(text, ii)) {
+            int end = skipUrl(text, ii);
+            out.append(text, ii, end);
+            lineStart = false;
+            ii = end;
+         } else if (c == '\r' || c == '\n') {
+            trimTrailing(out);
+            if (!lineStart) {
+               out.append('\n');
+               lineStart = true;
+            }
+            ii++;
+         } else if (lineStart && Character.isWhitespace(c)) {
+            ii++;
+         } else {
+            out.append(c);
+            lineStart = false;
+            ii++;
+         }
+      }
+      trimTrailing(out);
+      if (!lineStart) {
+         out.append('\n');
+      }
+      return out.toString();
+   }
+
+   /**
+    * Returns the index after the string starting at the given quote. An unescaped
+    * line break ends an unterminated string.
+    */
+   private static int skipString(String text, int start) {
+      char quote = text.charAt(start);
+      int ii = start + 1;
+      while (ii < text.length()) {
+         char c = text.charAt(ii);
+         if (c == '\\') {
+            ii += 2;
+         } else if (c == quote) {
+            return ii + 1;
+         } else if (c == '\n' || c == '\r') {
+            return ii;
+         } else {
+            ii++;
+         }
+      }
+      return text.length();
+   }
+
+   /**
+    * Returns <code>true</code> if an unquoted <code>url()</code> value starts at the
+    * given index. Quoted values are handled as strings.
+    */
+   private static boolean isUnquotedUrl(String text, int start) {
+      if (!text.regionMatches(true, start, "url(", 0, 4)) {
+         return false;
+      }
+      if (start > 0) {
+         char prev = text.charAt(start - 1);
+         if (Character.isLetterOrDigit(prev) || prev == '-' || prev == '_') {
+            return false;
+         }
+      }
+      int ii = start + 4;
+      while (ii < text.length() && Character.isWhitespace(text.charAt(ii))) {
+         ii++;
+      }
+      return ii < text.length() && text.charAt(ii) != '"' && text.charAt(ii) != '\'';
+   }
+
+   /**
+    * Returns the index after the closing parenthesis of an unquoted <code>url()</code> value.
+    */
+   private static int skipUrl(String text, int start) {
+      int ii = start + 4;
+      while (ii < text.length()) {
+         char c = text.charAt(ii);
+         if (c == '\\') {
+            ii += 2;
+         } else if (c == ')') {
+            return ii + 1;
+         } else {
+            ii++;
+         }
+      }
+      return text.length();
+   }
+
+   private static void trimTrailing(StringBuilder out) {
+      int end = out.length();
+      while (end > 0 && out.charAt(end - 1) != '\n' && Character.isWhitespace(out.charAt(end - 1))) {
+         end--;
+      }
+      out.setLength(end);
+   }
+
+   private static String hash(byte[] content) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+         StringBuilder hex = new StringBuilder(32);
+         for (int ii = 0; ii < 16; ii++) {
+            hex.append(Character.forDigit((digest[ii] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(digest[ii] & 0xf, 16));
+         }
+         return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.pluto.container.PageResourceId;
 import org.slf4j.Logger;
@@ -33,6 +34,13 @@ import org.slf4j.LoggerFactory;
 /**
  * This is a container for configured resources such as style sheets and javascript 
  * files that can be added to a portal page in the document head section.
+ * <p>
+ * The available versions of each resource are indexed by resource name and scope
+ * when the resources are added. The markup generated for a list of resource IDs
+ * depends only on the list, so it is memoized until a resource is added or, if
+ * the resources are bundled, until the sources of a bundle are modified. The
+ * style sheets and scripts of the list are also provided as preload links, so
+ * that the portal can announce them before the page is rendered.
  * 
  * @author Scott Nicklous
  *
@@ -97,9 +105,35 @@ public class PageResources {
       
    }
    
+   /**
+    * The markup and the preload links generated for a list of page resource IDs 
+    */
+   private static class Resolved {
+      final String markup;
+      final List<String> links;
+      final int generation;
+      public Resolved(String markup, List<String> links, int generation) {
+         this.markup = markup;
+         this.links = Collections.unmodifiableList(links);
+         this.generation = generation;
+      }
+   }
+   
+   // The maximum number of memoized markup strings
+
+   private static final int MAX_MEMOIZED = 256;
+
    // The map containing the current page resources
 
    private Map<PageResourceId, Source> resources = new HashMap<PageResourceId, Source>();
+
+   // The available versions of the resources, sorted, by resource name and scope
+
+   private Map<String, List<PageResourceId>> versions = new HashMap<String, List<PageResourceId>>();
+
+   // The generated markup by list of page resource IDs and context path
+
+   private final Map<List<Object>, Resolved> memoized = new ConcurrentHashMap<List<Object>, Resolved>();
    
    public PageResources() {
    }
@@ -113,6 +147,7 @@ public class PageResources {
       for (PageResourceId id : other.resources.keySet()) {
          this.resources.put(new PageResourceId(id), new Source(other.resources.get(id)));
       }
+      indexVersions();
    }
    
    /**
@@ -122,6 +157,7 @@ public class PageResources {
       if (resources.isEmpty()) {
          resources.putAll(defaultResources);
       }
+      indexVersions();
    }
    
    /**
@@ -130,6 +166,8 @@ public class PageResources {
    public void addResource(PageResourceId id, Type type, String source) {
       if (id.getName() != null && type != null && source != null) {
          resources.put(id, new Source(type, source));
+         addVersion(id);
+         memoized.clear();
       } else {
          StringBuilder txt = new StringBuilder(128);
          txt.append("Required value null when adding page Resource");
@@ -149,6 +187,42 @@ public class PageResources {
       }
    }
    
+   /**
+    * Returns the key under which the versions of a resource are indexed.
+    */
+   private static String getVersionKey(PageResourceId id) {
+      return (id.getScope() == null) ? id.getName() : id.getScope() + '\u0000' + id.getName();
+   }
+
+   /**
+    * Rebuilds the version index from the resources.
+    */
+   private void indexVersions() {
+      versions = new HashMap<String, List<PageResourceId>>();
+      for (PageResourceId id : resources.keySet()) {
+         addVersion(id);
+      }
+      memoized.clear();
+   }
+
+   /**
+    * Adds the resource ID to the sorted version list of the resource.
+    */
+   private void addVersion(PageResourceId id) {
+      String key = getVersionKey(id);
+      List<PageResourceId> ids = versions.get(key);
+      if (ids == null) {
+         ids = new ArrayList<PageResourceId>(2);
+         versions.put(key, ids);
+      }
+      if (!ids.contains(id)) {
+         ids.add(id);
+         if (ids.size() > 1) {
+            Collections.sort(ids);
+         }
+      }
+   }
+
    /**
     * Implements a fuzzy matching to identify best available resource.
     * 
@@ -160,17 +234,12 @@ public class PageResources {
          return resources.get(resid);
       }
       
-      // has to at least match on name, and if the scope is provided, on scope
+      // has to match on name and scope. The candidates are sorted by version.
       
-      List<PageResourceId> candidates = new ArrayList<PageResourceId>();
-      for (PageResourceId id : resources.keySet()) {
-         if (resid.resourceMatches(id)) {
-            candidates.add(id);
-         }
-      }
+      List<PageResourceId> candidates = versions.get(getVersionKey(resid));
       
       PageResourceId effectiveId = null;
-      if (candidates.size() > 0) {
+      if (candidates != null && candidates.size() > 0) {
          if (candidates.size() == 1) {
             effectiveId = candidates.get(0);
          } else {
@@ -178,7 +247,6 @@ public class PageResources {
             // There are more than one candidates that differ in version.
             // Choose the first one greater than the requested or the highest available.
             
-            Collections.sort(candidates);
             for (PageResourceId id : candidates) {
                if (resid.compareTo(id) <= 0) {
                   effectiveId = id;
@@ -219,25 +287,7 @@ public class PageResources {
       
       Source src = getBestMatch(resid);
       if (src != null) {
-         StringBuilder txt = new StringBuilder(128);
-         switch (src.type) {
-         case CSS:
-            txt.append("<link rel='stylesheet' type='text/css' href='");
-            txt.append(contextPath).append(src.source);
-            txt.append("'></link>");
-            break;
-         case SCRIPT:
-            txt.append("<script type='text/javascript' src='");
-            txt.append(contextPath).append(src.source);
-            txt.append("'></script>");
-            break;
-         case MARKUP:
-            txt.append(src.source);
-            break;
-         default:
-            LOG.warn("Unknown page resource type: " + src.type.toString());
-         }
-         markup = txt.toString();
+         markup = getMarkup(src, contextPath);
       } else {
          LOG.warn("Unknown page resource ID: " + resid.toString());
       }
@@ -245,6 +295,31 @@ public class PageResources {
       return markup;
    }
    
+   /**
+    * Returns the markup for the source of a page resource.
+    */
+   private static String getMarkup(Source src, String contextPath) {
+      StringBuilder txt = new StringBuilder(128);
+      switch (src.type) {
+      case CSS:
+         txt.append("<link rel='stylesheet' type='text/css' href='");
+         txt.append(contextPath).append(src.source);
+         txt.append("'></link>");
+         break;
+      case SCRIPT:
+         txt.append("<script type='text/javascript' src='");
+         txt.append(contextPath).append(src.source);
+         txt.append("'></script>");
+         break;
+      case MARKUP:
+         txt.append(src.source);
+         break;
+      default:
+         LOG.warn("Unknown page resource type: " + src.type.toString());
+      }
+      return txt.toString();
+   }
+   
    /**
     * Takes a list of page resource IDs that can potentially contain duplicates
     * and returns the appropriate head section markup.
@@ -259,7 +334,70 @@ public class PageResources {
     * @return              Markup string that can be added to the document head section
     */
    public String getMarkup(List<PageResourceId> prids, String contextPath) {
+      return getMarkup(prids, contextPath, null);
+   }
+
+   /**
+    * Takes a list of page resource IDs that can potentially contain duplicates
+    * and returns the appropriate head section markup, combining consecutive style 
+    * sheets and scripts into bundles.
+    * 
+    * @param prids        List of page resource IDs
+    * @param contextPath   The context path 
+    * @param bundles       The bundles, or <code>null</code> if the resources are not to be bundled
+    * @return              Markup string that can be added to the document head section
+    */
+   public String getMarkup(List<PageResourceId> prids, String contextPath, PageResourceBundles bundles) {
+      String markup = resolve(prids, contextPath, bundles).markup;
+      return (markup.length() == 0) ? null : markup;
+   }
+
+   /**
+    * Returns the values of the HTTP <code>Link</code> headers that let the browser 
+    * preload the style sheets and scripts referenced by the markup returned by 
+    * {@link #getMarkup(List, String, PageResourceBundles)} for the same arguments.
+    * 
+    * @param prids        List of page resource IDs
+    * @param contextPath   The context path 
+    * @param bundles       The bundles, or <code>null</code> if the resources are not to be bundled
+    * @return              The link header values in inclusion order
+    */
+   public List<String> getPreloadLinks(List<PageResourceId> prids, String contextPath, PageResourceBundles bundles) {
+      return resolve(prids, contextPath, bundles).links;
+   }
+
+   private Resolved resolve(List<PageResourceId> prids, String contextPath, PageResourceBundles bundles) {
+      List<Object> key = new ArrayList<Object>(prids.size() + 2);
+      key.addAll(prids);
+      key.add(contextPath);
+      key.add(Boolean.valueOf(bundles != null));
+      // markup referencing bundles whose sources have been modified is generated again
+      int generation = (bundles == null) ? 0 : bundles.checkModified();
+      Resolved resolved = memoized.get(key);
+      if (resolved == null || resolved.generation != generation) {
+         resolved = generateMarkup(prids, contextPath, bundles, generation);
+         if (memoized.size() >= MAX_MEMOIZED) {
+            memoized.clear();
+         }
+         memoized.put(key, resolved);
+      }
+      return resolved;
+   }
+
+   /**
+    * Consolidates the list of page resource IDs and generates the markup and the
+    * preload links.
+    * 
+    * @param prids        List of page resource IDs
+    * @param contextPath   The context path 
+    * @param bundles       The bundles, or <code>null</code>
+    * @param generation    The generation of the bundles
+    * @return              The markup, which is an empty string if there is none, and the links
+    */
+   private Resolved generateMarkup(List<PageResourceId> prids, String contextPath, PageResourceBundles bundles,
+         int generation) {
       List<PageResourceId> resultids = new ArrayList<PageResourceId>();
+      Map<String, Integer> indexes = new HashMap<String, Integer>();
       
       // build the resulting page resource ID list by examining each ID from the
       // input list, comparing it to IDs already in the result list.
@@ -268,17 +406,13 @@ public class PageResources {
          
          // look for page resource id match (without version)
          
-         int index = -1;
-         for (int ii = 0; ii < resultids.size(); ii++) {
-            if (resultids.get(ii).resourceMatches(newid)) {
-               index = ii;
-               break;
-            }
-         }
+         Integer pos = indexes.get(getVersionKey(newid));
+         int index = (pos == null) ? -1 : pos.intValue();
          
          if (index == -1) {
             
             // no match, so just add new element
+            indexes.put(getVersionKey(newid), resultids.size());
             resultids.add(newid);
             
          } else {
@@ -372,8 +506,7 @@ public class PageResources {
                   
                   // replace the current item in the list with the new item, as it
                   // has a later version.
-                  resultids.add(index, newid);
-                  resultids.remove(index+1);
+                  resultids.set(index, newid);
                   
                }
             }
@@ -383,8 +516,29 @@ public class PageResources {
       
       // generate the markup
       StringBuilder markup = new StringBuilder(128);
-      for (PageResourceId resid : resultids) {
-         markup.append(getMarkup(resid, contextPath)).append("\n");
+      List<String> links = new ArrayList<String>();
+      if (bundles == null) {
+         for (PageResourceId resid : resultids) {
+            markup.append(getMarkup(resid, contextPath)).append("\n");
+            addLink(links, getBestMatch(resid), contextPath);
+         }
+      } else {
+         
+         // combine runs of resources of the same type, keeping the inclusion order
+         List<Source> run = new ArrayList<Source>();
+         for (PageResourceId resid : resultids) {
+            Source src = getBestMatch(resid);
+            if (src != null && src.type != Type.MARKUP) {
+               if (!run.isEmpty() && run.get(0).type != src.type) {
+                  appendBundle(markup, links, run, contextPath, bundles);
+               }
+               run.add(src);
+            } else {
+               appendBundle(markup, links, run, contextPath, bundles);
+               markup.append(getMarkup(resid, contextPath)).append("\n");
+            }
+         }
+         appendBundle(markup, links, run, contextPath, bundles);
       }
       
       if (isDebug) {
@@ -397,7 +551,47 @@ public class PageResources {
          LOG.debug(txt.toString());
       }
       
-      return (markup.length() == 0) ? null : markup.toString();
+      return new Resolved(markup.toString(), links, generation);
+   }
+
+   /**
+    * Adds the preload link for the source if it is a style sheet or script.
+    */
+   private static void addLink(List<String> links, Source src, String contextPath) {
+      if (src != null && (src.type == Type.CSS || src.type == Type.SCRIPT)) {
+         StringBuilder link = new StringBuilder(128);
+         link.append('<').append(contextPath).append(src.source).append(">; rel=preload; as=");
+         link.append((src.type == Type.CSS) ? "style" : "script");
+         links.add(link.toString());
+      }
+   }
+
+   /**
+    * Appends the markup and the links for the bundle combining the resources of the 
+    * run, or for the individual resources if they cannot be bundled, and clears the run.
+    */
+   private static void appendBundle(StringBuilder markup, List<String> links, List<Source> run, 
+         String contextPath, PageResourceBundles bundles) {
+      if (run.isEmpty()) {
+         return;
+      }
+      Type type = run.get(0).type;
+      List<String> sources = new ArrayList<String>(run.size());
+      for (Source src : run) {
+         sources.add(src.source);
+      }
+      String url = bundles.getUrl(type, sources, contextPath);
+      if (url != null) {
+         Source bundle = new Source(type, url);
+         markup.append(getMarkup(bundle, "")).append("\n");
+         addLink(links, bundle, "");
+      } else {
+         for (Source src : run) {
+            markup.append(getMarkup(src, contextPath)).append("\n");
+            addLink(links, src, contextPath);
+         }
+      }
+      run.clear();
    }
 
    @Override
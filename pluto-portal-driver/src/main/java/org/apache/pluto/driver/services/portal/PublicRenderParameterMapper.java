@@ -164,7 +164,16 @@ public interface PublicRenderParameterMapper {
    public List<PortalURLPublicParameter> getPRPsForWindow(String wid, boolean onlyActive);
    
    /**
-    * Returns a clone of the mapper. All public render parameters contained in the mapper are cloned as well.
+    * Returns the version of the mapper state. The version changes whenever PRP values
+    * or 'removed' flags are set, so that values derived from the mapper can be memoized.
+    * 
+    * @return   the version
+    */
+   public int getVersion();
+   
+   /**
+    * Returns a clone of the mapper. The values of all public render parameters contained in the 
+    * mapper are cloned as well, so that the clone can be modified independently.
     * @return
     */
    public PublicRenderParameterMapper clone();
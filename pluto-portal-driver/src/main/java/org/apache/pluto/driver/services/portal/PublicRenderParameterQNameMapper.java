@@ -20,6 +20,8 @@
 package org.apache.pluto.driver.services.portal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Collection;
 import java.util.HashMap;
@@ -42,6 +44,12 @@ import org.apache.pluto.container.om.portlet.PublicRenderParameter;
  * This mapper maps public render parameters on the basis of Qnames. 
  * If two PRPs have the same QName, they are considered to refer to the same 
  * public render parameter. The mapping is limited to the current page.
+ * <p>
+ * The PRP topology of the page - the groups and the hash indexes used to look
+ * them up by QName and by window ID and identifier - is computed once when the
+ * mapper is constructed and is immutable afterwards. Clones share the topology
+ * and carry only the per-request group values, so a mapper constructed for a page
+ * can serve as prototype for all requests to the page.
  * 
  * @author msnicklous
  * @since  16/01/2015
@@ -50,17 +58,24 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
    private final Logger LOGGER = LoggerFactory.getLogger(PublicRenderParameterQNameMapper.class);
    private final boolean isTrace = LOGGER.isTraceEnabled();
  
-   // Set of all public render parameters on the page
-   private final ArrayList<PortalURLPublicParameter> prpList = new ArrayList<PortalURLPublicParameter>();
+   // The PRP topology of the page. It is shared among clones and is never 
+   // modified after construction.
+   private final Topology topology;
    
-   // Maps the PRP QName to a set of public render parameters
-   private final Map<QName, List<PortalURLPublicParameter>> qn2PRP =
-                     new HashMap<QName, List<PortalURLPublicParameter>>();
-
-   private final ArrayList<QName> qnList = new ArrayList<QName>();
+   // The values and 'removed' flags for each group. These make up the state
+   // of the mapper and are copied when the mapper is cloned.
+   private String[][] groupValues;
+   private boolean[] groupRemoved;
+   
+   // Incremented whenever the group values or 'removed' flags are set
+   private int version = 0;
    
    public PublicRenderParameterQNameMapper(PageConfig paco, PortletRegistryService pore) {
       
+      ArrayList<QName> qnList = new ArrayList<QName>();
+      Map<QName, List<PortalURLPublicParameter>> qn2PRP = new HashMap<QName, List<PortalURLPublicParameter>>();
+      int prpCount = 0;
+
       Collection<String> pids = paco.getPortletIds();
       LOGGER.debug("Setting up the PRP mapper. There are " + pids.size() + " portlets to process.");
 
@@ -103,9 +118,7 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
                      LOGGER.error("Problem with PRP definition: Both QName could not be obtained.");
                   } else {
                      PortalURLPublicParameter pupp = new PortalURLPublicParameter(pid, prpId, qn);
-                     
-                     // Add to set of all PRPs for page
-                     prpList.add(pupp);
+                     prpCount++;
 
                      // Add PRP to the QName to PRP mapping
                      if (qn2PRP.containsKey(qn)) {
@@ -133,8 +146,16 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
             }
          }
       }
+      
+      topology = new Topology(qnList, qn2PRP);
+
+      // Initially, all groups are marked as removed
+      groupValues = new String[qnList.size()][];
+      groupRemoved = new boolean[qnList.size()];
+      Arrays.fill(groupRemoved, true);
+
       if (isTrace) {
-         dbgstr.append("\nOn page " + paco.getName() + " there are " + prpList.size()
+         dbgstr.append("\nOn page " + paco.getName() + " there are " + prpCount
                + " PRPs divided into " + qnList.size() + " groups with sizes: ");
          String prefix = "";
          for (List<PortalURLPublicParameter> lp : qn2PRP.values()) {
@@ -146,143 +167,134 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
    }
    
    /**
-    * Private constructor for cloning
+    * Private constructor for cloning. The topology is shared with the source
+    * mapper, the group values are copied.
     */
-   private PublicRenderParameterQNameMapper() {
+   private PublicRenderParameterQNameMapper(PublicRenderParameterQNameMapper src) {
+      topology = src.topology;
+      groupValues = src.groupValues.clone();
+      groupRemoved = src.groupRemoved.clone();
+      version = src.version;
+   }
+
+   /**
+    * Creates a public render parameter carrying the current group values
+    * from the given topology entry.
+    */
+   private PortalURLPublicParameter withValues(PortalURLPublicParameter prp, int index) {
+      PortalURLPublicParameter p = 
+            new PortalURLPublicParameter(prp.getWindowId(), prp.getName(), prp.getQName(), groupValues[index]);
+      p.setRemoved(groupRemoved[index]);
+      return p;
    }
 
-   
    public List<PortalURLPublicParameter> getPublicParameterGroup(int index) {
-      List<PortalURLPublicParameter> oprps = new ArrayList<PortalURLPublicParameter>();
-      QName qn = qnList.get(index);
-      for (PortalURLPublicParameter prp : qn2PRP.get(qn)) {
-         PortalURLPublicParameter p = prp.clone();
-         String[] vals = (prp.getValues() == null) ? null : prp.getValues().clone();
+      List<PortalURLPublicParameter> group = topology.groups.get(index);
+      List<PortalURLPublicParameter> oprps = new ArrayList<PortalURLPublicParameter>(group.size());
+      for (PortalURLPublicParameter prp : group) {
+         PortalURLPublicParameter p = withValues(prp, index);
+         String[] vals = (p.getValues() == null) ? null : p.getValues().clone();
          p.setValues(vals);
+         p.setRemoved(groupRemoved[index]);
          oprps.add(p);
       }
       if (isTrace) {
-         LOGGER.trace("For index: " + index + ", QName = " + qn + ", group size = "
+         LOGGER.trace("For index: " + index + ", QName = " + topology.qnList.get(index) + ", group size = "
                 + oprps.size());
       }
       return oprps;
    }
 
    public int getNumberOfGroups() {
-      return qnList.size();
+      return topology.qnList.size();
    }
 
    public int getIndex(PortalURLPublicParameter prp) {
-      int ind =  qnList.indexOf(prp.getQName());
+      int ind = getIndex(prp.getQName());
       if (ind < 0) {
          if (isTrace) {
-            LOGGER.trace("PRP Qname " + prp.getQName() + " not found in " + qnList.toString());
+            LOGGER.trace("PRP Qname " + prp.getQName() + " not found in " + topology.qnList.toString());
          }
       }
       return ind;
    }
 
    public int getIndex(String windowId, String identifier) {
-      PortalURLPublicParameter tmpPRP = new PortalURLPublicParameter(windowId, identifier, null);
-      int ind = prpList.indexOf(tmpPRP);
-      if (ind < 0) {
+      int ind = -1;
+      Map<String, Integer> ids = topology.windowIndexes.get(windowId);
+      Integer group = (ids == null) ? null : ids.get(identifier);
+      if (group == null) {
          if (isTrace) {
             LOGGER.trace("Public render parameter with window ID = " + windowId + ", ID = " + identifier + " could not be found.");
          }
       } else {
-         QName qn = prpList.get(ind).getQName();
-         ind = qnList.indexOf(qn);
+         ind = group;
       }
       return ind;
    }
 
    public int getIndex(QName qname) {
-      return qnList.indexOf(qname);
+      Integer ind = topology.qnIndexes.get(qname);
+      return (ind == null) ? -1 : ind;
    }
 
    public void setValues(int index, String[] values) {
-      List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
-      for (PortalURLPublicParameter prp : oprps) {
-         prp.setValues(values.clone());
-      }
+      groupValues[index] = values.clone();
+      groupRemoved[index] = false;
+      version++;
    }
 
    public String[] getValues(int index) {
       String[] vals = null;
-      List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
-      if (!oprps.get(0).isRemoved()) {
-         vals = oprps.get(0).getValues().clone();
+      if (!groupRemoved[index]) {
+         vals = groupValues[index].clone();
       }
       return vals;
    }
 
    public void setRemoved(int index, boolean removed) {
-      List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
-      for (PortalURLPublicParameter prp : oprps) {
-         prp.setRemoved(removed);
-      }
+      groupRemoved[index] = removed;
+      version++;
+   }
+
+   public int getVersion() {
+      return version;
    }
 
    public boolean getRemoved(int index) {
-      List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
-      return oprps.get(0).isRemoved();
+      return groupRemoved[index];
    }
 
    public List<Integer> getActiveIndexes() {
       ArrayList<Integer> inds = new ArrayList<Integer>();
-      for (QName qn : qnList) {
-         List<PortalURLPublicParameter> oprps = qn2PRP.get(qn);
-         if (!oprps.get(0).isRemoved()) {
-            inds.add(qnList.indexOf(qn));
+      for (int ii = 0; ii < groupRemoved.length; ii++) {
+         if (!groupRemoved[ii]) {
+            inds.add(ii);
          }
       }
       return inds; 
    }
    
+   /**
+    * Returns a clone of the mapper. The PRP topology is immutable, so it is 
+    * shared with the clone. Only the group values are copied. 
+    */
    public PublicRenderParameterQNameMapper clone() {
-      PublicRenderParameterQNameMapper prpm = new PublicRenderParameterQNameMapper();
-      // Note that the QNames don't need to be cloned, as the internal fields are set thru constructor and cannot be changed.
-      StringBuilder dbgstr = new StringBuilder("Cloning QNames: ");
-      String prefix = "";
-      for (QName qn : qnList) {
-         prpm.qnList.add(qn);
-         prpm.qn2PRP.put(qn, new ArrayList<PortalURLPublicParameter>());
-         dbgstr.append(prefix + qn.toString());
-         prefix = ", ";
-      }
-
-      dbgstr.append(" / window IDs: ");
-      prefix = "";
-      
-      for (PortalURLPublicParameter prp : prpList) {
-         PortalURLPublicParameter newPrp = prp.clone();
-         prpm.prpList.add(newPrp);
-         prpm.qn2PRP.get(newPrp.getQName()).add(newPrp);
-         
-         dbgstr.append(prefix + prp.getWindowId());
-         prefix = ", ";
-      }
-      
-      if (isTrace) {
-//          LOGGER.trace(dbgstr.toString());       // fills log with entries.
-      }
-      
-      return prpm;
+      return new PublicRenderParameterQNameMapper(this);
    }
 
    public List<PortalURLPublicParameter> getPRPsForWindow(String wid, boolean onlyActive) {
       ArrayList<PortalURLPublicParameter> prps = new ArrayList<PortalURLPublicParameter>();
       StringBuilder dbgstr = new StringBuilder("Names: ");
       String prefix = "";
-      for (int ii = 0; ii < qnList.size(); ii++) {
-         for (PortalURLPublicParameter prp : qn2PRP.get(qnList.get(ii))) {
-            if (prp.getWindowId().equals(wid)) {
-               if ((onlyActive && !prp.isRemoved()) || !onlyActive) {
-                  prps.add(prp);
-                  dbgstr.append(prefix + prp.getName());
-                  prefix = ", ";
-               }
-               break;
+      List<PortalURLPublicParameter> wprps = topology.windowPRPs.get(wid);
+      if (wprps != null) {
+         for (PortalURLPublicParameter prp : wprps) {
+            int ii = topology.qnIndexes.get(prp.getQName());
+            if ((onlyActive && !groupRemoved[ii]) || !onlyActive) {
+               prps.add(withValues(prp, ii));
+               dbgstr.append(prefix + prp.getName());
+               prefix = ", ";
             }
          }
       }
@@ -292,4 +304,60 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
       return prps;
    }
 
+   /**
+    * The immutable PRP topology of a page. The groups are indexed by QName, and
+    * by window ID and PRP identifier.
+    */
+   private static class Topology {
+      
+      // The group QNames in group index order
+      private final List<QName> qnList;
+      
+      // The PRPs of each group in group index order
+      private final List<List<PortalURLPublicParameter>> groups;
+      
+      // Maps the group QName to the group index
+      private final Map<QName, Integer> qnIndexes;
+      
+      // Maps the window ID to the PRP identifiers of the window, and the PRP identifier
+      // to the group index
+      private final Map<String, Map<String, Integer>> windowIndexes;
+      
+      // Maps the window ID to the PRPs of the window in group order. Only the first 
+      // PRP of the window in each group is present.
+      private final Map<String, List<PortalURLPublicParameter>> windowPRPs;
+      
+      Topology(List<QName> qns, Map<QName, List<PortalURLPublicParameter>> qn2PRP) {
+         qnList = Collections.unmodifiableList(new ArrayList<QName>(qns));
+         ArrayList<List<PortalURLPublicParameter>> grps = new ArrayList<List<PortalURLPublicParameter>>(qns.size());
+         qnIndexes = new HashMap<QName, Integer>();
+         windowIndexes = new HashMap<String, Map<String, Integer>>();
+         windowPRPs = new HashMap<String, List<PortalURLPublicParameter>>();
+         for (int ii = 0; ii < qns.size(); ii++) {
+            QName qn = qns.get(ii);
+            List<PortalURLPublicParameter> group = qn2PRP.get(qn);
+            grps.add(Collections.unmodifiableList(new ArrayList<PortalURLPublicParameter>(group)));
+            qnIndexes.put(qn, ii);
+            for (PortalURLPublicParameter prp : group) {
+               String wid = prp.getWindowId();
+               Map<String, Integer> ids = windowIndexes.get(wid);
+               List<PortalURLPublicParameter> wprps = windowPRPs.get(wid);
+               if (ids == null) {
+                  ids = new HashMap<String, Integer>();
+                  windowIndexes.put(wid, ids);
+                  wprps = new ArrayList<PortalURLPublicParameter>();
+                  windowPRPs.put(wid, wprps);
+               }
+               if (!ids.containsKey(prp.getName())) {
+                  ids.put(prp.getName(), ii);
+               }
+               if (wprps.isEmpty() || !wprps.get(wprps.size() - 1).getQName().equals(qn)) {
+                  wprps.add(prp);
+               }
+            }
+         }
+         groups = Collections.unmodifiableList(grps);
+      }
+   }
+
 }
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.tags;
+
+import java.io.IOException;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import org.apache.pluto.driver.core.StreamingAggregator;
+
+/**
+ * Writes the portlet windows whose output was deferred during out-of-order
+ * streaming. The tag is placed at the end of the page body. It evaluates its
+ * body once for each deferred window, in the order in which the windows complete,
+ * with the portlet ID stored in the page attribute named by <code>var</code>.
+ * The body output is enclosed in an element that is moved into the placeholder
+ * of the window by an inline script, and is flushed to the client immediately.
+ * <p>
+ * Without scripting, the deferred windows are displayed at the end of the page.
+ * If the page is not streamed out of order, the body is not evaluated.
+ *
+ * @see StreamingAggregator
+ */
+public class PortletStreamTag extends TagSupport {
+   private static final long serialVersionUID = 1L;
+
+   /** Moves the children of the source element into the placeholder */
+   private static final String SCRIPT =
+         "<script type=\"text/javascript\">"
+         + "function plutoFill(s,t){s=document.getElementById(s);t=document.getElementById(t);"
+         + "if(s&&t){while(s.firstChild){t.appendChild(s.firstChild);}s.parentNode.removeChild(s);}}"
+         + "document.documentElement.className+=' pluto-js';"
+         + "</script>\n"
+         + "<style type=\"text/css\">.pluto-js .pluto-stream{display:none}</style>\n";
+
+   private String var;
+
+   private StreamingAggregator aggregator;
+
+   public String getVar() {
+      return var;
+   }
+
+   public void setVar(String var) {
+      this.var = var;
+   }
+
+   @Override
+   public int doStartTag() throws JspException {
+      aggregator = StreamingAggregator.getAggregator(pageContext.getRequest());
+      if (aggregator == null || !aggregator.hasDeferred()) {
+         return SKIP_BODY;
+      }
+      try {
+         pageContext.getOut().print(SCRIPT);
+      } catch (IOException e) {
+         throw new JspException(e);
+      }
+      return next() ? EVAL_BODY_INCLUDE : SKIP_BODY;
+   }
+
+   @Override
+   public int doAfterBody() throws JspException {
+      try {
+         JspWriter out = pageContext.getOut();
+         out.print("</div>\n<script type=\"text/javascript\">plutoFill('");
+         out.print(aggregator.getSourceId());
+         out.print("','");
+         out.print(aggregator.getSlotId());
+         out.print("');</script>\n");
+         out.flush();
+      } catch (IOException e) {
+         throw new JspException(e);
+      }
+      return next() ? EVAL_BODY_AGAIN : SKIP_BODY;
+   }
+
+   @Override
+   public void release() {
+      super.release();
+      aggregator = null;
+   }
+
+   /**
+    * Waits for the next deferred window and starts its output.
+    * @return <code>true</code> if there is a window to write.
+    */
+   private boolean next() throws JspException {
+      String windowId;
+      try {
+         windowId = aggregator.next(pageContext.getRequest());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new JspException(e);
+      }
+      if (windowId == null) {
+         pageContext.removeAttribute(var);
+         return false;
+      }
+      pageContext.setAttribute(var, windowId);
+      try {
+         pageContext.getOut().print("<div id=\"" + aggregator.getSourceId() + "\" class=\"pluto-stream\">");
+      } catch (IOException e) {
+         throw new JspException(e);
+      }
+      return true;
+   }
+}
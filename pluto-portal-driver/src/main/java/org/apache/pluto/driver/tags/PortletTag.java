@@ -16,31 +16,35 @@
  */
 package org.apache.pluto.driver.tags;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
-import javax.portlet.PortletRequest;
 import javax.portlet.WindowState;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.pluto.container.PortletContainer;
 import org.apache.pluto.container.PortletWindow;
-import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.core.PageOutputCache;
+import org.apache.pluto.driver.core.ParallelPortletRenderer;
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderJob;
 import org.apache.pluto.driver.core.PortalRequestContext;
 import org.apache.pluto.driver.core.PortalServletResponse;
 import org.apache.pluto.driver.core.PortletWindowImpl;
-import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.core.StreamingAggregator;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.tags.el.ExpressionEvaluatorProxy;
 import org.slf4j.Logger;
@@ -125,16 +129,20 @@ public class PortletTag extends BodyTagSupport {
       // Retrieve the portlet window config for the evaluated portlet ID.
       ServletContext servletContext = pageContext.getServletContext();
 
-      PortletWindowConfig windowConfig = PortletWindowConfig.fromId(evaluatedPortletId);
-
-      if (LOG.isDebugEnabled()) {
-         LOG.debug("Rendering Portlet Window: " + windowConfig);
-      }
-
       // Retrieve the current portal URL.
       PortalRequestContext portalEnv = PortalRequestContext.getContext((HttpServletRequest) pageContext.getRequest());
       PortalURL portalURL = portalEnv.getRequestedPortalURL();
 
+      // The window is taken from the page plan. A portlet that is not on the page
+      // cannot be rendered, since the portal URLs hold the state of the page windows only.
+      DriverConfiguration dc = (DriverConfiguration) servletContext.getAttribute(AttributeKeys.DRIVER_CONFIG);
+      PagePlan plan = dc.getPagePlan(portalURL.getRenderPath());
+      PagePlan.Window windowPlan = (plan == null) ? null : plan.getWindow(evaluatedPortletId);
+
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Rendering Portlet Window: " + ((windowPlan == null) ? evaluatedPortletId : windowPlan.getConfig()));
+      }
+
       // Retrieve the portlet container from servlet context.
       PortletContainer container = (PortletContainer) servletContext.getAttribute(AttributeKeys.PORTLET_CONTAINER);
 
@@ -142,14 +150,17 @@ public class PortletTag extends BodyTagSupport {
       window = null;
 
       try {
-         window = new PortletWindowImpl(container, windowConfig, portalURL);
+         if (windowPlan == null) {
+            throw new IllegalStateException("The portlet is not on the page " + portalURL.getRenderPath() + ".");
+         }
+         window = new PortletWindowImpl(container, windowPlan, portalURL);
       } catch (Throwable e) {
 
          status = FAILED;
 
          StringBuilder txt = new StringBuilder(128);
          txt.append("The portlet '");
-         txt.append(windowConfig.getPortletName());
+         txt.append((windowPlan == null) ? evaluatedPortletId : windowPlan.getConfig().getPortletName());
          txt.append("' is not available.");
          txt.append(" Configuration could not be found.");
 
@@ -172,38 +183,74 @@ public class PortletTag extends BodyTagSupport {
 
          // Check if someone else is maximized. If yes, don't show content.
 
-         Map<String, WindowState> windowStates = portalURL.getWindowStates();
-         for (Iterator<String> it = windowStates.keySet().iterator(); it.hasNext();) {
-            String windowId = it.next();
-            WindowState windowState = windowStates.get(windowId);
-            if (WindowState.MAXIMIZED.equals(windowState) && !window.getId().getStringId().equals(windowId)) {
-               return SKIP_BODY;
+         if (ParallelPortletRenderer.isOtherWindowMaximized(portalURL, window.getId().getStringId())) {
+            return SKIP_BODY;
+         }
+
+         // A deferred window is not rendered with the page. The portlet hub replaces
+         // the placeholder with the window markup once the placeholder is visible.
+
+         if (isDeferred(windowPlan, window.getWindowState(), evaluatedPortletId, pageContext.getRequest())) {
+            try {
+               pageContext.getOut().print("<div class=\"pluto-deferred\" data-portlet-id=\""
+                     + StringEscapeUtils.escapeHtml4(evaluatedPortletId) + "\"></div>");
+            } catch (IOException e) {
+               throw new JspException(e);
+            }
+            return SKIP_BODY;
+         }
+         
+         // When streaming, send the output so far to the client before the portlet 
+         // is processed. If the window is still being rendered in parallel in 
+         // out-of-order mode, write a placeholder and defer the window output.
+
+         RenderJob<PortalServletResponse> job = ParallelPortletRenderer.getRenderJob(pageContext.getRequest(), evaluatedPortletId);
+         StreamingAggregator aggregator = StreamingAggregator.getAggregator(pageContext.getRequest());
+         if (aggregator != null) {
+            try {
+               String slotId = (job == null) ? null : aggregator.defer(evaluatedPortletId, job);
+               if (slotId != null) {
+                  pageContext.getOut().print("<div id=\"" + slotId + "\" class=\"pluto-slot\"></div>");
+               }
+               pageContext.getOut().flush();
+               if (slotId != null) {
+                  return SKIP_BODY;
+               }
+            } catch (IOException e) {
+               throw new JspException(e);
+            }
+         }
+
+         // If the window was submitted for parallel rendering, wait for the result.
+
+         if (job != null) {
+            try {
+               response = job.get();
+               status = SUCCESS;
+            } catch (TimeoutException e) {
+               status = FAILED;
+               messages.add("Portlet not available. Rendering did not complete within " + job.getTimeout() + " ms.");
+               LOG.warn("Parallel rendering timed out for window: " + evaluatedPortletId);
+            } catch (Throwable th) {
+               status = FAILED;
+               messages.add("Portlet not available. Exception: " + th.getMessage());
             }
+            if (status == FAILED) {
+               PageOutputCache.setUncacheable(pageContext.getRequest());
+            }
+            return EVAL_BODY_INCLUDE;
          }
          
-         DriverConfiguration driverConfig = (DriverConfiguration)
-               servletContext.getAttribute(AttributeKeys.DRIVER_CONFIG);
          PortletDefinition pd = window.getPortletDefinition();
 
          String mode = window.getPortletMode().toString();
-         boolean supported = driverConfig.isPortletModeSupported(evaluatedPortletId, mode);
+         boolean supported = dc.isPortletModeSupported(evaluatedPortletId, mode);
                   
          if (supported) {
 
             // Render the portlet and cache the response.
             try {
-               String renderHeaders = null;
-               if (portalURL.getVersion(evaluatedPortletId).equalsIgnoreCase("2.0")) {
-
-                  ContainerRuntimeOption crt = pd.getContainerRuntimeOption("javax.portlet.renderHeaders");
-                  if (crt != null) {
-                     List<String> headers = crt.getValues();
-                     if (headers.size() == 1 && headers.get(0).equalsIgnoreCase("true")) {
-                        renderHeaders = PortletRequest.RENDER_MARKUP;
-                     }
-                  }
-               }
-
+               String renderHeaders = ParallelPortletRenderer.getRenderHeaders(portalURL, evaluatedPortletId, pd);
                container.doRender(window, (HttpServletRequest) pageContext.getRequest(), portalResponse, renderHeaders);
                response = portalResponse;
                status = SUCCESS;
@@ -217,6 +264,11 @@ public class PortletTag extends BodyTagSupport {
          }
       }
 
+      // A page with a failed portlet is not stored in the page cache.
+      if (status == FAILED) {
+         PageOutputCache.setUncacheable(pageContext.getRequest());
+      }
+
       // Continue to evaluate the tag body.
       return EVAL_BODY_INCLUDE;
    }
@@ -259,6 +311,23 @@ public class PortletTag extends BodyTagSupport {
       return evaluatedPortletId;
    }
 
+   /**
+    * Returns <code>true</code> if the window is to be rendered by the client after
+    * the page has been loaded. A maximized window and the window requested by the
+    * deferred render request are rendered with the page.
+    * 
+    * @param windowPlan  the plan of the window, or <code>null</code> if the page has no plan.
+    * @param windowState  the current window state.
+    * @param portletId  the portlet ID of the window.
+    * @param request  the portal request.
+    */
+   static boolean isDeferred(PagePlan.Window windowPlan, WindowState windowState, String portletId,
+         ServletRequest request) {
+      return windowPlan != null && windowPlan.isDeferred()
+            && !WindowState.MAXIMIZED.equals(windowState)
+            && !portletId.equals(request.getAttribute(AttributeKeys.DEFERRED_WINDOW));
+   }
+
    // Private Methods ---------------------------------------------------------
 
    /**
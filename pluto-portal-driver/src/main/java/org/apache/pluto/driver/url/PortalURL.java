@@ -132,6 +132,37 @@ public interface PortalURL extends Cloneable {
 
    Collection<PortalURLParameter> getParameters();
 
+   /**
+    * Returns the private parameters of the given type for the window. 
+    * The returned collection is read-only.
+    * 
+    * @param windowId
+    * @param type
+    * @return
+    */
+   Collection<PortalURLParameter> getParameters(String windowId, String type);
+
+   /**
+    * Returns the private parameter of the given type & name for the window. 
+    * 
+    * @param windowId
+    * @param name
+    * @param type
+    * @return  the parameter, or <code>null</code> if it is not set
+    */
+   PortalURLParameter getParameter(String windowId, String name, String type);
+
+   /**
+    * Returns the parameter version of the URL. The version changes whenever the 
+    * URL type, the private parameters, or the public render parameter mapper are 
+    * modified through this interface. Values set through the mapper itself are 
+    * tracked by the mapper version instead. It allows parameter maps derived from 
+    * the URL to be memoized.
+    * 
+    * @return  the parameter version
+    */
+   int getParameterVersion();
+
    Map<String, PortletMode> getPortletModes();
 
    PortletMode getPortletMode(String windowId);
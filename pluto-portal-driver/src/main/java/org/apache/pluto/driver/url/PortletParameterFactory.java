@@ -24,6 +24,8 @@ import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -70,6 +72,24 @@ public class PortletParameterFactory {
    
    private final PortletRequestContext reqctx;
    
+   // The parameter maps are memoized per window. The memoized maps are valid for the 
+   // URL parameter version, the PRP mapper version and the query parameters they were 
+   // computed for. They are discarded when the parameters are modified through this factory.
+   private final HashMap<Object, Map<String, String[]>> parameterMaps = 
+         new HashMap<Object, Map<String, String[]>>();
+   private final HashMap<Object, Map<String, String[]>> privateParameterMaps = 
+         new HashMap<Object, Map<String, String[]>>();
+   private final HashMap<Object, Map<String, String[]>> publicParameterMaps = 
+         new HashMap<Object, Map<String, String[]>>();
+   private final HashMap<Object, Map<String, String[]>> resourceRenderParameterMaps = 
+         new HashMap<Object, Map<String, String[]>>();
+   private final HashMap<Object, Map<String, String[]>> typedParameterMaps = 
+         new HashMap<Object, Map<String, String[]>>();
+   private int memoVersion = -1;
+   private PublicRenderParameterMapper memoMapper = null;
+   private int memoMapperVersion = -1;
+   private Map<String, List<String>> memoQueryParams = null;
+   
    public PortletParameterFactory(PortalURL url, PortletRequestContext reqctx) {
       this.url = url;
       this.reqctx = reqctx;
@@ -87,10 +107,17 @@ public class PortletParameterFactory {
     * 
     * Note that the  latter circumstance will only occur with V3.0 portlets.
     *  
+    * The returned map is read-only.
+    * 
     * @param windowId
     * @return
     */
    public Map<String, String[]> getParameterMap(String windowId) {
+      Map<String, String[]> memo = getMemo(parameterMaps, windowId);
+      if (memo != null) {
+         return memo;
+      }
+
       HashMap<String, String[]> parameters = new HashMap<String, String[]>();
       
       boolean isV3 = url.isVersion3(windowId);
@@ -106,38 +133,13 @@ public class PortletParameterFactory {
 
       // get the action or resource parameters
       
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) { 
-            if (pup.getType().equals(PARAM_TYPE_ACTION) || pup.getType().equals(PARAM_TYPE_RESOURCE)) {
-               if (parameters.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  parameters.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  parameters.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
-      }
+      mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_ACTION));
+      mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_RESOURCE));
       
       // Now merge in the render parameters if we're not dealing with a V2 action
 
       if (isV3 || !actionTypes.contains(url.getType())) {
-         for (PortalURLParameter pup : url.getParameters()) {
-            if (pup.getWindowId().equals(windowId)) {
-               if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-                  if (parameters.containsKey(pup.getName())) {
-                     ArrayList<String> vals = 
-                           new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                     vals.addAll(Arrays.asList(pup.getValues()));
-                     parameters.put(pup.getName(), vals.toArray(new String[0]));
-                  } else {
-                     parameters.put(pup.getName(), pup.getValues().clone());
-                  }
-               }
-            }
-         }
+         mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_RENDER));
       }
       
       // merge in the public render parameters
@@ -168,7 +170,7 @@ public class PortletParameterFactory {
          }
          LOGGER.trace(sb.toString());
       }
-      return parameters;
+      return putMemo(parameterMaps, windowId, parameters);
    }
 
    /**
@@ -181,10 +183,17 @@ public class PortletParameterFactory {
     * 
     * Note that the  latter circumstance will only occur with V3.0 portlets.
     *  
+    * The returned map is read-only.
+    * 
     * @param windowId
     * @return
     */
    public Map<String, String[]> getPrivateParameterMap(String windowId) {
+      Map<String, String[]> memo = getMemo(privateParameterMaps, windowId);
+      if (memo != null) {
+         return memo;
+      }
+
       HashMap<String, String[]> parameters = new HashMap<String, String[]>();
       
       boolean isV3 = url.isVersion3(windowId);
@@ -200,38 +209,13 @@ public class PortletParameterFactory {
 
       // get the action or resource parameters
       
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) { 
-            if (pup.getType().equals(PARAM_TYPE_ACTION) || pup.getType().equals(PARAM_TYPE_RESOURCE)) {
-               if (parameters.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  parameters.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  parameters.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
-      }
+      mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_ACTION));
+      mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_RESOURCE));
       
       // Now merge in the render parameters if we're not dealing with a V2 action
 
       if (isV3 || !actionTypes.contains(url.getType())) {
-         for (PortalURLParameter pup : url.getParameters()) {
-            if (pup.getWindowId().equals(windowId)) {
-               if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-                  if (parameters.containsKey(pup.getName())) {
-                     ArrayList<String> vals = 
-                           new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                     vals.addAll(Arrays.asList(pup.getValues()));
-                     parameters.put(pup.getName(), vals.toArray(new String[0]));
-                  } else {
-                     parameters.put(pup.getName(), pup.getValues().clone());
-                  }
-               }
-            }
-         }
+         mergeParameters(parameters, url.getParameters(windowId, PARAM_TYPE_RENDER));
       }
 
       if (isTrace) {
@@ -247,17 +231,24 @@ public class PortletParameterFactory {
          }
          LOGGER.trace(sb.toString());
       }
-      return parameters;
+      return putMemo(privateParameterMaps, windowId, parameters);
    }
    
    /**
     * Returns the active (= have been set) public render parameters for the
     * given window ID.
     *  
+    * The returned map is read-only.
+    * 
     * @param windowId
     * @return
     */
    public Map<String, String[]> getPublicParameterMap(String windowId) {
+      Map<String, String[]> memo = getMemo(publicParameterMaps, windowId);
+      if (memo != null) {
+         return memo;
+      }
+
       HashMap<String, String[]> parameters = new HashMap<String, String[]>();
 
       PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
@@ -273,30 +264,35 @@ public class PortletParameterFactory {
          LOGGER.debug("getPublicParameterMap returning " + parameters.size() + " parameters.");
       }
       
-      return parameters;
+      return putMemo(publicParameterMaps, windowId, parameters);
    }
 
    /**
     * This is a V2 method to get the private render parameter map during
     * a resource request.
     * 
+    * The returned map is read-only.
+    * 
     * @return
     */
    public Map<String, String[]> getResourceRenderParameterMap(String windowId) {
+      Map<String, String[]> memo = getMemo(resourceRenderParameterMaps, windowId);
+      if (memo != null) {
+         return memo;
+      }
+
       HashMap<String, String[]> parameters = new HashMap<String, String[]>();
 
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) {
-            if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-               parameters.put(pup.getName(), pup.getValues().clone());
-            }
-         }
+      for (PortalURLParameter pup : url.getParameters(windowId, PARAM_TYPE_RENDER)) {
+         parameters.put(pup.getName(), pup.getValues().clone());
       }
       
-      return parameters;
+      return putMemo(resourceRenderParameterMaps, windowId, parameters);
    }
 
    public void addPublicRenderParameter(String windowId, String name, String[] values) {
+      clearMemo();
+
       PublicRenderParameterMapper prpMapper = url.getPublicRenderParameterMapper();
       if (isTrace) {
          StringBuilder txt = new StringBuilder("Add PRP. Window: ");
@@ -317,6 +313,8 @@ public class PortletParameterFactory {
    }
 
    public void removePublicRenderParameter(String windowId, String name) {
+      clearMemo();
+
       PublicRenderParameterMapper prpMapper = url.getPublicRenderParameterMapper();
       if (isTrace) {
          StringBuilder txt = new StringBuilder("Remove PRP. Window: ");
@@ -361,8 +359,8 @@ public class PortletParameterFactory {
       
       // add the portlet parameter names
       
-      for (PortalURLParameter p : url.getParameters()) {
-         if (p.getWindowId().equals(windowId) && p.getType().equals(type)) {
+      if (type != null) {
+         for (PortalURLParameter p : url.getParameters(windowId, type)) {
             names.add(p.getName());
          }
       }
@@ -404,12 +402,10 @@ public class PortletParameterFactory {
          } else {
             LOGGER.debug("Public render parameter name not found in index.");
          }
-      } else {
-         for (PortalURLParameter p : url.getParameters()) {
-            if (p.getWindowId().equals(windowId)
-               && p.getName().equals(name) && p.getType().equals(type)) {
-               vals = p.getValues().clone();
-            }
+      } else if (type != null) {
+         PortalURLParameter p = url.getParameter(windowId, name, type);
+         if (p != null) {
+            vals = p.getValues().clone();
          }
       }
       
@@ -435,6 +431,8 @@ public class PortletParameterFactory {
     * V2 compatibility method.
     */
    public void setParameter(String windowId, String name, String[] values) {
+      clearMemo();
+
       String type = urlTypeMap.get(url.getType());
       
       if (isTrace) {
@@ -465,6 +463,8 @@ public class PortletParameterFactory {
     * (V3 Spec errata)
     */
    public void removeParameter(String windowId, String name) {
+      clearMemo();
+
       String type = urlTypeMap.get(url.getType());
       if (isTrace) {
          StringBuilder txt = new StringBuilder("Removing ");
@@ -489,6 +489,12 @@ public class PortletParameterFactory {
     * @return
     */
    public Map<String, String[]> getParameterMap(String windowId, String type) {
+      List<String> key = Arrays.asList(windowId, type);
+      Map<String, String[]> memo = getMemo(typedParameterMaps, key);
+      if (memo != null) {
+         return new HashMap<String, String[]>(memo);
+      }
+
       HashMap<String, String[]> params = new HashMap<String, String[]>();
       
       // add the query parameters, if any
@@ -517,20 +523,7 @@ public class PortletParameterFactory {
       }
 
       
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) {
-            if (pup.getType().equals(type)) {
-               if (params.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(params.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  params.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  params.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
-      }
+      mergeParameters(params, url.getParameters(windowId, type));
 
       if (type.equals(PARAM_TYPE_RENDER)) {
          
@@ -560,7 +553,8 @@ public class PortletParameterFactory {
          LOGGER.debug(txt.toString());
       }
 
-      return params;
+      putMemo(typedParameterMaps, key, params);
+      return new HashMap<String, String[]>(params);
    }
 
    /**
@@ -572,6 +566,8 @@ public class PortletParameterFactory {
     * @param values
     */
    public void setParameter(String windowId, String name, String type, String[] values) {
+      clearMemo();
+
 
       PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
       int index = mapper.getIndex(windowId, name);
@@ -603,6 +599,8 @@ public class PortletParameterFactory {
     * @param type
     */
    public void removeParameter(String windowId, String name, String type) {
+      clearMemo();
+
 
       PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
       int index = mapper.getIndex(windowId, name);
@@ -650,4 +648,68 @@ public class PortletParameterFactory {
 
       return names;
    }
+
+   /**
+    * Merges the parameter values into the map. The values of a parameter 
+    * already contained in the map are appended to the existing values.
+    * 
+    * @param parameters    the parameter map
+    * @param pups          the parameters to merge
+    */
+   private void mergeParameters(Map<String, String[]> parameters, Collection<PortalURLParameter> pups) {
+      for (PortalURLParameter pup : pups) {
+         if (parameters.containsKey(pup.getName())) {
+            ArrayList<String> vals = 
+                  new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
+            vals.addAll(Arrays.asList(pup.getValues()));
+            parameters.put(pup.getName(), vals.toArray(new String[0]));
+         } else {
+            parameters.put(pup.getName(), pup.getValues().clone());
+         }
+      }
+   }
+
+   /**
+    * Returns the memoized parameter map, or <code>null</code> if none is available. 
+    * All memoized maps are discarded if the URL parameters, the public render 
+    * parameters or the query parameters have changed since they were computed. 
+    * The PRP mapper is shared by all factories for the URL and may be modified 
+    * directly, so its version is checked as well.
+    */
+   private Map<String, String[]> getMemo(HashMap<Object, Map<String, String[]>> maps, Object key) {
+      int version = url.getParameterVersion();
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      int mapperVersion = (mapper == null) ? -1 : mapper.getVersion();
+      Map<String, List<String>> queryParams = reqctx.getQueryParams();
+      if (version != memoVersion || mapper != memoMapper || mapperVersion != memoMapperVersion
+            || queryParams != memoQueryParams) {
+         clearMemo();
+         memoVersion = version;
+         memoMapper = mapper;
+         memoMapperVersion = mapperVersion;
+         memoQueryParams = queryParams;
+      }
+      return maps.get(key);
+   }
+
+   /**
+    * Memoizes the parameter map and returns a read-only view of it.
+    */
+   private Map<String, String[]> putMemo(HashMap<Object, Map<String, String[]>> maps, Object key, 
+         Map<String, String[]> parameters) {
+      Map<String, String[]> memo = Collections.unmodifiableMap(parameters);
+      maps.put(key, memo);
+      return memo;
+   }
+
+   /**
+    * Discards the memoized parameter maps.
+    */
+   private void clearMemo() {
+      parameterMaps.clear();
+      privateParameterMaps.clear();
+      publicParameterMaps.clear();
+      resourceRenderParameterMaps.clear();
+      typedParameterMaps.clear();
+   }
 }
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pluto.driver.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON text directly to a writer.
+ * <p>
+ * Names and string values are escaped as required by RFC 8259. In addition, the
+ * characters <code>&lt;</code>, <code>&gt;</code>, <code>&amp;</code> and
+ * <code>'</code> as well as the line and paragraph separators are written as
+ * unicode escapes, so that the output can be embedded in HTML script elements.
+ * The writer inserts the separators between members and array elements, but
+ * does not check that the calls produce a well-formed document.
+ */
+public class JSONWriter {
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   private final Writer out;
+
+   // For each nesting level, whether the next member or element is the first one
+   private boolean[] first = new boolean[16];
+   private int depth = 0;
+   private boolean afterName = false;
+
+   /**
+    * Creates a JSON writer.
+    *
+    * @param out  the writer to which the JSON text is written
+    */
+   public JSONWriter(Writer out) {
+      this.out = out;
+      first[0] = true;
+   }
+
+   public JSONWriter beginObject() throws IOException {
+      separate();
+      out.write('{');
+      push();
+      return this;
+   }
+
+   public JSONWriter endObject() throws IOException {
+      depth--;
+      out.write('}');
+      return this;
+   }
+
+   public JSONWriter beginArray() throws IOException {
+      separate();
+      out.write('[');
+      push();
+      return this;
+   }
+
+   public JSONWriter endArray() throws IOException {
+      depth--;
+      out.write(']');
+      return this;
+   }
+
+   /**
+    * Writes the name of an object member. The value must be written next.
+    */
+   public JSONWriter name(String name) throws IOException {
+      separate();
+      string(name);
+      out.write(':');
+      afterName = true;
+      return this;
+   }
+
+   /**
+    * Writes a string value, or <code>null</code>.
+    */
+   public JSONWriter value(String value) throws IOException {
+      separate();
+      if (value == null) {
+         out.write("null");
+      } else {
+         string(value);
+      }
+      return this;
+   }
+
+   /**
+    * Writes a boolean value.
+    */
+   public JSONWriter value(boolean value) throws IOException {
+      separate();
+      out.write(value ? "true" : "false");
+      return this;
+   }
+
+   /**
+    * Writes a value that has already been serialized, for instance by another
+    * JSON writer.
+    */
+   public JSONWriter jsonValue(String json) throws IOException {
+      separate();
+      out.write(json);
+      return this;
+   }
+
+   /**
+    * Writes the string values as an array.
+    */
+   public JSONWriter array(Iterable<?> values) throws IOException {
+      beginArray();
+      for (Object value : values) {
+         value((value == null) ? null : value.toString());
+      }
+      return endArray();
+   }
+
+   /**
+    * Writes one or more object members that have already been serialized, for
+    * instance by another JSON writer.
+    */
+   public JSONWriter members(String json) throws IOException {
+      if (json.length() > 0) {
+         separate();
+         out.write(json);
+      }
+      return this;
+   }
+
+   public JSONWriter flush() throws IOException {
+      out.flush();
+      return this;
+   }
+
+   /**
+    * Returns the string escaped for use in JSON text, without quotes.
+    */
+   public static String escape(String str) {
+      StringBuilder sb = new StringBuilder(str.length() + 16);
+      for (int ii = 0; ii < str.length(); ii++) {
+         char c = str.charAt(ii);
+         String esc = getEscape(c);
+         if (esc != null) {
+            sb.append(esc);
+         } else if (mustEscape(c)) {
+            appendUnicode(sb, c);
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.toString();
+   }
+
+   private void push() {
+      if (++depth == first.length) {
+         boolean[] tmp = new boolean[first.length * 2];
+         System.arraycopy(first, 0, tmp, 0, first.length);
+         first = tmp;
+      }
+      first[depth] = true;
+   }
+
+   private void separate() throws IOException {
+      if (afterName) {
+         afterName = false;
+      } else {
+         if (!first[depth]) {
+            out.write(',');
+         }
+         first[depth] = false;
+      }
+   }
+
+   private void string(String str) throws IOException {
+      out.write('"');
+      int start = 0;
+      int len = str.length();
+      for (int ii = 0; ii < len; ii++) {
+         char c = str.charAt(ii);
+         String esc = getEscape(c);
+         if (esc != null || mustEscape(c)) {
+            out.write(str, start, ii - start);
+            if (esc != null) {
+               out.write(esc);
+            } else {
+               StringBuilder sb = new StringBuilder(6);
+               appendUnicode(sb, c);
+               out.write(sb.toString());
+            }
+            start = ii + 1;
+         }
+      }
+      out.write(str, start, len - start);
+      out.write('"');
+   }
+
+   private static String getEscape(char c) {
+      switch (c) {
+      case '"':
+         return "\\\"";
+      case '\\':
+         return "\\\\";
+      case '\n':
+         return "\\n";
+      case '\r':
+         return "\\r";
+      case '\t':
+         return "\\t";
+      case '\b':
+         return "\\b";
+      case '\f':
+         return "\\f";
+      default:
+         return null;
+      }
+   }
+
+   private static boolean mustEscape(char c) {
+      return c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\'' || c == '\u2028' || c == '\u2029';
+   }
+
+   private static void appendUnicode(StringBuilder sb, char c) {
+      sb.append("\\u");
+      sb.append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]);
+      sb.append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+   }
+}
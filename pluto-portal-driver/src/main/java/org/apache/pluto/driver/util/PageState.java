@@ -18,7 +18,13 @@
 
 package org.apache.pluto.driver.util;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,11 +37,11 @@ import javax.portlet.WindowState;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
 import org.apache.pluto.driver.core.PortalRequestContext;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.PortalURLParameter;
@@ -58,6 +64,7 @@ public class PageState {
    private CsrfToken                        csrfToken;
    private DriverConfiguration              drvrConfig;
    private PageConfig                       pageConfig;
+   private PagePlan                         pagePlan;
    private PortalRequestContext             portalRC;
    private PortalURL                        portalUrl;
    private ServletContext                   servletContext;
@@ -74,6 +81,7 @@ public class PageState {
       drvrConfig = (DriverConfiguration) portalRC.getServletContext().getAttribute(AttributeKeys.DRIVER_CONFIG);
       servletContext = portalRC.getServletContext();
       pageConfig = portalUrl.getPageConfig(servletContext);
+      pagePlan = drvrConfig.getPagePlan(portalUrl.getRenderPath());
       csrfToken = (CsrfToken) request.getAttribute(CsrfToken.class.getName());
    }
 
@@ -193,7 +201,7 @@ public class PageState {
          Enumeration<String> prps = pc.getPublicRenderParameterNames();
          while (prps.hasMoreElements()) {
             String prp = prps.nextElement();
-            prpstring.append(sep + "\"" + prp + "\"");
+            prpstring.append(sep + "\"" + JSONWriter.escape(prp) + "\"");
             sep = ",";
          }
       } catch (Exception e) {
@@ -210,14 +218,10 @@ public class PageState {
     */
    public String getPortletModesAsString(String portletId) {
       StringBuffer pmstring = new StringBuffer();
-      try {
-         Set<PortletMode> allowedPMs = drvrConfig.getSupportedPortletModes(portletId);
-         String sep = "";
-         for (PortletMode pm : allowedPMs) {
-            pmstring.append(sep + "\"" + pm.toString() + "\"");
-            sep = ",";
-         }
-      } catch (Exception e) {
+      String sep = "";
+      for (PortletMode pm : getSupportedPortletModes(portletId)) {
+         pmstring.append(sep + "\"" + JSONWriter.escape(pm.toString()) + "\"");
+         sep = ",";
       }
       return pmstring.toString();
    }
@@ -231,14 +235,10 @@ public class PageState {
     */
    public String getWindowStatesAsString(String portletId) {
       StringBuffer wsstring = new StringBuffer();
-      try {
-         Set<WindowState> allowedWSs = drvrConfig.getSupportedWindowStates(portletId, "text/html");
-         String sep = "";
-         for (WindowState ws : allowedWSs) {
-            wsstring.append(sep + "\"" + ws.toString() + "\"");
-            sep = ",";
-         }
-      } catch (Exception e) {
+      String sep = "";
+      for (WindowState ws : getSupportedWindowStates(portletId)) {
+         wsstring.append(sep + "\"" + JSONWriter.escape(ws.toString()) + "\"");
+         sep = ",";
       }
       return wsstring.toString();
    }
@@ -280,119 +280,320 @@ public class PageState {
     * @return JSON string representing the current page state
     */
    public String toJSONString() {
-      StringBuffer json = new StringBuffer(1024);
-      json.append("{\"portlets\":{");
+      StringWriter json = new StringWriter(1024);
+      try {
+         writeJSON(json);
+      } catch (IOException e) {
+         // cannot happen with a string writer
+         throw new IllegalStateException(e);
+      }
+
+      if (LOGGER.isDebugEnabled()) {
+         LOGGER.debug("Resulting json string:\n   " + json);
+      }
+
+      return json.toString();
+   }
+
+   /**
+    * Writes the page state needed by the portlet hub as JSON text to the writer. The
+    * text can be embedded in an HTML script element as it is.
+    * 
+    * @param out
+    *           the writer, for example the response writer
+    * @throws IOException
+    */
+   public void writeJSON(Writer out) throws IOException {
+      writeJSON(out, null);
+   }
+
+   /**
+    * Writes the page state needed by the portlet hub as JSON text to the writer. If a
+    * snapshot of the render states is given, only the portlets whose render state differs
+    * from the snapshot or that have render data are written, and the public render
+    * parameter map is left out. Such a delta is marked by the <code>delta</code> property.
+    * The delta must only be applied by a client whose page state has the same version.
+    * 
+    * @param out
+    *           the writer, for example the response writer
+    * @param snapshot
+    *           the render states returned by {@link #getStateSnapshot()} for the page
+    *           state the client holds, or <code>null</code> to write the full page state
+    * @throws IOException
+    */
+   public void writeJSON(Writer out, Map<String, String> snapshot) throws IOException {
+      JSONWriter json = new JSONWriter(out);
+      json.beginObject();
+      json.name("version").value(getVersion());
+      if (snapshot != null) {
+         json.name("delta").value(true);
+      }
+      json.name("portlets").beginObject();
 
       Collection<PortalURLParameter> pups = getParameters();
       PublicRenderParameterMapper mapper = portalUrl.getPublicRenderParameterMapper();
 
-      boolean sep = false;
       for (String pid : getPortletIds()) {
-         if (sep) {
-            json.append(",");
-         }
-         sep = true;
-         json.append("\"" + getNameSpace(pid) + "\":{");
-         json.append("\"state\":{");
-         json.append("\"parameters\":{");
-
-         // Add the portlet parameters
-         String c1 = "\"";
-         for (PortalURLParameter pup : pups) {
-            if (pup.getWindowId().equals(pid)) {
-               json.append(c1 + pup.getName() + "\":[");
-               String c2 = "";
-               for (String val : pup.getValues()) {
-                  json.append(c2 + "\"" + val + "\"");
-                  c2 = ",";
-               }
-               json.append("]");
-               c1 = ",\"";
+         String state = null;
+         if (snapshot != null) {
+            state = getState(pid, pups, mapper);
+            if (state.equals(snapshot.get(pid)) && (renderDataMap == null || !renderDataMap.containsKey(pid))) {
+               continue;
             }
          }
 
-         // Add the public render parameter values for this portlet
-
-         for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, true)) {
-            json.append(c1 + prp.getName() + "\":[");
-            String c2 = "";
-            for (String val : prp.getValues()) {
-               json.append(c2 + " \"" + val + "\"");
-               c2 = ",";
-            }
-            json.append("]");
-            c1 = ",\"";
+         WindowData wd = getWindowData(pid);
+         json.name(wd.namespace).beginObject();
+         json.name("state");
+         if (state != null) {
+            json.jsonValue(state);
+         } else {
+            writeState(json, pid, pups, mapper);
          }
 
-         json.append("}, ");
-         json.append("\"portletMode\":\"" + getPortletMode(pid) + "\",");
-         json.append("\"windowState\":\"" + getWindowState(pid) + "\"");
-         json.append("},");
-         json.append("\"pubParms\":{");
-
-         String c2 = "";
+         json.name("pubParms").beginObject();
          for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, false)) {
-            int group = mapper.getIndex(prp);
-            json.append(c2);
-            json.append("\"");
-            json.append(prp.getName());
-            json.append("\":\"");
-            json.append(String.valueOf(group));
-            json.append("\"");
-            c2 = ",";
+            json.name(prp.getName()).value(String.valueOf(mapper.getIndex(prp)));
          }
-         json.append("},");
+         json.endObject();
 
-         json.append("\"allowedPM\":[" + getPortletModesAsString(pid) + "],");
-         json.append("\"allowedWS\":[" + getWindowStatesAsString(pid) + "],");
-         json.append("\"renderData\":{");
+         json.members(wd.members);
 
+         json.name("renderData").beginObject();
          RenderData renderData = null;
          if (renderDataMap != null) {
             renderData = renderDataMap.get(pid);
          }
          if (renderData == null) {
-            json.append("\"content\":null,");
-            json.append("\"mimeType\":\"text/plain\"");
+            json.name("content").value(null);
+            json.name("mimeType").value("text/plain");
          } else {
-            json.append("\"content\":\"");
-            String content = StringEscapeUtils.escapeJson(renderData.getContent());
-            json.append(content);
-            json.append("\",");
-            json.append("\"mimeType\":\"");
-            json.append(renderData.getContentType());
-            json.append("\"");
+            json.name("content").value(renderData.getContent());
+            json.name("mimeType").value(renderData.getContentType());
+         }
+         json.endObject();
+         json.name("urlpid").value(pid);
+         json.endObject();
+      }
+      json.endObject();
+
+      if (snapshot == null) {
+         writePRPMap(json, mapper);
+      }
+      json.endObject();
+   }
+
+   /**
+    * Returns the render state of each portlet on the page as JSON text, by portlet ID.
+    * A snapshot taken before an action can be passed to {@link #writeJSON(Writer, Map)}
+    * to write only the portlets whose render state was changed by the action.
+    * 
+    * @return the render states by portlet ID
+    */
+   public Map<String, String> getStateSnapshot() {
+      Collection<PortalURLParameter> pups = getParameters();
+      PublicRenderParameterMapper mapper = portalUrl.getPublicRenderParameterMapper();
+      Map<String, String> snapshot = new HashMap<String, String>();
+      for (String pid : getPortletIds()) {
+         snapshot.put(pid, getState(pid, pups, mapper));
+      }
+      return snapshot;
+   }
+
+   /**
+    * Returns the render state of each portlet on the page if the client holds the
+    * current version of the page state.
+    * 
+    * @param version
+    *           the page state version held by the client
+    * @return the render states by portlet ID, or <code>null</code> if the version
+    *         is not current and the client needs the full page state
+    */
+   public Map<String, String> getStateSnapshot(String version) {
+      return getVersion().equals(version) ? getStateSnapshot() : null;
+   }
+
+   /**
+    * Returns the version of the page state. The version identifies the parts of the
+    * page state that do not change with the render state: the portlets on the page,
+    * their allowed portlet modes and window states, and the public render parameter
+    * map. A client may only apply a delta of the same version. The version is cached
+    * on the page plan.
+    * 
+    * @return the page state version
+    */
+   public String getVersion() {
+      String version = (pagePlan == null) ? null : pagePlan.getPageStateVersion();
+      if (version == null) {
+         PublicRenderParameterMapper mapper = portalUrl.getPublicRenderParameterMapper();
+         StringWriter structure = new StringWriter(1024);
+         try {
+            JSONWriter json = new JSONWriter(structure);
+            json.beginObject();
+            for (String pid : getPortletIds()) {
+               WindowData wd = getWindowData(pid);
+               json.name(wd.namespace).beginObject();
+               json.name("urlpid").value(pid);
+               json.members(wd.members);
+               json.name("pubParms").beginObject();
+               for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, false)) {
+                  json.name(prp.getName()).value(String.valueOf(mapper.getIndex(prp)));
+               }
+               json.endObject();
+               json.endObject();
+            }
+            writePRPMap(json, mapper);
+            json.endObject();
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         }
+         version = hash(structure.toString());
+         if (pagePlan != null) {
+            pagePlan.setPageStateVersion(version);
+         }
+      }
+      return version;
+   }
+
+   /**
+    * Returns the render state of the portlet as JSON text.
+    */
+   private String getState(String pid, Collection<PortalURLParameter> pups, PublicRenderParameterMapper mapper) {
+      StringWriter state = new StringWriter(128);
+      try {
+         writeState(new JSONWriter(state), pid, pups, mapper);
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+      return state.toString();
+   }
+
+   /**
+    * Writes the render state of the portlet: the parameters, including the public
+    * render parameters, the portlet mode and the window state.
+    */
+   private void writeState(JSONWriter json, String pid, Collection<PortalURLParameter> pups,
+         PublicRenderParameterMapper mapper) throws IOException {
+      json.beginObject();
+      json.name("parameters").beginObject();
+
+      // Add the portlet parameters
+      for (PortalURLParameter pup : pups) {
+         if (pup.getWindowId().equals(pid)) {
+            json.name(pup.getName()).beginArray();
+            for (String val : pup.getValues()) {
+               json.value(val);
+            }
+            json.endArray();
+         }
+      }
+
+      // Add the public render parameter values for this portlet
+
+      for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, true)) {
+         json.name(prp.getName()).beginArray();
+         for (String val : prp.getValues()) {
+            json.value(val);
          }
-         json.append("},");
-         json.append("\"urlpid\":\"" + pid + "\"");
-         json.append("}");
+         json.endArray();
       }
 
-      json.append("},\"prpMap\":{");
-      String sep1 = "";
+      json.endObject();
+      json.name("portletMode").value(getPortletMode(pid));
+      json.name("windowState").value(getWindowState(pid));
+      json.endObject();
+   }
+
+   private void writePRPMap(JSONWriter json, PublicRenderParameterMapper mapper) throws IOException {
+      json.name("prpMap").beginObject();
       for (int ii = 0; ii < mapper.getNumberOfGroups(); ii++) {
-         json.append(sep1).append("\"").append(String.valueOf(ii)).append("\":{");
-         sep1 = ",";
-         String sep2 = "";
+         json.name(String.valueOf(ii)).beginObject();
          for (PortalURLPublicParameter prp : mapper.getPublicParameterGroup(ii)) {
-            json.append(sep2).append("\"").append(getNameSpace(prp.getWindowId())).append("\":\"").append(prp.getName()).append("\"");
-            sep2 = ",";
+            json.name(getWindowData(prp.getWindowId()).namespace).value(prp.getName());
          }
-         json.append("}");
+         json.endObject();
       }
-      json.append("}}");
+      json.endObject();
+   }
 
-      if (LOGGER.isDebugEnabled()) {
-         LOGGER.debug("Resulting json string:\n   " + json);
+   private static String hash(String text) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"));
+         StringBuilder hex = new StringBuilder(16);
+         for (int ii = 0; ii < 8; ii++) {
+            hex.append(Character.forDigit((digest[ii] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(digest[ii] & 0xf, 16));
+         }
+         return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
       }
+   }
 
-      return json.toString();
+   /**
+    * Returns the namespace and the allowed portlet modes and window states of the
+    * window. The modes and states are computed once for each window of the page plan
+    * and cached on the window plan. For windows that are not in the plan, they are
+    * computed on each call.
+    */
+   private WindowData getWindowData(String pid) {
+      PagePlan.Window win = (pagePlan == null) ? null : pagePlan.getWindow(pid);
+      String members = (win == null) ? null : win.getPageStateMembers();
+      if (members == null) {
+         StringWriter out = new StringWriter(128);
+         try {
+            JSONWriter json = new JSONWriter(out);
+            json.beginObject();
+            json.name("allowedPM").array(getSupportedPortletModes(pid));
+            json.name("allowedWS").array(getSupportedWindowStates(pid));
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         }
+         members = out.toString().substring(1);
+         if (win != null) {
+            win.setPageStateMembers(members);
+         }
+      }
+      return new WindowData(getNameSpace(pid), members);
+   }
+
+   private Set<PortletMode> getSupportedPortletModes(String portletId) {
+      try {
+         PagePlan.Window win = (pagePlan == null) ? null : pagePlan.getWindow(portletId);
+         Set<PortletMode> pms = (win != null && win.getSupportedPortletModes() != null) ? 
+               win.getSupportedPortletModes() : drvrConfig.getSupportedPortletModes(portletId);
+         if (pms != null) {
+            return pms;
+         }
+      } catch (Exception e) {
+      }
+      return Collections.emptySet();
+   }
+
+   private Set<WindowState> getSupportedWindowStates(String portletId) {
+      try {
+         PagePlan.Window win = (pagePlan == null) ? null : pagePlan.getWindow(portletId);
+         Set<WindowState> wss = (win != null && win.getSupportedWindowStates() != null) ? 
+               win.getSupportedWindowStates() : drvrConfig.getSupportedWindowStates(portletId, "text/html");
+         if (wss != null) {
+            return wss;
+         }
+      } catch (Exception e) {
+      }
+      return Collections.emptySet();
    }
 
    /**
     * This method returns the json string encoded in a manner compatible with
     * the decodeUriComponent JavaScript decode function on the client. Encoding is only
     * performed if json contains dangerous characters.
+    * <p>
+    * Since the JSON text produced by {@link #writeJSON(Writer)} escapes the '&lt;'
+    * character, the string is no longer changed. Themes should write the JSON text into
+    * a script element with {@link #writeJSON(Writer)} rather than embed this string in a
+    * JavaScript string literal.
     * 
     * @return The encoded json string representing the page state.
     */
@@ -420,4 +621,17 @@ public class PageState {
       
       return ejson;
    }
+
+   /**
+    * The namespace of a window and its serialized allowed modes and states.
+    */
+   private static class WindowData {
+      private final String namespace;
+      private final String members;
+
+      private WindowData(String namespace, String members) {
+         this.namespace = namespace;
+         this.members = members;
+      }
+   }
 }
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Measures the throughput and the bytes saved by the compression filter for
+ * each compression level and buffer size. Not run as part of the test suite.
+ * <p>
+ * Usage: <code>CompressionBenchmark [file ...]</code>. Without arguments, the
+ * scripts and style sheets of the pluto-portal module are compressed. The
+ * content is written in chunks of 512 bytes with a flush after every 16 chunks,
+ * similar to a streamed portal page.
+ */
+public class CompressionBenchmark {
+
+    private static final String[] DEFAULT_FILES = {
+            "../pluto-portal/src/main/webapp/javascript/portlet.js",
+            "../pluto-portal/src/main/webapp/javascript/portletHubImpl.js",
+            "../pluto-portal/src/main/webapp/css/pluto.css" };
+
+    private static final int[] BUFFER_SIZES = { 512, 8192 };
+    private static final int CHUNK = 512;
+    private static final int FLUSH_INTERVAL = 16;
+    private static final long DURATION = 500;
+
+    public static void main(String[] args) throws IOException {
+        List<byte[]> contents = new ArrayList<byte[]>();
+        long total = 0;
+        for (String name : (args.length > 0) ? args : DEFAULT_FILES) {
+            byte[] content = FileUtils.readFileToByteArray(new File(name));
+            contents.add(content);
+            total += content.length;
+        }
+
+        System.out.println("Uncompressed bytes: " + total);
+        System.out.println("level  buffer  compressed  saved %   MB/s");
+        for (int bufferSize : BUFFER_SIZES) {
+            for (int level = Deflater.BEST_SPEED; level <= Deflater.BEST_COMPRESSION; level++) {
+
+                // warm up, then compress repeatedly for a fixed time
+                long compressed = compress(contents, level, bufferSize);
+                int runs = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    compress(contents, level, bufferSize);
+                    runs++;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < DURATION * 1000000L);
+
+                double mbs = (total * (double) runs / (1024 * 1024)) / (elapsed / 1e9);
+                double saved = 100.0 * (total - compressed) / total;
+                System.out.println(String.format("%5d  %6d  %10d  %7.1f  %6.1f", level, bufferSize, compressed, saved, mbs));
+            }
+        }
+    }
+
+    private static long compress(List<byte[]> contents, int level, int bufferSize) throws IOException {
+        long compressed = 0;
+        for (byte[] content : contents) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length);
+            Deflater deflater = new Deflater(level, true);
+            OutputStream out = new DeflaterOutputStream(bytes, deflater, bufferSize, true);
+            for (int off = 0, chunk = 1; off < content.length; off += CHUNK, chunk++) {
+                out.write(content, off, Math.min(CHUNK, content.length - off));
+                if (chunk % FLUSH_INTERVAL == 0) {
+                    out.flush();
+                }
+            }
+            ((DeflaterOutputStream) out).finish();
+            deflater.end();
+            compressed += bytes.size();
+        }
+        return compressed;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.pluto.driver.core.CompressingResponse;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the content encoding negotiation and the compressing response.
+ */
+public class CompressionFilterTest extends MockObjectTestCase {
+
+    private static final List<String> TYPES = Arrays.asList(CompressionFilter.DEFAULT_COMPRESSIBLE_TYPES.split(","));
+
+    /** The default types and pages, as configured by a portal whose pages contain no secrets */
+    private static final List<String> PAGE_TYPES = new ArrayList<String>(TYPES);
+    static {
+        PAGE_TYPES.add("text/html");
+    }
+
+    private Mock mockResponse;
+    private ByteArrayOutputStream body;
+    private WriteListener listener;
+    private boolean ready;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        body = new ByteArrayOutputStream();
+        ready = true;
+        ServletOutputStream out = new ServletOutputStream() {
+            public void write(int b) {
+                body.write(b);
+            }
+
+            public boolean isReady() {
+                return ready;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {
+                listener = writeListener;
+            }
+        };
+        mockResponse = mock(HttpServletResponse.class);
+        mockResponse.stubs().method("getOutputStream").will(returnValue(out));
+        mockResponse.stubs().method("getCharacterEncoding").will(returnValue("UTF-8"));
+        mockResponse.stubs().method("isCommitted").will(returnValue(false));
+        mockResponse.stubs().method("setHeader");
+        mockResponse.stubs().method("addHeader");
+        mockResponse.stubs().method("setContentLengthLong");
+    }
+
+    private CompressingResponse createResponse(String contentType, String encoding) {
+        mockResponse.stubs().method("getContentType").will(returnValue(contentType));
+        return new CompressingResponse((HttpServletResponse) mockResponse.proxy(), encoding, 6, 512, 1024, PAGE_TYPES);
+    }
+
+    private static String markup(int length) {
+        StringBuilder markup = new StringBuilder(length);
+        while (markup.length() < length) {
+            markup.append("<div class='portlet'>").append(markup.length()).append("</div>\n");
+        }
+        return markup.toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return IOUtils.toString(in, "UTF-8");
+    }
+
+    public void testNegotiation() {
+        assertNull(CompressionFilter.negotiate(null));
+        assertNull(CompressionFilter.negotiate("identity"));
+        assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", CompressionFilter.negotiate("*"));
+        assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+    }
+
+    public void testCompressibleTypes() {
+        assertFalse(CompressingResponse.isCompressible("text/html; charset=UTF-8", TYPES));
+        assertTrue(CompressingResponse.isCompressible("text/html; charset=UTF-8", PAGE_TYPES));
+        assertTrue(CompressingResponse.isCompressible("text/css", TYPES));
+        assertTrue(CompressingResponse.isCompressible("application/javascript", TYPES));
+        assertFalse(CompressingResponse.isCompressible("image/png", TYPES));
+        assertFalse(CompressingResponse.isCompressible(null, TYPES));
+    }
+
+    public void testPrecompressibleResources() {
+        Set<String> exts = new HashSet<String>(Arrays.asList(CompressionFilter.DEFAULT_PRECOMPRESSED_EXTENSIONS.split(",")));
+        assertTrue(CompressionFilter.isPrecompressible("/javascript/portlet.js", exts));
+        assertTrue(CompressionFilter.isPrecompressible("/css/pluto.CSS", exts));
+        assertFalse(CompressionFilter.isPrecompressible("/javascript/portlet.js.gz", exts));
+        assertFalse(CompressionFilter.isPrecompressible("/portal/about", exts));
+        assertFalse(CompressionFilter.isPrecompressible("/js.d/readme", exts));
+        assertFalse(CompressionFilter.isPrecompressible("/", exts));
+    }
+
+    public void testLargeResponseIsCompressed() throws Exception {
+        mockResponse.expects(once()).method("setHeader").with(eq("Content-Encoding"), eq("gzip"));
+        mockResponse.expects(once()).method("setHeader").with(eq("ETag"), eq("W/\"abc\""));
+        CompressingResponse response = createResponse("text/html", CompressingResponse.GZIP);
+        response.setHeader("ETag", "\"abc\"");
+        response.setContentLength(5000);
+        String markup = markup(5000);
+        PrintWriter writer = response.getWriter();
+        writer.write(markup);
+        response.finish();
+
+        assertTrue(response.isCompressing());
+        assertTrue(body.size() < markup.length() / 2);
+        assertEquals(markup, read(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))));
+    }
+
+    public void testSmallResponseIsNotCompressed() throws Exception {
+        mockResponse.expects(never()).method("setHeader").with(eq("Content-Encoding"), ANYTHING);
+        mockResponse.expects(once()).method("setContentLengthLong").with(eq(100L));
+        CompressingResponse response = createResponse("text/html", CompressingResponse.GZIP);
+        response.setContentLength(100);
+        String markup = markup(100).substring(0, 100);
+        response.getWriter().write(markup);
+        response.finish();
+
+        assertFalse(response.isCompressing());
+        assertEquals(markup, body.toString("UTF-8"));
+    }
+
+    public void testIncompressibleTypeIsNotCompressed() throws Exception {
+        mockResponse.expects(never()).method("setHeader").with(eq("Content-Encoding"), ANYTHING);
+        CompressingResponse response = createResponse("image/png", CompressingResponse.GZIP);
+        byte[] content = markup(5000).getBytes("UTF-8");
+        response.getOutputStream().write(content);
+        response.finish();
+
+        assertFalse(response.isCompressing());
+        assertTrue(Arrays.equals(content, body.toByteArray()));
+    }
+
+    public void testFlushSendsCompressedOutput() throws Exception {
+        mockResponse.expects(once()).method("setHeader").with(eq("Content-Encoding"), eq("deflate"));
+        CompressingResponse response = createResponse("text/html", CompressingResponse.DEFLATE);
+        PrintWriter writer = response.getWriter();
+        writer.write("<head></head>");
+        writer.flush();
+
+        // the flushed output can be decompressed before the response is complete
+        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(body.toByteArray()));
+        byte[] head = new byte[13];
+        assertEquals(13, IOUtils.read(in, head));
+        assertEquals("<head></head>", new String(head, "UTF-8"));
+
+        writer.write("<body></body>");
+        response.finish();
+        assertEquals("<head></head><body></body>", read(new InflaterInputStream(new ByteArrayInputStream(body.toByteArray()))));
+    }
+
+    public void testNonBlockingResponseIsNotCompressed() throws Exception {
+        mockResponse.expects(never()).method("setHeader").with(eq("Content-Encoding"), ANYTHING);
+        CompressingResponse response = createResponse("text/html", CompressingResponse.GZIP);
+        ServletOutputStream out = response.getOutputStream();
+        out.write("<head></head>".getBytes("UTF-8"));
+        WriteListener writeListener = new WriteListener() {
+            public void onWritePossible() {
+            }
+
+            public void onError(Throwable t) {
+            }
+        };
+        out.setWriteListener(writeListener);
+        assertSame(writeListener, listener);
+        assertEquals("<head></head>", body.toString("UTF-8"));
+
+        ready = false;
+        assertFalse(out.isReady());
+        ready = true;
+        assertTrue(out.isReady());
+
+        String markup = markup(5000);
+        out.write(markup.getBytes("UTF-8"));
+        response.finish();
+        assertFalse(response.isCompressing());
+        assertEquals("<head></head>" + markup, body.toString("UTF-8"));
+    }
+
+    public void testNonBlockingIOAfterCompressedOutputIsRejected() throws Exception {
+        CompressingResponse response = createResponse("text/html", CompressingResponse.GZIP);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(markup(5000).getBytes("UTF-8"));
+        assertTrue(response.isCompressing());
+        try {
+            out.setWriteListener(null);
+            fail("Exception should have been thrown.");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the rendering of a single deferred window.
+ */
+public class DeferredRenderTest extends MockObjectTestCase {
+
+    private PortalDriverServlet servlet;
+    private PageConfig page;
+    private String pid;
+    private Mock mockRequest;
+    private Mock mockResponse;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        servlet = new PortalDriverServlet();
+        page = new PageConfig();
+        page.setName("Test Page");
+        page.addPortlet("/app", "Portlet", null, "true");
+        pid = page.getPortletIds().iterator().next();
+        mockRequest = mock(HttpServletRequest.class);
+        mockResponse = mock(HttpServletResponse.class);
+    }
+
+    public void testWindowIsRenderedWithSkin() throws Exception {
+        Mock mockDispatcher = mock(RequestDispatcher.class);
+        mockDispatcher.expects(once()).method("forward")
+                .with(same(mockRequest.proxy()), same(mockResponse.proxy()));
+        mockRequest.expects(once()).method("setAttribute").with(eq(AttributeKeys.CURRENT_PAGE), same(page));
+        mockRequest.expects(once()).method("setAttribute").with(eq(AttributeKeys.DEFERRED_WINDOW), eq(pid));
+        mockRequest.expects(once()).method("setAttribute").with(eq("portlet"), eq(pid));
+        mockRequest.expects(once()).method("getRequestDispatcher")
+                .with(eq(PortalDriverServlet.DEFAULT_DEFERRED_URI)).will(returnValue(mockDispatcher.proxy()));
+        mockResponse.expects(once()).method("setContentType").with(eq("text/html;charset=UTF-8"));
+        mockResponse.expects(once()).method("setHeader").with(eq("Vary"), eq(PortalDriverServlet.DEFERRED_HEADER));
+        mockResponse.expects(once()).method("setHeader").with(eq("Cache-Control"), eq("no-cache"));
+
+        servlet.doDeferredRender((HttpServletRequest) mockRequest.proxy(),
+                (HttpServletResponse) mockResponse.proxy(), page, pid);
+    }
+
+    public void testUnknownWindowIsNotFound() throws Exception {
+        mockResponse.expects(once()).method("sendError").with(eq(HttpServletResponse.SC_NOT_FOUND));
+
+        servlet.doDeferredRender((HttpServletRequest) mockRequest.proxy(),
+                (HttpServletResponse) mockResponse.proxy(), page,
+                PortletWindowConfig.createPortletId("/app", "Other", "222"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.HeaderData;
+import org.apache.pluto.container.PageResourceId;
+import org.apache.pluto.container.om.portlet.Dependency;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the merging of the header phase results of the portlets on a page.
+ */
+public class HeaderResultsTest extends MockObjectTestCase {
+
+    private Mock mockResponse;
+    private HttpServletResponse response;
+    private PortalDriverServlet.HeaderResults results;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        mockResponse = mock(HttpServletResponse.class);
+        response = (HttpServletResponse) mockResponse.proxy();
+        results = new PortalDriverServlet.HeaderResults();
+    }
+
+    private PortletDefinition portlet(String dependency) {
+        Mock mockDependency = mock(Dependency.class);
+        mockDependency.stubs().method("getName").will(returnValue(dependency));
+        mockDependency.stubs().method("getScope").will(returnValue(null));
+        mockDependency.stubs().method("getVersion").will(returnValue("1.0"));
+        Mock mockPortlet = mock(PortletDefinition.class);
+        mockPortlet.stubs().method("getDependencies").will(
+                returnValue(Collections.singletonList(mockDependency.proxy())));
+        return (PortletDefinition) mockPortlet.proxy();
+    }
+
+    private static HeaderData headerData(final String markup) {
+        return new HeaderData() {
+            public String getHeadSectionMarkup() {
+                return markup;
+            }
+        };
+    }
+
+    public void testResultsAreMergedInAddOrder() {
+        HeaderData hd1 = headerData("<meta name=\"first\">");
+        hd1.addHttpHeader("X-First", "1");
+        hd1.addDependency("dynamic1", null, "1.0");
+        HeaderData hd2 = headerData("<meta name=\"second\">");
+        hd2.addHttpHeader("X-Second", "2");
+        hd2.addDependency("dynamic2", null, "1.0");
+
+        mockResponse.expects(once()).method("addHeader").with(eq("X-First"), eq("1")).id("first");
+        mockResponse.expects(once()).method("addHeader").with(eq("X-Second"), eq("2")).after("first");
+
+        results.add(portlet("dep1"), true, hd1, response);
+        results.add(portlet("dep2"), true, hd2, response);
+
+        assertEquals("<meta name=\"first\">\n<meta name=\"second\">\n", results.markup.toString());
+        assertEquals(Arrays.asList(new PageResourceId("dep1", null, "1.0"), new PageResourceId("dep2", null, "1.0")),
+                results.portletdeps);
+        assertEquals(Arrays.asList(new PageResourceId("dynamic1", null, "1.0"),
+                new PageResourceId("dynamic2", null, "1.0")), results.dynamicdeps);
+        assertTrue(results.dynamicResources.isEmpty());
+    }
+
+    public void testDependenciesOfTimedOutPortletAreCollected() {
+        results.add(portlet("dep1"), true, null, response);
+        assertEquals(Collections.singletonList(new PageResourceId("dep1", null, "1.0")), results.portletdeps);
+        assertTrue(results.dynamicdeps.isEmpty());
+        assertEquals("", results.markup.toString());
+    }
+
+    public void testVersion2PortletHasNoDependencies() {
+        HeaderData hd = headerData("<meta name=\"v2\">");
+        hd.addCookie(new Cookie("name", "value"));
+        mockResponse.expects(once()).method("addCookie");
+
+        results.add(portlet("dep1"), false, hd, response);
+        assertTrue(results.portletdeps.isEmpty());
+        assertEquals("<meta name=\"v2\">\n", results.markup.toString());
+    }
+}
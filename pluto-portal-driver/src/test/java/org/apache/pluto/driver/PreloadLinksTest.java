@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.pluto.container.PageResourceId;
+import org.apache.pluto.driver.services.portal.PageResources;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the Link preload headers and the early hints sent for the page resources.
+ */
+public class PreloadLinksTest extends MockObjectTestCase {
+
+    private List<String> links;
+    private Mock mockResponse;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        PageResources resources = new PageResources();
+        resources.addResource(new PageResourceId("a.css", "org", "1.0.0"), PageResources.Type.CSS, "/css/a.css");
+        resources.addResource(new PageResourceId("a.js", "org", "1.0.0"), PageResources.Type.SCRIPT, "/js/a.js");
+        resources.addResource(new PageResourceId("meta", "org", "1.0.0"), PageResources.Type.MARKUP, "<meta/>");
+        links = resources.getPreloadLinks(Arrays.asList(
+                new PageResourceId("a.css", "org", "1.0.0"),
+                new PageResourceId("meta", "org", "1.0.0"),
+                new PageResourceId("a.js", "org", "1.0.0")), "/ctx", null);
+        mockResponse = mock(HttpServletResponse.class);
+    }
+
+    private PortalDriverServlet createServlet(String preloadLinks, String earlyHints) throws Exception {
+        Mock mockContext = mock(ServletContext.class);
+        mockContext.stubs().method("getAttribute").will(returnValue(null));
+        Mock mockConfig = mock(ServletConfig.class);
+        mockConfig.stubs().method("getServletContext").will(returnValue(mockContext.proxy()));
+        mockConfig.stubs().method("getInitParameter").will(returnValue(null));
+        mockConfig.stubs().method("getInitParameter").with(eq("preloadLinks")).will(returnValue(preloadLinks));
+        mockConfig.stubs().method("getInitParameter").with(eq("earlyHints")).will(returnValue(earlyHints));
+        PortalDriverServlet servlet = new PortalDriverServlet();
+        servlet.init((ServletConfig) mockConfig.proxy());
+        return servlet;
+    }
+
+    private void expectLinks() {
+        mockResponse.expects(once()).method("isCommitted").will(returnValue(false));
+        mockResponse.expects(once()).method("addHeader").with(eq("Link"), eq("</ctx/css/a.css>; rel=preload; as=style"));
+        mockResponse.expects(once()).method("addHeader").with(eq("Link"), eq("</ctx/js/a.js>; rel=preload; as=script"));
+    }
+
+    public void testNoLinksByDefault() throws Exception {
+        createServlet(null, "true").sendPreloadLinks((HttpServletResponse) mockResponse.proxy(), links);
+    }
+
+    public void testLinkHeaders() throws Exception {
+        expectLinks();
+        createServlet("true", null).sendPreloadLinks((HttpServletResponse) mockResponse.proxy(), links);
+    }
+
+    public void testNoLinksForCommittedResponse() throws Exception {
+        mockResponse.expects(once()).method("isCommitted").will(returnValue(true));
+        createServlet("true", "true").sendPreloadLinks((HttpServletResponse) mockResponse.proxy(), links);
+    }
+
+    public void testEarlyHintsAreSentByContainerResponse() throws Exception {
+        Mock mockEarlyHints = mock(EarlyHintsResponse.class);
+        mockEarlyHints.expects(once()).method("isCommitted").will(returnValue(false));
+        mockEarlyHints.expects(exactly(2)).method("addHeader").with(eq("Link"), ANYTHING);
+        mockEarlyHints.expects(once()).method("sendEarlyHints");
+        HttpServletResponse containerResponse = (HttpServletResponse) mockEarlyHints.proxy();
+        createServlet("true", "true").sendPreloadLinks(new HttpServletResponseWrapper(containerResponse), links);
+    }
+
+    public void testEarlyHintsAreDisabledWithoutSendEarlyHints() throws Exception {
+        expectLinks();
+        PortalDriverServlet servlet = createServlet("true", "true");
+        servlet.sendPreloadLinks((HttpServletResponse) mockResponse.proxy(), links);
+
+        // the links are still sent, but no further early hints are attempted
+        Mock mockEarlyHints = mock(EarlyHintsResponse.class);
+        mockEarlyHints.expects(once()).method("isCommitted").will(returnValue(false));
+        mockEarlyHints.expects(exactly(2)).method("addHeader").with(eq("Link"), ANYTHING);
+        servlet.sendPreloadLinks((HttpServletResponse) mockEarlyHints.proxy(), links);
+    }
+
+    /**
+     * A servlet container response that supports early hints.
+     */
+    public interface EarlyHintsResponse extends HttpServletResponse {
+        void sendEarlyHints();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.portlet.MimeResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.pluto.container.impl.MarkupCaptureResponse;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.url.PortalURL;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests which requests are served from the page cache, which captured pages
+ * are stored, and how long they are kept.
+ */
+public class PageOutputCacheTest extends MockObjectTestCase {
+
+    private Mock mockRequest;
+    private Mock mockResponse;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        mockRequest = mock(HttpServletRequest.class);
+        mockRequest.stubs().method("getAttribute").will(returnValue(null));
+        mockRequest.stubs().method("getSession").will(returnValue(null));
+        mockResponse = mock(HttpServletResponse.class);
+        mockResponse.stubs().method("getWriter").will(returnValue(new PrintWriter(new StringWriter())));
+        mockResponse.stubs().method("getContentType").will(returnValue("text/html"));
+        mockResponse.stubs().method("setHeader");
+        mockResponse.stubs().method("addHeader");
+    }
+
+    private MarkupCaptureResponse capture() throws Exception {
+        MarkupCaptureResponse capture = new MarkupCaptureResponse((HttpServletResponse) mockResponse.proxy());
+        capture.getWriter().write("<html></html>");
+        return capture;
+    }
+
+    private PortalURL url(String path, PortalURL.URLType type) {
+        Mock mockURL = mock(PortalURL.class);
+        mockURL.stubs().method("toURL").with(eq(false)).will(returnValue(path));
+        mockURL.stubs().method("getType").will(returnValue(type));
+        return (PortalURL) mockURL.proxy();
+    }
+
+    private HttpServletRequest request(String method, String user, HttpSession session) {
+        Mock mock = mock(HttpServletRequest.class);
+        mock.stubs().method("getMethod").will(returnValue(method));
+        mock.stubs().method("getQueryString").will(returnValue(null));
+        mock.stubs().method("getRemoteUser").will(returnValue(user));
+        mock.stubs().method("getUserPrincipal").will(returnValue(null));
+        mock.stubs().method("getSession").with(eq(false)).will(returnValue(session));
+        return (HttpServletRequest) mock.proxy();
+    }
+
+    private PortletDefinition portlet(String scope, int seconds) {
+        Mock mock = mock(PortletDefinition.class);
+        mock.stubs().method("getCacheScope").will(returnValue(scope));
+        mock.stubs().method("getExpirationCache").will(returnValue(seconds));
+        return (PortletDefinition) mock.proxy();
+    }
+
+    public void testCacheableRequest() {
+        PortalURL render = url("/pluto/portal/page", PortalURL.URLType.Render);
+        HttpSession session = (HttpSession) mock(HttpSession.class).proxy();
+        assertTrue(PageOutputCache.isCacheableRequest(request("GET", null, null), render));
+        assertFalse(PageOutputCache.isCacheableRequest(request("POST", null, null), render));
+        assertFalse(PageOutputCache.isCacheableRequest(request("GET", "user", null), render));
+        assertFalse(PageOutputCache.isCacheableRequest(request("GET", null, session), render));
+        assertFalse(PageOutputCache.isCacheableRequest(request("GET", null, null),
+                url("/pluto/portal/page", PortalURL.URLType.Action)));
+    }
+
+    public void testKeyCoversURLAndLocale() {
+        PortalURL url = url("/pluto/portal/page", PortalURL.URLType.Render);
+        String key = PageOutputCache.createKey(url, Locale.ENGLISH);
+        assertEquals(key, PageOutputCache.createKey(url("/pluto/portal/page", PortalURL.URLType.Render), Locale.ENGLISH));
+        assertFalse(key.equals(PageOutputCache.createKey(url, Locale.GERMAN)));
+        assertFalse(key.equals(PageOutputCache.createKey(url("/pluto/portal/other", PortalURL.URLType.Render),
+                Locale.ENGLISH)));
+    }
+
+    public void testMaxAgeIsShortestPublicExpiration() {
+        List<PortletDefinition> portlets = new ArrayList<PortletDefinition>();
+        portlets.add(portlet(MimeResponse.PUBLIC_SCOPE, 60));
+        portlets.add(portlet(MimeResponse.PUBLIC_SCOPE, -1));
+        portlets.add(portlet(MimeResponse.PUBLIC_SCOPE, 30));
+        assertEquals(30000, PageOutputCache.getMaxAge(portlets));
+
+        portlets.add(portlet(MimeResponse.PRIVATE_SCOPE, 60));
+        assertEquals(0, PageOutputCache.getMaxAge(portlets));
+
+        portlets.clear();
+        portlets.add(portlet(MimeResponse.PUBLIC_SCOPE, -1));
+        assertEquals(-1, PageOutputCache.getMaxAge(portlets));
+        portlets.add(portlet(MimeResponse.PUBLIC_SCOPE, 0));
+        assertEquals(0, PageOutputCache.getMaxAge(portlets));
+    }
+
+    public void testPageWithSessionIsNotStored() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        Mock request = mock(HttpServletRequest.class);
+        request.stubs().method("getAttribute").will(returnValue(null));
+        request.stubs().method("getSession").will(returnValue(mock(HttpSession.class).proxy()));
+        cache.put("a", (HttpServletRequest) request.proxy(), capture(), -1);
+        assertEquals(0, cache.size());
+    }
+
+    public void testUncacheablePageIsNotStored() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        Mock request = mock(HttpServletRequest.class);
+        request.stubs().method("getAttribute").will(returnValue(Boolean.TRUE));
+        request.stubs().method("getSession").will(returnValue(null));
+        cache.put("a", (HttpServletRequest) request.proxy(), capture(), -1);
+        cache.put("b", (HttpServletRequest) mockRequest.proxy(), capture(), 0);
+        assertEquals(0, cache.size());
+    }
+
+    public void testPageWithCookieIsNotStored() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        MarkupCaptureResponse capture = capture();
+        mockResponse.stubs().method("addCookie");
+        capture.addCookie(new Cookie("id", "1"));
+        cache.put("a", (HttpServletRequest) mockRequest.proxy(), capture, -1);
+        assertEquals(0, cache.size());
+    }
+
+    public void testExpiredPageIsNotServed() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        cache.put("a", (HttpServletRequest) mockRequest.proxy(), capture(), 1);
+        assertEquals(1, cache.size());
+        Thread.sleep(20);
+        assertFalse(cache.serve("a", (HttpServletResponse) mock(HttpServletResponse.class).proxy()));
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedPageIsEvicted() throws Exception {
+        PageOutputCache cache = new PageOutputCache(1);
+        cache.put("a", (HttpServletRequest) mockRequest.proxy(), capture(), -1);
+        cache.put("b", (HttpServletRequest) mockRequest.proxy(), capture(), -1);
+        assertEquals(1, cache.size());
+        assertFalse(cache.serve("a", (HttpServletResponse) mock(HttpServletResponse.class).proxy()));
+    }
+
+    public void testPageWithCookieHeaderIsNotStored() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        MarkupCaptureResponse capture = capture();
+        capture.setHeader("Set-Cookie", "id=1");
+        cache.put("a", (HttpServletRequest) mockRequest.proxy(), capture, -1);
+
+        capture = capture();
+        capture.addHeader("set-cookie2", "id=2");
+        cache.put("b", (HttpServletRequest) mockRequest.proxy(), capture, -1);
+        assertEquals(0, cache.size());
+    }
+
+    public void testHeadersAreReplayed() throws Exception {
+        PageOutputCache cache = new PageOutputCache(10);
+        MarkupCaptureResponse capture = capture();
+        capture.setHeader("X-Frame-Options", "SAMEORIGIN");
+        cache.put("a", (HttpServletRequest) mockRequest.proxy(), capture, -1);
+        assertEquals(1, cache.size());
+
+        Mock target = mock(HttpServletResponse.class);
+        target.stubs().method("getWriter").will(returnValue(new PrintWriter(new StringWriter())));
+        target.expects(once()).method("setContentType").with(eq("text/html"));
+        target.expects(once()).method("addHeader").with(eq("X-Frame-Options"), eq("SAMEORIGIN"));
+        assertTrue(cache.serve("a", (HttpServletResponse) target.proxy()));
+    }
+}
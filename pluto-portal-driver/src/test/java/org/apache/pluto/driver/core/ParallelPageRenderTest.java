@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Renders a page of three windows in parallel, as the portal driver servlet
+ * and the portlet tag do, and checks the markup and the request and response
+ * seen by the portlet container.
+ */
+public class ParallelPageRenderTest extends MockObjectTestCase {
+
+    private static final String[] WINDOWS = { "A", "B", "C" };
+
+    private ParallelPortletRenderer renderer;
+    private RequestAttributesStub attributes;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private PortletContainer container;
+
+    // A request and response handed to the container, and whether they wrap the portal ones
+    private final AtomicReference<HttpServletRequest> taskRequest = new AtomicReference<HttpServletRequest>();
+    private final List<String> unwrapped = new ArrayList<String>();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        renderer = new ParallelPortletRenderer(3, 8);
+
+        Mock requestMock = mock(HttpServletRequest.class);
+        attributes = new RequestAttributesStub(requestMock);
+        requestMock.stubs().method("getParameter").will(returnValue(null));
+        request = (HttpServletRequest) requestMock.proxy();
+        response = (HttpServletResponse) mock(HttpServletResponse.class).proxy();
+
+        // The portlet sets a request attribute, reads it back and writes it. The
+        // first window takes longest, so that the windows complete out of order.
+        Mock containerMock = mock(PortletContainer.class);
+        containerMock.stubs().method("doRender").will(new CustomStub("renders the portlet") {
+            public Object invoke(Invocation invocation) throws Throwable {
+                String id = ((PortletWindow) invocation.parameterValues.get(0)).getId().getStringId();
+                HttpServletRequest req = (HttpServletRequest) invocation.parameterValues.get(1);
+                HttpServletResponse resp = (HttpServletResponse) invocation.parameterValues.get(2);
+                if (!(req instanceof ServletRequestWrapper) || !((ServletRequestWrapper) req).isWrapperFor(request)
+                      || !(resp instanceof ServletResponseWrapper)
+                      || !((ServletResponseWrapper) resp).isWrapperFor(response)) {
+                    synchronized (unwrapped) {
+                        unwrapped.add(id);
+                    }
+                }
+                taskRequest.set(req);
+                Thread.sleep(100 * (2 - id.charAt(0) + 'A'));
+                req.setAttribute("portlet", id);
+                Thread.sleep(20);
+                resp.getWriter().print("<div>" + id + ":" + req.getAttribute("portlet") + "</div>");
+                return null;
+            }
+        });
+        container = (PortletContainer) containerMock.proxy();
+    }
+
+    protected void tearDown() throws Exception {
+        renderer.shutdown();
+        super.tearDown();
+    }
+
+    private PortletWindow window(String id) {
+        Mock windowId = mock(PortletWindowID.class, "id" + id);
+        windowId.stubs().method("getStringId").will(returnValue(id));
+        Mock window = mock(PortletWindow.class, "window" + id);
+        window.stubs().method("getId").will(returnValue(windowId.proxy()));
+        return (PortletWindow) window.proxy();
+    }
+
+    public void testPageIsRenderedInPageOrder() throws Exception {
+        for (String id : WINDOWS) {
+            assertTrue(renderer.submit(container, window(id), request, response, null, 5000));
+        }
+
+        StringBuilder page = new StringBuilder();
+        for (String id : WINDOWS) {
+            page.append(ParallelPortletRenderer.getRenderJob(request, id).get().getInternalBuffer());
+        }
+        ParallelPortletRenderer.cancelAll(request);
+
+        assertEquals("<div>A:A</div><div>B:B</div><div>C:C</div>", page.toString());
+        assertTrue("Windows without servlet wrappers: " + unwrapped, unwrapped.isEmpty());
+        assertFalse(attributes.getAttributes().containsKey("portlet"));
+    }
+
+    public void testRequestIsFencedOffWhenPageCompletes() throws Exception {
+        assertTrue(renderer.submit(container, window("C"), request, response, null, 5000));
+        ParallelPortletRenderer.getRenderJob(request, "C").get();
+        HttpServletRequest req = taskRequest.get();
+        assertNull(req.getParameter("p"));
+
+        ParallelPortletRenderer.cancelAll(request);
+        try {
+            req.getParameter("p");
+            fail("request usable after the page completed");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
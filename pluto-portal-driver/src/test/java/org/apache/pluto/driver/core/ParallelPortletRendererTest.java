@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Tests that the tasks started for a request end or are isolated from the
+ * request when the request completes.
+ */
+public class ParallelPortletRendererTest extends MockObjectTestCase {
+
+    private ParallelPortletRenderer renderer;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        renderer = new ParallelPortletRenderer(2, 4);
+
+        Mock requestMock = mock(HttpServletRequest.class);
+        new RequestAttributesStub(requestMock);
+        requestMock.stubs().method("getParameter").will(returnValue(null));
+        request = (HttpServletRequest) requestMock.proxy();
+
+        Mock responseMock = mock(HttpServletResponse.class);
+        responseMock.stubs().method("getContentType").will(returnValue(null));
+        response = (HttpServletResponse) responseMock.proxy();
+    }
+
+    protected void tearDown() throws Exception {
+        renderer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * The portlet code run by the container stub.
+     */
+    private interface Body {
+        void run(HttpServletRequest req, HttpServletResponse resp) throws Exception;
+    }
+
+    /**
+     * Submits a window whose rendering runs the body.
+     */
+    private void submit(final Body body) {
+        Mock container = mock(PortletContainer.class);
+        container.stubs().method("doRender").will(new CustomStub("runs the portlet code") {
+            public Object invoke(Invocation invocation) throws Throwable {
+                body.run((HttpServletRequest) invocation.parameterValues.get(1),
+                        (HttpServletResponse) invocation.parameterValues.get(2));
+                return null;
+            }
+        });
+        Mock id = mock(PortletWindowID.class);
+        id.stubs().method("getStringId").will(returnValue("window"));
+        Mock window = mock(PortletWindow.class);
+        window.stubs().method("getId").will(returnValue(id.proxy()));
+        assertTrue(renderer.submit((PortletContainer) container.proxy(), (PortletWindow) window.proxy(),
+                request, response, null, 10));
+    }
+
+    public void testCancelAllWaitsForInterruptedTask() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        submit(new Body() {
+            public void run(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+                running.countDown();
+                try {
+                    Thread.sleep(60000);
+                } finally {
+                    Thread.sleep(100);
+                    finished.set(true);
+                }
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        ParallelPortletRenderer.cancelAll(request);
+        assertTrue(finished.get());
+    }
+
+    public void testOverrunningTaskIsFencedOff() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(1);
+        submit(new Body() {
+            public void run(HttpServletRequest req, HttpServletResponse resp) throws Exception {
+                req.getParameter("before");
+                running.countDown();
+                // ignores interruption, like portlet code that swallows it
+                boolean free = false;
+                while (!free) {
+                    try {
+                        free = released.await(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // keep running
+                    }
+                }
+                try {
+                    req.getParameter("after");
+                } catch (IllegalStateException e) {
+                    failure.set(e);
+                }
+                try {
+                    resp.getContentType();
+                } catch (IllegalStateException e) {
+                    failure.compareAndSet(null, e);
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        ParallelPortletRenderer.cancelAll(request);
+        assertTrue(System.currentTimeMillis() - start >= ParallelPortletRenderer.MAX_CANCEL_WAIT - 50);
+
+        released.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(failure.get());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jmock.Mock;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Holds the attributes of a mock servlet request in a map.
+ */
+class RequestAttributesStub {
+
+    private final Map<Object, Object> attributes = Collections.synchronizedMap(new HashMap<Object, Object>());
+
+    /**
+     * Stubs the attribute methods of the mock request.
+     */
+    RequestAttributesStub(Mock request) {
+        request.stubs().method("setAttribute").will(new CustomStub("sets the attribute") {
+            public Object invoke(Invocation invocation) {
+                attributes.put(invocation.parameterValues.get(0), invocation.parameterValues.get(1));
+                return null;
+            }
+        });
+        request.stubs().method("removeAttribute").will(new CustomStub("removes the attribute") {
+            public Object invoke(Invocation invocation) {
+                attributes.remove(invocation.parameterValues.get(0));
+                return null;
+            }
+        });
+        request.stubs().method("getAttribute").will(new CustomStub("gets the attribute") {
+            public Object invoke(Invocation invocation) {
+                return attributes.get(invocation.parameterValues.get(0));
+            }
+        });
+    }
+
+    /**
+     * @return the attributes of the request
+     */
+    Map<Object, Object> getAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderJob;
+import org.apache.pluto.driver.core.ParallelPortletRenderer.RenderTask;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests the order in which the streaming aggregator hands out deferred windows.
+ */
+public class StreamingAggregatorTest extends MockObjectTestCase {
+
+    private ParallelPortletRenderer renderer;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private CountDownLatch released;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        renderer = new ParallelPortletRenderer(4, 4);
+
+        Mock requestMock = mock(HttpServletRequest.class);
+        new RequestAttributesStub(requestMock);
+        request = (HttpServletRequest) requestMock.proxy();
+        response = (HttpServletResponse) mock(HttpServletResponse.class).proxy();
+        released = new CountDownLatch(1);
+    }
+
+    protected void tearDown() throws Exception {
+        released.countDown();
+        ParallelPortletRenderer.cancelAll(request);
+        renderer.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Starts a job that completes once the latch is released.
+     */
+    private RenderJob<PortalServletResponse> start(final CountDownLatch latch, long timeout) {
+        RenderJob<PortalServletResponse> job = renderer.execute(request, response,
+                new RenderTask<PortalServletResponse>() {
+                    public PortalServletResponse call(HttpServletRequest req, HttpServletResponse resp)
+                            throws Exception {
+                        latch.await();
+                        return null;
+                    }
+                }, timeout);
+        assertNotNull(job);
+        return job;
+    }
+
+    public void testInOrderModeDoesNotDefer() {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.IN_ORDER);
+        assertSame(aggregator, StreamingAggregator.getAggregator(request));
+        assertNull(aggregator.defer("A", start(released, 10000)));
+        assertFalse(aggregator.hasDeferred());
+    }
+
+    public void testCompletedWindowIsNotDeferred() throws Exception {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.OUT_OF_ORDER);
+        released.countDown();
+        RenderJob<PortalServletResponse> job = start(released, 10000);
+        job.get();
+        assertNull(aggregator.defer("A", job));
+    }
+
+    public void testWindowsAreWrittenInCompletionOrder() throws Exception {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.OUT_OF_ORDER);
+        CountDownLatch latchB = new CountDownLatch(1);
+        RenderJob<PortalServletResponse> jobB = start(latchB, 10000);
+        assertEquals("pluto-slot-1", aggregator.defer("A", start(released, 10000)));
+        assertEquals("pluto-slot-2", aggregator.defer("B", jobB));
+        assertTrue(aggregator.hasDeferred());
+
+        latchB.countDown();
+        assertEquals("B", aggregator.next(request));
+        assertEquals("pluto-slot-2", aggregator.getSlotId());
+        assertEquals("pluto-src-2", aggregator.getSourceId());
+        assertSame(jobB, ParallelPortletRenderer.getRenderJob(request, "B"));
+
+        released.countDown();
+        assertEquals("A", aggregator.next(request));
+        assertEquals("pluto-slot-1", aggregator.getSlotId());
+        assertFalse(aggregator.hasDeferred());
+        assertNull(aggregator.next(request));
+    }
+
+    public void testNoWindowIsDeferredOnceWritingStarted() throws Exception {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.OUT_OF_ORDER);
+        assertNull(aggregator.next(request));
+        assertNull(aggregator.defer("A", start(released, 10000)));
+    }
+
+    public void testTimeoutFallsBackToEarliestDeadline() throws Exception {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.OUT_OF_ORDER);
+        aggregator.defer("A", start(released, 400));
+        aggregator.defer("B", start(released, 200));
+
+        long start = System.currentTimeMillis();
+        assertEquals("B", aggregator.next(request));
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("Waited: " + waited, waited >= 150 && waited < 5000);
+        assertEquals("A", aggregator.next(request));
+        assertNull(aggregator.next(request));
+    }
+
+    public void testCancelDeferred() throws Exception {
+        StreamingAggregator aggregator = new StreamingAggregator(request, StreamingAggregator.Mode.OUT_OF_ORDER);
+        RenderJob<PortalServletResponse> job = start(released, 10000);
+        aggregator.defer("A", job);
+        aggregator.cancelDeferred();
+        assertFalse(aggregator.hasDeferred());
+        assertTrue(job.isDone());
+        assertNull(ParallelPortletRenderer.getRenderJob(request, "A"));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests for the compiled page plan.
+ * <p>
+ * The page is rendered in parallel. It holds a version 3 portlet, a serial and
+ * deferred version 2 portlet, and a portlet whose application is not registered.
+ * The version 3 portlet is configured as deferred, but executes a header request.
+ */
+public class PagePlanTest extends MockObjectTestCase {
+
+   private static final Set<PortletMode> MODES = Collections.singleton(PortletMode.VIEW);
+   private static final Set<WindowState> STATES = Collections.singleton(WindowState.NORMAL);
+
+   private PageConfig page;
+   private String pid3;
+   private String pid2;
+   private String pidMissing;
+   private PortletDefinition pd3;
+   private PortletRegistryService registry;
+   private SupportedModesService modes;
+   private SupportedWindowStateService states;
+
+   @Override
+   protected void setUp() throws Exception {
+      super.setUp();
+      page = new PageConfig();
+      page.setName("Test Page");
+      page.setParallel(true);
+      page.addPortlet("/app3", "Portlet3", null, "true");
+      page.addPortlet("/app2", "Portlet2", "false", "true");
+      page.addPortlet("/missing", "Portlet");
+      List<String> pids = new ArrayList<String>(page.getPortletIds());
+      pid3 = pids.get(0);
+      pid2 = pids.get(1);
+      pidMissing = pids.get(2);
+
+      pd3 = (PortletDefinition) mock(PortletDefinition.class).proxy();
+      PortletDefinition pd2 = definition(null);
+      Mock mockRegistry = mock(PortletRegistryService.class);
+      mockRegistry.stubs().method("getPortletApplication").with(eq("/app3")).will(returnValue(application("3.0")));
+      mockRegistry.stubs().method("getPortletApplication").with(eq("/app2")).will(returnValue(application("2.0")));
+      mockRegistry.stubs().method("getPortletApplication").with(eq("/missing")).will(returnValue(null));
+      mockRegistry.stubs().method("getPortlet").with(eq("/app3"), eq("Portlet3")).will(returnValue(pd3));
+      mockRegistry.stubs().method("getPortlet").with(eq("/app2"), eq("Portlet2")).will(returnValue(pd2));
+      registry = (PortletRegistryService) mockRegistry.proxy();
+
+      Mock mockModes = mock(SupportedModesService.class);
+      mockModes.stubs().method("getSupportedPortletModes").will(returnValue(MODES));
+      modes = (SupportedModesService) mockModes.proxy();
+      Mock mockStates = mock(SupportedWindowStateService.class);
+      mockStates.stubs().method("getSupportedWindowStates").will(returnValue(STATES));
+      states = (SupportedWindowStateService) mockStates.proxy();
+   }
+
+   private PortletApplicationDefinition application(String version) {
+      Mock mockApplication = mock(PortletApplicationDefinition.class);
+      mockApplication.stubs().method("getVersion").will(returnValue(version));
+      return (PortletApplicationDefinition) mockApplication.proxy();
+   }
+
+   private PortletDefinition definition(String renderHeaders) {
+      ContainerRuntimeOption crt = null;
+      if (renderHeaders != null) {
+         Mock mockOption = mock(ContainerRuntimeOption.class);
+         mockOption.stubs().method("getValues").will(returnValue(Collections.singletonList(renderHeaders)));
+         crt = (ContainerRuntimeOption) mockOption.proxy();
+      }
+      Mock mockDefinition = mock(PortletDefinition.class);
+      mockDefinition.stubs().method("getContainerRuntimeOption").with(eq("javax.portlet.renderHeaders"))
+            .will(returnValue(crt));
+      return (PortletDefinition) mockDefinition.proxy();
+   }
+
+   public void testPortletIdsInPageOrder() {
+      PagePlan plan = new PagePlan(page, registry, modes, states);
+      assertSame(page, plan.getPageConfig());
+      assertEquals(Arrays.asList(pid3, pid2, pidMissing), plan.getPortletIds());
+      assertEquals(plan.getPortletIds(), new ArrayList<String>(plan.getWindows().keySet()));
+      assertNull(plan.getWindow("unknown"));
+   }
+
+   public void testWindowFacts() {
+      PagePlan plan = new PagePlan(page, registry, modes, states);
+
+      PagePlan.Window win = plan.getWindow(pid3);
+      assertEquals("/app3", win.getConfig().getContextPath());
+      assertEquals("Portlet3", win.getConfig().getPortletName());
+      assertEquals(pid3, win.getId().getStringId());
+      assertSame(pd3, win.getPortletDefinition());
+      assertEquals("3.0", win.getVersion());
+      assertTrue(win.isVersion3());
+      assertEquals(MODES, win.getSupportedPortletModes());
+      assertEquals(STATES, win.getSupportedWindowStates());
+      assertTrue(win.isParallel());
+      // the head section contributions of a deferred window would be lost
+      assertFalse(win.isDeferred());
+
+      win = plan.getWindow(pid2);
+      assertEquals("2.0", win.getVersion());
+      assertFalse(win.isVersion3());
+      assertFalse(win.isParallel());
+      assertTrue(win.isDeferred());
+   }
+
+   public void testRenderHeadersPortletIsNotDeferred() {
+      PageConfig headers = new PageConfig();
+      headers.setName("Headers Page");
+      headers.addPortlet("/app2", "Headers", null, "true");
+      Mock mockRegistry = mock(PortletRegistryService.class);
+      mockRegistry.stubs().method("getPortletApplication").will(returnValue(application("2.0")));
+      mockRegistry.stubs().method("getPortlet").will(returnValue(definition("true")));
+
+      PagePlan plan = new PagePlan(headers, (PortletRegistryService) mockRegistry.proxy(), modes, states);
+      assertFalse(plan.getWindow(headers.getPortletIds().iterator().next()).isDeferred());
+   }
+
+   public void testUnregisteredPortlet() {
+      PagePlan.Window win = new PagePlan(page, registry, modes, states).getWindow(pidMissing);
+      assertEquals("/missing", win.getConfig().getContextPath());
+      assertNull(win.getPortletDefinition());
+      assertNull(win.getVersion());
+      assertFalse(win.isVersion3());
+      assertNull(win.getSupportedPortletModes());
+      assertNull(win.getSupportedWindowStates());
+   }
+
+   public void testPlanIsImmutable() {
+      PagePlan plan = new PagePlan(page, registry, modes, states);
+      try {
+         plan.getPortletIds().clear();
+         fail("Exception should have been thrown.");
+      } catch (UnsupportedOperationException e) {
+      }
+      try {
+         plan.getWindows().clear();
+         fail("Exception should have been thrown.");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   public void testValidity() {
+      PagePlan plan = new PagePlan(page, registry, modes, states);
+      assertTrue(plan.isValidFor(page));
+      page.removePortlet(pid2);
+      assertFalse(plan.isValidFor(page));
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(pid3, pidMissing, pid2)));
+      assertFalse(plan.isValidFor(page));
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(pid3, pid2, pidMissing)));
+      assertTrue(plan.isValidFor(page));
+
+      PageConfig other = new PageConfig();
+      other.setName(page.getName());
+      other.setPortletIds(page.getPortletIds());
+      assertFalse(plan.isValidFor(other));
+   }
+}
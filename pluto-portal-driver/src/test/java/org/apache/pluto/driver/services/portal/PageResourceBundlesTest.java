@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.pluto.container.PageResourceId;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.CustomStub;
+
+/**
+ * Tests the combination of page resources into bundles.
+ */
+public class PageResourceBundlesTest extends MockObjectTestCase {
+
+    private Mock mockContext;
+    private PageResourceBundles bundles;
+    private PageResources resources;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        mockContext = mock(ServletContext.class);
+        mockContext.stubs().method("getResourceAsStream").will(returnValue(null));
+        mockContext.stubs().method("getRealPath").will(returnValue(null));
+        stubResource("/css/a.css", "@charset \"UTF-8\";\n/* comment */\n  .a { background: url('../images/a.png'); }\n");
+        stubResource("/css/b.css", ".b { background: url(/images/b.png); }\n");
+        stubResource("/css/c.css", "@import 'a.css';\n");
+        stubResource("/js/a.js", "var a = 1");
+        stubResource("/js/b.js", "var b = 2;");
+        bundles = new PageResourceBundles((ServletContext) mockContext.proxy());
+
+        resources = new PageResources();
+        resources.addResource(new PageResourceId("a.css", "org", "1.0.0"), PageResources.Type.CSS, "/css/a.css");
+        resources.addResource(new PageResourceId("b.css", "org", "1.0.0"), PageResources.Type.CSS, "/css/b.css");
+        resources.addResource(new PageResourceId("a.js", "org", "1.0.0"), PageResources.Type.SCRIPT, "/js/a.js");
+        resources.addResource(new PageResourceId("b.js", "org", "1.0.0"), PageResources.Type.SCRIPT, "/js/b.js");
+        resources.addResource(new PageResourceId("meta", "org", "1.0.0"), PageResources.Type.MARKUP, "<meta/>");
+        resources.addResource(new PageResourceId("missing.js", "org", "1.0.0"), PageResources.Type.SCRIPT, "/js/missing.js");
+    }
+
+    private void stubResource(String path, String content) throws Exception {
+        mockContext.stubs().method("getResourceAsStream").with(eq(path))
+                .will(returnValue(new ByteArrayInputStream(content.getBytes("UTF-8"))));
+    }
+
+    public void testStyleSheetsAreCombined() throws Exception {
+        String url = bundles.getUrl(PageResources.Type.CSS, Arrays.asList("/css/a.css", "/css/b.css"), "/ctx");
+        assertTrue(url, url.matches("/ctx/bundle/[0-9a-f]{32}\\.css"));
+        assertEquals(url, bundles.getUrl(PageResources.Type.CSS, Arrays.asList("/css/a.css", "/css/b.css"), "/ctx"));
+        assertEquals(1, bundles.size());
+
+        PageResourceBundles.Bundle bundle = bundles.getBundle(url.substring("/ctx/bundle/".length()));
+        assertEquals("text/css; charset=UTF-8", bundle.getContentType());
+        String content = new String(bundle.getContent(), "UTF-8");
+        assertFalse(content, content.contains("@charset"));
+        assertTrue(content, content.contains("url('/ctx/images/a.png')"));
+        assertTrue(content, content.contains("url('/images/b.png')"));
+        assertTrue(content, content.indexOf(".a {") < content.indexOf(".b {"));
+        assertTrue(content, content.contains("/* comment */"));
+    }
+
+    public void testMinifiedStyleSheet() {
+        bundles.setMinify(true);
+        assertEquals(".a { background: url('/ctx/images/a.png'); }\n",
+                bundles.processStyleSheet("/* comment */\n  .a { background: url(../images/a.png); }\n\n", "/css/a.css", "/ctx"));
+    }
+
+    public void testMinifyKeepsStrings() {
+        assertEquals(".a:before { content: \"/*\"; }\n.b:after { content: '*/'; }\n",
+                PageResourceBundles.minifyStyleSheet(".a:before { content: \"/*\"; }\n  .b:after { content: '*/'; }\n"));
+        assertEquals(".a { content: \"  x  \"; }\n.b { content: 'it\\'s /* not */ a comment'; }\n",
+                PageResourceBundles.minifyStyleSheet(".a { content: \"  x  \"; } /* c */\n.b { content: 'it\\'s /* not */ a comment'; }"));
+    }
+
+    public void testMinifyKeepsUrls() {
+        String quoted = ".a { background: url(\"data:image/svg+xml;utf8,<svg>/* */</svg>\"); }\n";
+        assertEquals(quoted, PageResourceBundles.minifyStyleSheet(quoted));
+        String unquoted = ".b { background: url(data:image/svg+xml;utf8,<svg>*/</svg>); }\n";
+        assertEquals(unquoted, PageResourceBundles.minifyStyleSheet("/* c */" + unquoted));
+        assertEquals(".c { background: URL( /a/*b*/c.png ); }\n",
+                PageResourceBundles.minifyStyleSheet("\t.c { background: URL( /a/*b*/c.png ); }"));
+
+        bundles.setMinify(true);
+        assertEquals(".b { background: url('data:image/svg+xml;utf8,<svg>*/</svg>'); }\n",
+                bundles.processStyleSheet(unquoted, "/css/b.css", "/ctx"));
+    }
+
+    public void testMinifyRemovesComments() {
+        assertEquals(".a { color: red; }\n.b { color: blue; }\n",
+                PageResourceBundles.minifyStyleSheet("/* first\n   line */\n.a { color: /* x */red; }\n\n   \r\n.b { color: blue; }   \r\n/* unterminated"));
+        assertEquals("", PageResourceBundles.minifyStyleSheet("/* only */\n\n"));
+    }
+
+    public void testBundlesAreBuiltWithoutBlockingOtherBundles() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        mockContext.stubs().method("getResourceAsStream").with(eq("/js/slow.js")).will(new CustomStub("reads slowly") {
+            public Object invoke(Invocation invocation) throws Throwable {
+                reads.incrementAndGet();
+                reading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return new ByteArrayInputStream("var slow = 1;".getBytes("UTF-8"));
+            }
+        });
+        final List<String> slow = Arrays.asList("/js/slow.js");
+        final String[] urls = new String[2];
+        Thread[] threads = new Thread[urls.length];
+        for (int ii = 0; ii < threads.length; ii++) {
+            final int index = ii;
+            threads[ii] = new Thread() {
+                public void run() {
+                    urls[index] = bundles.getUrl(PageResources.Type.SCRIPT, slow, "/ctx");
+                }
+            };
+        }
+        threads[0].start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        threads[1].start();
+
+        // another bundle is built while the first one is being read
+        assertNotNull(bundles.getUrl(PageResources.Type.CSS, Arrays.asList("/css/a.css", "/css/b.css"), "/ctx"));
+        assertEquals(1, bundles.size());
+
+        release.countDown();
+        threads[0].join(5000);
+        threads[1].join(5000);
+        assertNotNull(urls[0]);
+        assertEquals(urls[0], urls[1]);
+        assertEquals(1, reads.get());
+        assertEquals(2, bundles.size());
+    }
+
+    public void testModifiedSourcesAreBuiltAgain() throws Exception {
+        final File css = File.createTempFile("pluto", ".css");
+        try {
+            Files.write(css.toPath(), ".d { color: red; }".getBytes("UTF-8"));
+            mockContext.stubs().method("getRealPath").with(eq("/css/d.css")).will(returnValue(css.getPath()));
+            mockContext.stubs().method("getResourceAsStream").with(eq("/css/d.css")).will(new CustomStub("reads the file") {
+                public Object invoke(Invocation invocation) throws Throwable {
+                    return new FileInputStream(css);
+                }
+            });
+            resources.addResource(new PageResourceId("d.css", "org", "1.0.0"), PageResources.Type.CSS, "/css/d.css");
+            List<PageResourceId> ids = Arrays.asList(new PageResourceId("d.css", "org", "1.0.0"));
+            bundles.setCheckInterval(0);
+
+            String markup = resources.getMarkup(ids, "/ctx", bundles);
+            String name = getBundleName(markup);
+            assertEquals(markup, resources.getMarkup(ids, "/ctx", bundles));
+
+            long modified = css.lastModified();
+            Files.write(css.toPath(), ".d { color: blue; }".getBytes("UTF-8"));
+            assertTrue(css.setLastModified(modified + 10000));
+
+            String changed = getBundleName(resources.getMarkup(ids, "/ctx", bundles));
+            assertFalse(name.equals(changed));
+            assertNull(bundles.getBundle(name));
+            String content = new String(bundles.getBundle(changed).getContent(), "UTF-8");
+            assertTrue(content, content.contains("blue"));
+        } finally {
+            css.delete();
+        }
+    }
+
+    private static String getBundleName(String markup) {
+        int start = markup.indexOf("/bundle/") + "/bundle/".length();
+        return markup.substring(start, markup.indexOf('\'', start));
+    }
+
+    public void testResourcesThatCannotBeBundled() {
+        assertNull(bundles.getUrl(PageResources.Type.CSS, Arrays.asList("/css/a.css", "/css/c.css"), "/ctx"));
+        assertNull(bundles.getUrl(PageResources.Type.SCRIPT, Arrays.asList("/js/missing.js"), "/ctx"));
+        assertNull(bundles.getUrl(PageResources.Type.SCRIPT, Arrays.asList("http://cdn/x.js"), "/ctx"));
+        assertEquals(0, bundles.size());
+
+        bundles.setMaxBundles(3);
+        assertNull(bundles.getUrl(PageResources.Type.SCRIPT, Arrays.asList("/js/a.js"), "/ctx"));
+    }
+
+    public void testMarkupKeepsInclusionOrder() {
+        List<PageResourceId> ids = Arrays.asList(
+                new PageResourceId("a.css", "org", "1.0.0"),
+                new PageResourceId("b.css", "org", "1.0.0"),
+                new PageResourceId("a.js", "org", "1.0.0"),
+                new PageResourceId("b.js", "org", "1.0.0"),
+                new PageResourceId("meta", "org", "1.0.0"),
+                new PageResourceId("missing.js", "org", "1.0.0"));
+        String[] lines = resources.getMarkup(ids, "/ctx", bundles).split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].matches("<link rel='stylesheet' type='text/css' href='/ctx/bundle/[0-9a-f]{32}\\.css'></link>"));
+        assertTrue(lines[1], lines[1].matches("<script type='text/javascript' src='/ctx/bundle/[0-9a-f]{32}\\.js'></script>"));
+        assertEquals("<meta/>", lines[2]);
+        assertEquals("<script type='text/javascript' src='/ctx/js/missing.js'></script>", lines[3]);
+
+        String script = lines[1].substring(lines[1].indexOf("/bundle/") + "/bundle/".length(), lines[1].lastIndexOf('\''));
+        assertEquals("application/javascript; charset=UTF-8", bundles.getBundle(script).getContentType());
+        assertEquals("var a = 1\n;\nvar b = 2;\n;\n", new String(bundles.getBundle(script).getContent()));
+
+        List<String> links = resources.getPreloadLinks(ids, "/ctx", bundles);
+        assertEquals(3, links.size());
+        assertTrue(links.get(0), links.get(0).matches("</ctx/bundle/[0-9a-f]{32}\\.css>; rel=preload; as=style"));
+        assertEquals("</ctx/bundle/" + script + ">; rel=preload; as=script", links.get(1));
+        assertEquals("</ctx/js/missing.js>; rel=preload; as=script", links.get(2));
+
+        // without bundles, the resources are referenced individually
+        assertEquals(6, resources.getMarkup(ids, "/ctx").split("\n").length);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.pluto.container.PageResourceId;
+
+/**
+ * Tests the version matching, consolidation and memoization of page resources.
+ */
+public class PageResourcesTest extends TestCase {
+
+    private static final int COUNT = 2000;
+
+    private PageResources resources;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        resources = new PageResources();
+        resources.addResource(new PageResourceId("lib", "org", "1.0.0"), PageResources.Type.SCRIPT, "/lib-1.0.0.js");
+        resources.addResource(new PageResourceId("lib", "org", "1.2.0"), PageResources.Type.SCRIPT, "/lib-1.2.0.js");
+        resources.addResource(new PageResourceId("lib", "org", "2.0.0"), PageResources.Type.SCRIPT, "/lib-2.0.0.js");
+        for (int ii = 0; ii < COUNT; ii++) {
+            resources.addResource(new PageResourceId("res" + ii, "org", "1.0.0"), PageResources.Type.CSS, "/res" + ii + ".css");
+        }
+        resources.initialized();
+    }
+
+    public void testBestVersionMatch() {
+        assertEquals("<script type='text/javascript' src='/ctx/lib-1.2.0.js'></script>",
+                resources.getMarkup(new PageResourceId("lib", "org", "1.2.0"), "/ctx"));
+        assertEquals("<script type='text/javascript' src='/ctx/lib-1.0.0.js'></script>",
+                resources.getMarkup(new PageResourceId("lib", "org", "1.1"), "/ctx"));
+        assertEquals("<script type='text/javascript' src='/ctx/lib-2.0.0.js'></script>",
+                resources.getMarkup(new PageResourceId("lib", "org", "3.0.0"), "/ctx"));
+        assertEquals("", resources.getMarkup(new PageResourceId("lib", "other", "1.0.0"), "/ctx"));
+    }
+
+    public void testDuplicatesAndVersionsAreConsolidated() {
+        List<PageResourceId> ids = Arrays.asList(
+                new PageResourceId("lib", "org", "1.0.0"),
+                new PageResourceId("res1", "org", "1.0.0"),
+                new PageResourceId("lib", "org", "2.0.0"),
+                new PageResourceId("res1", "org", "1.0.0"));
+        assertEquals("<script type='text/javascript' src='/ctx/lib-2.0.0.js'></script>\n"
+                + "<link rel='stylesheet' type='text/css' href='/ctx/res1.css'></link>\n",
+                resources.getMarkup(ids, "/ctx"));
+        assertNull(resources.getMarkup(new ArrayList<PageResourceId>(), "/ctx"));
+    }
+
+    public void testLargeDependencyList() {
+        List<PageResourceId> ids = new ArrayList<PageResourceId>();
+        for (int rep = 0; rep < 5; rep++) {
+            for (int ii = 0; ii < COUNT; ii++) {
+                ids.add(new PageResourceId("res" + ii, "org", "1.0.0"));
+            }
+            ids.add(new PageResourceId("lib", "org", "1." + rep + ".0"));
+        }
+
+        long start = System.currentTimeMillis();
+        String markup = resources.getMarkup(ids, "/ctx");
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Consolidation took " + elapsed + " ms", elapsed < 5000);
+
+        String[] lines = markup.split("\n");
+        assertEquals(COUNT + 1, lines.length);
+        assertEquals("<link rel='stylesheet' type='text/css' href='/ctx/res0.css'></link>", lines[0]);
+        assertEquals("<script type='text/javascript' src='/ctx/lib-1.2.0.js'></script>", lines[COUNT]);
+
+        // the markup is memoized for the same list
+        assertSame(markup, resources.getMarkup(new ArrayList<PageResourceId>(ids), "/ctx"));
+        assertNotSame(markup, resources.getMarkup(ids, "/other"));
+    }
+
+    public void testPreloadLinks() {
+        resources.addResource(new PageResourceId("meta", "org", "1.0.0"), PageResources.Type.MARKUP, "<meta/>");
+        List<PageResourceId> ids = Arrays.asList(
+                new PageResourceId("res1", "org", "1.0.0"),
+                new PageResourceId("meta", "org", "1.0.0"),
+                new PageResourceId("lib", "org", "2.0.0"));
+        assertEquals(Arrays.asList("</ctx/res1.css>; rel=preload; as=style", "</ctx/lib-2.0.0.js>; rel=preload; as=script"),
+                resources.getPreloadLinks(ids, "/ctx", null));
+        assertTrue(resources.getPreloadLinks(new ArrayList<PageResourceId>(), "/ctx", null).isEmpty());
+    }
+
+    public void testAddedResourceInvalidatesMemoizedMarkup() {
+        List<PageResourceId> ids = Arrays.asList(new PageResourceId("new", "org", "1.0.0"));
+        assertEquals("\n", resources.getMarkup(ids, "/ctx"));
+        resources.addResource(new PageResourceId("new", "org", "1.0.0"), PageResources.Type.MARKUP, "<meta/>");
+        assertEquals("<meta/>\n", resources.getMarkup(ids, "/ctx"));
+
+        PageResources copy = new PageResources(resources);
+        assertEquals("<meta/>\n", copy.getMarkup(ids, "/ctx"));
+    }
+}
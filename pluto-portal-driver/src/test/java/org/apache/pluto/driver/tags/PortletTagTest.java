@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.tags;
+
+import java.util.Iterator;
+
+import javax.portlet.WindowState;
+import javax.servlet.ServletRequest;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
+import org.apache.pluto.driver.services.portal.SupportedModesService;
+import org.apache.pluto.driver.services.portal.SupportedWindowStateService;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+
+/**
+ * Tests which windows the portlet tag leaves to the client to render.
+ */
+public class PortletTagTest extends MockObjectTestCase {
+
+   private PagePlan.Window deferred;
+   private PagePlan.Window direct;
+
+   @Override
+   protected void setUp() throws Exception {
+      super.setUp();
+      PageConfig page = new PageConfig();
+      page.setName("Test Page");
+      page.addPortlet("/app", "Deferred", null, "true");
+      page.addPortlet("/app", "Direct", null, null);
+      Mock mockRegistry = mock(PortletRegistryService.class);
+      mockRegistry.stubs().method("getPortletApplication").will(returnValue(null));
+      PagePlan plan = new PagePlan(page, (PortletRegistryService) mockRegistry.proxy(),
+            (SupportedModesService) mock(SupportedModesService.class).proxy(),
+            (SupportedWindowStateService) mock(SupportedWindowStateService.class).proxy());
+      Iterator<String> pids = page.getPortletIds().iterator();
+      deferred = plan.getWindow(pids.next());
+      direct = plan.getWindow(pids.next());
+   }
+
+   /**
+    * Returns a request holding the window requested by the deferred render request.
+    */
+   private ServletRequest request(PagePlan.Window deferredWindow) {
+      Mock mockRequest = mock(ServletRequest.class);
+      mockRequest.stubs().method("getAttribute").with(eq(AttributeKeys.DEFERRED_WINDOW))
+            .will(returnValue((deferredWindow == null) ? null : deferredWindow.getId().getStringId()));
+      return (ServletRequest) mockRequest.proxy();
+   }
+
+   private static boolean isDeferred(PagePlan.Window win, WindowState state, ServletRequest request) {
+      return PortletTag.isDeferred(win, state, win.getId().getStringId(), request);
+   }
+
+   public void testDeferredWindow() {
+      assertTrue(isDeferred(deferred, WindowState.NORMAL, request(null)));
+      assertTrue(isDeferred(deferred, WindowState.MINIMIZED, request(null)));
+      assertFalse(isDeferred(direct, WindowState.NORMAL, request(null)));
+   }
+
+   public void testWindowWithoutPlanIsNotDeferred() {
+      assertFalse(PortletTag.isDeferred(null, WindowState.NORMAL, "/app.Portlet!111|0", request(null)));
+   }
+
+   public void testMaximizedWindowIsNotDeferred() {
+      assertFalse(isDeferred(deferred, WindowState.MAXIMIZED, request(null)));
+   }
+
+   public void testTargetedWindowIsNotDeferred() {
+      assertFalse(isDeferred(deferred, WindowState.NORMAL, request(deferred)));
+      assertTrue(isDeferred(deferred, WindowState.NORMAL, request(direct)));
+   }
+}
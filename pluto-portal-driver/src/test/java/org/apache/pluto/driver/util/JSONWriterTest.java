@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.util;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the separators and the escaping of the JSON writer.
+ */
+public class JSONWriterTest extends TestCase {
+
+    public void testStructure() throws Exception {
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter(out);
+        json.beginObject();
+        json.name("a").beginObject().endObject();
+        json.name("b").array(Arrays.asList("x", "y"));
+        json.name("c").value(null);
+        json.name("delta").value(true);
+        json.name("state").jsonValue("{\"x\":[]}");
+        json.members("\"d\":[],\"e\":{}");
+        json.name("f").beginArray().beginObject().name("g").value("h").endObject().beginArray().endArray().endArray();
+        json.endObject();
+        assertEquals("{\"a\":{},\"b\":[\"x\",\"y\"],\"c\":null,\"delta\":true,\"state\":{\"x\":[]},\"d\":[],\"e\":{},\"f\":[{\"g\":\"h\"},[]]}", out.toString());
+    }
+
+    public void testDeepNesting() throws Exception {
+        StringWriter out = new StringWriter();
+        JSONWriter json = new JSONWriter(out);
+        for (int ii = 0; ii < 40; ii++) {
+            json.beginArray().value("v");
+        }
+        for (int ii = 0; ii < 40; ii++) {
+            json.endArray();
+        }
+        assertTrue(out.toString().startsWith("[\"v\",[\"v\","));
+        assertTrue(out.toString().endsWith("]]]"));
+    }
+
+    public void testEscaping() throws Exception {
+        StringWriter out = new StringWriter();
+        new JSONWriter(out).value("a\"b\\c\n\t\u0001</script>&'\u2028");
+        assertEquals("\"a\\\"b\\\\c\\n\\t\\u0001\\u003c/script\\u003e\\u0026\\u0027\\u2028\"", out.toString());
+        assertEquals("caf\u00e9 \\\"x\\\"", JSONWriter.escape("caf\u00e9 \"x\""));
+    }
+}
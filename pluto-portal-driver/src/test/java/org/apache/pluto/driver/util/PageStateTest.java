@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.util;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.core.PortalRequestContext;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PagePlan;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.SupportedModesService;
+import org.apache.pluto.driver.services.portal.SupportedWindowStateService;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLParser;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.springframework.security.web.csrf.CsrfToken;
+
+/**
+ * Tests the page state version and the page state deltas written for Ajax actions.
+ * The page holds two portlets without public render parameters.
+ */
+public class PageStateTest extends MockObjectTestCase {
+
+    private PageConfig page;
+    private String pid1;
+    private String pid2;
+    private List<PortalURLParameter> parameters;
+    private Mock mockConfig;
+    private HttpServletRequest request;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        page = new PageConfig();
+        page.setName("Test Page");
+        page.addPortlet("/app", "Portlet1");
+        page.addPortlet("/app", "Portlet2");
+        Iterator<String> pids = page.getPortletIds().iterator();
+        pid1 = pids.next();
+        pid2 = pids.next();
+        parameters = new ArrayList<PortalURLParameter>();
+
+        Mock mockMapper = mock(PublicRenderParameterMapper.class);
+        mockMapper.stubs().method("getPRPsForWindow").will(returnValue(Collections.emptyList()));
+        mockMapper.stubs().method("getNumberOfGroups").will(returnValue(0));
+
+        Mock mockUrl = mock(PortalURL.class);
+        mockUrl.stubs().method("getRenderPath").will(returnValue("/page"));
+        mockUrl.stubs().method("getPageConfig").will(returnValue(page));
+        mockUrl.stubs().method("getParameters").withNoArguments().will(returnValue(parameters));
+        mockUrl.stubs().method("getPublicRenderParameterMapper").will(returnValue(mockMapper.proxy()));
+        mockUrl.stubs().method("getPortletMode").will(returnValue(PortletMode.VIEW));
+        mockUrl.stubs().method("getWindowState").will(returnValue(WindowState.NORMAL));
+
+        Mock mockParser = mock(PortalURLParser.class);
+        mockParser.stubs().method("parse").will(returnValue(mockUrl.proxy()));
+
+        mockConfig = mock(DriverConfiguration.class);
+        mockConfig.stubs().method("getPortalUrlParser").will(returnValue(mockParser.proxy()));
+        mockConfig.stubs().method("getPagePlan").with(eq("/page")).will(returnValue(createPlan()));
+
+        Mock mockContext = mock(ServletContext.class);
+        mockContext.stubs().method("getAttribute").with(eq(AttributeKeys.DRIVER_CONFIG))
+                .will(returnValue(mockConfig.proxy()));
+
+        Mock mockRequest = mock(HttpServletRequest.class);
+        mockRequest.stubs().method("setAttribute");
+        request = (HttpServletRequest) mockRequest.proxy();
+        PortalRequestContext portalRC = new PortalRequestContext((ServletContext) mockContext.proxy(), request,
+                (HttpServletResponse) mock(HttpServletResponse.class).proxy());
+        mockRequest.stubs().method("getAttribute").will(returnValue(portalRC));
+        mockRequest.stubs().method("getAttribute").with(eq(CsrfToken.class.getName())).will(returnValue(null));
+    }
+
+    private PagePlan createPlan() {
+        Mock mockApplication = mock(PortletApplicationDefinition.class);
+        mockApplication.stubs().method("getVersion").will(returnValue("2.0"));
+        Mock mockRegistry = mock(PortletRegistryService.class);
+        mockRegistry.stubs().method("getPortletApplication").will(returnValue(mockApplication.proxy()));
+        mockRegistry.stubs().method("getPortlet").will(returnValue(mock(PortletDefinition.class).proxy()));
+        Mock mockModes = mock(SupportedModesService.class);
+        mockModes.stubs().method("getSupportedPortletModes").will(returnValue(Collections.singleton(PortletMode.VIEW)));
+        Mock mockStates = mock(SupportedWindowStateService.class);
+        mockStates.stubs().method("getSupportedWindowStates").will(returnValue(Collections.singleton(WindowState.NORMAL)));
+        return new PagePlan(page, (PortletRegistryService) mockRegistry.proxy(),
+                (SupportedModesService) mockModes.proxy(), (SupportedWindowStateService) mockStates.proxy());
+    }
+
+    private String write(Map<String, String> snapshot) throws Exception {
+        StringWriter out = new StringWriter();
+        new PageState(request).writeJSON(out, snapshot);
+        return out.toString();
+    }
+
+    private void changeState() {
+        parameters.add(new PortalURLParameter(pid1, "parm", new String[] {"value"}));
+    }
+
+    public void testMatchingVersionWritesDelta() throws Exception {
+        PageState ps = new PageState(request);
+        Map<String, String> snapshot = ps.getStateSnapshot(ps.getVersion());
+        assertNotNull(snapshot);
+        assertEquals(2, snapshot.size());
+        changeState();
+
+        String json = write(snapshot);
+        assertTrue(json, json.startsWith("{\"version\":\"" + ps.getVersion() + "\",\"delta\":true,"));
+        assertTrue(json, json.contains(ps.getNameSpace(pid1)));
+        assertTrue(json, json.contains("\"parm\":[\"value\"]"));
+        assertTrue(json, json.contains("\"allowedPM\":[\"view\"]"));
+        assertFalse(json, json.contains(ps.getNameSpace(pid2)));
+        assertFalse(json, json.contains("prpMap"));
+    }
+
+    public void testUnchangedStateWritesEmptyDelta() throws Exception {
+        PageState ps = new PageState(request);
+        String json = write(ps.getStateSnapshot(ps.getVersion()));
+        assertEquals("{\"version\":\"" + ps.getVersion() + "\",\"delta\":true,\"portlets\":{}}", json);
+    }
+
+    public void testMismatchedVersionWritesFullState() throws Exception {
+        PageState ps = new PageState(request);
+        Map<String, String> snapshot = ps.getStateSnapshot("0000000000000000");
+        assertNull(snapshot);
+        changeState();
+
+        String json = write(snapshot);
+        assertFalse(json, json.contains("\"delta\""));
+        assertTrue(json, json.contains(ps.getNameSpace(pid1)));
+        assertTrue(json, json.contains(ps.getNameSpace(pid2)));
+        assertTrue(json, json.endsWith(",\"prpMap\":{}}"));
+    }
+
+    public void testVersionIsCachedOnPagePlan() throws Exception {
+        PagePlan plan = createPlan();
+        mockConfig.stubs().method("getPagePlan").with(eq("/page")).will(returnValue(plan));
+        assertNull(plan.getPageStateVersion());
+        String version = new PageState(request).getVersion();
+        assertEquals(version, plan.getPageStateVersion());
+        assertNotNull(plan.getWindow(pid1).getPageStateMembers());
+
+        // the render state is not part of the version
+        changeState();
+        assertEquals(version, new PageState(request).getVersion());
+    }
+
+    public void testChangedPagePlanChangesVersion() throws Exception {
+        String version = new PageState(request).getVersion();
+        page.addPortlet("/app", "Portlet3");
+        mockConfig.stubs().method("getPagePlan").with(eq("/page")).will(returnValue(createPlan()));
+
+        PageState ps = new PageState(request);
+        assertFalse(version.equals(ps.getVersion()));
+        assertNull(ps.getStateSnapshot(version));
+    }
+}
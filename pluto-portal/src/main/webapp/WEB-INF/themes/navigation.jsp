@@ -16,7 +16,7 @@ implied.
 See the License for the specific language governing permissions and
 limitations under the License.
 --%>
-<%@ page isELIgnored="false" %>
+<%@ page isELIgnored="false" session="false" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://portals.apache.org/pluto" prefix="pluto" %>
 
@@ -18,7 +18,7 @@ limitations under the License.
 --%>
 
 <%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
-<%@ page isELIgnored="false" %>
+<%@ page isELIgnored="false" session="false" %>
 <%@page import="org.apache.pluto.driver.core.PortalRequestContext"%>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
@@ -41,19 +41,18 @@ group (the left column) displays portlets with odd IDs, while the second group
 <head>
     <meta http-equiv="content-type" content="text/html; charset=UTF-8">
     <title>Pluto Portal</title>
+    <%
+       PageState ps = new PageState(request);
+    %>
+    <script type="application/json" id="pluto-page-state"><% ps.writeJSON(out); %></script>
     <script type="text/javascript">
        /**
         * Initialization code for portlet hub
         */
-       <%
-          PageState ps = new PageState(request);
-       %>
        var portlet = portlet || {};
        portlet.impl = portlet.impl || {};
        portlet.impl.getInitData = function () {
-          var str = '<%=ps.toEncodedJSONString()%>';
-          str = str.replace(/%3C/g, "<");
-          return JSON.parse(str);
+          return JSON.parse(document.getElementById('pluto-page-state').textContent);
        }
 	   portlet.impl.getUrlBase = function () {
 		   return '<%=response.encodeURL(ps.getUrlBase())%>';
@@ -149,6 +148,12 @@ group (the left column) displays portlets with odd IDs, while the second group
 
 </div>
 
+<!-- Portlets deferred by out-of-order streaming are written here as they complete -->
+<pluto:streamPortlets var="portlet">
+    <c:set var="portlet" value="${portlet}" scope="request"/>
+    <jsp:include page="portlet-skin.jsp"/>
+</pluto:streamPortlets>
+
 </body>
 
 </html>
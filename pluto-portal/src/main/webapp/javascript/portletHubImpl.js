@@ -305,6 +305,10 @@ var portlet = portlet || {};
 
    ACTION = "ac",
    RESOURCE = "rs",
+
+   // The request header & parameter used to exchange page state deltas with the portal
+   PAGE_STATE_VERSION_HEADER = "X-Pluto-Page-State-Version",
+   PAGE_STATE_PARAM = "pluto.pageState",
    AJAX_ACTION = "aa",       // new for portlet spec 3
    PARTIAL_ACTION = "pa",    // new for portlet spec 3
    RENDER = "re",            // new for portlet spec 3
@@ -638,23 +642,31 @@ var portlet = portlet || {};
    },
 
    
-   // decodes the update strings. The update string is 
-   // a JSON object containing the entire page state. This decoder 
+   // decodes the update object. The update object contains either
+   // the entire page state or, if its delta property is set, only
+   // the portlets whose state has changed. This decoder 
    // returns an object containing the portlet data for portlets whose 
    // state has changed as compared to the current page state.
-   decodeUpdateString = function (ustr) {
-      var portlets = {}, ostate, nstate, pid, ps, npids = 0, cpids = 0;
+   decodeUpdateString = function (ps) {
+      var portlets = {}, ostate, nstate, pid, npids = 0, cpids = 0;
       
-      console.log("Decoding string: >>" + ustr + "<<");
-
-      ps = JSON.parse(ustr);
       for (pid in ps.portlets) {
          if (ps.portlets.hasOwnProperty(pid)) {
             npids++;
             nstate = ps.portlets[pid].state;
-            ostate = pageState.portlets[pid].state;
             
-            if (!nstate || !ostate) {
+            if (!nstate) {
+               throw new Error ("Invalid update string. nstate=" + nstate);
+            }
+            
+            // a portlet that is new on the page is always taken over
+            if (!pageState.portlets.hasOwnProperty(pid)) {
+               portlets[pid] = ps.portlets[pid];
+               cpids++;
+               continue;
+            }
+            ostate = pageState.portlets[pid].state;
+            if (!ostate) {
                throw new Error ("Invalid update string. ostate=" + ostate + ", nstate=" + nstate);
             }
             
@@ -680,9 +692,38 @@ var portlet = portlet || {};
     * @private 
     */
    updatePageStateFromString = function (ustr, pid) {
+      console.log("Decoding string: >>" + ustr + "<<");
+      return updatePageStateFromObject(JSON.parse(ustr), pid);
+   },
+
+   /**
+    * updates page state from a full page state or a delta and returns
+    * array of portlet IDs to be updated.
+    * 
+    * @param   {object}    ps       The page state or delta
+    * @param   {string}    pid      The portlet ID
+    * @private 
+    */
+   updatePageStateFromObject = function (ps, pid) {
       var portlets, tpid, portlet, upids = [], stateUpdated = false;
 
-      portlets = decodeUpdateString(ustr);
+      portlets = decodeUpdateString(ps);
+
+      // A full page state replaces the parts that do not depend on the render state.
+      // Portlets that are no longer on the page are removed.
+      if (!ps.delta) {
+         if (ps.prpMap) {
+            pageState.prpMap = ps.prpMap;
+         }
+         if (ps.version !== pageState.version) {
+            for (tpid in pageState.portlets) {
+               if (pageState.portlets.hasOwnProperty(tpid) && !ps.portlets.hasOwnProperty(tpid)) {
+                  delete pageState.portlets[tpid];
+               }
+            }
+         }
+         pageState.version = ps.version;
+      }
 
       // Update portlets and collect IDs of affected portlets. 
       for (tpid in portlets) {
@@ -704,6 +745,78 @@ var portlet = portlet || {};
    },
    
    
+   /**
+    * Fetches the full page state for the render state given by the URL.
+    * 
+    * @param   {string}    url      The render URL
+    * @returns {Promise}            fulfilled with the page state
+    * @private 
+    */
+   fetchPageState = function (url) {
+      return new Promise(function (resolve, reject) {
+         var xhr = new XMLHttpRequest();
+         url += (url.indexOf('?') >= 0 ? '&' : '?') + PAGE_STATE_PARAM + '=true';
+         console.log("page state URL: " + url);
+         xhr.onreadystatechange = function () {
+            if (xhr.readyState === 4) {
+               if (xhr.status === 200) {
+                  try {
+                     resolve(JSON.parse(xhr.responseText));
+                  } catch (e) {
+                     reject(e);
+                  }
+               } else {
+                  reject(new Error("Page state xhr status: " + xhr.statusText));
+               }
+            }
+         };
+         xhr.open('GET', url, true);
+         xhr.send();
+      });
+   },
+
+   /**
+    * Update page state returned by an Ajax action. The portal returns only the 
+    * portlets whose render state was changed by the action, if the version of
+    * the page state sent with the action is current. If the version of such a 
+    * delta does not match the page state version, the render states of the 
+    * delta are used to fetch the full page state.
+    * 
+    * @param   {string}    ustr     The page state or delta
+    * @param   {string}    pid      The portlet ID
+    * @returns {Promise}            fulfilled with the IDs of the updated portlets
+    * @private 
+    */
+   updatePageStateFromAction = function (ustr, pid) {
+      var ps, tpid, saved = {}, url;
+
+      console.log("Decoding string: >>" + ustr + "<<");
+      ps = JSON.parse(ustr);
+      if (!ps.delta || ps.version === pageState.version) {
+         return Promise.resolve(updatePageStateFromObject(ps, pid));
+      }
+
+      console.log("page state version mismatch: " + ps.version + ", fetching full page state");
+
+      // the URL is generated synchronously, so the page state can be restored right away
+      for (tpid in ps.portlets) {
+         if (ps.portlets.hasOwnProperty(tpid) && pageState.portlets.hasOwnProperty(tpid)) {
+            saved[tpid] = pageState.portlets[tpid].state;
+            pageState.portlets[tpid].state = ps.portlets[tpid].state;
+         }
+      }
+      url = getUrl('RENDER', null, {});
+      for (tpid in saved) {
+         if (saved.hasOwnProperty(tpid)) {
+            pageState.portlets[tpid].state = saved[tpid];
+         }
+      }
+
+      return url.then(fetchPageState).then(function (full) {
+         return updatePageStateFromObject(full, pid);
+      });
+   },
+
    /**
     * Update page state passed in after partial action. The list of 
     * ID's of updated portlets is passed back through a promise in order
@@ -792,17 +905,27 @@ var portlet = portlet || {};
          // get the ajax action URL. The Pluto impl creates the URL in JS
          // therefore no error handling 
          getUrl("ACTION", pid, parms).then(function (url) {
-            var xhr, upids, fd, method = 'POST', enctype, fstr;
+            var xhr, fd, method = 'POST', enctype, fstr, open;
 
             console.log("ajax action URL: " + url);
             
             xhr = new XMLHttpRequest();
+
+            // the page state version allows the portal to return only the changed portlets
+            open = function (method, url) {
+               xhr.open(method, url, true);
+               if (pageState.version) {
+                  xhr.setRequestHeader(PAGE_STATE_VERSION_HEADER, pageState.version);
+               }
+            };
+
             xhr.onreadystatechange = function () {
                if (xhr.readyState === 4) {
                   if (xhr.status === 200) {
                      try {
-                        upids = updatePageStateFromString(xhr.responseText, pid);
-                        resolve(upids);
+                        updatePageStateFromAction(xhr.responseText, pid).then(resolve, function (e) {
+                           reject(new Error("Ajax Action decode status: " + e.message));
+                        });
                      } catch (e) {
                         reject(new Error("Ajax Action decode status: " + e.message));
                      }
@@ -818,7 +941,7 @@ var portlet = portlet || {};
                   // multipart/form-data is always POSTed using FormData 
                   fd = new FormData(element);
                   console.log("ajax action: POST using FormData object: " + fd);
-                  xhr.open(method, url, true);
+                  open(method, url);
                   xhr.send(fd);
                } else {
                   // has to be 'application\/x-www-form-urlencoded', as the hub does not support text/plain
@@ -832,18 +955,18 @@ var portlet = portlet || {};
                      } else {
                         url += '?' + fstr;
                      }
-                     xhr.open(method, url, true);
+                     open(method, url);
                      xhr.send();
                   } else {
                      // has to be post, since we only support GET & POST
-                     xhr.open(method, url, true);
+                     open(method, url);
                      xhr.setRequestHeader('Content-Type','application/x-www-form-urlencoded');
                      xhr.setRequestHeader('Content-Length', fstr.length);
                      xhr.send(fstr);
                   }
                }
             } else {
-               xhr.open(method, url, true);
+               open(method, url);
                console.log("ajax action: POST using URL with parameters");
                xhr.send();
             }
@@ -852,6 +975,117 @@ var portlet = portlet || {};
       });
 
    };
+
+   /**
+    * Initializes the page state from the data provided by the portal.
+    * @private
+    */
+   var initialize = function () {
+      if (!isInitialized) {
+         pageState = portlet.impl.getInitData();
+         updateHistory(true);
+         isInitialized = true;
+      }
+   },
+
+   /**
+    * Replaces the placeholder of a deferred portlet with the markup of the portlet.
+    * Scripts contained in the markup are executed.
+    * 
+    * @param   {HTMLElement}  placeholder    The placeholder element
+    * @param   {string}       markup         The portlet markup
+    * @private 
+    */
+   insertMarkup = function (placeholder, markup) {
+      var container = document.createElement('div'), scripts, old, script, ii, jj;
+      container.innerHTML = markup;
+
+      // scripts inserted through innerHTML are not executed, so recreate them
+      scripts = container.getElementsByTagName('script');
+      for (ii = 0; ii < scripts.length; ii++) {
+         old = scripts[ii];
+         script = document.createElement('script');
+         for (jj = 0; jj < old.attributes.length; jj++) {
+            script.setAttribute(old.attributes[jj].name, old.attributes[jj].value);
+         }
+         script.text = old.text;
+         old.parentNode.replaceChild(script, old);
+      }
+
+      while (container.firstChild) {
+         placeholder.parentNode.insertBefore(container.firstChild, placeholder);
+      }
+      placeholder.parentNode.removeChild(placeholder);
+   },
+
+   /**
+    * Fetches the markup of a deferred portlet through a render request for 
+    * the portlet window and inserts it in place of the placeholder.
+    * 
+    * @param   {HTMLElement}  placeholder    The placeholder element
+    * @private 
+    */
+   loadDeferred = function (placeholder) {
+      var pid = placeholder.getAttribute('data-portlet-id');
+      if (!isValidId(pid)) {
+         console.log("deferred portlet not on page: " + pid);
+         return;
+      }
+      getUrl('RENDER', pid, null).then(function (url) {
+         var xhr = new XMLHttpRequest();
+         console.log("deferred render URL: " + url);
+         xhr.onreadystatechange = function () {
+            if (xhr.readyState === 4) {
+               if (xhr.status === 200) {
+                  insertMarkup(placeholder, xhr.responseText);
+               } else {
+                  console.log("deferred render xhr status: " + xhr.statusText);
+               }
+            }
+         };
+         xhr.open('GET', url, true);
+         xhr.setRequestHeader('X-Pluto-Deferred', 'true');
+         xhr.send();
+      });
+   },
+
+   /**
+    * Starts observing the placeholders of the deferred portlets on the page. A
+    * portlet is loaded when its placeholder comes close to the viewport. Without
+    * IntersectionObserver support, all deferred portlets are loaded at once.
+    * @private
+    */
+   observeDeferred = function () {
+      var placeholders = document.querySelectorAll('div.pluto-deferred'), observer, ii;
+      if (placeholders.length === 0) {
+         return;
+      }
+      initialize();
+      if (window.IntersectionObserver) {
+         observer = new IntersectionObserver(function (entries) {
+            var jj;
+            for (jj = 0; jj < entries.length; jj++) {
+               if (entries[jj].isIntersecting) {
+                  observer.unobserve(entries[jj].target);
+                  loadDeferred(entries[jj].target);
+               }
+            }
+         }, {rootMargin: '200px'});
+         for (ii = 0; ii < placeholders.length; ii++) {
+            observer.observe(placeholders[ii]);
+         }
+      } else {
+         for (ii = 0; ii < placeholders.length; ii++) {
+            loadDeferred(placeholders[ii]);
+         }
+      }
+   };
+
+   if (document.readyState === 'loading') {
+      document.addEventListener('DOMContentLoaded', observeDeferred);
+   } else {
+      observeDeferred();
+   }
    
    /**
     * Handler for history event that is fired when the back button is pressed.
@@ -887,11 +1121,7 @@ var portlet = portlet || {};
    portlet.impl.register = function (pid, updateFunction) {
 
       // take care of moc data initialization      
-      if (!isInitialized) {
-         pageState = portlet.impl.getInitData();
-         updateHistory(true);
-         isInitialized = true;
-      }
+      initialize();
       
       updateWhenIdle = updateFunction;
 